@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package com.qomplx.mdtsdb.client.api;
+
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Retries transient failures with capped exponential backoff and full jitter.
+ *
+ * <p>
+ *   Retried are I/O errors, HTTP statuses 408, 429, 502, 503 and 504, and the server
+ *   errors ERR_CODE_AUTH_OVERLOAD, ERR_CODE_SERVICE_TIMEOUT, ERR_CODE_DB_DISCON and
+ *   ERR_CODE_REQ_TIMEOUT; everything else fails at once. Retry n waits a random time
+ *   of up to "retry_base_delay_ms" * 2^(n-1), at most "retry_max_delay_ms", but not less
+ *   than the server asked for with Retry-After. A failure whose Retry-After is longer than
+ *   "retry_max_delay_ms" is not retried. A request is sent at most "retry_max_attempts"
+ *   times.
+ * </p>
+ *
+ * <p>
+ *   The default policy of a client. Its options are read from the client options, and
+ *   "retry_max_attempts" 1 turns retries off.
+ * </p>
+ */
+public class BackoffRetryPolicy implements RetryPolicy
+{
+    public static final int DEFAULT_MAX_ATTEMPTS = 4;
+    public static final long DEFAULT_BASE_DELAY_MS = 100L;
+    public static final long DEFAULT_MAX_DELAY_MS = 10000L;
+
+    private final int maxAttempts;
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+
+    public BackoffRetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs)
+    {
+        if(maxAttempts <= 0 || baseDelayMs <= 0 || maxDelayMs < baseDelayMs)
+            throw new IllegalArgumentException("invalid retry options");
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+    }
+
+    /**
+     * @param options "retry_max_attempts", "retry_base_delay_ms" and "retry_max_delay_ms"
+     */
+    public BackoffRetryPolicy(Properties options)
+    {
+        this(Integer.parseInt(options.getProperty("retry_max_attempts", String.valueOf(DEFAULT_MAX_ATTEMPTS))),
+             Long.parseLong(options.getProperty("retry_base_delay_ms", String.valueOf(DEFAULT_BASE_DELAY_MS))),
+             Long.parseLong(options.getProperty("retry_max_delay_ms", String.valueOf(DEFAULT_MAX_DELAY_MS))));
+    }
+
+    @Override
+    public long retryDelayMs(int attempt, int httpStatus, int errorCode, long retryAfterMs)
+    {
+        if(attempt >= maxAttempts || !isRetryable(httpStatus, errorCode))
+            return -1;
+        // retrying sooner than the server asked for would only be refused again
+        if(retryAfterMs > maxDelayMs)
+            return -1;
+        long ceiling = baseDelayMs << Math.min(attempt - 1, 30);
+        long delay = ThreadLocalRandom.current().nextLong(Math.min(ceiling, maxDelayMs) + 1);
+        return Math.max(delay, retryAfterMs);
+    }
+
+    /**
+     * @return true if a failure with the HTTP status and server error code is transient
+     */
+    public static boolean isRetryable(int httpStatus, int errorCode)
+    {
+        if(errorCode != 0)
+        {
+            switch(errorCode)
+            {
+                case MdtsdbServerException.ERR_CODE_AUTH_OVERLOAD:
+                case MdtsdbServerException.ERR_CODE_SERVICE_TIMEOUT:
+                case MdtsdbServerException.ERR_CODE_DB_DISCON:
+                case MdtsdbServerException.ERR_CODE_REQ_TIMEOUT:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+        switch(httpStatus)
+        {
+            case 0:
+            case 408:
+            case 429:
+            case 502:
+            case 503:
+            case 504:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package com.qomplx.mdtsdb.client.api;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Sends the batches of BatchingWriter and SwimlaneRouter.
+ *
+ * <p>
+ *   Points are added to the current batch, which is sent when it holds "batch_max_points"
+ *   points, when it reaches about "batch_max_bytes" bytes (0 for no limit), or
+ *   "batch_linger_ms" milliseconds after it was started. At most "batch_max_in_flight"
+ *   batches are sent at once, adding blocks while all of them are in flight. Subclasses
+ *   decide how points are grouped in a batch and how a batch is inserted.
+ * </p>
+ */
+abstract class BatchSender<B extends BatchSender.Batch> implements Closeable
+{
+    public static final long DEFAULT_MAX_BYTES = 1024L * 1024L;
+    public static final long DEFAULT_LINGER_MS = 100L;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+    protected final MdtsdbAsyncClient client;
+    protected final int maxPoints;
+    protected final long maxBytes;
+    protected final long lingerMs;
+    protected final int maxInFlight;
+
+    private final String name;
+    private final Semaphore inFlight;
+    // futures of the batches detached and not yet completed, including those still waiting to be sent
+    private final Set<CompletableFuture<JsonObject>> pending = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService timer;
+
+    private B current = null;
+    private boolean closed = false;
+
+    /**
+     * @param name what the sender is, for errors
+     * @param threadName name of the linger timer thread
+     */
+    BatchSender(MdtsdbAsyncClient client, Properties options, int defaultMaxPoints, String name, String threadName)
+    {
+        this.client = client;
+        this.name = name;
+        this.maxPoints = Integer.parseInt(options.getProperty("batch_max_points", String.valueOf(defaultMaxPoints)));
+        this.maxBytes = Long.parseLong(options.getProperty("batch_max_bytes", String.valueOf(DEFAULT_MAX_BYTES)));
+        this.lingerMs = Long.parseLong(options.getProperty("batch_linger_ms", String.valueOf(DEFAULT_LINGER_MS)));
+        this.maxInFlight = Integer.parseInt(options.getProperty("batch_max_in_flight", String.valueOf(DEFAULT_MAX_IN_FLIGHT)));
+
+        this.inFlight = new Semaphore(maxInFlight, true);
+        // the thread is started with the first batch, so a sender failing validation leaves none
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, threadName);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @return a new empty batch
+     */
+    abstract B newBatch();
+
+    /**
+     * @return the future of the server response to the batch
+     */
+    abstract CompletableFuture<JsonObject> insert(B batch);
+
+    /**
+     * Adds a point to the current batch.
+     *
+     * @param size the bytes the point adds to a batch, looked up before it is appended
+     * @param append appends the point to a batch
+     * @return the future of the batch the point is sent with
+     */
+    final CompletableFuture<JsonObject> add(ToLongFunction<B> size, Consumer<B> append) throws InterruptedException
+    {
+        // batches are sent outside the lock, since sending blocks while too many are in flight
+        B previous = null, filled = null;
+        CompletableFuture<JsonObject> future;
+        synchronized(this)
+        {
+            if(closed)
+                throw new IllegalStateException(name + " is closed");
+            if(current != null && maxBytes > 0 && current.bytes + size.applyAsLong(current) > maxBytes)
+                previous = detach();
+            if(current == null)
+                current = start();
+
+            current.bytes += size.applyAsLong(current);
+            append.accept(current);
+            current.points += 1;
+            future = current.future;
+            if(current.points >= maxPoints || (maxBytes > 0 && current.bytes >= maxBytes))
+                filled = detach();
+        }
+        if(previous != null)
+            send(previous);
+        if(filled != null)
+            send(filled);
+        return future;
+    }
+
+    /**
+     * Sends the current batch and waits until all batches sent so far are completed.
+     */
+    public void flush() throws InterruptedException
+    {
+        B batch;
+        synchronized(this)
+        {
+            batch = detach();
+        }
+        if(batch != null)
+            send(batch);
+
+        // a batch is pending from the moment it is detached, so this also waits for the
+        // batches that other threads detached but have not sent yet
+        for(CompletableFuture<JsonObject> future : new ArrayList<>(pending))
+            future.handle((r, e) -> null).join();
+    }
+
+    /**
+     * Flushes the pending points and stops accepting new ones.
+     */
+    @Override
+    public void close()
+    {
+        synchronized(this)
+        {
+            if(closed)
+                return;
+            closed = true;
+        }
+        try {
+            flush();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            // a linger task may still be sending, so it is let finish
+            timer.shutdown();
+        }
+    }
+
+    private B start()
+    {
+        B batch = newBatch();
+        if(lingerMs > 0)
+            batch.linger = timer.schedule(() -> lingerExpired(batch), lingerMs, TimeUnit.MILLISECONDS);
+        return batch;
+    }
+
+    // called with the lock held
+    private B detach()
+    {
+        B batch = current;
+        current = null;
+        if(batch == null)
+            return null;
+        if(batch.linger != null)
+            batch.linger.cancel(false);
+        pending.add(batch.future);
+        batch.future.whenComplete((r, e) -> pending.remove(batch.future));
+        return batch;
+    }
+
+    private void lingerExpired(B batch)
+    {
+        synchronized(this)
+        {
+            if(current != batch)
+                return;
+            detach();
+        }
+        try {
+            send(batch);
+        }
+        catch(InterruptedException e)
+        {
+            batch.future.completeExceptionally(e);
+        }
+    }
+
+    private void send(B batch) throws InterruptedException
+    {
+        try {
+            inFlight.acquire();
+        }
+        catch(InterruptedException e)
+        {
+            batch.future.completeExceptionally(e);
+            throw e;
+        }
+
+        CompletableFuture<JsonObject> response;
+        try {
+            response = insert(batch);
+        }
+        catch(RuntimeException e)
+        {
+            inFlight.release();
+            batch.future.completeExceptionally(e);
+            return;
+        }
+        response.whenComplete((r, e) -> {
+            inFlight.release();
+            if(e != null)
+                batch.future.completeExceptionally(e);
+            else
+                batch.future.complete(r);
+        });
+    }
+
+    static class Batch
+    {
+        final CompletableFuture<JsonObject> future = new CompletableFuture<>();
+        long bytes = 0;
+        int points = 0;
+        ScheduledFuture<?> linger = null;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package com.qomplx.mdtsdb.client.api;
+
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Collects measurement points from any number of threads and inserts them in batches.
+ *
+ * <p>
+ *   A batch is sent when it holds "batch_max_points" points, when it reaches about
+ *   "batch_max_bytes" bytes of JSON, or "batch_linger_ms" milliseconds after its first
+ *   point was added, whichever comes first. At most "batch_max_in_flight" batches are
+ *   sent at once; writers block when all of them are in flight, which throttles
+ *   producers to the rate the server accepts.
+ * </p>
+ *
+ * <p>
+ *   write() returns the future of the batch the point was added to. It completes with
+ *   the server response to the batch, or exceptionally if the batch could not be sent.
+ *   The writer does not own the client, closing the writer drains it but leaves the
+ *   client open.
+ * </p>
+ *
+ * <pre>
+ *   try(BatchingWriter writer = new BatchingWriter(client, options)) {
+ *       writer.write(new Measurement().time(ts).sensor(0).value(v).build());
+ *   }
+ * </pre>
+ */
+public class BatchingWriter extends BatchSender<BatchingWriter.Batch>
+{
+    public static final int DEFAULT_MAX_POINTS = 1000;
+
+    /**
+     * Creates a writer that inserts through the given client.
+     *
+     * @param client client to insert with
+     * @param options "batch_max_points", "batch_max_bytes", "batch_linger_ms" and "batch_max_in_flight"
+     */
+    public BatchingWriter(MdtsdbClient client, Properties options)
+    {
+        this(client.async(), options);
+    }
+
+    /**
+     * Creates a writer that inserts through the given client.
+     *
+     * @param client client to insert with
+     * @param options "batch_max_points", "batch_max_bytes", "batch_linger_ms" and "batch_max_in_flight"
+     */
+    public BatchingWriter(MdtsdbAsyncClient client, Properties options)
+    {
+        super(client, options, DEFAULT_MAX_POINTS, "writer", "mdtsdb-batching-writer");
+        if(maxPoints <= 0 || maxInFlight <= 0)
+            throw new IllegalArgumentException("batch size and number of batches in flight must be positive");
+    }
+
+    /**
+     * Adds a point to the current batch.
+     *
+     * @param point a point as built by Measurement
+     * @return the future of the batch the point is sent with
+     */
+    public CompletableFuture<JsonObject> write(JsonObject point) throws InterruptedException
+    {
+        // JSON text length approximates the encoded size, the bodies are mostly ASCII
+        long size = maxBytes > 0 ? point.toString().length() + 1 : 0;
+        return add(batch -> size, batch -> batch.points.add(point));
+    }
+
+    @Override
+    Batch newBatch()
+    {
+        return new Batch();
+    }
+
+    @Override
+    CompletableFuture<JsonObject> insert(Batch batch)
+    {
+        return client.insert(batch.points);
+    }
+
+    static final class Batch extends BatchSender.Batch
+    {
+        final JsonArray points = new JsonArray();
+    }
+}
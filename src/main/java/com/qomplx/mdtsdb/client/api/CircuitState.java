@@ -0,0 +1,19 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package com.qomplx.mdtsdb.client.api;
+
+/**
+ * State of the circuit breaker of an end-point.
+ *
+ * <p>
+ *   CLOSED lets requests through, OPEN fails them at once while the end-point is
+ *   unhealthy, and HALF_OPEN lets a single request through to find out whether it
+ *   has recovered.
+ * </p>
+ */
+public enum CircuitState
+{
+    CLOSED, OPEN, HALF_OPEN
+}
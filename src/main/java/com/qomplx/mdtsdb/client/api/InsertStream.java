@@ -0,0 +1,55 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package com.qomplx.mdtsdb.client.api;
+
+import java.io.Closeable;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * An insert whose points are sent while they are added, as the body of one request.
+ *
+ * <p>
+ *   Opened by MdtsdbClient.openInsertStream(). finish() completes the request and
+ *   returns its response; close() aborts it unless it is finished. Not safe for
+ *   concurrent use.
+ * </p>
+ *
+ * <pre>
+ *   try(InsertStream stream = client.openInsertStream()) {
+ *       stream.add(new Measurement().time(ts).sensor(0).value(v).build());
+ *       JsonObject response = stream.finish();
+ *   }
+ * </pre>
+ */
+public interface InsertStream extends Closeable
+{
+    /**
+     * Adds a point, a JSON object as Measurement builds it.
+     */
+    InsertStream add(JsonObject point) throws MdtsdbException;
+
+    /**
+     * Adds an array of points.
+     */
+    InsertStream add(JsonArray points) throws MdtsdbException;
+
+    /**
+     * Adds the points of a batch.
+     */
+    InsertStream add(PointBatch points) throws MdtsdbException;
+
+    /**
+     * Sends the rest of the request and waits for the response.
+     */
+    JsonObject finish() throws MdtsdbException;
+
+    /**
+     * Aborts the request unless it is finished.
+     */
+    @Override
+    void close();
+}
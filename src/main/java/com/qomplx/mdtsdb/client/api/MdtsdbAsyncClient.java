@@ -0,0 +1,378 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package com.qomplx.mdtsdb.client.api;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+import com.qomplx.mdtsdb.client.impl.MdtsdbClientImpl;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Non-blocking Mdtsdb client.
+ *
+ * <p>
+ *   Mirrors the request methods of MdtsdbClient, but returns futures instead of waiting
+ *   for the server. Futures complete on a transport thread, or exceptionally with
+ *   MdtsdbException wrapped in a CompletionException. The number of requests in flight
+ *   is bounded by the "pool_size" option; further requests queue without holding a thread.
+ * </p>
+ */
+public class MdtsdbAsyncClient implements Closeable
+{
+    /**
+     * Creates an asynchronous Mdtsdb client with a custom end-point.
+     *
+     */
+    public MdtsdbAsyncClient(String tsEndpoint, int tsPort, String tsAppKey, String tsAdmKey, String tsSecretKey, Properties options)
+    {
+        this.tsClient = new MdtsdbClientImpl(tsEndpoint, tsPort, tsAppKey, tsAdmKey, tsSecretKey, options);
+    }
+
+    /**
+     * Creates an asynchronous Mdtsdb client with a standard end-point.
+     *
+     */
+    public MdtsdbAsyncClient(String tsAppKey, String tsAdmKey, String tsSecretKey, Properties options)
+    {
+        this.tsClient = new MdtsdbClientImpl(tsAppKey, tsAdmKey, tsSecretKey, options);
+    }
+
+    /**
+     * Creates an asynchronous view of an existing client implementation.
+     *
+     */
+    MdtsdbAsyncClient(MdtsdbClientImpl tsClient)
+    {
+        this.tsClient = tsClient;
+    }
+
+    /**
+     * Releases the client's connections.
+     *
+     * @see MdtsdbClientImpl#close()
+     */
+    @Override
+    public void close()
+    {
+        this.tsClient.close();
+    }
+
+    /**
+     * Set keycloak access token credentials
+     */
+    public void setAccessCredentials(String authUrl, String clientId, String clientSecret) throws MdtsdbException
+    {
+        this.tsClient.setAccessCredentials(authUrl, clientId, clientSecret);
+    }
+
+    /**
+     * Set keycloak access token
+     */
+    public void setAccessToken(String accessToken, String accessTokenType) throws MdtsdbException
+    {
+        this.tsClient.setAccessToken(accessToken, accessTokenType);
+    }
+
+    /**
+     * @return the application key
+     */
+    public String getAppKey()
+    {
+        return this.tsClient.getAppKey();
+    }
+
+    ///////////
+    // User API
+
+    /**
+     * @see MdtsdbClient#sendEventsData(JsonObject)
+     */
+
+    public CompletableFuture<JsonObject> sendEventsData(JsonObject sensorData)
+    {
+        return this.tsClient.sendEventsDataAsync(sensorData);
+    }
+
+    /**
+     * @see MdtsdbClient#sendEventsData(JsonArray)
+     */
+
+    public CompletableFuture<JsonObject> sendEventsData(JsonArray sensorData)
+    {
+        return this.tsClient.sendEventsDataAsync(sensorData);
+    }
+
+    /**
+     * @see MdtsdbClient#insert(JsonArray)
+     */
+
+    public CompletableFuture<JsonObject> insert(JsonArray sensorData)
+    {
+        return this.tsClient.insertAsync(sensorData);
+    }
+
+    /**
+     * @see MdtsdbClient#insert(PointBatch)
+     */
+
+    public CompletableFuture<JsonObject> insert(PointBatch points)
+    {
+        return this.tsClient.insertAsync(points);
+    }
+
+    /**
+     * @see MdtsdbClient#insertColumns(String, long[], double[])
+     */
+
+    public CompletableFuture<JsonObject> insertColumns(String sensorId, long[] timestamps, double[] values)
+    {
+        return this.tsClient.insertColumnsAsync(sensorId, timestamps, values);
+    }
+
+    /**
+     * @see MdtsdbClient#insertColumns(String, long[], long[])
+     */
+
+    public CompletableFuture<JsonObject> insertColumns(String sensorId, long[] timestamps, long[] values)
+    {
+        return this.tsClient.insertColumnsAsync(sensorId, timestamps, values);
+    }
+
+    /**
+     * @see MdtsdbClient#insertColumns(String, long[], boolean[])
+     */
+
+    public CompletableFuture<JsonObject> insertColumns(String sensorId, long[] timestamps, boolean[] values)
+    {
+        return this.tsClient.insertColumnsAsync(sensorId, timestamps, values);
+    }
+
+    /**
+     * @see MdtsdbClient#insertColumns(String, long[], String[], int[])
+     */
+
+    public CompletableFuture<JsonObject> insertColumns(String sensorId, long[] timestamps, String[] dictionary, int[] codes)
+    {
+        return this.tsClient.insertColumnsAsync(sensorId, timestamps, dictionary, codes);
+    }
+
+    /**
+     * @see MdtsdbClient#insertColumns(String[], long[], double[][])
+     */
+
+    public CompletableFuture<JsonObject> insertColumns(String[] sensorIds, long[] timestamps, double[][] values)
+    {
+        return this.tsClient.insertColumnsAsync(sensorIds, timestamps, values);
+    }
+
+    /**
+     * @see MdtsdbClient#sendEventsGeoData(String)
+     */
+
+    public CompletableFuture<JsonObject> sendEventsGeoData(String GeojsonOrKml)
+    {
+        return this.tsClient.sendEventsGeoDataAsync(GeojsonOrKml);
+    }
+
+    /**
+     * @see MdtsdbClient#uploadKml(String, Properties)
+     */
+
+    public CompletableFuture<JsonObject> uploadKml(String kmlContent, Properties defaultParams)
+    {
+        return this.tsClient.uploadKmlAsync(kmlContent, defaultParams);
+    }
+
+    /**
+     * @see MdtsdbClient#uploadKmlFile(String, Properties)
+     */
+
+    public CompletableFuture<JsonObject> uploadKmlFile(String filePath, Properties defaultParams)
+    {
+        return this.tsClient.uploadKmlFileAsync(filePath, defaultParams);
+    }
+
+    /**
+     * @see MdtsdbClient#ping(Integer)
+     */
+
+    public CompletableFuture<JsonObject> ping(Integer timeout)
+    {
+        return this.tsClient.pingAsync(timeout);
+    }
+
+    /**
+     * @see MdtsdbClient#eventsQuery(String)
+     */
+
+    public CompletableFuture<JsonObject> eventsQuery(String script)
+    {
+        return this.tsClient.eventsQueryAsync(script, 1);
+    }
+
+    public CompletableFuture<JsonObject> eventsQuery(String script, Boolean streamBody)
+    {
+        return this.tsClient.eventsQueryAsync(script, 1, streamBody);
+    }
+
+    /**
+     * @see MdtsdbClient#query(String)
+     */
+
+    public CompletableFuture<JsonObject> query(String script)
+    {
+        return this.tsClient.queryAsync(script);
+    }
+
+    public CompletableFuture<JsonObject> query(String script, Boolean streamBody)
+    {
+        return this.tsClient.queryAsync(script, streamBody);
+    }
+
+    /**
+     * @see MdtsdbClient#asyncEventsQuery(String)
+     */
+
+    public CompletableFuture<JsonObject> asyncEventsQuery(String script)
+    {
+        return this.tsClient.asyncEventsQueryAsync(script, 1);
+    }
+
+    public CompletableFuture<JsonObject> asyncEventsQuery(String script, Boolean streamBody)
+    {
+        return this.tsClient.asyncEventsQueryAsync(script, 1, streamBody);
+    }
+
+    /**
+     * @see MdtsdbClient#asyncQuery(String)
+     */
+
+    public CompletableFuture<JsonObject> asyncQuery(String script)
+    {
+        return this.tsClient.asyncQueryAsync(script);
+    }
+
+    public CompletableFuture<JsonObject> asyncQuery(String script, Boolean streamBody)
+    {
+        return this.tsClient.asyncQueryAsync(script, streamBody);
+    }
+
+    /**
+     * @see MdtsdbClient#getStored(String)
+     */
+
+    public CompletableFuture<String> getStored(String uuid)
+    {
+        return this.tsClient.getStoredAsync(uuid);
+    }
+
+    /**
+     * @see MdtsdbClient#getMessages()
+     */
+
+    public CompletableFuture<JsonObject> getMessages()
+    {
+        return this.tsClient.getMessagesAsync();
+    }
+
+    ////////////
+    // Admin API
+
+    /**
+     * @see MdtsdbClient#newAppkey(String, String)
+     */
+
+    public CompletableFuture<JsonObject> newAppkey(String comment, String suggestName)
+    {
+        return this.tsClient.newAppkeyAsync(comment, suggestName);
+    }
+
+    /**
+     * @see MdtsdbClient#newAppkey(String)
+     */
+
+    public CompletableFuture<JsonObject> newAppkey(String comment)
+    {
+        return this.tsClient.newAppkeyAsync(comment);
+    }
+
+    /**
+     * @see MdtsdbClient#newAppkey(String, JsonObject)
+     */
+
+    public CompletableFuture<JsonObject> newAppkey(String comment, JsonObject optsData)
+    {
+        return this.tsClient.newAppkeyAsync(comment, optsData);
+    }
+
+    /**
+     * @see MdtsdbClient#getOrCreateAppkey(String, String)
+     */
+
+    public CompletableFuture<JsonObject> getOrCreateAppkey(String comment, String suggestName)
+    {
+        return this.tsClient.getOrCreateAppkeyAsync(comment, suggestName);
+    }
+
+    /**
+     * @see MdtsdbClient#getOrCreateAppkey(String, JsonObject)
+     */
+
+    public CompletableFuture<JsonObject> getOrCreateAppkey(String comment, JsonObject optsData)
+    {
+        return this.tsClient.getOrCreateAppkeyAsync(comment, optsData);
+    }
+
+    /**
+     * @see MdtsdbClient#deleteAppkey(String)
+     */
+
+    public CompletableFuture<JsonObject> deleteAppkey(String appKey)
+    {
+        return this.tsClient.deleteAppkeyAsync(appKey);
+    }
+
+    /**
+     * @see MdtsdbClient#deleteAppkey(String, Boolean)
+     */
+
+    public CompletableFuture<JsonObject> deleteAppkey(String appKey, Boolean keepData)
+    {
+        return this.tsClient.deleteAppkeyAsync(appKey, keepData);
+    }
+
+    /**
+     * @see MdtsdbClient#newAdminkey(String)
+     */
+
+    public CompletableFuture<JsonObject> newAdminkey(String comment)
+    {
+        return this.tsClient.newAdminkeyAsync(comment);
+    }
+
+    /**
+     * @see MdtsdbClient#getOrCreateAdminkey(String, String)
+     */
+
+    public CompletableFuture<JsonObject> getOrCreateAdminkey(String admKey, String comment)
+    {
+        return this.tsClient.getOrCreateAdminkeyAsync(admKey, comment);
+    }
+
+    /**
+     * @see MdtsdbClient#deleteAdminkey(String)
+     */
+
+    public CompletableFuture<JsonObject> deleteAdminkey(String admKey)
+    {
+        return this.tsClient.deleteAdminkeyAsync(admKey);
+    }
+
+
+    private MdtsdbClientImpl tsClient = null;
+}
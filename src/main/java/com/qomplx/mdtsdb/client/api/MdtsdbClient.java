@@ -4,14 +4,16 @@
  */
 package com.qomplx.mdtsdb.client.api;
 
+import java.io.Closeable;
 import java.util.*;
+import java.util.stream.Stream;
 
 import com.qomplx.mdtsdb.client.impl.MdtsdbClientImpl;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonElement;
 
-public class MdtsdbClient
+public class MdtsdbClient implements Closeable
 {
     /**
      * Creates a Mdtsdb client with a custom end-point.
@@ -41,6 +43,30 @@ public class MdtsdbClient
     }
 
 
+    /**
+     * Releases the client's connections.
+     *
+     * @see MdtsdbClientImpl#close()
+     */
+    @Override
+    public void close()
+    {
+        this.tsClient.close();
+    }
+
+    /**
+     * Returns a non-blocking view of this client.
+     *
+     * <p>
+     *   The view shares keys, credentials and connections with this client; closing
+     *   either of them closes both.
+     * </p>
+     */
+    public MdtsdbAsyncClient async()
+    {
+        return new MdtsdbAsyncClient(this.tsClient);
+    }
+
     /**
      * Set keycloak access token credentials
      */
@@ -172,7 +198,134 @@ public class MdtsdbClient
 
     public JsonObject insert(JsonArray sensorData) throws MdtsdbException
     {
-        return this.tsClient.sendEventsData(sensorData);
+        return this.tsClient.insert(sensorData);
+    }
+
+    /**
+     * @return per body encoding, the data requests sent with it by compression "adaptive"
+     *
+     * @see MdtsdbClientImpl#getEncodingStats()
+     */
+
+    public JsonObject getEncodingStats()
+    {
+        return this.tsClient.getEncodingStats();
+    }
+
+    /**
+     * @return the largest request body in bytes that inserts are split to fit, 0 while not known
+     *
+     * @see MdtsdbClientImpl#getMaxRequestBytes()
+     */
+
+    public int getMaxRequestBytes()
+    {
+        return this.tsClient.getMaxRequestBytes();
+    }
+
+    /**
+     * @see MdtsdbClientImpl#getRetryPolicy()
+     */
+
+    public RetryPolicy getRetryPolicy()
+    {
+        return this.tsClient.getRetryPolicy();
+    }
+
+    /**
+     * @see MdtsdbClientImpl#setRetryPolicy(RetryPolicy)
+     */
+
+    public void setRetryPolicy(RetryPolicy policy)
+    {
+        this.tsClient.setRetryPolicy(policy);
+    }
+
+    /**
+     * @see MdtsdbClientImpl#getCircuitState()
+     */
+
+    public CircuitState getCircuitState()
+    {
+        return this.tsClient.getCircuitState();
+    }
+
+    /**
+     * @see MdtsdbClientImpl#openInsertStream()
+     */
+
+    public InsertStream openInsertStream() throws MdtsdbException
+    {
+        return this.tsClient.openInsertStream();
+    }
+
+    /**
+     * @see MdtsdbClientImpl#newPointBatch()
+     */
+
+    public PointBatch newPointBatch()
+    {
+        return this.tsClient.newPointBatch();
+    }
+
+    /**
+     * @param points points encoded by a PointBatch
+     *
+     * @see MdtsdbClientImpl#insert(PointBatch)
+     */
+
+    public JsonObject insert(PointBatch points) throws MdtsdbException
+    {
+        return this.tsClient.insert(points);
+    }
+
+    /**
+     * @param sensorId alias of the sensor
+     * @param timestamps unix seconds of the values
+     * @param values the values
+     *
+     * @see MdtsdbClientImpl#insertColumns(String, long[], double[])
+     */
+
+    public JsonObject insertColumns(String sensorId, long[] timestamps, double[] values) throws MdtsdbException
+    {
+        return this.tsClient.insertColumns(sensorId, timestamps, values);
+    }
+
+    /**
+     * @see MdtsdbClientImpl#insertColumns(String, long[], long[])
+     */
+
+    public JsonObject insertColumns(String sensorId, long[] timestamps, long[] values) throws MdtsdbException
+    {
+        return this.tsClient.insertColumns(sensorId, timestamps, values);
+    }
+
+    /**
+     * @see MdtsdbClientImpl#insertColumns(String, long[], boolean[])
+     */
+
+    public JsonObject insertColumns(String sensorId, long[] timestamps, boolean[] values) throws MdtsdbException
+    {
+        return this.tsClient.insertColumns(sensorId, timestamps, values);
+    }
+
+    /**
+     * @see MdtsdbClientImpl#insertColumns(String, long[], String[], int[])
+     */
+
+    public JsonObject insertColumns(String sensorId, long[] timestamps, String[] dictionary, int[] codes) throws MdtsdbException
+    {
+        return this.tsClient.insertColumns(sensorId, timestamps, dictionary, codes);
+    }
+
+    /**
+     * @see MdtsdbClientImpl#insertColumns(String[], long[], double[][])
+     */
+
+    public JsonObject insertColumns(String[] sensorIds, long[] timestamps, double[][] values) throws MdtsdbException
+    {
+        return this.tsClient.insertColumns(sensorIds, timestamps, values);
     }
 
     /**
@@ -258,6 +411,28 @@ public class MdtsdbClient
         return this.tsClient.query(script, streamBody);
     }
 
+    /**
+     * @param script query language script content
+     *
+     * @see MdtsdbClientImpl#eventsQueryStream(String, Integer)
+     */
+
+    public Stream<JsonObject> eventsQueryStream(String script) throws MdtsdbException
+    {
+        return this.tsClient.eventsQueryStream(script, 1);
+    }
+
+    /**
+     * @param script query language script content
+     *
+     * @see MdtsdbClientImpl#queryStream(String)
+     */
+
+    public Stream<JsonObject> queryStream(String script) throws MdtsdbException
+    {
+        return this.tsClient.queryStream(script);
+    }
+
     /**
      * @param script query language script content
      *
@@ -0,0 +1,1038 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package com.qomplx.mdtsdb.client.api;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import com.qomplx.mdtsdb.client.impl.ByteSink;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A batch of Mdtsdb sensor values encoded as JSON or BSON while they are added.
+ *
+ * <p>
+ *   Points are built with the same calls as Measurement, but they are written straight
+ *   into a reusable byte buffer instead of a JsonObject tree. The encoded batch equals
+ *   the JSON array of the same Measurement points byte for byte, or the BSON the client
+ *   writes for it with compression "bson", provided sensor ids, field names and tag names
+ *   are not repeated within a point (Measurement keeps the last of repeated names, a
+ *   batch writes all of them).
+ * </p>
+ *
+ * <p>
+ *   A batch is sent as is when its encoding matches the body format of the client, see
+ *   MdtsdbClient.newPointBatch(); otherwise the client converts it.
+ * </p>
+ *
+ * <pre>
+ *   PointBatch batch = new PointBatch();
+ *   batch.point().time(1).sensor(10).field("p1", "v1").sensor(20).value(3.14).tag("p1", "v1").add();
+ *   client.insert(batch);
+ *   batch.clear();
+ * </pre>
+ *
+ * <p>
+ *   A batch is not thread-safe and must not be changed while a request sending it is
+ *   in progress.
+ * </p>
+ */
+public class PointBatch
+{
+    public enum Encoding { JSON, BSON }
+
+    private final Encoding encoding;
+    private final Format format;
+    private final ByteSink sink;
+    private final Point point = new Point();
+    private int count = 0;
+
+    public PointBatch()
+    {
+        this(Encoding.JSON, 8192);
+    }
+
+    /**
+     * @param capacity initial capacity of the buffer in bytes
+     */
+    public PointBatch(int capacity)
+    {
+        this(Encoding.JSON, capacity);
+    }
+
+    public PointBatch(Encoding encoding)
+    {
+        this(encoding, 8192);
+    }
+
+    /**
+     * @param encoding encoding of the points
+     * @param capacity initial capacity of the buffer in bytes
+     */
+    public PointBatch(Encoding encoding, int capacity)
+    {
+        this.encoding = encoding;
+        this.format = encoding == Encoding.BSON ? new BsonFormat() : new JsonFormat();
+        this.sink = new ByteSink(capacity);
+    }
+
+    /**
+     * @return encoding of the points
+     */
+    public Encoding encoding()
+    {
+        return encoding;
+    }
+
+    /**
+     * Starts a new point, a point started before and not added is discarded.
+     *
+     * @return the point builder, reused for every point of the batch
+     */
+    public Point point()
+    {
+        point.begin();
+        return point;
+    }
+
+    /**
+     * Adds a point per timestamp holding the value of one sensor, the same as
+     * point().time(timestamps[i]).sensor(sensorId).value(values[i]).add() for each i.
+     *
+     * @return the batch
+     */
+    public PointBatch addColumn(String sensorId, long[] timestamps, double[] values)
+    {
+        checkArgument(values.length == timestamps.length, "expect a value per timestamp");
+        return addColumns(new String[] {sensorId}, timestamps, (out, s, i) -> {
+            double v = values[i];
+            checkArgument(!Double.isNaN(v), "expect valid double value");
+            format.doubleValue(out, v);
+        });
+    }
+
+    /**
+     * @see #addColumn(String, long[], double[])
+     */
+    public PointBatch addColumn(String sensorId, long[] timestamps, long[] values)
+    {
+        checkArgument(values.length == timestamps.length, "expect a value per timestamp");
+        return addColumns(new String[] {sensorId}, timestamps, (out, s, i) -> format.longValue(out, values[i]));
+    }
+
+    /**
+     * @see #addColumn(String, long[], double[])
+     */
+    public PointBatch addColumn(String sensorId, long[] timestamps, boolean[] values)
+    {
+        checkArgument(values.length == timestamps.length, "expect a value per timestamp");
+        return addColumns(new String[] {sensorId}, timestamps, (out, s, i) -> format.boolValue(out, values[i]));
+    }
+
+    /**
+     * Adds a point per timestamp holding a string value of one sensor, the value at
+     * timestamps[i] is dictionary[codes[i]]. Each distinct string is encoded only once.
+     *
+     * @see #addColumn(String, long[], double[])
+     */
+    public PointBatch addColumn(String sensorId, long[] timestamps, String[] dictionary, int[] codes)
+    {
+        checkArgument(codes.length == timestamps.length, "expect a value per timestamp");
+        ByteSink[] encoded = new ByteSink[dictionary.length];
+        return addColumns(new String[] {sensorId}, timestamps, (out, s, i) -> {
+            int code = codes[i];
+            checkArgument(code >= 0 && code < dictionary.length, "wrong dictionary code");
+            if(encoded[code] == null)
+            {
+                checkNotNull(dictionary[code]);
+                encoded[code] = new ByteSink(dictionary[code].length() + 8);
+                format.stringValue(encoded[code], dictionary[code]);
+            }
+            out.write(encoded[code]);
+        });
+    }
+
+    /**
+     * Adds a point per timestamp holding the values of several sensors, values[s][i] is
+     * the value of sensorIds[s] at timestamps[i].
+     *
+     * @see #addColumn(String, long[], double[])
+     */
+    public PointBatch addColumns(String[] sensorIds, long[] timestamps, double[][] values)
+    {
+        checkArgument(values.length == sensorIds.length, "expect a column per sensor");
+        for(double[] column : values)
+            checkArgument(column.length == timestamps.length, "expect a value per timestamp");
+        return addColumns(sensorIds, timestamps, (out, s, i) -> {
+            double v = values[s][i];
+            checkArgument(!Double.isNaN(v), "expect valid double value");
+            format.doubleValue(out, v);
+        });
+    }
+
+    /**
+     * @return number of points added
+     */
+    public int size()
+    {
+        return count;
+    }
+
+    /**
+     * @return size of the encoded array in bytes
+     */
+    public int byteSize()
+    {
+        return contentLength() + format.framing();
+    }
+
+    /**
+     * Removes all points, keeping the allocated buffer.
+     */
+    public void clear()
+    {
+        point.started = false;
+        sink.reset();
+        count = 0;
+    }
+
+    /**
+     * Writes the points as a JSON array, or as a BSON array document.
+     */
+    public void writeTo(OutputStream out) throws IOException
+    {
+        format.writeArray(out, sink.array(), contentLength());
+    }
+
+    /**
+     * @return the points as a JSON array, or as a BSON array document
+     */
+    public byte[] toByteArray()
+    {
+        ByteSink out = new ByteSink(byteSize());
+        try {
+            writeTo(out);
+        }
+        catch(IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the points as JSON text, or a summary of a BSON batch
+     */
+    @Override
+    public String toString()
+    {
+        if(encoding == Encoding.BSON)
+            return String.format("PointBatch[BSON, %d points, %d bytes]", count, byteSize());
+        return new String(toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private PointBatch addColumns(String[] sensorIds, long[] timestamps, ColumnValue column)
+    {
+        // the names are encoded once for all points
+        ByteSink[] names = new ByteSink[sensorIds.length];
+        for(int s = 0; s < sensorIds.length; ++s)
+        {
+            checkArgument(sensorIds[s] != null && !sensorIds[s].isEmpty(), "expect sensor identifier");
+            names[s] = new ByteSink(sensorIds[s].length() + 8);
+            format.name(names[s], sensorIds[s]);
+        }
+        ByteSink ns = new ByteSink(8);
+        format.name(ns, "ns");
+
+        if(point.started)
+        {
+            sink.truncate(point.mark);
+            point.started = false;
+        }
+        int start = sink.length(), startCount = count;
+        ByteSink value = new ByteSink(64);
+        try {
+            for(int i = 0; i < timestamps.length; ++i)
+            {
+                checkArgument(timestamps[i] >= 0, "wrong unix second");
+                int document = format.beginPoint(sink, count);
+                for(int s = 0; s < names.length; ++s)
+                {
+                    value.reset();
+                    column.write(value, s, i);
+                    format.element(sink, s == 0, names[s], value);
+                }
+                value.reset();
+                format.longValue(value, timestamps[i]);
+                format.element(sink, false, ns, value);
+                format.endDocument(sink, document);
+                ++count;
+            }
+        }
+        catch(RuntimeException e)
+        {
+            // a column is added as a whole or not at all
+            sink.truncate(start);
+            count = startCount;
+            throw e;
+        }
+        return this;
+    }
+
+    private interface ColumnValue
+    {
+        /**
+         * Writes the value of sensor s at timestamp i.
+         */
+        void write(ByteSink out, int s, int i);
+    }
+
+    private int contentLength()
+    {
+        return point.started ? point.mark : sink.length();
+    }
+
+    /**
+     * Builder of one point of the batch, see Measurement.Builder for the meaning of the calls.
+     */
+    public final class Point
+    {
+        private final ByteSink value = new ByteSink(64);
+        private final ByteSink scalar = new ByteSink(64);
+        private final ByteSink fields = new ByteSink(128);
+        private final ByteSink tags = new ByteSink(128);
+
+        private boolean started = false;
+        private int mark = 0;
+        private int document = -1;
+
+        private String sensorId = null;
+        private boolean hasValue = false;
+        private boolean hasPos = false;
+        private double lat = 0, lng = 0;
+        private boolean hasTime = false;
+        private long time = 0;
+
+        private Point()
+        {
+        }
+
+        /**
+         * Define a time of the point
+         *
+         * @param t unix second
+         * @return the Point instance
+         */
+        public Point time(long t)
+        {
+            checkArgument(t >= 0, "wrong unix second");
+            this.time = t;
+            this.hasTime = true;
+            return this;
+        }
+
+        /**
+         * Flushes the current sensor data and starts the next one
+         *
+         * @param sensorId alias of the sensor
+         * @return the Point instance
+         */
+        public Point sensor(String sensorId)
+        {
+            checkArgument(sensorId != null && !sensorId.isEmpty(), "expect sensor identifier");
+            nextSensor(sensorId);
+            return this;
+        }
+
+        /**
+         * Flushes the current sensor data and starts the next one
+         *
+         * @param sensorId numerical id (alias) of the sensor
+         * @return the Point instance
+         */
+        public Point sensor(long sensorId)
+        {
+            checkArgument(sensorId >= 0, "expect sensor identifier");
+            nextSensor(String.valueOf(sensorId));
+            return this;
+        }
+
+        /**
+         * Add an integer value (primitive) to the sensor value
+         *
+         * @param v a value of the measurement
+         * @return the Point instance
+         */
+        public Point value(long v)
+        {
+            this.value.reset();
+            format.longValue(this.value, v);
+            this.hasValue = true;
+            return this;
+        }
+
+        /**
+         * Add a float value (primitive) to the sensor value
+         *
+         * @param v a value of the measurement
+         * @return the Point instance
+         */
+        public Point value(double v)
+        {
+            checkArgument(!Double.isNaN(v), "expect valid double value");
+            this.value.reset();
+            format.doubleValue(this.value, v);
+            this.hasValue = true;
+            return this;
+        }
+
+        /**
+         * Add a boolean value (primitive) to the sensor value
+         *
+         * @param v a value of the measurement
+         * @return the Point instance
+         */
+        public Point value(boolean v)
+        {
+            this.value.reset();
+            format.boolValue(this.value, v);
+            this.hasValue = true;
+            return this;
+        }
+
+        /**
+         * Add a string value (primitive) to the sensor value
+         *
+         * @param v a value of the measurement
+         * @return the Point instance
+         */
+        public Point value(String v)
+        {
+            checkNotNull(v);
+            this.value.reset();
+            format.stringValue(this.value, v);
+            this.hasValue = true;
+            return this;
+        }
+
+        /**
+         * Add an array value (primitive) to the sensor value
+         *
+         * @param v a value of the measurement
+         * @return the Point instance
+         */
+        public <T> Point value(T[] v)
+        {
+            this.value.reset();
+            format.arrayValue(this.value, v);
+            this.hasValue = true;
+            return this;
+        }
+
+        /**
+         * Add a geo-position to the point
+         *
+         * @param lat latitude to set
+         * @param lng longitude to set
+         * @return the Point instance
+         */
+        public Point pos(double lat, double lng)
+        {
+            this.lat = lat;
+            this.lng = lng;
+            this.hasPos = true;
+            return this;
+        }
+
+        /**
+         * Add a property to the value
+         *
+         * @param propName the property name
+         * @param propValue the property value
+         * @return the Point instance
+         */
+        public Point field(String propName, String propValue)
+        {
+            format.stringValue(scalar(), propValue);
+            member(fields, propName);
+            return this;
+        }
+
+        /**
+         * Add a property to the value
+         *
+         * @param propName the property name
+         * @param propValue the property value
+         * @return the Point instance
+         */
+        public Point field(String propName, long propValue)
+        {
+            format.longValue(scalar(), propValue);
+            member(fields, propName);
+            return this;
+        }
+
+        /**
+         * Add a property to the value
+         *
+         * @param propName the property name
+         * @param propValue the property value
+         * @return the Point instance
+         */
+        public Point field(String propName, double propValue)
+        {
+            checkArgument(!Double.isNaN(propValue), "expect valid double value");
+            format.doubleValue(scalar(), propValue);
+            member(fields, propName);
+            return this;
+        }
+
+        /**
+         * Add a property to the value
+         *
+         * @param propName the property name
+         * @param propValue the property value
+         * @return the Point instance
+         */
+        public Point field(String propName, boolean propValue)
+        {
+            format.boolValue(scalar(), propValue);
+            member(fields, propName);
+            return this;
+        }
+
+        /**
+         * Add a property to the value
+         *
+         * @param propName the property name
+         * @param propValue the property value
+         * @return the Point instance
+         */
+        public <T> Point field(String propName, T[] propValue)
+        {
+            format.arrayValue(scalar(), propValue);
+            member(fields, propName);
+            return this;
+        }
+
+        /**
+         * Add several properties to the value
+         *
+         * @param props the map of properties
+         * @return the Point instance
+         */
+        public Point field(Map<String, String> props)
+        {
+            for(Map.Entry<String, String> prop : props.entrySet())
+                field(prop.getKey(), prop.getValue());
+            return this;
+        }
+
+        /**
+         * Add a tag to the value
+         *
+         * @param tagName the tag name
+         * @param tagValue the tag value
+         * @return the Point instance
+         */
+        public Point tag(String tagName, String tagValue)
+        {
+            format.stringValue(scalar(), tagValue);
+            member(tags, tagName);
+            return this;
+        }
+
+        /**
+         * Add a tag to the value
+         *
+         * @param tagName the tag name
+         * @param tagValue the tag value
+         * @return the Point instance
+         */
+        public Point tag(String tagName, long tagValue)
+        {
+            format.longValue(scalar(), tagValue);
+            member(tags, tagName);
+            return this;
+        }
+
+        /**
+         * Add a tag to the value
+         *
+         * @param tagName the tag name
+         * @param tagValue the tag value
+         * @return the Point instance
+         */
+        public Point tag(String tagName, double tagValue)
+        {
+            checkArgument(!Double.isNaN(tagValue), "expect valid double value");
+            format.doubleValue(scalar(), tagValue);
+            member(tags, tagName);
+            return this;
+        }
+
+        /**
+         * Add a tag to the value
+         *
+         * @param tagName the tag name
+         * @param tagValue the tag value
+         * @return the Point instance
+         */
+        public Point tag(String tagName, boolean tagValue)
+        {
+            format.boolValue(scalar(), tagValue);
+            member(tags, tagName);
+            return this;
+        }
+
+        /**
+         * Add several tags to the value
+         *
+         * @param tags the map of tags
+         * @return the Point instance
+         */
+        public Point tag(Map<String, String> tags)
+        {
+            for(Map.Entry<String, String> tag : tags.entrySet())
+                tag(tag.getKey(), tag.getValue());
+            return this;
+        }
+
+        /**
+         * Adds the point to the batch
+         *
+         * @return the batch, to start the next point
+         */
+        public PointBatch add()
+        {
+            checkArgument(started, "expect a started point");
+            checkArgument(sensorId != null, "expect sensor identifier");
+
+            flushSensor();
+            if(hasTime)
+            {
+                format.longValue(scalar(), time);
+                format.element(sink, false, "ns", scalar);
+            }
+            format.endDocument(sink, document);
+
+            started = false;
+            ++count;
+            return PointBatch.this;
+        }
+
+        private void begin()
+        {
+            if(started)
+                sink.truncate(mark);
+            started = true;
+            mark = sink.length();
+            document = -1;
+            hasTime = false;
+            resetSensor(null);
+        }
+
+        private void resetSensor(String sensorId)
+        {
+            this.sensorId = sensorId;
+            this.hasValue = false;
+            this.hasPos = false;
+            this.value.reset();
+            this.fields.reset();
+            this.tags.reset();
+        }
+
+        private void nextSensor(String sensorId)
+        {
+            checkArgument(started, "expect a started point");
+            if(this.sensorId != null)
+                flushSensor();
+            resetSensor(sensorId);
+        }
+
+        // writes the sensor data in the layout Measurement.Builder produces
+        private void flushSensor()
+        {
+            boolean first = document < 0;
+            if(first)
+                document = format.beginPoint(sink, count);
+
+            if(hasValue && tags.length() == 0)
+            {
+                format.element(sink, first, sensorId, value);
+                return;
+            }
+
+            int data = format.beginDocument(sink, first, sensorId);
+            first = true;
+            if(tags.length() > 0)
+            {
+                int doc = format.beginDocument(sink, true, "tags");
+                sink.write(tags);
+                format.endDocument(sink, doc);
+                first = false;
+            }
+            if(hasPos)
+            {
+                int doc = format.beginDocument(sink, first, "geo");
+                format.doubleValue(scalar(), lat);
+                format.element(sink, true, "lat", scalar);
+                format.doubleValue(scalar(), lng);
+                format.element(sink, false, "lng", scalar);
+                format.endDocument(sink, doc);
+                first = false;
+            }
+            if(hasValue)
+                format.element(sink, first, "value", value);
+            else if(fields.length() > 0)
+            {
+                int doc = format.beginDocument(sink, first, "value");
+                sink.write(fields);
+                format.endDocument(sink, doc);
+            }
+            format.endDocument(sink, data);
+        }
+
+        private ByteSink scalar()
+        {
+            scalar.reset();
+            return scalar;
+        }
+
+        private void member(ByteSink members, String name)
+        {
+            checkNotNull(name);
+            format.element(members, members.length() == 0, name, scalar);
+        }
+    }
+
+    /**
+     * Writes values and documents in one encoding. Values are written to a scratch buffer
+     * first, since the name they are stored under may only be known later.
+     */
+    private abstract static class Format
+    {
+        abstract void longValue(ByteSink out, long v);
+
+        abstract void doubleValue(ByteSink out, double v);
+
+        abstract void boolValue(ByteSink out, boolean v);
+
+        abstract void stringValue(ByteSink out, String v);
+
+        abstract void arrayValue(ByteSink out, Object[] v);
+
+        /**
+         * Writes a named member holding a value written by one of the methods above.
+         */
+        abstract void element(ByteSink out, boolean first, String name, ByteSink value);
+
+        /**
+         * Encodes a name once for element(ByteSink, boolean, ByteSink, ByteSink).
+         */
+        abstract void name(ByteSink out, String name);
+
+        /**
+         * Writes a named member, the name encoded by name().
+         */
+        abstract void element(ByteSink out, boolean first, ByteSink name, ByteSink value);
+
+        /**
+         * @return the position endDocument() needs
+         */
+        abstract int beginDocument(ByteSink out, boolean first, String name);
+
+        abstract int beginPoint(ByteSink out, int index);
+
+        abstract void endDocument(ByteSink out, int start);
+
+        /**
+         * @return number of bytes writeArray() adds to the points
+         */
+        abstract int framing();
+
+        abstract void writeArray(OutputStream out, byte[] points, int length) throws IOException;
+    }
+
+    private static final class JsonFormat extends Format
+    {
+        @Override
+        void longValue(ByteSink out, long v)
+        {
+            out.writeLong(v);
+        }
+
+        @Override
+        void doubleValue(ByteSink out, double v)
+        {
+            out.writeDouble(v);
+        }
+
+        @Override
+        void boolValue(ByteSink out, boolean v)
+        {
+            out.writeAscii(v ? "true" : "false");
+        }
+
+        @Override
+        void stringValue(ByteSink out, String v)
+        {
+            out.writeString(v);
+        }
+
+        @Override
+        void arrayValue(ByteSink out, Object[] values)
+        {
+            out.write('[');
+            for(int i = 0; i < values.length; ++i)
+            {
+                if(i > 0)
+                    out.write(',');
+                Object elem = values[i];
+                if(elem instanceof Boolean)
+                    boolValue(out, (Boolean) elem);
+                else if(elem instanceof Number)
+                    out.writeNumber((Number) elem);
+                else if(elem instanceof String)
+                    out.writeString((String) elem);
+                else
+                    out.writeAscii("null");
+            }
+            out.write(']');
+        }
+
+        @Override
+        void element(ByteSink out, boolean first, String name, ByteSink value)
+        {
+            if(!first)
+                out.write(',');
+            out.writeString(name);
+            out.write(':');
+            out.write(value);
+        }
+
+        @Override
+        void name(ByteSink out, String name)
+        {
+            out.writeString(name);
+        }
+
+        @Override
+        void element(ByteSink out, boolean first, ByteSink name, ByteSink value)
+        {
+            if(!first)
+                out.write(',');
+            out.write(name);
+            out.write(':');
+            out.write(value);
+        }
+
+        @Override
+        int beginDocument(ByteSink out, boolean first, String name)
+        {
+            if(!first)
+                out.write(',');
+            out.writeString(name);
+            out.write(':');
+            out.write('{');
+            return 0;
+        }
+
+        @Override
+        int beginPoint(ByteSink out, int index)
+        {
+            if(index > 0)
+                out.write(',');
+            out.write('{');
+            return 0;
+        }
+
+        @Override
+        void endDocument(ByteSink out, int start)
+        {
+            out.write('}');
+        }
+
+        @Override
+        int framing()
+        {
+            return 2;
+        }
+
+        @Override
+        void writeArray(OutputStream out, byte[] points, int length) throws IOException
+        {
+            out.write('[');
+            out.write(points, 0, length);
+            out.write(']');
+        }
+    }
+
+    // the value encoded as the first byte of a BSON element, its type, followed by the value
+    private static final class BsonFormat extends Format
+    {
+        private static final int DOUBLE = 0x01, STRING = 0x02, DOCUMENT = 0x03, ARRAY = 0x04,
+                                 BOOLEAN = 0x08, NULL = 0x0a, INT32 = 0x10, INT64 = 0x12;
+
+        @Override
+        void longValue(ByteSink out, long v)
+        {
+            if(v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE)
+            {
+                out.write(INT32);
+                out.writeInt32((int) v);
+            }
+            else
+            {
+                out.write(INT64);
+                out.writeInt64(v);
+            }
+        }
+
+        // whole numbers are stored as integers, as EBSON stores a JSON number
+        @Override
+        void doubleValue(ByteSink out, double v)
+        {
+            long l = (long) v;
+            if(l == v)
+                longValue(out, l);
+            else
+            {
+                out.write(DOUBLE);
+                out.writeFloat64(v);
+            }
+        }
+
+        @Override
+        void boolValue(ByteSink out, boolean v)
+        {
+            out.write(BOOLEAN);
+            out.write(v ? 1 : 0);
+        }
+
+        @Override
+        void stringValue(ByteSink out, String v)
+        {
+            if(v == null)
+                out.write(NULL);
+            else
+            {
+                out.write(STRING);
+                out.writeBsonString(v);
+            }
+        }
+
+        @Override
+        void arrayValue(ByteSink out, Object[] values)
+        {
+            out.write(ARRAY);
+            int start = out.length();
+            out.writeInt32(0);
+            ByteSink elem = new ByteSink(32);
+            for(int i = 0; i < values.length; ++i)
+            {
+                Object v = values[i];
+                elem.reset();
+                if(v instanceof Boolean)
+                    boolValue(elem, (Boolean) v);
+                else if(v instanceof Number)
+                    numberValue(elem, (Number) v);
+                else if(v instanceof String)
+                    stringValue(elem, (String) v);
+                else
+                    elem.write(NULL);
+                out.write(elem.array()[0]);
+                out.writeLong(i);
+                out.write(0);
+                out.write(elem.array(), 1, elem.length() - 1);
+            }
+            endDocument(out, start);
+        }
+
+        @Override
+        void element(ByteSink out, boolean first, String name, ByteSink value)
+        {
+            out.write(value.array()[0]);
+            out.writeCString(name);
+            out.write(value.array(), 1, value.length() - 1);
+        }
+
+        @Override
+        void name(ByteSink out, String name)
+        {
+            out.writeCString(name);
+        }
+
+        @Override
+        void element(ByteSink out, boolean first, ByteSink name, ByteSink value)
+        {
+            out.write(value.array()[0]);
+            out.write(name);
+            out.write(value.array(), 1, value.length() - 1);
+        }
+
+        @Override
+        int beginDocument(ByteSink out, boolean first, String name)
+        {
+            out.write(DOCUMENT);
+            out.writeCString(name);
+            int start = out.length();
+            out.writeInt32(0);
+            return start;
+        }
+
+        // array element names are the decimal indexes
+        @Override
+        int beginPoint(ByteSink out, int index)
+        {
+            out.write(DOCUMENT);
+            out.writeLong(index);
+            out.write(0);
+            int start = out.length();
+            out.writeInt32(0);
+            return start;
+        }
+
+        @Override
+        void endDocument(ByteSink out, int start)
+        {
+            out.write(0);
+            out.putInt32(start, out.length() - start);
+        }
+
+        @Override
+        int framing()
+        {
+            return 5;
+        }
+
+        @Override
+        void writeArray(OutputStream out, byte[] points, int length) throws IOException
+        {
+            int size = length + 5;
+            out.write(size);
+            out.write(size >> 8);
+            out.write(size >> 16);
+            out.write(size >> 24);
+            out.write(points, 0, length);
+            out.write(0);
+        }
+
+        private void numberValue(ByteSink out, Number v)
+        {
+            if(v.longValue() == v.doubleValue())
+                longValue(out, v.longValue());
+            else
+            {
+                out.write(DOUBLE);
+                out.writeFloat64(v.doubleValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package com.qomplx.mdtsdb.client.api;
+
+/**
+ * Decides whether a failed request is sent again, and when.
+ *
+ * <p>
+ *   A request fails with an HTTP status other than 2xx, with an I/O error before a
+ *   response is received, or with a response of the form {"error":{"code":N,...}},
+ *   where N is one of the MdtsdbServerException.ERR_CODE_* codes. Retries are also
+ *   limited by the retry budget of the client, see BackoffRetryPolicy.
+ * </p>
+ */
+@FunctionalInterface
+public interface RetryPolicy
+{
+    /**
+     * A policy that never retries.
+     */
+    RetryPolicy NEVER = (attempt, httpStatus, errorCode, retryAfterMs) -> -1;
+
+    /**
+     * @param attempt the number of the attempt that failed, 1 for the first one
+     * @param httpStatus the HTTP status of the response, 0 if no response was received
+     * @param errorCode the server error code of the response, 0 if it has none
+     * @param retryAfterMs the delay the server asked for with a Retry-After header, -1 if none
+     * @return milliseconds to wait before the request is sent again, or -1 to fail it
+     */
+    long retryDelayMs(int attempt, int httpStatus, int errorCode, long retryAfterMs);
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package com.qomplx.mdtsdb.client.api;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Routes measurement points of many swimlanes into shared multi-send requests.
+ *
+ * <p>
+ *   Points are grouped per swimlane app key and sent as one insert of the form
+ *   [{"key": appKey, "data": [...]}, ...], so a large number of low-rate swimlanes
+ *   share one request stream. The client may use an admin key, which accepts only
+ *   this format, or the app key of any of the swimlanes.
+ * </p>
+ *
+ * <p>
+ *   A request is sent when its JSON reaches about "batch_max_bytes" bytes, when it
+ *   holds "batch_max_points" points, or "batch_linger_ms" milliseconds after its first
+ *   point was added. At most "batch_max_in_flight" requests are sent at once, routing
+ *   blocks while all of them are in flight. route() returns the future of the request
+ *   the point is sent with.
+ * </p>
+ */
+public class SwimlaneRouter extends BatchSender<SwimlaneRouter.Request>
+{
+    public static final int DEFAULT_MAX_POINTS = 10000;
+
+    // {"key":"","data":[]}, plus a separator
+    private static final int ENTRY_OVERHEAD = 21;
+
+    /**
+     * Creates a router that inserts through the given client.
+     *
+     * @param client client to insert with, an admin client or a client of one of the swimlanes
+     * @param options "batch_max_points", "batch_max_bytes", "batch_linger_ms" and "batch_max_in_flight"
+     */
+    public SwimlaneRouter(MdtsdbClient client, Properties options)
+    {
+        this(client.async(), options);
+    }
+
+    /**
+     * Creates a router that inserts through the given client.
+     *
+     * @param client client to insert with, an admin client or a client of one of the swimlanes
+     * @param options "batch_max_points", "batch_max_bytes", "batch_linger_ms" and "batch_max_in_flight"
+     */
+    public SwimlaneRouter(MdtsdbAsyncClient client, Properties options)
+    {
+        super(client, options, DEFAULT_MAX_POINTS, "router", "mdtsdb-swimlane-router");
+        if(maxPoints <= 0 || maxBytes <= 0 || maxInFlight <= 0)
+            throw new IllegalArgumentException("batch limits and number of requests in flight must be positive");
+    }
+
+    /**
+     * Adds a point of a swimlane to the current request.
+     *
+     * @param appKey app key of the swimlane
+     * @param point a point as built by Measurement
+     * @return the future of the request the point is sent with
+     */
+    public CompletableFuture<JsonObject> route(String appKey, JsonObject point) throws InterruptedException
+    {
+        // JSON text length approximates the encoded size, the bodies are mostly ASCII
+        long size = point.toString().length() + 1;
+        return add(request -> size + (request.lanes.containsKey(appKey) ? 0 : ENTRY_OVERHEAD + appKey.length()),
+                   request -> request.lanes.computeIfAbsent(appKey, k -> new JsonArray()).add(point));
+    }
+
+    /**
+     * @return multi-send payload of the points grouped per swimlane
+     */
+    public static JsonArray multiSendData(Map<String, JsonArray> lanes)
+    {
+        JsonArray multi = new JsonArray();
+        for(Map.Entry<String, JsonArray> lane : lanes.entrySet())
+        {
+            JsonObject one = new JsonObject();
+            one.addProperty("key", lane.getKey());
+            one.add("data", lane.getValue());
+            multi.add(one);
+        }
+        return multi;
+    }
+
+    @Override
+    Request newBatch()
+    {
+        Request request = new Request();
+        // the brackets of the payload
+        request.bytes = 2;
+        return request;
+    }
+
+    @Override
+    CompletableFuture<JsonObject> insert(Request request)
+    {
+        return client.insert(multiSendData(request.lanes));
+    }
+
+    static final class Request extends BatchSender.Batch
+    {
+        final Map<String, JsonArray> lanes = new LinkedHashMap<>();
+    }
+}
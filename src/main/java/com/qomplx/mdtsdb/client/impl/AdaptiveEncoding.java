@@ -0,0 +1,195 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package com.qomplx.mdtsdb.client.impl;
+
+import java.util.EnumSet;
+import java.util.Properties;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Picks the body encoding of each data request of a client with compression "adaptive".
+ *
+ * <p>
+ *   Payloads smaller than "adaptive_min_bytes" are sent as they are. For larger ones the
+ *   encoding with the lowest estimated cost per payload byte is picked, the cost being
+ *   the time to send the encoded bytes at "adaptive_bandwidth" bytes per second plus the
+ *   CPU time to encode them. The compression ratio and the CPU time per byte of every
+ *   encoding are running averages of the requests sent with it, and every
+ *   "adaptive_explore"-th large request tries the encoding sampled longest ago, so the
+ *   estimates follow changes of the data. A client sends to a single swimlane, so the
+ *   estimates are per swimlane. Safe for concurrent use.
+ * </p>
+ */
+final class AdaptiveEncoding
+{
+    /**
+     * Body encodings, named as the values of the "compression" option.
+     */
+    enum Encoding
+    {
+        IDENTITY("false"), GZIP("gzip"), BSON("bson"), GZIP_BSON("gzip-bson");
+
+        final String option;
+
+        Encoding(String option)
+        {
+            this.option = option;
+        }
+
+        boolean isBson()
+        {
+            return this == BSON || this == GZIP_BSON;
+        }
+    }
+
+    static final EnumSet<Encoding> ALL = EnumSet.allOf(Encoding.class);
+    static final EnumSet<Encoding> JSON_BODIES = EnumSet.of(Encoding.IDENTITY, Encoding.GZIP);
+    static final EnumSet<Encoding> BSON_BODIES = EnumSet.of(Encoding.BSON, Encoding.GZIP_BSON);
+
+    // weight of the newest sample in the running averages
+    private static final double ALPHA = 0.1;
+    // samples an encoding needs before its estimate is trusted
+    private static final int MIN_SAMPLES = 3;
+
+    private final int minBytes;
+    private final double nsPerSentByte;
+    private final int explore;
+
+    private final Estimate[] estimates = new Estimate[Encoding.values().length];
+    private long decisions = 0;
+
+    AdaptiveEncoding(int minBytes, double bandwidth, int explore)
+    {
+        this.minBytes = minBytes;
+        this.nsPerSentByte = 1e9 / bandwidth;
+        this.explore = Math.max(explore, 1);
+        for(Encoding encoding : Encoding.values())
+            estimates[encoding.ordinal()] = new Estimate();
+    }
+
+    static AdaptiveEncoding fromOptions(Properties options)
+    {
+        return new AdaptiveEncoding(Integer.parseInt(options.getProperty("adaptive_min_bytes", "1024")),
+                                    Double.parseDouble(options.getProperty("adaptive_bandwidth", "12500000")),
+                                    Integer.parseInt(options.getProperty("adaptive_explore", "32")));
+    }
+
+    /**
+     * @param size size of the payload in bytes
+     * @param candidates encodings the payload can be sent with
+     * @return the encoding to send the payload with
+     */
+    synchronized Encoding choose(int size, EnumSet<Encoding> candidates)
+    {
+        if(size < minBytes)
+            return candidates.contains(Encoding.IDENTITY) ? Encoding.IDENTITY : Encoding.BSON;
+
+        long tick = ++decisions;
+        Encoding best = null;
+        for(Encoding encoding : candidates)
+        {
+            if(best == null || better(encoding, best, tick))
+                best = encoding;
+        }
+        estimates[best.ordinal()].lastChosen = tick;
+        return best;
+    }
+
+    /**
+     * @return true if large payloads are currently best sent as BSON
+     */
+    synchronized boolean prefersBson()
+    {
+        Encoding best = null;
+        for(Encoding encoding : ALL)
+        {
+            if(best == null || cost(encoding) < cost(best))
+                best = encoding;
+        }
+        return best.isBson();
+    }
+
+    /**
+     * Accounts a request.
+     *
+     * @param size size of the payload in bytes
+     * @param encodedSize size of the request body
+     * @param nanos CPU time spent to encode the body
+     */
+    synchronized void record(Encoding encoding, int size, int encodedSize, long nanos)
+    {
+        Estimate e = estimates[encoding.ordinal()];
+        ++e.requests;
+        e.bytesIn += size;
+        e.bytesOut += encodedSize;
+        if(size < minBytes || size == 0)
+            return;
+
+        double ratio = (double) encodedSize / size, nsPerByte = (double) nanos / size;
+        if(e.samples == 0)
+        {
+            e.ratio = ratio;
+            e.nsPerByte = nsPerByte;
+        }
+        else
+        {
+            e.ratio += ALPHA * (ratio - e.ratio);
+            e.nsPerByte += ALPHA * (nsPerByte - e.nsPerByte);
+        }
+        ++e.samples;
+    }
+
+    /**
+     * @return per encoding, the requests and bytes sent with it and its current estimates
+     */
+    synchronized JsonObject stats()
+    {
+        JsonObject stats = new JsonObject();
+        for(Encoding encoding : Encoding.values())
+        {
+            Estimate e = estimates[encoding.ordinal()];
+            JsonObject s = new JsonObject();
+            s.addProperty("requests", e.requests);
+            s.addProperty("bytes_in", e.bytesIn);
+            s.addProperty("bytes_out", e.bytesOut);
+            s.addProperty("ratio", e.ratio);
+            s.addProperty("ns_per_byte", e.nsPerByte);
+            s.addProperty("samples", e.samples);
+            stats.add(encoding.option, s);
+        }
+        return stats;
+    }
+
+    private boolean better(Encoding a, Encoding b, long tick)
+    {
+        Estimate ea = estimates[a.ordinal()], eb = estimates[b.ordinal()];
+        // encodings without enough samples are tried first
+        if(ea.samples < MIN_SAMPLES || eb.samples < MIN_SAMPLES)
+            return ea.samples < eb.samples;
+        if(tick % explore == 0)
+            return ea.lastChosen < eb.lastChosen;
+        return cost(a) < cost(b);
+    }
+
+    private double cost(Encoding encoding)
+    {
+        Estimate e = estimates[encoding.ordinal()];
+        if(e.samples == 0)
+            return encoding == Encoding.IDENTITY ? nsPerSentByte : Double.MAX_VALUE;
+        return e.ratio * nsPerSentByte + e.nsPerByte;
+    }
+
+    private static final class Estimate
+    {
+        long requests = 0;
+        long bytesIn = 0;
+        long bytesOut = 0;
+        double ratio = 1;
+        double nsPerByte = 0;
+        long samples = 0;
+        long lastChosen = 0;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package com.qomplx.mdtsdb.client.impl;
+
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of request body buffers of a client.
+ *
+ * <p>
+ *   At most "buffer_pool_size" buffers are kept, and buffers that grew beyond
+ *   "buffer_pool_max_bytes" are dropped instead of kept, so the pool holds on to a
+ *   bounded amount of memory. Pools are safe for concurrent use.
+ * </p>
+ */
+final class BufferPool
+{
+    private final ConcurrentLinkedQueue<ByteSink> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final int maxBuffers;
+    private final int maxBytes;
+
+    BufferPool(int maxBuffers, int maxBytes)
+    {
+        this.maxBuffers = maxBuffers;
+        this.maxBytes = maxBytes;
+    }
+
+    static BufferPool fromOptions(Properties options)
+    {
+        return new BufferPool(Integer.parseInt(options.getProperty("buffer_pool_size", "8")),
+                              Integer.parseInt(options.getProperty("buffer_pool_max_bytes", String.valueOf(8 * 1024 * 1024))));
+    }
+
+    /**
+     * @return an empty buffer, pooled if one is free
+     */
+    ByteSink acquire(int capacity)
+    {
+        ByteSink buffer = free.poll();
+        if(buffer == null)
+            return new ByteSink(capacity);
+        size.decrementAndGet();
+        buffer.reset();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool, the caller must not use it afterwards.
+     */
+    void release(ByteSink buffer)
+    {
+        if(buffer.capacity() > maxBytes)
+            return;
+        if(size.incrementAndGet() > maxBuffers)
+        {
+            size.decrementAndGet();
+            return;
+        }
+        free.offer(buffer);
+    }
+}
@@ -0,0 +1,514 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package com.qomplx.mdtsdb.client.impl;
+
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Growable byte buffer with the primitives needed to write JSON text and BSON directly.
+ *
+ * <p>
+ *   JSON values are written the way Gson writes a JsonElement tree with toString(), so
+ *   text produced here is byte for byte equal to content.toString().getBytes("UTF-8") of
+ *   the same tree. BSON values are written as BsonBinaryWriter writes them. A sink is
+ *   reused by calling reset(), it keeps its capacity. Sinks are not thread-safe.
+ * </p>
+ *
+ * <p>
+ *   After startDigest() the bytes are hashed with SHA-256 while they are written, a block
+ *   of DIGEST_BLOCK bytes at a time, so the hash of a request body is ready when the body
+ *   is, without reading it once more.
+ * </p>
+ */
+public final class ByteSink extends OutputStream
+{
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final byte[] MIN_LONG = String.valueOf(Long.MIN_VALUE).getBytes();
+
+    // bytes hashed at a time, small enough to be still in cache
+    private static final int DIGEST_BLOCK = 16384;
+
+    private byte[] buf;
+    private int count = 0;
+    private MessageDigest md = null;
+    private boolean digesting = false;
+    private int digestStart = 0;
+    private int digested = 0;
+
+    public ByteSink()
+    {
+        this(256);
+    }
+
+    public ByteSink(int capacity)
+    {
+        this.buf = new byte[Math.max(capacity, 16)];
+    }
+
+    /**
+     * @return number of bytes written
+     */
+    public int length()
+    {
+        return count;
+    }
+
+    /**
+     * @return the internal buffer, valid up to length()
+     */
+    public byte[] array()
+    {
+        return buf;
+    }
+
+    /**
+     * @return size of the internal buffer
+     */
+    public int capacity()
+    {
+        return buf.length;
+    }
+
+    /**
+     * @return a copy of the bytes written
+     */
+    public byte[] toByteArray()
+    {
+        return Arrays.copyOf(buf, count);
+    }
+
+    /**
+     * Discards the bytes written, keeping the capacity.
+     */
+    public void reset()
+    {
+        count = 0;
+        digesting = false;
+    }
+
+    /**
+     * Starts hashing the bytes written from now on, see digestHex().
+     */
+    public void startDigest()
+    {
+        startDigest(count);
+    }
+
+    /**
+     * Starts hashing the bytes from the given position, including those already written.
+     *
+     * <p>
+     *   A BSON document is hashed in one pass this way once its length is patched, where
+     *   hashing it while it is written would hash it again from the patched length.
+     * </p>
+     */
+    public void startDigest(int position)
+    {
+        if(position < 0 || position > count)
+            throw new IndexOutOfBoundsException(String.valueOf(position));
+        if(md == null)
+        {
+            try {
+                md = MessageDigest.getInstance("SHA-256");
+            }
+            catch(NoSuchAlgorithmException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+        md.reset();
+        digesting = true;
+        digestStart = digested = position;
+    }
+
+    /**
+     * @return true if the bytes are hashed as they are written
+     */
+    public boolean isDigesting()
+    {
+        return digesting;
+    }
+
+    /**
+     * Hashes the bytes not hashed yet and stops hashing.
+     *
+     * <p>
+     *   Bytes overwritten or truncated after they were hashed are hashed once more, from
+     *   the start of the digest.
+     * </p>
+     *
+     * @return hex encoded SHA-256 of the bytes written since startDigest()
+     */
+    public String digestHex()
+    {
+        if(!digesting)
+            throw new IllegalStateException("not digesting");
+        digestTo(count);
+        digesting = false;
+        return RequestSigner.toHex(md.digest());
+    }
+
+    /**
+     * Discards the bytes written after the given length.
+     */
+    public void truncate(int length)
+    {
+        if(length < 0 || length > count)
+            throw new IndexOutOfBoundsException(String.valueOf(length));
+        count = length;
+        if(digesting && length < digested)
+            restartDigest();
+    }
+
+    @Override
+    public void write(int b)
+    {
+        ensure(1);
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+    {
+        ensure(len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    /**
+     * Writes the bytes of another sink.
+     */
+    public void write(ByteSink other)
+    {
+        write(other.buf, 0, other.count);
+    }
+
+    /**
+     * Writes the output of a deflater that was given all its input and finish() until it
+     * is finished, deflating directly into the buffer.
+     */
+    public void writeDeflated(Deflater deflater)
+    {
+        while(!deflater.finished())
+        {
+            if(count == buf.length)
+                ensure(Math.max(256, buf.length >> 1));
+            count += deflater.deflate(buf, count, buf.length - count);
+            digestWritten();
+        }
+    }
+
+    /**
+     * Writes the output of a deflater for the input given so far, flushed with the given
+     * mode, e.g. Deflater.SYNC_FLUSH.
+     */
+    public void writeDeflated(Deflater deflater, int flush)
+    {
+        while(true)
+        {
+            if(count == buf.length)
+                ensure(Math.max(256, buf.length >> 1));
+            int space = buf.length - count;
+            int n = deflater.deflate(buf, count, space, flush);
+            count += n;
+            digestWritten();
+            if(n < space)
+                return;
+        }
+    }
+
+    /**
+     * Writes a string known to hold only ASCII characters, e.g. a JSON fragment.
+     */
+    public void writeAscii(String s)
+    {
+        int n = s.length();
+        ensure(n);
+        for(int i = 0; i < n; ++i)
+            buf[count++] = (byte) s.charAt(i);
+    }
+
+    /**
+     * Writes a number as JSON.
+     */
+    public void writeLong(long v)
+    {
+        if(v == Long.MIN_VALUE)
+        {
+            write(MIN_LONG, 0, MIN_LONG.length);
+            return;
+        }
+        ensure(20);
+        if(v < 0)
+        {
+            buf[count++] = '-';
+            v = -v;
+        }
+        int digits = 1;
+        for(long p = 10; digits < 19 && v >= p; p *= 10)
+            ++digits;
+        for(int i = count + digits - 1; i >= count; --i)
+        {
+            buf[i] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+        count += digits;
+    }
+
+    /**
+     * Writes a number as JSON, non-finite values are written as Gson writes them leniently.
+     */
+    public void writeDouble(double v)
+    {
+        writeAscii(Double.toString(v));
+    }
+
+    /**
+     * Writes a number of any type as JSON.
+     */
+    public void writeNumber(Number v)
+    {
+        if(v instanceof Long || v instanceof Integer || v instanceof Short || v instanceof Byte)
+            writeLong(v.longValue());
+        else
+            writeUtf8(v.toString());
+    }
+
+    /**
+     * Writes a quoted JSON string, or null.
+     */
+    public void writeString(String s)
+    {
+        if(s == null)
+        {
+            writeAscii("null");
+            return;
+        }
+        ensure(s.length() + 2);
+        buf[count++] = '"';
+        int n = s.length();
+        for(int i = 0; i < n; ++i)
+        {
+            char c = s.charAt(i);
+            if(c < 0x80)
+            {
+                if(c < 0x20 || c == '"' || c == '\\')
+                    writeEscape(c);
+                else
+                {
+                    ensure(1);
+                    buf[count++] = (byte) c;
+                }
+            }
+            else if(c == '\u2028' || c == '\u2029')
+                writeEscape(c);
+            else
+                i = writeNonAscii(s, i, c);
+        }
+        ensure(1);
+        buf[count++] = '"';
+    }
+
+    /**
+     * Writes text as UTF-8 without quoting or escaping.
+     */
+    public void writeUtf8(String s)
+    {
+        int n = s.length();
+        ensure(n);
+        for(int i = 0; i < n; ++i)
+        {
+            char c = s.charAt(i);
+            if(c < 0x80)
+            {
+                ensure(1);
+                buf[count++] = (byte) c;
+            }
+            else
+                i = writeNonAscii(s, i, c);
+        }
+    }
+
+    /**
+     * Writes a little-endian BSON int32.
+     */
+    public void writeInt32(int v)
+    {
+        ensure(4);
+        putInt32(count, v);
+        count += 4;
+    }
+
+    /**
+     * Overwrites a little-endian BSON int32 written before, e.g. a document length.
+     */
+    public void putInt32(int position, int v)
+    {
+        if(digesting && position < digested)
+            restartDigest();
+        buf[position] = (byte) v;
+        buf[position + 1] = (byte) (v >> 8);
+        buf[position + 2] = (byte) (v >> 16);
+        buf[position + 3] = (byte) (v >> 24);
+    }
+
+    /**
+     * Writes a little-endian BSON int64.
+     */
+    public void writeInt64(long v)
+    {
+        ensure(8);
+        for(int i = 0; i < 8; ++i)
+        {
+            buf[count++] = (byte) v;
+            v >>= 8;
+        }
+    }
+
+    /**
+     * Writes a little-endian BSON double.
+     */
+    public void writeFloat64(double v)
+    {
+        writeInt64(Double.doubleToRawLongBits(v));
+    }
+
+    /**
+     * Writes a BSON cstring, e.g. an element name.
+     */
+    public void writeCString(String s)
+    {
+        if(s.indexOf('\0') >= 0)
+            throw new IllegalArgumentException("BSON name contains a null character: " + s);
+        writeCodePoints(s);
+        write(0);
+    }
+
+    /**
+     * Writes a BSON string, the value of a string element.
+     */
+    public void writeBsonString(String s)
+    {
+        int start = count;
+        writeInt32(0);
+        writeCodePoints(s);
+        write(0);
+        putInt32(start, count - start - 4);
+    }
+
+    // encodes as the BSON output buffer does, unpaired surrogates are encoded as code points
+    private void writeCodePoints(String s)
+    {
+        int n = s.length();
+        ensure(n);
+        for(int i = 0; i < n; ++i)
+        {
+            char c = s.charAt(i);
+            if(c < 0x80)
+            {
+                ensure(1);
+                buf[count++] = (byte) c;
+            }
+            else if(Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1)))
+                i = writeNonAscii(s, i, c);
+            else
+            {
+                ensure(3);
+                if(c < 0x800)
+                {
+                    buf[count++] = (byte) (0xc0 | (c >> 6));
+                    buf[count++] = (byte) (0x80 | (c & 0x3f));
+                }
+                else
+                {
+                    buf[count++] = (byte) (0xe0 | (c >> 12));
+                    buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    buf[count++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+        }
+    }
+
+    // escapes as com.google.gson.stream.JsonWriter does without HTML-safe escaping
+    private void writeEscape(char c)
+    {
+        ensure(6);
+        buf[count++] = '\\';
+        switch(c)
+        {
+        case '"': buf[count++] = '"'; return;
+        case '\\': buf[count++] = '\\'; return;
+        case '\t': buf[count++] = 't'; return;
+        case '\b': buf[count++] = 'b'; return;
+        case '\n': buf[count++] = 'n'; return;
+        case '\r': buf[count++] = 'r'; return;
+        case '\f': buf[count++] = 'f'; return;
+        default:
+            buf[count++] = 'u';
+            buf[count++] = HEX[(c >> 12) & 0xf];
+            buf[count++] = HEX[(c >> 8) & 0xf];
+            buf[count++] = HEX[(c >> 4) & 0xf];
+            buf[count++] = HEX[c & 0xf];
+        }
+    }
+
+    // encodes as String.getBytes(UTF_8) does, unpaired surrogates become '?'
+    private int writeNonAscii(String s, int i, char c)
+    {
+        ensure(4);
+        if(c < 0x800)
+        {
+            buf[count++] = (byte) (0xc0 | (c >> 6));
+            buf[count++] = (byte) (0x80 | (c & 0x3f));
+        }
+        else if(Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1)))
+        {
+            int cp = Character.toCodePoint(c, s.charAt(++i));
+            buf[count++] = (byte) (0xf0 | (cp >> 18));
+            buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+            buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+            buf[count++] = (byte) (0x80 | (cp & 0x3f));
+        }
+        else if(Character.isSurrogate(c))
+            buf[count++] = '?';
+        else
+        {
+            buf[count++] = (byte) (0xe0 | (c >> 12));
+            buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            buf[count++] = (byte) (0x80 | (c & 0x3f));
+        }
+        return i;
+    }
+
+    private void ensure(int extra)
+    {
+        digestWritten();
+        if(count + extra > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(buf.length << 1, count + extra));
+    }
+
+    private void digestWritten()
+    {
+        if(digesting && count - digested >= DIGEST_BLOCK)
+            digestTo(count);
+    }
+
+    private void digestTo(int end)
+    {
+        md.update(buf, digested, end - digested);
+        digested = end;
+    }
+
+    private void restartDigest()
+    {
+        md.reset();
+        digestStart = Math.min(digestStart, count);
+        digested = digestStart;
+    }
+}
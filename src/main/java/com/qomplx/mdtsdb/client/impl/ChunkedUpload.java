@@ -0,0 +1,203 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package com.qomplx.mdtsdb.client.impl;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+
+/**
+ * The body of a request that is written while the request is sent.
+ *
+ * <p>
+ *   Bytes written are cut into chunks of a fixed size, which are handed over to the HTTP
+ *   client through a queue of a few chunks, so a writer that outpaces the connection
+ *   blocks and memory stays bounded. With a ChunkSigner every chunk is framed as
+ *   "hex-size;chunk-signature=signature\r\n" data "\r\n", and the body ends with a signed
+ *   empty chunk. The HTTP client sends the body with chunked transfer encoding.
+ * </p>
+ *
+ * @param <T> the type of the decoded response
+ */
+final class ChunkedUpload<T> extends OutputStream
+{
+    private static final int QUEUED_CHUNKS = 4;
+    private static final byte[] END = new byte[0];
+    private static final byte[] ABORT = new byte[0];
+
+    private final RequestSigner.ChunkSigner signer;
+    private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUED_CHUNKS);
+    private final byte[] buffer;
+    private int count = 0;
+    private boolean closed = false;
+    private CompletableFuture<T> response;
+
+    /**
+     * @param signer signs the chunks, or null to send the body as it is
+     */
+    ChunkedUpload(int chunkSize, RequestSigner.ChunkSigner signer)
+    {
+        this.buffer = new byte[Math.max(chunkSize, 1024)];
+        this.signer = signer;
+    }
+
+    /**
+     * Sets the response of the request that reads body().
+     */
+    void start(CompletableFuture<T> response)
+    {
+        this.response = response;
+    }
+
+    /**
+     * @return the stream the HTTP client reads the framed body from
+     */
+    InputStream body()
+    {
+        return new InputStream()
+        {
+            private byte[] chunk = null;
+            private int position = 0;
+
+            @Override
+            public int read() throws IOException
+            {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException
+            {
+                while(chunk == null || position == chunk.length)
+                {
+                    if(chunk == END)
+                        return -1;
+                    try {
+                        chunk = queue.take();
+                    }
+                    catch(InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                    position = 0;
+                    if(chunk == ABORT)
+                        throw new IOException("upload aborted");
+                }
+                int n = Math.min(len, chunk.length - position);
+                System.arraycopy(chunk, position, b, off, n);
+                position += n;
+                return n;
+            }
+        };
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        ensureOpen();
+        if(count == buffer.length)
+            sendChunk();
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        ensureOpen();
+        while(len > 0)
+        {
+            if(count == buffer.length)
+                sendChunk();
+            int n = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Sends the rest of the body and waits for the response.
+     */
+    T finish() throws Exception
+    {
+        ensureOpen();
+        if(count > 0)
+            sendChunk();
+        if(signer != null)
+            enqueue(frame(buffer, 0));
+        enqueue(END);
+        closed = true;
+        try {
+            return response.join();
+        }
+        catch(CompletionException e)
+        {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Aborts the request, unless finish() was called.
+     */
+    @Override
+    public void close()
+    {
+        if(closed)
+            return;
+        closed = true;
+        // the reader may be gone, so the queue is cleared to make room for the marker
+        queue.clear();
+        queue.offer(ABORT);
+    }
+
+    private void sendChunk() throws IOException
+    {
+        enqueue(frame(buffer, count));
+        count = 0;
+    }
+
+    private byte[] frame(byte[] data, int length)
+    {
+        if(signer == null)
+            return java.util.Arrays.copyOf(data, length);
+        byte[] head = (Integer.toHexString(length) + ";chunk-signature=" + signer.sign(data, 0, length) + "\r\n")
+            .getBytes(StandardCharsets.US_ASCII);
+        byte[] chunk = new byte[head.length + length + 2];
+        System.arraycopy(head, 0, chunk, 0, head.length);
+        System.arraycopy(data, 0, chunk, head.length, length);
+        chunk[chunk.length - 2] = '\r';
+        chunk[chunk.length - 1] = '\n';
+        return chunk;
+    }
+
+    // blocks while the queue is full, unless the request has ended, say with an early error response
+    private void enqueue(byte[] chunk) throws IOException
+    {
+        try {
+            while(!queue.offer(chunk, 100, TimeUnit.MILLISECONDS))
+            {
+                if(response.isDone())
+                {
+                    closed = true;
+                    throw new IOException("the request ended before its body was sent");
+                }
+            }
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void ensureOpen() throws IOException
+    {
+        if(closed)
+            throw new IOException("upload is closed");
+    }
+}
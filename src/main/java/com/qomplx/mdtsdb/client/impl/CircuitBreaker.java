@@ -0,0 +1,300 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package com.qomplx.mdtsdb.client.impl;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.qomplx.mdtsdb.client.api.CircuitState;
+
+/**
+ * Fails the requests to an end-point fast while the end-point is unhealthy.
+ *
+ * <p>
+ *   The outcomes of the last "breaker_window" (20) requests to the end-point are kept.
+ *   A request fails if no response is received or the response has a 5xx status, and
+ *   is slow if its response took longer than "breaker_slow_call_ms" (10 s). Once at
+ *   least "breaker_min_calls" (10) requests are kept, the breaker opens when the share
+ *   of failed requests reaches "breaker_failure_rate" (0.5) or the share of slow ones
+ *   reaches "breaker_slow_call_rate" (0.5). While it is open, requests fail at once
+ *   with OpenException instead of waiting out connect and read timeouts.
+ * </p>
+ *
+ * <p>
+ *   After "breaker_open_ms" (5 s) the breaker is half-open and lets a single request
+ *   through. It is a ping by one of the clients of the end-point, see addProbe(), or
+ *   else the next request. If it succeeds the breaker closes, otherwise it opens again.
+ * </p>
+ */
+public final class CircuitBreaker
+{
+    /**
+     * Fails a request while the breaker of its end-point is open.
+     */
+    public static class OpenException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        public OpenException(String endpoint)
+        {
+            super("circuit breaker is open: " + endpoint);
+        }
+    }
+
+    private static final byte OK = 0, FAILED = 1, SLOW = 2;
+
+    private final String endpoint;
+    private final Executor executor;
+    private final int minCalls;
+    private final double failureRate;
+    private final long slowCallNanos;
+    private final double slowCallRate;
+    private final long openMs;
+
+    // outcomes of the last requests, a ring
+    private final byte[] window;
+    private int next = 0;
+    private int calls = 0;
+    private int failures = 0;
+    private int slowCalls = 0;
+
+    private CircuitState state = CircuitState.CLOSED;
+    private long openedAt = 0;
+    private long trialStartedAt = 0;
+    private boolean trialInFlight = false;
+    // pings of the clients sharing the breaker, any of them serves as the probe
+    private final Set<Supplier<CompletableFuture<?>>> probes = new CopyOnWriteArraySet<>();
+
+    CircuitBreaker(String endpoint, Executor executor, int windowSize, int minCalls, double failureRate,
+                   long slowCallMs, double slowCallRate, long openMs)
+    {
+        if(windowSize <= 0 || minCalls <= 0 || minCalls > windowSize || openMs <= 0)
+            throw new IllegalArgumentException("invalid circuit breaker options");
+        this.endpoint = endpoint;
+        this.executor = executor;
+        this.window = new byte[windowSize];
+        this.minCalls = minCalls;
+        this.failureRate = failureRate;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMs);
+        this.slowCallRate = slowCallRate;
+        this.openMs = openMs;
+    }
+
+    static CircuitBreaker fromOptions(String endpoint, Executor executor, Properties options)
+    {
+        return new CircuitBreaker(endpoint, executor,
+                                  Integer.parseInt(options.getProperty("breaker_window", "20")),
+                                  Integer.parseInt(options.getProperty("breaker_min_calls", "10")),
+                                  Double.parseDouble(options.getProperty("breaker_failure_rate", "0.5")),
+                                  Long.parseLong(options.getProperty("breaker_slow_call_ms", "10000")),
+                                  Double.parseDouble(options.getProperty("breaker_slow_call_rate", "0.5")),
+                                  Long.parseLong(options.getProperty("breaker_open_ms", "5000")));
+    }
+
+    /**
+     * @return the end-point, as scheme://host:port
+     */
+    public String getEndpoint()
+    {
+        return endpoint;
+    }
+
+    public synchronized CircuitState getState()
+    {
+        return state;
+    }
+
+    /**
+     * @return the share of failed requests among the last ones
+     */
+    public synchronized double getFailureRate()
+    {
+        return calls == 0 ? 0 : (double) failures / calls;
+    }
+
+    /**
+     * @return the share of slow requests among the last ones
+     */
+    public synchronized double getSlowCallRate()
+    {
+        return calls == 0 ? 0 : (double) slowCalls / calls;
+    }
+
+    /**
+     * Adds a request that may be sent when the breaker turns half-open, a ping of the
+     * end-point by one of its clients. Without probes the next request is let through.
+     */
+    public void addProbe(Supplier<CompletableFuture<?>> probe)
+    {
+        probes.add(probe);
+    }
+
+    /**
+     * Removes a probe added before, e.g. when its client is closed.
+     */
+    public void removeProbe(Supplier<CompletableFuture<?>> probe)
+    {
+        probes.remove(probe);
+    }
+
+    /**
+     * Admits a request.
+     *
+     * @return true if the request is the trial of the half-open breaker
+     * @throws OpenException if the request must fail at once
+     */
+    synchronized boolean acquire() throws OpenException
+    {
+        long now = System.currentTimeMillis();
+        if(state == CircuitState.OPEN && now - openedAt >= openMs)
+            state = CircuitState.HALF_OPEN;
+        switch(state)
+        {
+            case CLOSED:
+                return false;
+            case HALF_OPEN:
+                // a trial that never completed does not keep the breaker half-open
+                if(!trialInFlight || now - trialStartedAt >= Math.max(openMs, TimeUnit.NANOSECONDS.toMillis(slowCallNanos)))
+                {
+                    trialInFlight = true;
+                    trialStartedAt = now;
+                    return true;
+                }
+                throw new OpenException(endpoint);
+            default:
+                throw new OpenException(endpoint);
+        }
+    }
+
+    /**
+     * Records the outcome of an admitted request.
+     *
+     * @param trial the value acquire() returned for the request
+     * @param failed true if no response was received or it has a 5xx status
+     * @param latencyNanos the time until the response was received
+     */
+    void record(boolean trial, boolean failed, long latencyNanos)
+    {
+        boolean opened;
+        synchronized(this)
+        {
+            if(trial)
+            {
+                trialInFlight = false;
+                if(state != CircuitState.HALF_OPEN)
+                    return;
+                if(failed)
+                {
+                    open();
+                }
+                else
+                {
+                    state = CircuitState.CLOSED;
+                    next = calls = failures = slowCalls = 0;
+                }
+                opened = failed;
+            }
+            else
+            {
+                // requests admitted before the breaker opened tell nothing about the trial
+                if(state != CircuitState.CLOSED)
+                    return;
+                add(failed ? FAILED : latencyNanos > slowCallNanos ? SLOW : OK);
+                opened = calls >= minCalls && (failures >= failureRate * calls || slowCalls >= slowCallRate * calls);
+                if(opened)
+                    open();
+            }
+        }
+        if(opened)
+            scheduleProbe();
+    }
+
+    /**
+     * Releases an admitted request whose outcome tells nothing about the end-point.
+     */
+    synchronized void cancel(boolean trial)
+    {
+        if(trial)
+            trialInFlight = false;
+    }
+
+    /**
+     * Opens the breaker, e.g. when a probe was answered but the service is unavailable.
+     */
+    void trip()
+    {
+        synchronized(this)
+        {
+            if(state == CircuitState.OPEN)
+                return;
+            trialInFlight = false;
+            open();
+        }
+        scheduleProbe();
+    }
+
+    private void add(byte outcome)
+    {
+        if(calls == window.length)
+        {
+            byte dropped = window[next];
+            if(dropped == FAILED)
+                --failures;
+            else if(dropped == SLOW)
+                --slowCalls;
+        }
+        else
+        {
+            ++calls;
+        }
+        window[next] = outcome;
+        next = (next + 1) % window.length;
+        if(outcome == FAILED)
+            ++failures;
+        else if(outcome == SLOW)
+            ++slowCalls;
+    }
+
+    private void open()
+    {
+        state = CircuitState.OPEN;
+        openedAt = System.currentTimeMillis();
+    }
+
+    // turns the breaker half-open once it has been open long enough and sends the probe
+    private void scheduleProbe()
+    {
+        long since;
+        synchronized(this)
+        {
+            since = openedAt;
+        }
+        CompletableFuture.delayedExecutor(openMs, TimeUnit.MILLISECONDS, executor).execute(() -> {
+            synchronized(this)
+            {
+                if(state != CircuitState.OPEN || openedAt != since)
+                    return;
+                state = CircuitState.HALF_OPEN;
+            }
+            for(Supplier<CompletableFuture<?>> probe : probes)
+            {
+                try {
+                    probe.get();
+                    return;
+                }
+                catch(RuntimeException e)
+                {
+                    // e.g. its client was closed meanwhile, the next probe or request is the trial then
+                }
+            }
+        });
+    }
+}
@@ -17,10 +17,14 @@ import javax.crypto.spec.*;
 import java.security.*;
 
 import com.google.common.io.CharStreams;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
 public class CommunicationLayer
 {
-    private static final SimpleDateFormat rfc822Date = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z");
     public static final String MDTSDB_AUTH2 = "MDTSDB-HMAC-SHA256 ", MDTSDB_AUTH2_STREAMING = "MDTSDB-STREAMING-HMAC-SHA256 ";
 
     public enum HttpMethod {GET, HEAD, PUT, DELETE, POST};
@@ -44,11 +48,22 @@ public class CommunicationLayer
 
     private boolean isAdminKeyToSign = false;
 
+    private HttpTransport transport = null;
+    // derived keys of the secret key, shared by the routes of a client
+    private RequestSigner.SigningKeys signingKeys = null;
+
+    // per route constants of the request headers
+    private URI    tsUri      = null;
+    private boolean isDataEp  = false;
+    private String authPrefix = null;
+    private String authSuffix = null;
+    private String bearerAuth = null;
+
     public CommunicationLayer(String tsEndpoint, int tsPort, boolean useSSL, boolean isDebug, HttpMethod tsHttpMethod,
                               String tsContentType, String tsPath, String tsSecretKey, String tsSignatureKey,
                               String tsApiMethod, String tsScheme, String tsAccessToken, String tsAccessTokenType) throws Exception
     {
-        init(tsEndpoint, tsPort, useSSL, isDebug, tsHttpMethod, tsContentType, tsPath,
+        init(HttpTransport.getDefault(), tsEndpoint, tsPort, useSSL, isDebug, tsHttpMethod, tsContentType, tsPath,
              tsSecretKey, tsSignatureKey, tsApiMethod, tsScheme, tsAccessToken, tsAccessTokenType, false);
     }
 
@@ -57,15 +72,38 @@ public class CommunicationLayer
                               String tsApiMethod, String tsScheme, String tsAccessToken, String tsAccessTokenType,
                               boolean isAdminKeyToSign) throws Exception
     {
-        init(tsEndpoint, tsPort, useSSL, isDebug, tsHttpMethod, tsContentType, tsPath,
+        init(HttpTransport.getDefault(), tsEndpoint, tsPort, useSSL, isDebug, tsHttpMethod, tsContentType, tsPath,
+             tsSecretKey, tsSignatureKey, tsApiMethod, tsScheme, tsAccessToken, tsAccessTokenType, isAdminKeyToSign);
+    }
+
+    public CommunicationLayer(HttpTransport transport, String tsEndpoint, int tsPort, boolean useSSL, boolean isDebug,
+                              HttpMethod tsHttpMethod, String tsContentType, String tsPath, String tsSecretKey,
+                              String tsSignatureKey, String tsApiMethod, String tsScheme, String tsAccessToken,
+                              String tsAccessTokenType, boolean isAdminKeyToSign) throws Exception
+    {
+        init(transport, tsEndpoint, tsPort, useSSL, isDebug, tsHttpMethod, tsContentType, tsPath,
+             tsSecretKey, tsSignatureKey, tsApiMethod, tsScheme, tsAccessToken, tsAccessTokenType, isAdminKeyToSign);
+    }
+
+    /**
+     * @param signingKeys derived keys of tsSecretKey, shared with the other routes of the client
+     */
+    CommunicationLayer(HttpTransport transport, String tsEndpoint, int tsPort, boolean useSSL, boolean isDebug,
+                       HttpMethod tsHttpMethod, String tsContentType, String tsPath, String tsSecretKey,
+                       RequestSigner.SigningKeys signingKeys, String tsSignatureKey, String tsApiMethod, String tsScheme,
+                       String tsAccessToken, String tsAccessTokenType, boolean isAdminKeyToSign) throws Exception
+    {
+        init(transport, tsEndpoint, tsPort, useSSL, isDebug, tsHttpMethod, tsContentType, tsPath,
              tsSecretKey, tsSignatureKey, tsApiMethod, tsScheme, tsAccessToken, tsAccessTokenType, isAdminKeyToSign);
+        this.signingKeys = signingKeys;
     }
 
-    private void init(String tsEndpoint, int tsPort, boolean useSSL, boolean isDebug, HttpMethod tsHttpMethod,
+    private void init(HttpTransport transport, String tsEndpoint, int tsPort, boolean useSSL, boolean isDebug, HttpMethod tsHttpMethod,
                               String tsContentType, String tsPath, String tsSecretKey, String tsSignatureKey,
                               String tsApiMethod, String tsScheme, String tsAccessToken, String tsAccessTokenType,
                               boolean isAdminKeyToSign) throws Exception
     {
+        this.transport = transport;
         this.useSSL = useSSL;
         this.isDebug = isDebug;
 
@@ -78,6 +116,7 @@ public class CommunicationLayer
         this.tsContentType = tsContentType;
         this.tsApiMethod = tsApiMethod;
         this.tsSecretKey = tsSecretKey;
+        this.signingKeys = new RequestSigner.SigningKeys(tsSecretKey);
         this.tsSignatureKey = tsSignatureKey;
         this.tsScheme = tsScheme;
         this.tsAccessToken = tsAccessToken;
@@ -85,7 +124,12 @@ public class CommunicationLayer
 
         this.isAdminKeyToSign = isAdminKeyToSign;
 
-        rfc822Date.setTimeZone(new SimpleTimeZone(0, "GMT"));
+        this.tsUri = new URI(this.tsUrl);
+        this.isDataEp = tsPath.endsWith("ingest");
+        this.authPrefix = MDTSDB_AUTH2 + tsSignatureKey + " ";
+        this.authSuffix = " " + (isAdminKeyToSign ? "a" : "s") + "," + tsApiMethod;
+        if(tsAccessToken != null)
+            this.bearerAuth = (tsAccessTokenType == null ? "Bearer" : tsAccessTokenType) + " " + tsAccessToken;
     }
 
     public String generateTSUrl(String tsEndpoint, int tsPort, String path) throws Exception
@@ -131,6 +175,102 @@ public class CommunicationLayer
         return requestUrl;
     }
 
+    /**
+     * Decodes a successful response body.
+     */
+    public interface BodyDecoder<T>
+    {
+        T decode(InputStream body) throws IOException;
+    }
+
+    /**
+     * Reads the response body as a string, dropping a leading record separator of a JSON sequence.
+     */
+    public static final BodyDecoder<String> STRING_BODY = body -> {
+        String data;
+        try(Reader reader = new InputStreamReader(body, StandardCharsets.UTF_8))
+        {
+            data = CharStreams.toString(reader);
+        }
+        if(data.length() > 0 && data.charAt(0) == RecordSeparatorReader.RS)
+            data = data.substring(1);
+        return data;
+    };
+
+    /**
+     * Parses the response body as JSON straight from the stream, without materializing it as a string.
+     * Record separators of a JSON sequence are skipped.
+     */
+    public static final BodyDecoder<JsonElement> JSON_BODY = body -> {
+        try(JsonReader reader = new JsonReader(new RecordSeparatorReader(
+                new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8), 65536))))
+        {
+            reader.setLenient(true);
+            JsonElement data = new JsonParser().parse(reader);
+            if(!data.isJsonNull() && reader.peek() != JsonToken.END_DOCUMENT)
+                throw new JsonSyntaxException("Did not consume the entire document.");
+            return data;
+        }
+    };
+
+    /**
+     * A response with an HTTP status other than 2xx.
+     */
+    public static class HttpStatusException extends Exception
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int statusCode;
+        private final long retryAfterMs;
+
+        public HttpStatusException(int statusCode, long retryAfterMs)
+        {
+            super("Error: " + statusCode);
+            this.statusCode = statusCode;
+            this.retryAfterMs = retryAfterMs;
+        }
+
+        public int getStatusCode()
+        {
+            return statusCode;
+        }
+
+        /**
+         * @return the delay the server asked for with a Retry-After header, -1 if none
+         */
+        public long getRetryAfterMs()
+        {
+            return retryAfterMs;
+        }
+    }
+
+    /**
+     * A request body read from a stream, so that it is never held in memory.
+     *
+     * <p>
+     *   The stream is opened once to compute the payload digest the signature needs, and
+     *   once more to send the body, so it has to yield the same bytes every time.
+     * </p>
+     */
+    @FunctionalInterface
+    public interface StreamedBody
+    {
+        InputStream open() throws IOException;
+    }
+
+    public String getPath()
+    {
+        return tsPath;
+    }
+
+    /**
+     * @return true if requests go to the data ingestion end-point, which accepts compressed bodies
+     */
+    public boolean isDataEndpoint()
+    {
+        return isDataEp;
+    }
+
     public String callApiMethod(byte[] bytes) throws Exception
     {
         return callApiMethod(new LinkedHashMap<String, String>(), bytes);
@@ -138,175 +278,367 @@ public class CommunicationLayer
 
     public String callApiMethod(Map<String, String> headers, byte[] bytes) throws Exception
     {
-        MessageDigest md = MessageDigest.getInstance("SHA-256");
-        String payloadDigest = toHex(md.digest(bytes));
+        return callApiMethod(headers, bytes, STRING_BODY);
+    }
+
+    public <T> T callApiMethod(Map<String, String> headers, byte[] bytes, BodyDecoder<T> decoder) throws Exception
+    {
+        return callApiMethod(headers, bytes, bytes.length, decoder);
+    }
 
-        headers.putIfAbsent("Content-Type", this.tsContentType);
-        return callApiMethodImpl(true, headers, bytes, payloadDigest);
+    /**
+     * Calls the API method with the first length bytes of the buffer as the body.
+     */
+    public <T> T callApiMethod(Map<String, String> headers, byte[] bytes, int length, BodyDecoder<T> decoder) throws Exception
+    {
+        return callApiMethod(headers, bytes, length, null, decoder);
+    }
+
+    /**
+     * Calls the API method with the first length bytes of the buffer as the body.
+     *
+     * @param payloadDigest hex encoded SHA-256 of the body, e.g. computed while it was written,
+     *                      or null to compute it here
+     */
+    public <T> T callApiMethod(Map<String, String> headers, byte[] bytes, int length, String payloadDigest,
+                               BodyDecoder<T> decoder) throws Exception
+    {
+        return callApiMethodImpl(true, headers, bytes, length,
+                                 payloadDigest != null ? payloadDigest : payloadDigest(bytes, length), decoder);
     }
 
     public String callApiMethod(Map<String, String> headers, byte[] bytes, String payloadDigest) throws Exception
     {
-        return callApiMethodImpl(true, headers, bytes, payloadDigest);
+        return callApiMethodImpl(true, headers, bytes, bytes.length, payloadDigest, STRING_BODY);
     }
 
     public String callApiMethodUnsigned(Map<String, String> headers, byte[] bytes, String payloadDigest) throws Exception
     {
-        return callApiMethodImpl(false, headers, bytes, payloadDigest);
+        return callApiMethodImpl(false, headers, bytes, bytes.length, payloadDigest, STRING_BODY);
     }
 
-    private String callApiMethodImpl(boolean isSigned, Map<String, String> headers,
-                                     byte[] bytes, String payloadDigest) throws Exception
+    /**
+     * Calls the API method and returns the response body unread.
+     *
+     * <p>
+     *   The caller owns the returned stream and has to close it.
+     * </p>
+     */
+    public InputStream openApiMethod(Map<String, String> headers, byte[] bytes) throws Exception
     {
-        if (!headers.containsKey("Date"))
-            headers.put("Date", rfc822Date.format(currentTime()));
+        HttpResponse<InputStream> response = this.transport.send(buildRequest(true, headers, bytes, bytes.length,
+                                                                              payloadDigest(bytes, bytes.length)));
+        checkResponse(response.statusCode(), response.headers(), response.body());
+        return response.body();
+    }
 
-        if (!headers.containsKey("Content-Type"))
-            headers.put("Content-Type", this.tsContentType);
+    /**
+     * Calls the API method without blocking the caller.
+     *
+     * <p>
+     *   The returned future completes on a transport thread, either with the decoded
+     *   response body or exceptionally if the request fails.
+     * </p>
+     */
+    public <T> CompletableFuture<T> callApiMethodAsync(Map<String, String> headers, byte[] bytes, BodyDecoder<T> decoder)
+    {
+        return callApiMethodAsync(headers, bytes, bytes.length, decoder);
+    }
 
-        // generate request signature for Authorization Header
-        if (isSigned)
+    /**
+     * Calls the API method with the first length bytes of the buffer as the body, without
+     * blocking the caller. The buffer must not change until the returned future completes.
+     */
+    public <T> CompletableFuture<T> callApiMethodAsync(Map<String, String> headers, byte[] bytes, int length, BodyDecoder<T> decoder)
+    {
+        return callApiMethodAsync(headers, bytes, length, null, decoder);
+    }
+
+    /**
+     * @param payloadDigest hex encoded SHA-256 of the body, or null to compute it here
+     * @see #callApiMethodAsync(Map, byte[], int, BodyDecoder)
+     */
+    public <T> CompletableFuture<T> callApiMethodAsync(Map<String, String> headers, byte[] bytes, int length, String payloadDigest,
+                                                       BodyDecoder<T> decoder)
+    {
+        HttpRequest request;
+        try {
+                request = buildRequest(true, headers, bytes, length,
+                                       payloadDigest != null ? payloadDigest : payloadDigest(bytes, length));
+        }
+        catch(Exception e)
         {
-            if (this.tsAccessToken == null)
-            {
-                String signature = CommunicationLayer.makeMdtsdbAuthSignature(this.tsApiMethod, this.tsSignatureKey, this.tsSecretKey,
-                                                                              this.tsPath, payloadDigest, headers.get("Content-Type"));
-                String MdtsdbAuth2 = String.format("%s%s %s %s,%s", MDTSDB_AUTH2, this.tsSignatureKey,
-                                                   signature, isAdminKeyToSign ? "a" : "s", this.tsApiMethod);
-                headers.put("Authorization", MdtsdbAuth2);
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+        return this.transport.sendAsync(request).thenApply(response -> {
+            try {
+                return decodeResponse(response.statusCode(), response.headers(),
+                                      new ByteArrayInputStream(response.body()), decoder);
             }
-            else
+            catch(Exception e)
             {
-                String tokenType = this.tsAccessTokenType == null ? "Bearer" : this.tsAccessTokenType;
-                headers.put("Authorization", String.format("%s %s", tokenType, this.tsAccessToken));
+                throw new CompletionException(e);
             }
-        }
+        });
+    }
 
-        int redirectCount = 0;
-        while (redirectCount < 4) // repeat requests
-        {
-            HttpRequest.Builder builder = HttpRequest.newBuilder()
-                .uri(new URI(this.tsUrl))
-                .version(HttpClient.Version.HTTP_1_1);
+    /**
+     * Calls the API method with a body read from a stream.
+     */
+    public <T> T callApiMethod(Map<String, String> headers, StreamedBody body, BodyDecoder<T> decoder) throws Exception
+    {
+        HttpResponse<InputStream> response = this.transport.send(buildRequest(headers, body));
+        return decodeResponse(response.statusCode(), response.headers(), response.body(), decoder);
+    }
 
-            if(isDebug)
+    /**
+     * Calls the API method with a body read from a stream, without blocking the caller.
+     * The digest of the body is computed on a transport thread.
+     */
+    public <T> CompletableFuture<T> callApiMethodAsync(Map<String, String> headers, StreamedBody body, BodyDecoder<T> decoder)
+    {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return buildRequest(headers, body);
+            }
+            catch(Exception e)
             {
-                System.out.println("\n\n========================\n");
-                System.out.println("URI: " + (new URI(this.tsUrl)).toString());
-                System.out.println("Headers:");
-                for(Map.Entry<String, String> header : headers.entrySet())
-                    System.out.println("  " + header.getKey() + "=" + header.getValue());
-                System.out.println("Body:");
-                System.out.println("  " + new String(bytes, StandardCharsets.UTF_8));
+                throw new CompletionException(e);
+            }
+        }, this.transport.getExecutor()).thenCompose(request -> this.transport.sendAsync(request)).thenApply(response -> {
+            try {
+                return decodeResponse(response.statusCode(), response.headers(),
+                                      new ByteArrayInputStream(response.body()), decoder);
             }
+            catch(Exception e)
+            {
+                throw new CompletionException(e);
+            }
+        });
+    }
 
-            for(Map.Entry<String, String> header : headers.entrySet())
-                builder = builder.headers(header.getKey(), header.getValue());
+    /**
+     * Starts a call whose body is written while it is sent, in chunks of chunkSize bytes.
+     *
+     * <p>
+     *   The request is signed with the streaming scheme, MDTSDB_AUTH2_STREAMING, and every
+     *   chunk with a signature that chains to the one before it, see RequestSigner.ChunkSigner,
+     *   so the body needs not be hashed before it is sent. With an access token the body is
+     *   sent as it is. The body is complete when ChunkedUpload.finish() is called, which
+     *   returns the decoded response, and close() aborts the request.
+     * </p>
+     */
+    <T> ChunkedUpload<T> openStreamingCall(Map<String, String> headers, int chunkSize, BodyDecoder<T> decoder) throws Exception
+    {
+        Map<String, String> signed = new LinkedHashMap<>(headers);
+        RequestSigner.ChunkSigner signer = null;
+        if(this.bearerAuth == null)
+        {
+            String contentType = headers.getOrDefault("Content-Type", this.tsContentType);
+            signer = RequestSigner.chunkSigner(this.tsApiMethod, this.tsSignatureKey, this.signingKeys, this.tsPath, contentType);
+            signed.put("Authorization", MDTSDB_AUTH2_STREAMING + this.tsSignatureKey + " " + signer.seedSignature() + this.authSuffix);
+        }
+        else
+        {
+            signed.put("Authorization", this.bearerAuth);
+        }
 
-            if(this.tsHttpMethod == HttpMethod.PUT || this.tsHttpMethod == HttpMethod.POST)
-                builder = builder.POST(HttpRequest.BodyPublishers.ofByteArray(bytes));
-            else
-                builder = builder.GET();
+        ChunkedUpload<T> upload = new ChunkedUpload<>(chunkSize, signer);
+        HttpRequest request = buildRequest(false, signed, HttpRequest.BodyPublishers.ofInputStream(upload::body), null,
+                                           isDebug ? "<streamed in chunks>" : null);
+        upload.start(this.transport.sendAsync(request).thenApply(response -> {
+            try {
+                return decodeResponse(response.statusCode(), response.headers(),
+                                      new ByteArrayInputStream(response.body()), decoder);
+            }
+            catch(Exception e)
+            {
+                throw new CompletionException(e);
+            }
+        }));
+        return upload;
+    }
 
-            ExecutorService httpExecutor = null;
-            HttpClient client = null;
+    // redirects are followed by the transport, failed requests are retried by the client, see RetryPolicy
+    private <T> T callApiMethodImpl(boolean isSigned, Map<String, String> headers,
+                                    byte[] bytes, int length, String payloadDigest, BodyDecoder<T> decoder) throws Exception
+    {
+        HttpRequest request = buildRequest(isSigned, headers, bytes, length, payloadDigest);
 
-            try
-            {
-                HttpRequest request = builder.build();
+        // connections are pooled by the transport, so they survive between requests
+        HttpResponse<InputStream> response = this.transport.send(request);
 
-                httpExecutor = Executors.newSingleThreadExecutor();
-                client = HttpClient.newBuilder()
-                    .followRedirects(HttpClient.Redirect.ALWAYS)
-                    .executor(httpExecutor)
-                    .build();
+        return decodeResponse(response.statusCode(), response.headers(), response.body(), decoder);
+    }
 
-                //HttpResponse<String> response = client
-                //    .send(request, HttpResponse.BodyHandlers.ofString());
-                HttpResponse<InputStream> response = client
-                    .send(request, HttpResponse.BodyHandlers.ofInputStream());
+    private HttpRequest buildRequest(boolean isSigned, Map<String, String> headers,
+                                     byte[] bytes, int length, String payloadDigest) throws Exception
+    {
+        return buildRequest(isSigned, headers, HttpRequest.BodyPublishers.ofByteArray(bytes, 0, length), payloadDigest,
+                            isDebug ? new String(bytes, 0, length, StandardCharsets.UTF_8) : null);
+    }
 
-                int responseCode = response.statusCode();
+    // reads the body once for its digest and length, and once more as it is sent
+    private HttpRequest buildRequest(Map<String, String> headers, StreamedBody body) throws Exception
+    {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        long length = 0;
+        byte[] buffer = new byte[65536];
+        try(InputStream in = body.open())
+        {
+            for(int n; (n = in.read(buffer)) >= 0; length += n)
+                md.update(buffer, 0, n);
+        }
 
-                if(isDebug)
-                {
-                    System.out.println("Response Headers:");
-                    System.out.println(response.headers().toString());
-                    System.out.println("Response Status:");
-                    System.out.println(responseCode);
+        HttpRequest.BodyPublisher publisher = HttpRequest.BodyPublishers.noBody();
+        if(length > 0)
+        {
+            publisher = HttpRequest.BodyPublishers.fromPublisher(HttpRequest.BodyPublishers.ofInputStream(() -> {
+                try {
+                    return body.open();
                 }
-
-                if(responseCode >= 200 && responseCode < 300)
+                catch(IOException e)
                 {
-                    String data = CharStreams.toString(new InputStreamReader(response.body(), "UTF-8"));
-                    if(data.length() > 0 && data.charAt(0) == '\u001e') {
-                        byte[] cbuf = data.getBytes("US-ASCII");
-                        data = new String(cbuf, 1, cbuf.length - 1);
-                    }
-                    if(isDebug)
-                    {
-                        System.out.println("Response Body:");
-                        System.out.println(data);
-                    }
-                    return data;
+                    throw new UncheckedIOException(e);
                 }
-                else
-                    throw new Exception("Error: " + responseCode);
-            }
-            catch(IOException e)
+            }), length);
+        }
+        return buildRequest(true, headers, publisher, RequestSigner.toHex(md.digest()),
+                            isDebug ? "<" + length + " bytes streamed>" : null);
+    }
+
+    private HttpRequest buildRequest(boolean isSigned, Map<String, String> headers, HttpRequest.BodyPublisher body,
+                                     String payloadDigest, String debugBody) throws Exception
+    {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(this.tsUri)
+            .version(this.transport.getRequestVersion());
+
+        // the headers of the call are shared and never modified, defaults are added to the request only
+        for(Map.Entry<String, String> header : headers.entrySet())
+            builder.header(header.getKey(), header.getValue());
+
+        String contentType = headers.get("Content-Type");
+        if(contentType == null)
+        {
+            contentType = this.tsContentType;
+            builder.header("Content-Type", contentType);
+        }
+
+        if(!headers.containsKey("Date"))
+            builder.header("Date", HttpDate.now());
+
+        // generate request signature for Authorization Header
+        if(isSigned)
+        {
+            if(this.bearerAuth == null)
             {
-                throw e;
+                String signature = RequestSigner.sign(this.tsApiMethod, this.tsSignatureKey, this.signingKeys,
+                                                      this.tsPath, payloadDigest, contentType);
+                builder.header("Authorization", this.authPrefix + signature + this.authSuffix);
             }
-            finally
+            else
             {
-                if(httpExecutor != null)
-                {
-                    httpExecutor.shutdownNow();
-                }
-                if(client != null)
-                {
-                    client = null;
-                }
+                builder.header("Authorization", this.bearerAuth);
+            }
         }
 
+        if(this.tsHttpMethod == HttpMethod.PUT || this.tsHttpMethod == HttpMethod.POST)
+            builder.POST(body);
+        else
+            builder.GET();
+
+        HttpRequest request = builder.build();
+
+        if(isDebug)
+        {
+            System.out.println("\n\n========================\n");
+            System.out.println("URI: " + this.tsUri.toString());
+            System.out.println("Headers:");
+            for(Map.Entry<String, List<String>> header : request.headers().map().entrySet())
+                System.out.println("  " + header.getKey() + "=" + String.join(",", header.getValue()));
+            System.out.println("Body:");
+            System.out.println("  " + debugBody);
         }
-        throw new IllegalStateException("internal");
+
+        return request;
     }
 
-    private Date currentTime()
+    private <T> T decodeResponse(int responseCode, HttpHeaders responseHeaders, InputStream body,
+                                 BodyDecoder<T> decoder) throws Exception
     {
-        return new Date(System.currentTimeMillis());
+        checkResponse(responseCode, responseHeaders, body);
+
+        T data;
+        try(InputStream in = body)
+        {
+            data = decoder.decode(in);
+        }
+        if(isDebug)
+        {
+            System.out.println("Response Body:");
+            System.out.println(data);
+        }
+        return data;
     }
 
-    static public String makeMdtsdbAuthSignature(String method, String signKey, String secretKey, String uri) throws Exception
+    private void checkResponse(int responseCode, HttpHeaders responseHeaders, InputStream body) throws Exception
     {
-        return makeMdtsdbAuthSignature(method, signKey, secretKey, uri,
-            CommunicationLayer.toHex(MessageDigest.getInstance("SHA-256").digest()), "");
+        if(isDebug)
+        {
+            System.out.println("Response Headers:");
+            System.out.println(responseHeaders.toString());
+            System.out.println("Response Status:");
+            System.out.println(responseCode);
+        }
+
+        if(responseCode < 200 || responseCode >= 300)
+        {
+            // release the body, otherwise the connection is never returned
+            body.close();
+            throw new HttpStatusException(responseCode, retryAfterMs(responseHeaders));
+        }
     }
 
-    static public String makeMdtsdbAuthSignature(String method, String signKey, String secretKey,
-                                                 String uri, String payloadHash, String tsContentType) throws Exception
+    // the delay of a Retry-After header, in seconds or as an HTTP date, -1 if there is none
+    private static long retryAfterMs(HttpHeaders responseHeaders)
     {
-        long unixTime = System.currentTimeMillis() / 1000L / 1000L;
-        String ts = String.valueOf(unixTime);
+        String value = responseHeaders.firstValue("Retry-After").orElse(null);
+        if(value == null)
+            return -1;
+        try {
+            return Math.max(0, Long.parseLong(value.trim()) * 1000L);
+        }
+        catch(NumberFormatException e)
+        {
+        }
+        try {
+            long at = java.time.ZonedDateTime.parse(value.trim(), java.time.format.DateTimeFormatter.RFC_1123_DATE_TIME)
+                .toInstant().toEpochMilli();
+            return Math.max(0, at - System.currentTimeMillis());
+        }
+        catch(java.time.format.DateTimeParseException e)
+        {
+            return -1;
+        }
+    }
 
-        StringBuffer requestStr = new StringBuffer();
-        Mac hmac = Mac.getInstance("HmacSHA256");
-        byte[] secret1 = secretKey.getBytes("UTF-8");
-        hmac.init(new SecretKeySpec(secret1, "HmacSHA256"));
-        byte[] secret2 = hmac.doFinal(ts.getBytes("UTF-8"));
-        hmac.reset();
-        hmac.init(new SecretKeySpec(secret2, "HmacSHA256"));
-        byte[] secret3 = hmac.doFinal(method.getBytes("UTF-8"));
+    private static String payloadDigest(byte[] bytes, int length)
+    {
+        return RequestSigner.sha256Hex(bytes, 0, length);
+    }
 
-        MessageDigest md = MessageDigest.getInstance("SHA-256");
-        String payloadDigest = toHex(md.digest(String.format("/%s\n%s\n%s", uri, tsContentType, payloadHash).getBytes("UTF-8")));
-        String msg = msg = String.format("%s\n%s\n%s", ts, signKey, payloadDigest);
+    static public String makeMdtsdbAuthSignature(String method, String signKey, String secretKey, String uri) throws Exception
+    {
+        return RequestSigner.sign(method, signKey, secretKey, uri);
+    }
 
-        hmac.reset();
-        hmac.init(new SecretKeySpec(secret3, "HmacSHA256"));
-        byte[] signature = hmac.doFinal(msg.getBytes("UTF-8"));
-        return toHex(signature);
+    static public String makeMdtsdbAuthSignature(String method, String signKey, String secretKey,
+                                                 String uri, String payloadHash, String tsContentType) throws Exception
+    {
+        return RequestSigner.sign(method, signKey, secretKey, uri, payloadHash, tsContentType);
     }
 
     static public String makeAuthSignature(String method, String signKey, String secretKey) throws Exception
@@ -336,19 +668,6 @@ public class CommunicationLayer
         return Base64.getEncoder().encodeToString(signature);
     }
 
-    static private String toHex(byte[] bytes)
-    {
-        StringBuffer result = new StringBuffer();
-        for (byte b : bytes)
-        {
-            String hex = Integer.toHexString(b & 0xff);
-            if(hex.length() == 1)
-                result.append('0');
-            result.append(hex);
-        }
-        return result.toString();
-    }
-
     protected String getInputStreamAsString(InputStream is) throws IOException {
         StringBuffer responseBody = new StringBuffer();
         try(BufferedReader reader = new BufferedReader(new InputStreamReader(is))){
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package com.qomplx.mdtsdb.client.impl;
+
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Pool of zlib deflaters per compression level.
+ *
+ * <p>
+ *   A Deflater holds native zlib memory that is only freed by end(), so deflaters are
+ *   reset and reused instead of dropped. At most "deflater_pool_size" idle deflaters are
+ *   kept per level and kind (zlib or raw), the ones beyond that are ended right away. Output is deflated
+ *   directly into a ByteSink, e.g. the pooled request body, without scratch buffers.
+ *   Pools are safe for concurrent use.
+ * </p>
+ */
+final class DeflaterPool
+{
+    /**
+     * Pool of the static helpers that have no client options.
+     */
+    static final DeflaterPool SHARED = new DeflaterPool(4);
+
+    // zlib deflaters of levels 0..9, then raw deflaters of levels 0..9
+    private final Level[] levels = new Level[20];
+    private final int maxIdle;
+
+    DeflaterPool(int maxIdle)
+    {
+        this.maxIdle = maxIdle;
+        for(int i = 0; i < levels.length; ++i)
+            levels[i] = new Level();
+    }
+
+    static DeflaterPool fromOptions(Properties options)
+    {
+        return new DeflaterPool(Integer.parseInt(options.getProperty("deflater_pool_size", "4")));
+    }
+
+    /**
+     * Appends the zlib stream of data[offset, offset + length) to out.
+     *
+     * @param level compression level, 0..9 or Deflater.DEFAULT_COMPRESSION
+     */
+    void deflate(byte[] data, int offset, int length, int level, ByteSink out)
+    {
+        if(level == Deflater.DEFAULT_COMPRESSION)
+            level = 6;
+        Deflater deflater = acquire(level);
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            out.writeDeflated(deflater);
+        }
+        finally
+        {
+            release(level, deflater);
+        }
+    }
+
+    /**
+     * Appends a block of a raw deflate stream holding data[offset, offset + length) to
+     * out. Blocks end with a sync flush, so they can be joined, and the last block
+     * finishes the stream.
+     *
+     * @param level compression level, 0..9 or Deflater.DEFAULT_COMPRESSION
+     */
+    void deflateBlock(byte[] data, int offset, int length, int level, boolean last, ByteSink out)
+    {
+        if(level == Deflater.DEFAULT_COMPRESSION)
+            level = 6;
+        if(level < 0 || level > 9)
+            throw new IllegalArgumentException("wrong compression level: " + level);
+        Deflater deflater = acquire(level + 10);
+        try {
+            deflater.setInput(data, offset, length);
+            if(last)
+            {
+                deflater.finish();
+                out.writeDeflated(deflater);
+            }
+            else
+                out.writeDeflated(deflater, Deflater.SYNC_FLUSH);
+        }
+        finally
+        {
+            release(level + 10, deflater);
+        }
+    }
+
+    /**
+     * @return the zlib stream of data[offset, offset + length)
+     */
+    byte[] deflate(byte[] data, int offset, int length, int level)
+    {
+        ByteSink out = new ByteSink(length / 2 + 64);
+        deflate(data, offset, length, level, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Ends all idle deflaters, deflaters in use are ended when they are released.
+     */
+    void close()
+    {
+        for(Level pool : levels)
+        {
+            pool.closed = true;
+            Deflater deflater;
+            while((deflater = pool.idle.poll()) != null)
+                deflater.end();
+        }
+    }
+
+    /**
+     * @param level compression level 0..9 of a zlib deflater, or 10 more for a raw one
+     * @return a deflater, to be given back with release()
+     */
+    Deflater acquire(int level)
+    {
+        if(level < 0 || level >= levels.length)
+            throw new IllegalArgumentException("wrong compression level: " + level);
+        Deflater deflater = levels[level].idle.poll();
+        if(deflater == null)
+            return new Deflater(level % 10, level >= 10);
+        levels[level].size.decrementAndGet();
+        return deflater;
+    }
+
+    /**
+     * Resets and keeps a deflater of acquire(level), or ends it if enough are kept.
+     */
+    void release(int level, Deflater deflater)
+    {
+        Level pool = levels[level];
+        if(pool.closed || pool.size.incrementAndGet() > maxIdle)
+        {
+            if(!pool.closed)
+                pool.size.decrementAndGet();
+            deflater.end();
+            return;
+        }
+        deflater.reset();
+        pool.idle.offer(deflater);
+        if(pool.closed && pool.idle.remove(deflater))
+            deflater.end();
+    }
+
+    private static final class Level
+    {
+        final ConcurrentLinkedQueue<Deflater> idle = new ConcurrentLinkedQueue<>();
+        final AtomicInteger size = new AtomicInteger();
+        volatile boolean closed = false;
+    }
+}
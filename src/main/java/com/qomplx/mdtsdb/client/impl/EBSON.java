@@ -23,6 +23,8 @@ import org.bson.BsonWriter;
 import org.bson.BsonBinaryWriter;
 import org.bson.io.BasicOutputBuffer;
 import org.bson.BsonBinaryReader;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
 
 
 public class EBSON
@@ -87,4 +89,42 @@ public class EBSON
         }
     }
 
+    /**
+     * Converts a BSON array, encoded as a document with keys "0", "1", ..., back to JSON.
+     * Numbers keep their BSON type.
+     */
+    public static JsonArray bson_array_to_json(byte[] data) throws IllegalArgumentException {
+        JsonArray arr = new JsonArray();
+        for (BsonValue elem : new RawBsonDocument(data).values()) {
+            arr.add(bson_to_json(elem));
+        }
+        return arr;
+    }
+    public static JsonElement bson_to_json(BsonValue value) throws IllegalArgumentException {
+        switch (value.getBsonType()) {
+            case NULL: return JsonNull.INSTANCE;
+            case BOOLEAN: return new JsonPrimitive(value.asBoolean().getValue());
+            case STRING: return new JsonPrimitive(value.asString().getValue());
+            case INT32: return new JsonPrimitive(value.asInt32().getValue());
+            case INT64: return new JsonPrimitive(value.asInt64().getValue());
+            case DOUBLE: return new JsonPrimitive(value.asDouble().getValue());
+            case ARRAY: {
+                JsonArray arr = new JsonArray();
+                for (BsonValue elem : value.asArray()) {
+                    arr.add(bson_to_json(elem));
+                }
+                return arr;
+            }
+            case DOCUMENT: {
+                JsonObject obj = new JsonObject();
+                for (Map.Entry<String, BsonValue> entry : value.asDocument().entrySet()) {
+                    obj.add(entry.getKey(), bson_to_json(entry.getValue()));
+                }
+                return obj;
+            }
+            default:
+                throw new IllegalArgumentException("unexpected BSON value: " + value.getBsonType());
+        }
+    }
+
 }
@@ -10,6 +10,8 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
 import com.google.gson.JsonParser;
 import com.google.gson.JsonNull;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.*;
@@ -49,139 +51,240 @@ public class ErlangTermToBinWrp
     public static ByteBuffer term_to_binary(JsonElement elem, int compression_level)
         throws IOException, IllegalArgumentException, UnsupportedEncodingException {
 
-        ByteBuffer ubuf = term_to_binary(elem);
+        return ByteBuffer.wrap(term_to_binary(elem, compression_level, DeflaterPool.SHARED));
+    }
+
+    /**
+     * Encodes a JSON value as an External Term Format binary in a single pass.
+     *
+     * <p>
+     *   Objects become proplists of {binary key, value} tuples, arrays become lists, strings
+     *   become binaries, null, true and false become atoms and numbers become integers, big
+     *   integers or floats. With a compression level 0..9 the term is zlib compressed, as
+     *   term_to_binary(Term, [{compressed, Level}]) does, when that makes it smaller.
+     * </p>
+     */
+    static byte[] term_to_binary(JsonElement elem, int compression_level, DeflaterPool deflaters) {
+        ByteSink out = new ByteSink(256);
+        out.write(FORMAT_VERSION);
+        write_term(out, elem);
         if (compression_level >= 0) {
             if (compression_level > 9) { compression_level = 6; }
-            ByteBuffer cbuf = compress(ubuf.array(), compression_level);
-            if (cbuf.limit() < ubuf.limit()) {
-                ByteBuffer result = ByteBuffer.allocate(Byte.BYTES + Byte.BYTES + Integer.BYTES + cbuf.limit())
-                    .order(ByteOrder.BIG_ENDIAN).put(FORMAT_VERSION).put(COMPRESSED).putInt(ubuf.limit()).put(cbuf.array(), 0, cbuf.limit());
-                result.flip();
-                return result;
+            int size = out.length() - 1;
+            ByteSink compressed = new ByteSink(size / 2 + 16);
+            compressed.write(FORMAT_VERSION);
+            compressed.write(COMPRESSED);
+            write_uint32(compressed, size);
+            deflaters.deflate(out.array(), 1, size, compression_level, compressed);
+            if (compressed.length() < out.length()) {
+                return compressed.toByteArray();
             }
         }
-        ByteBuffer result = ByteBuffer.allocate(Byte.BYTES + ubuf.limit())
-            .order(ByteOrder.BIG_ENDIAN).put(FORMAT_VERSION).put(ubuf.array(), 0, ubuf.limit());
-        result.flip();
-        return result;
+        return out.toByteArray();
     }
 
     public static ByteBuffer term_to_binary(JsonObject obj) throws IllegalArgumentException, UnsupportedEncodingException {
-        int count = 0;
-        ByteBuffer buf = ByteBuffer.allocate(0);
-        for (Map.Entry<String, JsonElement> entry : obj.entrySet()) {
-            ByteBuffer key = term_to_binary(entry.getKey()), value = term_to_binary(entry.getValue());
-            buf = concat(buf, ByteBuffer.allocate(Byte.BYTES + Byte.BYTES + key.limit() + value.limit())
-                .order(ByteOrder.BIG_ENDIAN).put(SMALL_TUPLE_EXT).put((byte)2).put(key.array(), 0, key.limit()).put(value.array(), 0, value.limit()));
-            ++count;
-        }
-        ByteBuffer result = ByteBuffer.allocate(Byte.BYTES + Integer.BYTES + buf.limit() + Byte.BYTES);
-        result.order(ByteOrder.BIG_ENDIAN).put(LIST_EXT).putInt(count);
-        if (count > 0) {
-            result.put(buf.array(), 0, buf.limit());
-        }
-        result.put(NIL_EXT);
-        return result;
+        return encoded(obj);
     }
     public static ByteBuffer term_to_binary(JsonArray arr) throws IllegalArgumentException, UnsupportedEncodingException {
-        int count = 0;
-        ByteBuffer buf = ByteBuffer.allocate(0);
-        for (int i = 0; i < arr.size(); i++) {
-            buf = concat(buf, term_to_binary(arr.get(i)));
-            ++count;
-        }
-        if (count == 0) {
-            return ByteBuffer.allocate(Byte.BYTES).order(ByteOrder.BIG_ENDIAN).put(NIL_EXT);
-        }
-        return ByteBuffer.allocate(Byte.BYTES + Integer.BYTES + buf.limit() + Byte.BYTES)
-            .order(ByteOrder.BIG_ENDIAN).put(LIST_EXT).putInt(count).put(buf.array(), 0, buf.limit()).put(NIL_EXT);
+        return encoded(arr);
     }
     public static ByteBuffer term_to_binary(JsonElement value) throws IllegalArgumentException, UnsupportedEncodingException {
-        if (value.isJsonNull()) {
-            return term_to_binary(value.getAsJsonNull());
-        } else if (value.isJsonObject()) {
-            return term_to_binary(value.getAsJsonObject());
-        } else if (value.isJsonArray()) {
-            return term_to_binary(value.getAsJsonArray());
-        } else if (value.isJsonPrimitive()) {
-            return term_to_binary(value.getAsJsonPrimitive());
-        }
-        throw new IllegalArgumentException("unexpected JsonObject value!");
+        return encoded(value);
     }
     public static ByteBuffer term_to_binary(JsonPrimitive value) throws IllegalArgumentException, UnsupportedEncodingException {
-        if (value.isBoolean()) {
-            return term_to_binary(value.getAsBoolean());
-        } else if (value.isString()) {
-            return term_to_binary(value.getAsString());
-        } else if (value.isNumber()) {
-            return term_to_binary(value.getAsNumber());
-        }
-        throw new IllegalArgumentException("unexpected JsonPrimitive value!");
+        return encoded(value);
     }
     public static ByteBuffer term_to_binary(JsonNull value) throws UnsupportedEncodingException {
-        String str = "none";
-        byte[] utf8 = str.getBytes("UTF-8");
-        return ByteBuffer.allocate(Byte.BYTES + Short.BYTES + utf8.length)
-            .order(ByteOrder.BIG_ENDIAN).put(ATOM_EXT).putShort((short)utf8.length).put(utf8, 0, utf8.length);
+        return encoded(value);
     }
     public static ByteBuffer term_to_binary(boolean value) throws UnsupportedEncodingException {
-        String str = value ? "true" : "false";
-        byte[] utf8 = str.getBytes("UTF-8");
-        return ByteBuffer.allocate(Byte.BYTES + Short.BYTES + utf8.length)
-            .order(ByteOrder.BIG_ENDIAN).put(ATOM_EXT).putShort((short)utf8.length).put(utf8, 0, utf8.length);
+        ByteSink out = new ByteSink(8);
+        write_atom(out, value ? "true" : "false");
+        return ByteBuffer.wrap(out.toByteArray());
     }
     public static ByteBuffer term_to_binary(String str) throws UnsupportedEncodingException {
-        byte[] utf8 = str.getBytes("UTF-8");
-        return ByteBuffer.allocate(Byte.BYTES + Integer.BYTES + utf8.length)
-            .order(ByteOrder.BIG_ENDIAN).put(BINARY_EXT).putInt((int)utf8.length).put(utf8, 0, utf8.length);
+        ByteSink out = new ByteSink(str.length() + 8);
+        write_binary(out, str);
+        return ByteBuffer.wrap(out.toByteArray());
     }
     public static ByteBuffer term_to_binary(Number value) throws UnsupportedEncodingException {
-        if (value.longValue() == value.doubleValue()) {
-            long val = value.longValue();
-            if (0 <= val && val <= 255) {
-                return term_to_binary((byte)val);
-            } else if (-2147483648 <= val && val <= 2147483647) {
-                return term_to_binary((int)val);
+        ByteSink out = new ByteSink(16);
+        write_number(out, value);
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+    public static ByteBuffer term_to_binary(byte val) throws UnsupportedEncodingException {
+        return ByteBuffer.wrap(new byte[] {SMALL_INTEGER_EXT, val});
+    }
+    public static ByteBuffer term_to_binary(int val) throws UnsupportedEncodingException {
+        ByteSink out = new ByteSink(8);
+        out.write(INTEGER_EXT);
+        write_uint32(out, val);
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+    public static ByteBuffer term_to_binary(long val) throws UnsupportedEncodingException {
+        ByteSink out = new ByteSink(16);
+        write_integer(out, val);
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+    public static ByteBuffer term_to_binary(double value) throws UnsupportedEncodingException {
+        ByteSink out = new ByteSink(16);
+        write_float(out, value);
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    private static ByteBuffer encoded(JsonElement value) {
+        ByteSink out = new ByteSink(256);
+        write_term(out, value);
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    private static void write_term(ByteSink out, JsonElement value) {
+        if (value == null || value.isJsonNull()) {
+            write_atom(out, "none");
+        } else if (value.isJsonObject()) {
+            Set<Map.Entry<String, JsonElement>> entries = value.getAsJsonObject().entrySet();
+            if (entries.isEmpty()) {
+                out.write(NIL_EXT);
+                return;
+            }
+            out.write(LIST_EXT);
+            write_uint32(out, entries.size());
+            for (Map.Entry<String, JsonElement> entry : entries) {
+                out.write(SMALL_TUPLE_EXT);
+                out.write(2);
+                write_binary(out, entry.getKey());
+                write_term(out, entry.getValue());
+            }
+            out.write(NIL_EXT);
+        } else if (value.isJsonArray()) {
+            JsonArray arr = value.getAsJsonArray();
+            if (arr.size() == 0) {
+                out.write(NIL_EXT);
+                return;
+            }
+            out.write(LIST_EXT);
+            write_uint32(out, arr.size());
+            for (JsonElement elem : arr) {
+                write_term(out, elem);
+            }
+            out.write(NIL_EXT);
+        } else {
+            JsonPrimitive prim = value.getAsJsonPrimitive();
+            if (prim.isBoolean()) {
+                write_atom(out, prim.getAsBoolean() ? "true" : "false");
+            } else if (prim.isString()) {
+                write_binary(out, prim.getAsString());
+            } else if (prim.isNumber()) {
+                write_number(out, prim.getAsNumber());
             } else {
-                return term_to_binary((byte)val);
+                throw new IllegalArgumentException("unexpected JsonPrimitive value!");
             }
+        }
+    }
+
+    private static void write_atom(ByteSink out, String name) {
+        out.write(ATOM_EXT);
+        out.write(0);
+        out.write(name.length());
+        out.writeAscii(name);
+    }
+
+    private static void write_binary(ByteSink out, String str) {
+        out.write(BINARY_EXT);
+        int start = out.length();
+        write_uint32(out, 0);
+        out.writeUtf8(str);
+        int len = out.length() - start - 4;
+        byte[] buf = out.array();
+        buf[start] = (byte)(len >>> 24);
+        buf[start + 1] = (byte)(len >>> 16);
+        buf[start + 2] = (byte)(len >>> 8);
+        buf[start + 3] = (byte)len;
+    }
+
+    private static void write_number(ByteSink out, Number value) {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            write_integer(out, value.longValue());
+        } else if (value instanceof BigInteger) {
+            write_big(out, (BigInteger)value);
         } else {
-            return term_to_binary(value.doubleValue());
+            // e.g. a number parsed by Gson, integer literals beyond a long become big integers
+            String text = value instanceof Double || value instanceof Float ? null : value.toString();
+            if (text != null && text.indexOf('.') < 0 && text.indexOf('e') < 0 && text.indexOf('E') < 0) {
+                write_big(out, new BigInteger(text));
+            } else {
+                write_double(out, value.doubleValue());
+            }
         }
     }
-    public static ByteBuffer term_to_binary(byte val) throws UnsupportedEncodingException {
-        return ByteBuffer.allocate(Byte.BYTES + Byte.BYTES).order(ByteOrder.BIG_ENDIAN).put(SMALL_INTEGER_EXT).put(val);
+
+    // integral values are written as integers, as the JSON and BSON encodings do
+    private static void write_double(ByteSink out, double d) {
+        if (-0x1p63 <= d && d < 0x1p63 && (long)d == d) {
+            write_integer(out, (long)d);
+        } else {
+            write_float(out, d);
+        }
     }
-    public static ByteBuffer term_to_binary(int val) throws UnsupportedEncodingException {
-        return ByteBuffer.allocate(Byte.BYTES + Integer.BYTES).order(ByteOrder.BIG_ENDIAN).put(INTEGER_EXT).putInt(val);
+
+    private static void write_integer(ByteSink out, long val) {
+        if (0 <= val && val <= 255) {
+            out.write(SMALL_INTEGER_EXT);
+            out.write((int)val);
+        } else if (Integer.MIN_VALUE <= val && val <= Integer.MAX_VALUE) {
+            out.write(INTEGER_EXT);
+            write_uint32(out, (int)val);
+        } else {
+            // the magnitude as an unsigned number, which also holds for Long.MIN_VALUE
+            long magnitude = val < 0 ? -val : val;
+            int n = 8 - Long.numberOfLeadingZeros(magnitude) / 8;
+            out.write(SMALL_BIG_EXT);
+            out.write(n);
+            out.write(val < 0 ? 1 : 0);
+            for (int i = 0; i < n; ++i, magnitude >>>= 8) {
+                out.write((int)(magnitude & 0xff));
+            }
+        }
     }
-    public static ByteBuffer term_to_binary(long val) throws UnsupportedEncodingException {
-        val = Math.abs(val);
-        ByteBuffer big_buf = ByteBuffer.allocate(64);
-        int len = 0;
-        for (len = 0; val > 0; ++len, val >>= 8) {
-            big_buf.put((byte)(val & 0xff));
+
+    private static void write_big(ByteSink out, BigInteger val) {
+        if (val.bitLength() < 64) {
+            write_integer(out, val.longValue());
+            return;
         }
-        ByteBuffer buf = ByteBuffer.allocate(Byte.BYTES +
-            (len < 256 ? Byte.BYTES : Integer.BYTES) + Byte.BYTES + len);
-        buf.order(ByteOrder.BIG_ENDIAN);
-        if (len < 256) {
-            buf.put(SMALL_BIG_EXT).put((byte)len);
+        byte[] magnitude = val.abs().toByteArray();
+        // big-endian two's complement, possibly with a leading zero byte
+        int skip = magnitude[0] == 0 ? 1 : 0, n = magnitude.length - skip;
+        if (n < 256) {
+            out.write(SMALL_BIG_EXT);
+            out.write(n);
         } else {
-            buf.put(LARGE_BIG_EXT).putInt(len);
+            out.write(LARGE_BIG_EXT);
+            write_uint32(out, n);
+        }
+        out.write(val.signum() < 0 ? 1 : 0);
+        for (int i = magnitude.length - 1; i >= skip; --i) {
+            out.write(magnitude[i]);
         }
-        buf.put((byte)((val < 0) ? 1 : 0));
-        buf.put(big_buf.array(), 0, len);
-        return buf;
     }
-    public static ByteBuffer term_to_binary(double value) throws UnsupportedEncodingException {
-        String str = String.format("%.20e", value);
-        byte[] utf8 = str.getBytes("UTF-8");
-        ByteBuffer buf = ByteBuffer.allocate(Byte.BYTES + 31).order(ByteOrder.BIG_ENDIAN).put(FLOAT_EXT).put(utf8, 0, utf8.length);
-        for (int i = 0; i < 31 - utf8.length; ++i) {
-            buf.put((byte)0);
+
+    private static void write_float(ByteSink out, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("Erlang floats are finite: " + value);
+        }
+        long bits = Double.doubleToLongBits(value);
+        out.write(NEW_FLOAT_EXT);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int)(bits >>> shift));
         }
-        return buf;
+    }
+
+    private static void write_uint32(ByteSink out, int val) {
+        out.write(val >>> 24);
+        out.write(val >>> 16);
+        out.write(val >>> 8);
+        out.write(val);
     }
 
     public static ByteBuffer concat(ByteBuffer buf1, ByteBuffer buf2) {
@@ -190,21 +293,11 @@ public class ErlangTermToBinWrp
     }
 
     public static ByteBuffer compress(byte[] data, int compression_level) throws IOException {
-        Deflater deflater = new Deflater(compression_level);
-        deflater.setInput(data);
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length);
-        deflater.finish();
-        byte[] buffer = new byte[102400];
-        while (!deflater.finished()) {
-            int count = deflater.deflate(buffer);
-            outputStream.write(buffer, 0, count);
-        }
-        outputStream.close();
-        byte[] output = outputStream.toByteArray();
-        ByteBuffer result = ByteBuffer.allocate(output.length);
-        result.put(output, 0, output.length);
-        result.flip();
-        return result;
+        return compress(data, 0, data.length, compression_level);
+    }
+
+    public static ByteBuffer compress(byte[] data, int offset, int length, int compression_level) throws IOException {
+        return ByteBuffer.wrap(DeflaterPool.SHARED.deflate(data, offset, length, compression_level));
     }
 
 }
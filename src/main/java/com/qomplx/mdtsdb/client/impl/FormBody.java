@@ -0,0 +1,216 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package com.qomplx.mdtsdb.client.impl;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A form body, "name=value&...", whose one large value is URL-encoded from a stream.
+ *
+ * <p>
+ *   The value is encoded byte by byte as URLEncoder encodes UTF-8 text, so a document
+ *   is never held in memory, neither as bytes nor as a string. The body is opened once
+ *   to compute its digest and once more to send it.
+ * </p>
+ */
+final class FormBody implements CommunicationLayer.StreamedBody
+{
+    private static final int BUFFER_SIZE = 65536;
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+    private static final boolean[] SAFE = new boolean[256];
+
+    static
+    {
+        for(int c = 'a'; c <= 'z'; ++c)
+            SAFE[c] = true;
+        for(int c = 'A'; c <= 'Z'; ++c)
+            SAFE[c] = true;
+        for(int c = '0'; c <= '9'; ++c)
+            SAFE[c] = true;
+        SAFE['-'] = SAFE['_'] = SAFE['.'] = SAFE['*'] = true;
+    }
+
+    /**
+     * Opens the raw bytes of the value.
+     */
+    @FunctionalInterface
+    interface Source
+    {
+        InputStream open() throws IOException;
+    }
+
+    private final byte[] head;
+    private final Source value;
+    private final byte[] tail;
+
+    /**
+     * @param head the encoded fields before the value, up to and including "name="
+     * @param value the value, URL-encoded as it is read
+     * @param tail the encoded fields after the value, starting with "&"
+     */
+    FormBody(String head, Source value, String tail)
+    {
+        this.head = head.getBytes(StandardCharsets.US_ASCII);
+        this.value = value;
+        this.tail = tail.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * A form whose value is a KML document read from a file, or from the first .kml entry
+     * of a KMZ archive, which is inflated as it is read.
+     */
+    static FormBody ofKmlFile(Path path, String head, String tail)
+    {
+        return new FormBody(head, () -> openKml(path), tail);
+    }
+
+    @Override
+    public InputStream open() throws IOException
+    {
+        return new SequenceInputStream(new ByteArrayInputStream(head),
+                                       new SequenceInputStream(new Encoder(value.open()), new ByteArrayInputStream(tail)));
+    }
+
+    /**
+     * Appends data[offset, offset + length) URL-encoded to out.
+     */
+    static void encode(byte[] data, int offset, int length, ByteSink out)
+    {
+        for(int i = offset; i < offset + length; ++i)
+            encode(data[i] & 0xff, out);
+    }
+
+    private static void encode(int b, ByteSink out)
+    {
+        if(SAFE[b])
+            out.write(b);
+        else if(b == ' ')
+            out.write('+');
+        else
+        {
+            out.write('%');
+            out.write(HEX[b >>> 4]);
+            out.write(HEX[b & 0xf]);
+        }
+    }
+
+    private static InputStream openKml(Path path) throws IOException
+    {
+        if(!isZip(path))
+            return new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE);
+
+        ZipFile zip = new ZipFile(path.toFile());
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while(entries.hasMoreElements())
+            {
+                ZipEntry entry = entries.nextElement();
+                if(!entry.isDirectory() && entry.getName().toLowerCase().endsWith(".kml"))
+                {
+                    // closing the entry stream closes the archive
+                    return new FilterInputStream(new BufferedInputStream(zip.getInputStream(entry), BUFFER_SIZE))
+                    {
+                        @Override
+                        public void close() throws IOException
+                        {
+                            try {
+                                super.close();
+                            }
+                            finally
+                            {
+                                zip.close();
+                            }
+                        }
+                    };
+                }
+            }
+        }
+        catch(IOException | RuntimeException e)
+        {
+            zip.close();
+            throw e;
+        }
+        zip.close();
+        throw new FileNotFoundException("no KML document in " + path);
+    }
+
+    private static boolean isZip(Path path) throws IOException
+    {
+        try(InputStream in = Files.newInputStream(path))
+        {
+            byte[] magic = new byte[4];
+            return in.readNBytes(magic, 0, 4) == 4 && magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3 && magic[3] == 4;
+        }
+    }
+
+    /**
+     * URL-encodes a stream as it is read.
+     */
+    private static final class Encoder extends InputStream
+    {
+        private final InputStream in;
+        private final byte[] raw = new byte[BUFFER_SIZE / 4];
+        private final ByteSink encoded = new ByteSink(BUFFER_SIZE);
+        private int position = 0;
+        private boolean eof = false;
+
+        Encoder(InputStream in)
+        {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            if(!fill())
+                return -1;
+            return encoded.array()[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if(len == 0)
+                return 0;
+            if(!fill())
+                return -1;
+            int n = Math.min(len, encoded.length() - position);
+            System.arraycopy(encoded.array(), position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            in.close();
+        }
+
+        // encodes the next block of the stream once the last one is read, false at its end
+        private boolean fill() throws IOException
+        {
+            while(position == encoded.length())
+            {
+                if(eof)
+                    return false;
+                int n = in.read(raw, 0, raw.length);
+                if(n < 0)
+                {
+                    eof = true;
+                    return false;
+                }
+                encoded.reset();
+                position = 0;
+                encode(raw, 0, n, encoded);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package com.qomplx.mdtsdb.client.impl;
+
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * Thread-safe source of the HTTP Date header value.
+ *
+ * <p>
+ *   The header has a resolution of one second, so the formatted value is cached and
+ *   formatted again only when the second changes.
+ * </p>
+ */
+final class HttpDate
+{
+    private static final DateTimeFormatter FORMAT =
+        DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    private static volatile Stamp current = new Stamp(Long.MIN_VALUE, "");
+
+    private HttpDate()
+    {
+    }
+
+    /**
+     * @return the current time formatted for the Date header
+     */
+    static String now()
+    {
+        long second = System.currentTimeMillis() / 1000L;
+        Stamp stamp = current;
+        if(stamp.second != second)
+        {
+            // racing threads format the same second, whichever wins is correct
+            stamp = new Stamp(second, FORMAT.format(Instant.ofEpochSecond(second)));
+            current = stamp;
+        }
+        return stamp.value;
+    }
+
+    private static final class Stamp
+    {
+        final long second;
+        final String value;
+
+        Stamp(long second, String value)
+        {
+            this.second = second;
+            this.value = value;
+        }
+    }
+}
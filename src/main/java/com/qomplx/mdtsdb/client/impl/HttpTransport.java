@@ -0,0 +1,446 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package com.qomplx.mdtsdb.client.impl;
+
+import java.io.*;
+import java.net.URI;
+import java.net.http.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Long-lived HTTP transport shared by a client and all clients derived from it.
+ *
+ * <p>
+ *   Holds a single HttpClient, so that keep-alive connections are reused between
+ *   requests, and a bounded number of request permits, so that at most "pool_size"
+ *   requests (and thus connections) are outstanding at once. Asynchronous requests
+ *   queue for a permit without blocking a thread. Idle connections are closed by the
+ *   HttpClient itself after the keep-alive timeout of the JVM, which is set with the
+ *   system property "jdk.httpclient.keepalive.timeout" (in seconds).
+ * </p>
+ *
+ * <p>
+ *   With "http_version" set to HTTP_2 concurrent requests are multiplexed as streams
+ *   over a few connections. If the server answers with HTTP/1.1 (no ALPN/h2c support),
+ *   the transport pins HTTP/1.1 for all further requests, so that it stops offering
+ *   the upgrade on every new connection.
+ * </p>
+ *
+ * <p>
+ *   Requests to an end-point pass its CircuitBreaker, which fails them at once while the
+ *   end-point is unhealthy, unless "circuit_breaker" is false.
+ * </p>
+ *
+ * <p>
+ *   The transport is reference counted: every client that uses it holds a reference,
+ *   and the executor is shut down when the last reference is closed.
+ * </p>
+ */
+public class HttpTransport implements Closeable
+{
+    public static final int DEFAULT_POOL_SIZE = 16;
+    public static final long DEFAULT_CONNECT_TIMEOUT_MS = 10000L;
+
+    private static HttpTransport defaultTransport = null;
+
+    private final int poolSize;
+    private final long connectTimeoutMs;
+    private final HttpClient.Version version;
+    // circuit breakers by end-point, null if they are turned off
+    private final ConcurrentHashMap<String, CircuitBreaker> breakers;
+    private final Properties breakerOptions;
+
+    private final ExecutorService httpExecutor;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    // request permits, handed over in FIFO order to blocked and asynchronous callers alike
+    private int availablePermits;
+    private final ArrayDeque<CompletableFuture<Void>> permitWaiters = new ArrayDeque<>();
+
+    private volatile HttpClient httpClient;
+    private volatile boolean closed = false;
+    private volatile HttpClient.Version negotiatedVersion = null;
+
+    public HttpTransport(int poolSize, long connectTimeoutMs)
+    {
+        this(poolSize, connectTimeoutMs, HttpClient.Version.HTTP_1_1);
+    }
+
+    public HttpTransport(int poolSize, long connectTimeoutMs, HttpClient.Version version)
+    {
+        this(poolSize, connectTimeoutMs, version, new Properties());
+    }
+
+    /**
+     * @param breakerOptions "circuit_breaker" and the options of CircuitBreaker
+     */
+    public HttpTransport(int poolSize, long connectTimeoutMs, HttpClient.Version version, Properties breakerOptions)
+    {
+        if(poolSize <= 0)
+            throw new IllegalArgumentException("pool size must be positive");
+
+        this.poolSize = poolSize;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.version = version;
+        this.availablePermits = poolSize;
+        this.breakerOptions = breakerOptions;
+        this.breakers = Boolean.parseBoolean(breakerOptions.getProperty("circuit_breaker", "true"))
+            ? new ConcurrentHashMap<>() : null;
+
+        AtomicInteger threadNo = new AtomicInteger();
+        this.httpExecutor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "mdtsdb-http-" + threadNo.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.httpClient = newHttpClient();
+    }
+
+    /**
+     * Creates a transport configured by the client options.
+     *
+     * <p>
+     *   Recognized options are "pool_size" (maximum number of concurrent requests),
+     *   "connect_timeout_ms", "http_version" (either HTTP_1_1, the default, or HTTP_2),
+     *   "circuit_breaker" (true to fail requests to unhealthy end-points fast, the default)
+     *   and the "breaker_*" options of CircuitBreaker.
+     * </p>
+     *
+     * @param options client options
+     */
+    public static HttpTransport fromOptions(Properties options)
+    {
+        int poolSize = Integer.parseInt(options.getProperty("pool_size", String.valueOf(DEFAULT_POOL_SIZE)));
+        long connectTimeoutMs = Long.parseLong(options.getProperty("connect_timeout_ms", String.valueOf(DEFAULT_CONNECT_TIMEOUT_MS)));
+        HttpClient.Version version = parseVersion(options.getProperty("http_version", "HTTP_1_1"));
+        return new HttpTransport(poolSize, connectTimeoutMs, version, options);
+    }
+
+    static HttpClient.Version parseVersion(String version)
+    {
+        String v = version.trim().toUpperCase(Locale.ROOT);
+        if(v.equals("HTTP_2") || v.equals("HTTP/2") || v.equals("2"))
+            return HttpClient.Version.HTTP_2;
+        if(v.equals("HTTP_1_1") || v.equals("HTTP/1.1") || v.equals("1.1"))
+            return HttpClient.Version.HTTP_1_1;
+        throw new IllegalArgumentException("unsupported http version: " + version);
+    }
+
+    /**
+     * @return the process-wide transport used by communication layers created without a transport
+     */
+    public static synchronized HttpTransport getDefault()
+    {
+        if(defaultTransport == null)
+            defaultTransport = fromOptions(new Properties());
+        return defaultTransport;
+    }
+
+    /**
+     * Acquires one more reference to the transport.
+     *
+     * @return this transport
+     */
+    public HttpTransport retain()
+    {
+        int n;
+        do {
+            n = refCount.get();
+            if(n <= 0)
+                throw new IllegalStateException("transport is closed");
+        } while(!refCount.compareAndSet(n, n + 1));
+        return this;
+    }
+
+    /**
+     * Releases a reference to the transport, shutting it down when no references remain.
+     */
+    @Override
+    public void close()
+    {
+        if(refCount.decrementAndGet() == 0)
+        {
+            closed = true;
+            httpClient = null;
+            httpExecutor.shutdownNow();
+        }
+    }
+
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+    public int getPoolSize()
+    {
+        return poolSize;
+    }
+
+    /**
+     * @return the configured protocol version
+     */
+    public HttpClient.Version getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * @return the protocol version the server answered with, or null before the first response
+     */
+    public HttpClient.Version getNegotiatedVersion()
+    {
+        return negotiatedVersion;
+    }
+
+    /**
+     * @return the protocol version to request, which is HTTP/1.1 after a fallback from HTTP/2
+     */
+    public HttpClient.Version getRequestVersion()
+    {
+        HttpClient.Version v = negotiatedVersion;
+        return v == null ? version : v;
+    }
+
+    /**
+     * @return the executor of the transport, which also runs completions of asynchronous requests
+     */
+    public Executor getExecutor()
+    {
+        return httpExecutor;
+    }
+
+    /**
+     * @param uri a URI of the end-point
+     * @return the circuit breaker of the end-point, or null if circuit breakers are turned off
+     */
+    public CircuitBreaker getCircuitBreaker(URI uri)
+    {
+        if(breakers == null)
+            return null;
+        String endpoint = uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+        CircuitBreaker breaker = breakers.get(endpoint);
+        if(breaker == null)
+            breaker = breakers.computeIfAbsent(endpoint, e -> CircuitBreaker.fromOptions(e, httpExecutor, breakerOptions));
+        return breaker;
+    }
+
+    /**
+     * Sends a request, waiting for a free request permit if the pool is exhausted.
+     *
+     * <p>
+     *   The permit is held until the response body is closed, so the caller has to close it.
+     * </p>
+     *
+     * @param request the request to send
+     * @return the response with the body as input stream
+     * @throws CircuitBreaker.OpenException at once while the breaker of the end-point is open
+     */
+    public HttpResponse<InputStream> send(HttpRequest request) throws IOException, InterruptedException
+    {
+        // rejected before a permit is waited for, so that callers do not pile up
+        CircuitBreaker breaker = getCircuitBreaker(request.uri());
+        boolean trial = breaker != null && breaker.acquire();
+        boolean recorded = false;
+        try {
+            acquirePermit();
+            // the connection is busy until the body is read, so the permit is held until it is closed
+            AtomicBoolean held = new AtomicBoolean(true);
+            Runnable release = () -> {
+                if(held.compareAndSet(true, false))
+                    releasePermit();
+            };
+            long start = System.nanoTime();
+            try {
+                HttpResponse<InputStream> response = client().send(request, info -> HttpResponse.BodySubscribers.mapping(
+                    HttpResponse.BodySubscribers.ofInputStream(), body -> new PermitInputStream(body, release)));
+                negotiatedVersion = response.version();
+                if(breaker != null)
+                    breaker.record(trial, response.statusCode() >= 500, System.nanoTime() - start);
+                recorded = true;
+                return response;
+            }
+            catch(IOException e)
+            {
+                release.run();
+                if(breaker != null)
+                    breaker.record(trial, true, System.nanoTime() - start);
+                recorded = true;
+                throw e;
+            }
+            catch(InterruptedException | RuntimeException e)
+            {
+                release.run();
+                throw e;
+            }
+        }
+        finally
+        {
+            if(breaker != null && !recorded)
+                breaker.cancel(trial);
+        }
+    }
+
+    /**
+     * Sends a request without blocking, queueing it until a request permit is free.
+     *
+     * <p>
+     *   The response body is received completely before the returned future completes,
+     *   so no thread is held while the response is in flight.
+     * </p>
+     *
+     * @param request the request to send
+     * @return the future response with the body as byte array, which fails with
+     *         CircuitBreaker.OpenException at once while the breaker of the end-point is open
+     */
+    public CompletableFuture<HttpResponse<byte[]>> sendAsync(HttpRequest request)
+    {
+        CircuitBreaker breaker = getCircuitBreaker(request.uri());
+        boolean trial;
+        try {
+            trial = breaker != null && breaker.acquire();
+        }
+        catch(CircuitBreaker.OpenException e)
+        {
+            CompletableFuture<HttpResponse<byte[]>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        // the time of a body streamed by the caller is not the latency of the end-point
+        boolean timed = request.bodyPublisher().map(body -> body.contentLength() >= 0).orElse(true);
+        AtomicBoolean sent = new AtomicBoolean();
+
+        return acquirePermitAsync().thenCompose(ignored -> {
+            CompletableFuture<HttpResponse<byte[]>> response;
+            long start = System.nanoTime();
+            try {
+                response = client().sendAsync(request, HttpResponse.BodyHandlers.ofByteArray());
+            }
+            catch(RuntimeException e)
+            {
+                releasePermit();
+                throw e;
+            }
+            return response.whenComplete((r, e) -> {
+                if(r != null)
+                    negotiatedVersion = r.version();
+                releasePermit();
+                sent.set(true);
+                if(breaker == null)
+                    return;
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                if(r != null || cause instanceof IOException)
+                    breaker.record(trial, r == null || r.statusCode() >= 500, timed ? System.nanoTime() - start : 0);
+                else
+                    breaker.cancel(trial);
+            });
+        }).whenComplete((r, e) -> {
+            // failed before it was sent, e.g. the transport is closed
+            if(breaker != null && !sent.get())
+                breaker.cancel(trial);
+        });
+    }
+
+    /**
+     * A response body that returns the request permit when it is closed.
+     */
+    private static final class PermitInputStream extends FilterInputStream
+    {
+        private final Runnable release;
+
+        PermitInputStream(InputStream body, Runnable release)
+        {
+            super(body);
+            this.release = release;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            try {
+                super.close();
+            }
+            finally
+            {
+                release.run();
+            }
+        }
+    }
+
+    private CompletableFuture<Void> acquirePermitAsync()
+    {
+        synchronized(permitWaiters)
+        {
+            if(availablePermits > 0)
+            {
+                --availablePermits;
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> waiter = new CompletableFuture<>();
+            permitWaiters.add(waiter);
+            return waiter;
+        }
+    }
+
+    private void acquirePermit() throws InterruptedException
+    {
+        CompletableFuture<Void> waiter = acquirePermitAsync();
+        try {
+            waiter.get();
+        }
+        catch(InterruptedException e)
+        {
+            // a permit that was granted concurrently must not be lost
+            if(!waiter.cancel(false))
+                releasePermit();
+            throw e;
+        }
+        catch(ExecutionException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void releasePermit()
+    {
+        while(true)
+        {
+            CompletableFuture<Void> next;
+            synchronized(permitWaiters)
+            {
+                next = permitWaiters.poll();
+                if(next == null)
+                {
+                    ++availablePermits;
+                    return;
+                }
+            }
+            // hand the permit over, skipping waiters that gave up
+            if(next.complete(null))
+                return;
+        }
+    }
+
+    private HttpClient client()
+    {
+        HttpClient c = httpClient;
+        if(closed || c == null)
+            throw new IllegalStateException("transport is closed");
+        return c;
+    }
+
+    private HttpClient newHttpClient()
+    {
+        HttpClient.Builder builder = HttpClient.newBuilder()
+            .followRedirects(HttpClient.Redirect.ALWAYS)
+            .version(version)
+            .executor(httpExecutor);
+        if(connectTimeoutMs > 0)
+            builder = builder.connectTimeout(Duration.ofMillis(connectTimeoutMs));
+        return builder.build();
+    }
+}
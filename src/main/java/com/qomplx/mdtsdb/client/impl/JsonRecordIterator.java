@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package com.qomplx.mdtsdb.client.impl;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Iterates over the records of a JSON sequence response as they arrive.
+ *
+ * <p>
+ *   Each record is parsed when it is requested, so only one record is held in memory
+ *   at a time. The response body is closed when the last record has been read, when
+ *   parsing fails, or when the iterator is closed early.
+ * </p>
+ */
+class JsonRecordIterator implements Iterator<JsonObject>, Closeable
+{
+    private final JsonReader reader;
+    private final JsonParser parser = new JsonParser();
+
+    private JsonObject next = null;
+    private boolean closed = false;
+
+    JsonRecordIterator(InputStream body)
+    {
+        this.reader = new JsonReader(new RecordSeparatorReader(new InputStreamReader(body, StandardCharsets.UTF_8)));
+        this.reader.setLenient(true);
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        if(next != null)
+            return true;
+        if(closed)
+            return false;
+
+        try {
+            if(reader.peek() == JsonToken.END_DOCUMENT)
+            {
+                close();
+                return false;
+            }
+            next = parser.parse(reader).getAsJsonObject();
+            return true;
+        }
+        catch(IOException e)
+        {
+            close();
+            throw new UncheckedIOException(e);
+        }
+        catch(RuntimeException e)
+        {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public JsonObject next()
+    {
+        if(!hasNext())
+            throw new NoSuchElementException();
+        JsonObject record = next;
+        next = null;
+        return record;
+    }
+
+    /**
+     * @return the next record without consuming it, or null at the end of the sequence
+     */
+    JsonObject peek()
+    {
+        return hasNext() ? next : null;
+    }
+
+    /**
+     * @return a sequential stream over the remaining records, which closes the response body when closed
+     */
+    Stream<JsonObject> stream()
+    {
+        Spliterator<JsonObject> records = Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL);
+        return StreamSupport.stream(records, false).onClose(this::close);
+    }
+
+    @Override
+    public void close()
+    {
+        if(closed)
+            return;
+        closed = true;
+        next = null;
+        try {
+            reader.close();
+        }
+        catch(IOException e)
+        {
+            // nothing left to release
+        }
+    }
+}
@@ -8,6 +8,9 @@ import java.io.*;
 import java.net.*;
 import java.net.http.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.zip.Deflater;
 import java.util.*;
 import java.nio.file.*;
 import java.nio.charset.*;
@@ -15,7 +18,12 @@ import java.security.MessageDigest;
 import java.util.stream.Collectors;
 import java.util.Base64;
 
+import com.qomplx.mdtsdb.client.api.CircuitState;
+import com.qomplx.mdtsdb.client.api.InsertStream;
 import com.qomplx.mdtsdb.client.api.MdtsdbException;
+import com.qomplx.mdtsdb.client.api.MdtsdbServerException;
+import com.qomplx.mdtsdb.client.api.PointBatch;
+import com.qomplx.mdtsdb.client.api.RetryPolicy;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -26,13 +34,12 @@ import com.google.gson.JsonPrimitive;
 import com.google.gson.JsonParser;
 import com.google.gson.stream.JsonReader;
 import static com.google.common.base.Preconditions.checkArgument;
-import com.google.common.io.CharStreams;
 
 import org.bson.BsonWriter;
 import org.bson.BsonBinaryWriter;
 import org.bson.io.BasicOutputBuffer;
 
-public class MdtsdbClientImpl
+public class MdtsdbClientImpl implements Closeable
 {
     public enum MdtsdbScheme {
         UNDEFINED(""),
@@ -59,21 +66,27 @@ public class MdtsdbClientImpl
         "newAdminKey", "assureAdminKey", "deleteAdminKey");
     static final List<String> CommonDataMethods = Arrays.asList("setData", "ping");
 
-    private String tsAdmKey = null;
-    private String tsAppKey = null;
-    private String tsSecretKey = null;
-    private String tsAccessToken = null;
-    private String tsAccessTokenType = null;
-    private String tsAuthUrl = null;
-    private String tsAuthClientId = null;
-    private String tsAuthClientSecret = null;
-
+    private final String tsAppKey;
     private String tsEndpoint = "127.0.0.1";
     private int tsPort = 8080;
-    private String tsPath = "";
     Properties options = new Properties();
 
-    private boolean isDebug = false;
+    private final HttpTransport transport;
+    // the reference to the shared transport is released once, however often close() is called
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final BufferPool buffers;
+    private final DeflaterPool deflaters;
+    private final AdaptiveEncoding adaptive;
+    private final ParallelEncoding parallel;
+    private final RequestSizeLimit requestSize;
+    private final RetryEngine retries;
+    // the breaker of the end-point, null if circuit breakers are turned off, and its probe
+    private final CircuitBreaker breaker;
+    private final Supplier<CompletableFuture<?>> probe = this::probeEndpoint;
+
+    // the admin key, secret key and access token live in the route table and are replaced together with it
+    private volatile RouteTable routes;
+    private final TokenManager tokens;
 
     /**
      * Creates a Mdtsdb client with a custom end-point.
@@ -81,12 +94,7 @@ public class MdtsdbClientImpl
      */
     public MdtsdbClientImpl(String tsEndpoint, int tsPort, String tsAppKey, String tsAdmKey, String tsSecretKey, Properties options)
     {
-        this.tsAdmKey = tsAdmKey;
-        this.tsAppKey = tsAppKey;
-        this.tsSecretKey = tsSecretKey;
-        this.tsEndpoint = tsEndpoint;
-        this.tsPort = tsPort;
-        this.options = options;
+        this(tsEndpoint, tsPort, tsAppKey, tsAdmKey, tsSecretKey, options, HttpTransport.fromOptions(options));
     }
 
     /**
@@ -95,95 +103,97 @@ public class MdtsdbClientImpl
      */
     public MdtsdbClientImpl(String tsAppKey, String tsAdmKey, String tsSecretKey, Properties options)
     {
-        this.tsAdmKey = tsAdmKey;
         this.tsAppKey = tsAppKey;
-        this.tsSecretKey = tsSecretKey;
         this.options = options;
+        this.transport = HttpTransport.fromOptions(options);
+        this.buffers = BufferPool.fromOptions(options);
+        this.deflaters = DeflaterPool.fromOptions(options);
+        this.adaptive = "adaptive".equals(options.getProperty("compression")) ? AdaptiveEncoding.fromOptions(options) : null;
+        this.parallel = ParallelEncoding.fromOptions(options);
+        this.requestSize = RequestSizeLimit.fromOptions(options);
+        this.retries = RetryEngine.fromOptions(options);
+        this.tokens = TokenManager.fromOptions(this.transport, this::setAccessToken, options);
+        this.routes = newRouteTable(tsAdmKey, tsSecretKey);
+        this.breaker = this.transport.getCircuitBreaker(URI.create(String.format("%s://%s:%d/", getUseSSL() ? "https" : "http",
+                                                                                 tsEndpoint, tsPort)));
+        if (this.breaker != null)
+            this.breaker.addProbe(this.probe);
+    }
+
+    /**
+     * Creates a Mdtsdb client with a custom end-point, which uses the given transport.
+     *
+     * <p>
+     *   The client takes over the passed transport reference and releases it on close().
+     * </p>
+     */
+    MdtsdbClientImpl(String tsEndpoint, int tsPort, String tsAppKey, String tsAdmKey, String tsSecretKey, Properties options,
+                     HttpTransport transport)
+    {
+        this.tsAppKey = tsAppKey;
+        this.tsEndpoint = tsEndpoint;
+        this.tsPort = tsPort;
+        this.options = options;
+        this.transport = transport;
+        this.buffers = BufferPool.fromOptions(options);
+        this.deflaters = DeflaterPool.fromOptions(options);
+        this.adaptive = "adaptive".equals(options.getProperty("compression")) ? AdaptiveEncoding.fromOptions(options) : null;
+        this.parallel = ParallelEncoding.fromOptions(options);
+        this.requestSize = RequestSizeLimit.fromOptions(options);
+        this.retries = RetryEngine.fromOptions(options);
+        this.tokens = TokenManager.fromOptions(this.transport, this::setAccessToken, options);
+        this.routes = newRouteTable(tsAdmKey, tsSecretKey);
+        this.breaker = this.transport.getCircuitBreaker(URI.create(String.format("%s://%s:%d/", getUseSSL() ? "https" : "http",
+                                                                                 tsEndpoint, tsPort)));
+        if (this.breaker != null)
+            this.breaker.addProbe(this.probe);
+    }
+
+    /**
+     * Releases the client's reference to the HTTP transport and its pooled deflaters.
+     *
+     * <p>
+     *   The transport (and its pooled connections) is shared with all clients created by
+     *   newClient()/newAdmClient(), and is shut down when the last of them is closed.
+     *   Closing a client more than once has no further effect.
+     * </p>
+     */
+    @Override
+    public void close()
+    {
+        if (!this.closed.compareAndSet(false, true))
+            return;
+        if (this.breaker != null)
+            this.breaker.removeProbe(this.probe);
+        this.tokens.close();
+        this.deflaters.close();
+        this.parallel.close();
+        this.transport.close();
     }
 
     /**
      * Set keycloak access token credentials
+     *
+     * <p>
+     *   The access token is then refreshed ahead of its expiry, see "token_refresh_margin_ms".
+     * </p>
      */
     public void setAccessCredentials(String authUrl, String clientId, String clientSecret) throws MdtsdbException
     {
-        this.tsAuthUrl = authUrl;
-        this.tsAuthClientId = clientId;
-        this.tsAuthClientSecret = clientSecret;
+        this.tokens.setCredentials(authUrl, clientId, clientSecret);
         reloadAccessToken();
     }
 
     /**
      * Reload keycloak access token
+     *
+     * <p>
+     *   Joins the reload that is running, if any, instead of starting another one.
+     * </p>
      */
     public void reloadAccessToken() throws MdtsdbException
     {
-        ExecutorService httpExecutor = null;
-        HttpClient httpClient = null;
-
-        try {
-            if (this.tsAuthUrl == null)
-                throw new IllegalArgumentException("invalid auth url.");
-            if (this.tsAuthClientId == null)
-                throw new IllegalArgumentException("invalid client id.");
-            if (this.tsAuthClientSecret == null)
-                throw new IllegalArgumentException("invalid client secret.");
-
-            String postData = String.format("client_id=%s&client_secret=%s&grant_type=client_credentials",
-                                            this.tsAuthClientId, this.tsAuthClientSecret);
-            HttpRequest request = HttpRequest.newBuilder()
-                .uri(new URI(this.tsAuthUrl))
-                .headers("Content-Type", "application/x-www-form-urlencoded")
-                .headers("Cache-Control", "no-cache, no-store, must-revalidate")
-                .headers("Pragma", "no-cache")
-                .headers("Expires", "0")
-                .POST(HttpRequest.BodyPublishers.ofString(postData))
-                .build();
-
-            httpExecutor = Executors.newSingleThreadExecutor();
-            httpClient = HttpClient
-                .newBuilder()
-                .followRedirects(HttpClient.Redirect.ALWAYS)
-                .executor(httpExecutor)
-                .build();
-
-            HttpResponse<String> response = httpClient
-                .send(request, HttpResponse.BodyHandlers.ofString());
-
-            int responseCode = response.statusCode();
-            if (responseCode == 200) {
-                String responseData = response.body();
-                // parse reponse
-                JsonElement el = new JsonParser().parse(responseData);
-                if (el == null)
-                    throw new IllegalArgumentException("invalid auth server response: " + responseData);
-                JsonObject obj = el.getAsJsonObject();
-                JsonElement accessToken = obj.get("access_token");
-                JsonElement tokenType = obj.get("token_type");
-                if (accessToken == null)
-                    throw new IllegalArgumentException("undefined access token");
-                if (tokenType == null)
-                    tokenType = new JsonPrimitive("Bearer");
-                // set access token
-                setAccessToken(accessToken.getAsString(), tokenType.getAsString());
-            } else {
-                throw new IllegalArgumentException("invalid auth server response: " + responseCode);
-            }
-        }
-        catch(Exception e)
-        {
-            throw new MdtsdbException(e);
-        }
-        finally
-        {
-            if(httpExecutor != null)
-            {
-                httpExecutor.shutdownNow();
-            }
-            if(httpClient != null)
-            {
-                httpClient = null;
-            }
-        }
+        this.tokens.refreshNow(null);
     }
 
     /**
@@ -203,9 +213,8 @@ public class MdtsdbClientImpl
             String[] parts = accessToken.split("\\.");
             if (parts.length < 3)
                 throw new IllegalArgumentException("invalid access token.");
-            String accessTokenStr = new String(Base64.getDecoder().decode(parts[1]));
-            if (accessTokenStr == null)
-                throw new IllegalArgumentException("invalid access token.");
+            // the payload of a JWT is base64url encoded, usually without padding
+            String accessTokenStr = new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8);
             JsonElement el = new JsonParser().parse(accessTokenStr);
             if (el == null)
                 throw new IllegalArgumentException("invalid access token.");
@@ -213,13 +222,11 @@ public class MdtsdbClientImpl
             JsonElement mdtsdb_admin_key = obj.get("clientId");
             if (mdtsdb_admin_key == null)
                 throw new IllegalArgumentException("unexpected access token: 'clientId' should be specified.");
-            if (mdtsdb_admin_key == null)
-                this.tsAdmKey = null;
-            else
-                this.tsAdmKey = mdtsdb_admin_key.getAsString();
-            this.tsSecretKey = "";
-            this.tsAccessToken = accessToken;
-            this.tsAccessTokenType = accessTokenType;
+            String admKey = mdtsdb_admin_key.getAsString();
+            synchronized (this) {
+                this.routes = this.routes.withAccessToken(admKey, accessToken, accessTokenType);
+            }
+            this.tokens.tokenChanged(accessToken, jwtTime(obj, "exp"), jwtTime(obj, "iat"));
         }
         catch(Exception e)
         {
@@ -227,12 +234,21 @@ public class MdtsdbClientImpl
         }
     }
 
+    // a NumericDate claim of a JWT in milliseconds, 0 if it is missing
+    private static long jwtTime(JsonObject claims, String name)
+    {
+        JsonElement time = claims.get(name);
+        if (time == null || !time.isJsonPrimitive() || !time.getAsJsonPrimitive().isNumber())
+            return 0;
+        return (long) (time.getAsDouble() * 1000);
+    }
+
     /**
      * @return the access token
      */
     public String getAccessToken()
     {
-        return tsAccessToken;
+        return this.routes.accessToken();
     }
 
     /**
@@ -240,16 +256,16 @@ public class MdtsdbClientImpl
      */
     public String getAccessTokenType()
     {
-        return tsAccessTokenType;
+        return this.routes.accessTokenType();
     }
 
     /**
      * Enables Debug output.
      *
      */
-    public void enableDebugOutput()
+    public synchronized void enableDebugOutput()
     {
-        isDebug = true;
+        this.routes = this.routes.withDebugOutput();
     }
 
     /**
@@ -257,7 +273,7 @@ public class MdtsdbClientImpl
      */
     public String getAdmKey()
     {
-        return tsAdmKey;
+        return this.routes.admKey();
     }
 
     /**
@@ -273,7 +289,7 @@ public class MdtsdbClientImpl
      */
     public String getSecretKey()
     {
-        return tsSecretKey;
+        return this.routes.secretKey();
     }
 
     /**
@@ -284,8 +300,13 @@ public class MdtsdbClientImpl
         return Boolean.parseBoolean(useSSL);
     }
 
+    /**
+     * @deprecated the path depends on the API method of a request, see CommunicationLayer#getPath();
+     *             always returns an empty string
+     */
+    @Deprecated
     public String getPath() {
-        return tsPath;
+        return "";
     }
 
     //////////////
@@ -300,7 +321,7 @@ public class MdtsdbClientImpl
     public MdtsdbClientImpl newAdmClient(String admKey, String secretKey)
     {
         checkArgument(!admKey.isEmpty() && !secretKey.isEmpty(), "Expect valid API keys");
-        return new MdtsdbClientImpl(this.tsEndpoint, this.tsPort, "", admKey, secretKey, this.options);
+        return new MdtsdbClientImpl(this.tsEndpoint, this.tsPort, "", admKey, secretKey, this.options, this.transport.retain());
     }
 
     /**
@@ -312,7 +333,7 @@ public class MdtsdbClientImpl
     public MdtsdbClientImpl newClient(String appKey, String secretKey)
     {
         checkArgument(!appKey.isEmpty() && !secretKey.isEmpty(), "Expect valid API keys");
-        return new MdtsdbClientImpl(this.tsEndpoint, this.tsPort, appKey, "", secretKey, this.options);
+        return new MdtsdbClientImpl(this.tsEndpoint, this.tsPort, appKey, "", secretKey, this.options, this.transport.retain());
     }
 
     ///////////
@@ -357,13 +378,272 @@ public class MdtsdbClientImpl
     }
 
     /**
+     * Sends an array of points.
+     *
+     * <p>
+     *   Arrays of at least "parallel_min_points" points (100000 by default) are encoded and
+     *   compressed in chunks in parallel. With "parallel_mode" "join" the chunks form the body
+     *   of one request. With "requests" every chunk is a request of its own, and the result
+     *   is the first response that is not a success, or else the first one, with the
+     *   responses of all chunks in "chunks".
+     * </p>
+     *
+     * <p>
+     *   Requests whose body, after compression, is larger than the server accepts are split
+     *   into requests that fit, and so are the requests the server rejects with
+     *   ERR_CODE_REQ_SIZE, which are halved until they pass. The limit starts at
+     *   "max_request_bytes" and is learned from the rejections, see getMaxRequestBytes().
+     *   The result of a split request is merged from its parts in the same way. Multi-send
+     *   arrays, [{"key": appKey, "data": [...]}, ...], are split into multi-send arrays.
+     * </p>
+     *
      * @see #sendEventsData(JsonObject)
      *
      **/
 
     public JsonObject insert(JsonArray sensorData) throws MdtsdbException
     {
-        return sendData(MdtsdbClientImpl.MdtsdbScheme.EVENTS, sensorData);
+        if(this.parallel.applies(sensorData) && !this.parallel.joinsBodies())
+            return sendLargeData(MdtsdbClientImpl.MdtsdbScheme.EVENTS, sensorData);
+        return sendSized(MdtsdbClientImpl.MdtsdbScheme.EVENTS, sensorData);
+    }
+
+    /**
+     * Creates an empty batch of points encoded as this client sends data, so that
+     * insert(PointBatch) sends it without converting it.
+     **/
+
+    public PointBatch newPointBatch()
+    {
+        return newPointBatch(8192);
+    }
+
+    /**
+     * Returns the mix of body encodings picked by compression "adaptive".
+     *
+     * <p>
+     *   For each encoding ("false", "gzip", "bson" and "gzip-bson") the number of data
+     *   requests sent with it, their payload and body bytes, and the running estimates of
+     *   its compression ratio and encoding CPU time per payload byte. Empty with other
+     *   compression settings.
+     * </p>
+     */
+    public JsonObject getEncodingStats()
+    {
+        return this.adaptive != null ? this.adaptive.stats() : new JsonObject();
+    }
+
+    /**
+     * Returns the largest request body in bytes, after compression, that inserts are split
+     * to fit, or 0 while it is not known.
+     *
+     * @see #insert(JsonArray)
+     */
+    public int getMaxRequestBytes()
+    {
+        return this.requestSize.get();
+    }
+
+    /**
+     * @return the policy failed requests are retried with
+     */
+    public RetryPolicy getRetryPolicy()
+    {
+        return this.retries.getPolicy();
+    }
+
+    /**
+     * Replaces the policy failed requests are retried with, BackoffRetryPolicy by default.
+     *
+     * <p>
+     *   Retries are limited by the retry budget of the client in any case, see
+     *   "retry_budget_tokens" and "retry_budget_ratio". Streamed inserts are never retried.
+     * </p>
+     *
+     * @param policy the policy, or null to not retry at all
+     */
+    public void setRetryPolicy(RetryPolicy policy)
+    {
+        this.retries.setPolicy(policy);
+    }
+
+    /**
+     * @return the circuit breaker of the end-point of the client, shared with the clients
+     *         created by newClient()/newAdmClient(), or null if "circuit_breaker" is false
+     *
+     * @see CircuitBreaker
+     */
+    public CircuitBreaker getCircuitBreaker()
+    {
+        return this.breaker;
+    }
+
+    /**
+     * @return the state of the circuit breaker of the end-point, CLOSED if there is none
+     */
+    public CircuitState getCircuitState()
+    {
+        return this.breaker == null ? CircuitState.CLOSED : this.breaker.getState();
+    }
+
+    // the trial request of the half-open breaker, a ping neither retried nor reloading the token
+    private CompletableFuture<?> probeEndpoint()
+    {
+        int timeout = Integer.parseInt(this.options.getProperty("breaker_open_ms", "5000"));
+        return invokeAsync_impl(pingCall(MdtsdbScheme.EVENTS, pingParams(timeout)), JSON_OBJECT).thenAccept(result -> {
+            // the service is unavailable, unless the ping was only not authorized
+            int code = RetryEngine.errorCode(result);
+            if (code != 0 && code != MdtsdbServerException.ERR_CODE_AUTH_NOKEY && code != MdtsdbServerException.ERR_CODE_AUTH_PERM)
+                this.breaker.trip();
+        });
+    }
+
+    private PointBatch newPointBatch(int capacity)
+    {
+        String compression = this.options.getProperty("compression", "false");
+        boolean bson = this.adaptive != null ? this.adaptive.prefersBson()
+                                             : compression.equals("bson") || compression.equals("gzip-bson");
+        return new PointBatch(bson ? PointBatch.Encoding.BSON : PointBatch.Encoding.JSON, capacity);
+    }
+
+    /**
+     * Sends points encoded by a PointBatch, without building a JsonObject tree.
+     *
+     * <p>
+     *   A batch too large for a request is split as insert(JsonArray) splits arrays.
+     * </p>
+     *
+     * @see #insert(JsonArray)
+     **/
+
+    public JsonObject insert(PointBatch points) throws MdtsdbException
+    {
+        return sendSized(MdtsdbClientImpl.MdtsdbScheme.EVENTS, sendBatchCall(MdtsdbClientImpl.MdtsdbScheme.EVENTS, points),
+                         points.size(), () -> batchTree(points).getAsJsonArray());
+    }
+
+    /**
+     * Opens an insert whose points are sent while they are added, as one request.
+     *
+     * <p>
+     *   The body is sent with chunked transfer encoding in chunks of "streaming_chunk_bytes"
+     *   (64 KB by default), signed one by one with the streaming scheme, since the digest
+     *   of the whole body is not known before it is sent. So a producer pipes any number
+     *   of points into one request with bounded memory. The points are encoded as JSON and
+     *   deflated with compression "gzip". The request is not split by the request size
+     *   limit, and it is not repeated after the access token is reloaded.
+     * </p>
+     *
+     * @return the open insert, to be finished with finish() or aborted with close()
+     */
+    public InsertStream openInsertStream() throws MdtsdbException
+    {
+        Deflater deflater = null;
+        int level = 6;
+        try {
+            RouteTable routes = this.routes;
+            String apiMethod = "setData";
+            String schemeIdString = MdtsdbClientImpl.MdtsdbScheme.EVENTS.getSchemeId();
+            CommunicationLayer comLayer = routes.get(apiMethod, schemeIdString);
+            boolean is_data_ep = comLayer.isDataEndpoint();
+
+            int compression_level = Integer.parseInt(this.options.getProperty("compression_level", "6"));
+            boolean gzip = is_data_ep && this.options.getProperty("compression", "false").equals("gzip") && compression_level >= 0;
+            if(gzip)
+            {
+                level = compression_level > 9 ? 6 : compression_level;
+                deflater = this.deflaters.acquire(level);
+            }
+
+            // the envelope sendDataCall builds, cut where the points go
+            ByteSink envelope = new ByteSink(256);
+            int[] cut = new int[1];
+            writeJsonEnvelope(envelope, apiMethod, schemeIdString, routes.admKey(), out -> {
+                out.write('[');
+                cut[0] = out.length();
+                out.write(']');
+            });
+            byte[] body = envelope.toByteArray();
+
+            ChunkedUpload<JsonObject> upload = comLayer.openStreamingCall(_call_method_prepare_ep(is_data_ep, gzip ? "gzip" : "false"),
+                Integer.parseInt(this.options.getProperty("streaming_chunk_bytes", "65536")), JSON_OBJECT);
+            return new StreamingInsert(upload, Arrays.copyOfRange(body, 0, cut[0]), Arrays.copyOfRange(body, cut[0], body.length),
+                                       this.deflaters, level, deflater);
+        }
+        catch(Exception e)
+        {
+            if(deflater != null)
+                this.deflaters.release(level, deflater);
+            throw new MdtsdbException(e);
+        }
+    }
+
+    /**
+     * Sends the history of one sensor, a value per timestamp.
+     *
+     * <p>
+     *   The points are encoded straight from the arrays, without a Measurement or a
+     *   boxed value per point. A history too large for a request is split into several
+     *   requests, as insert(JsonArray) splits arrays.
+     * </p>
+     *
+     * @param sensorId alias of the sensor
+     * @param timestamps unix seconds of the values
+     * @param values the values
+     *
+     * @see PointBatch#addColumn(String, long[], double[])
+     * @see #insert(JsonArray)
+     **/
+
+    public JsonObject insertColumns(String sensorId, long[] timestamps, double[] values) throws MdtsdbException
+    {
+        return insert(columnBatch(timestamps.length).addColumn(sensorId, timestamps, values));
+    }
+
+    /**
+     * @see #insertColumns(String, long[], double[])
+     **/
+
+    public JsonObject insertColumns(String sensorId, long[] timestamps, long[] values) throws MdtsdbException
+    {
+        return insert(columnBatch(timestamps.length).addColumn(sensorId, timestamps, values));
+    }
+
+    /**
+     * @see #insertColumns(String, long[], double[])
+     **/
+
+    public JsonObject insertColumns(String sensorId, long[] timestamps, boolean[] values) throws MdtsdbException
+    {
+        return insert(columnBatch(timestamps.length).addColumn(sensorId, timestamps, values));
+    }
+
+    /**
+     * Sends the string history of one sensor, the value at timestamps[i] is dictionary[codes[i]].
+     *
+     * @see #insertColumns(String, long[], double[])
+     **/
+
+    public JsonObject insertColumns(String sensorId, long[] timestamps, String[] dictionary, int[] codes) throws MdtsdbException
+    {
+        return insert(columnBatch(timestamps.length).addColumn(sensorId, timestamps, dictionary, codes));
+    }
+
+    /**
+     * Sends the history of several sensors, values[s][i] is the value of sensorIds[s] at timestamps[i].
+     *
+     * @see #insertColumns(String, long[], double[])
+     **/
+
+    public JsonObject insertColumns(String[] sensorIds, long[] timestamps, double[][] values) throws MdtsdbException
+    {
+        return insert(columnBatch(timestamps.length * sensorIds.length).addColumns(sensorIds, timestamps, values));
+    }
+
+    private PointBatch columnBatch(int values)
+    {
+        // about the encoded size of a timestamp and a value
+        return newPointBatch((int) Math.min(Integer.MAX_VALUE - 64, 32L * values + 64));
     }
 
     /**
@@ -409,49 +689,56 @@ public class MdtsdbClientImpl
 
     public JsonObject uploadKml(String kmlContent, Properties defaultParams) throws MdtsdbException
     {
-        JsonObject result = uploadKml_impl(kmlContent, defaultParams);
-        if (_check_keycloak_auth_error(result)) {
-            result = uploadKml_impl(kmlContent, defaultParams);
-        }
-        return result;
+        return invoke(uploadKmlCall(kmlContent, defaultParams), JSON_OBJECT);
     }
 
-    protected JsonObject uploadKml_impl(String kmlContent, Properties defaultParams) throws MdtsdbException
+    private CallFactory uploadKmlCall(String kmlContent, Properties defaultParams)
     {
-        JsonObject result = null;
-
-        try {
-            StringBuilder defs = new StringBuilder();
-            String v;
-            for(String name : Arrays.asList("id", "alias_tag", "ns", "val", "base64", "ms_attr", "ms_tag", "val_tag"))
-            {
-                v = defaultParams.getProperty(name);
-                if(v != null)
-                {
-                    defs.append(name);
-                    defs.append("=");
-                    defs.append(URLEncoder.encode(v, "UTF-8"));
-                    defs.append("&");
-                }
-            }
+        return () -> {
+            CommunicationLayer comLayer = this.routes.get(MdtsdbClientImpl.QL, MdtsdbClientImpl.MdtsdbScheme.KML.getSchemeId());
 
-            String q = String.format("%sq=%s&key=%s",
-                defs.toString(),
-                URLEncoder.encode(kmlContent, "UTF-8"),
-                URLEncoder.encode(this.tsAppKey, "UTF-8"));
+            // the document is URL-encoded straight into the body, without an encoded copy as a string
+            byte[] kml = kmlContent.getBytes(StandardCharsets.UTF_8);
+            ByteSink q = this.buffers.acquire(kml.length + kml.length / 4 + 256);
+            q.startDigest();
+            q.writeAscii(kmlFormHead(defaultParams));
+            FormBody.encode(kml, 0, kml.length, q);
+            q.writeAscii(kmlFormTail());
+            return new PreparedCall(comLayer, Collections.<String, String>emptyMap(), this.buffers, q);
+        };
+    }
 
-            CommunicationLayer comLayer = getCommunicationLayer(MdtsdbClientImpl.QL,
-                                                    MdtsdbClientImpl.MdtsdbScheme.KML.getSchemeId());
+    private CallFactory uploadKmlFileCall(Path path, Properties defaultParams)
+    {
+        return () -> {
+            CommunicationLayer comLayer = this.routes.get(MdtsdbClientImpl.QL, MdtsdbClientImpl.MdtsdbScheme.KML.getSchemeId());
+            return new PreparedCall(comLayer, Collections.<String, String>emptyMap(),
+                                    FormBody.ofKmlFile(path, kmlFormHead(defaultParams), kmlFormTail()));
+        };
+    }
 
-            String data = comLayer.callApiMethod(q.getBytes("UTF-8"));
-            result = new JsonParser().parse(data).getAsJsonObject();
-        }
-        catch(Exception e)
+    // the fields of a KML upload before the document, up to "q="
+    private static String kmlFormHead(Properties defaultParams) throws UnsupportedEncodingException
+    {
+        StringBuilder defs = new StringBuilder();
+        String v;
+        for(String name : Arrays.asList("id", "alias_tag", "ns", "val", "base64", "ms_attr", "ms_tag", "val_tag"))
         {
-            throw new MdtsdbException(e);
+            v = defaultParams.getProperty(name);
+            if(v != null)
+            {
+                defs.append(name);
+                defs.append("=");
+                defs.append(URLEncoder.encode(v, "UTF-8"));
+                defs.append("&");
+            }
         }
+        return defs.append("q=").toString();
+    }
 
-        return result;
+    private String kmlFormTail() throws UnsupportedEncodingException
+    {
+        return "&key=" + URLEncoder.encode(this.tsAppKey, "UTF-8");
     }
 
     /**
@@ -469,21 +756,20 @@ public class MdtsdbClientImpl
      *    value) from fields of sent KML data set.
      * </p>
      *
+     * <p>
+     *   The file is streamed, URL-encoded as it is read, so that its size is not bounded
+     *   by memory. It is read twice, once for the digest of the request body and once as
+     *   the body is sent. A KMZ archive is recognized by its content, and the first KML
+     *   document in it is inflated as it is read.
+     * </p>
+     *
      * @param filePath a path to the file with sensor data in Keyhole Markup Language format
      * @param defaultParams maps sensor properties to default values
      */
 
     public JsonObject uploadKmlFile(String filePath, Properties defaultParams) throws MdtsdbException
     {
-        try {
-            byte[] data = Files.readAllBytes(Paths.get(filePath));
-            String kmlContent = new String(data, StandardCharsets.UTF_8);
-            return uploadKml(kmlContent, defaultParams);
-        }
-        catch(Exception e)
-        {
-            throw new MdtsdbException(e);
-        }
+        return invoke(uploadKmlFileCall(Paths.get(filePath), defaultParams), JSON_OBJECT);
     }
 
     /**
@@ -565,6 +851,41 @@ public class MdtsdbClientImpl
         return execQuery(MdtsdbClientImpl.MdtsdbScheme.EVENTS, script, 2, stream);
     }
 
+    /**
+     *  Executes a script using the MDTSDB Query Language v1 or v2 in stream body mode
+     *  and returns the response records one at a time, as they are received.
+     *
+     *  <p>
+     *    The returned stream holds the connection until all records are consumed or it is
+     *    closed, so use it in a try-with-resources block. Failures while reading records
+     *    surface as unchecked exceptions of the stream.
+     *  </p>
+     *
+     * @param script query language script content
+     * @param version version of the query language
+     */
+
+    public java.util.stream.Stream<JsonObject> eventsQueryStream(String script, Integer version) throws MdtsdbException
+    {
+        checkArgument(script != null && !script.isEmpty(), "expect a query to execute");
+
+        return execQueryStream(MdtsdbClientImpl.MdtsdbScheme.EVENTS, script, version);
+    }
+
+    /**
+     *  Executes a script using the MDTSDB Query Language v2 in stream body mode
+     *  and returns the response records one at a time, as they are received.
+     *
+     * @param script query language script content
+     *
+     * @see #eventsQueryStream(String, Integer)
+     */
+
+    public java.util.stream.Stream<JsonObject> queryStream(String script) throws MdtsdbException
+    {
+        return eventsQueryStream(script, 2);
+    }
+
     /**
      *  Asynchronously executes a script using the MDTSDB Query Language v1 or v2.
      *
@@ -644,8 +965,7 @@ public class MdtsdbClientImpl
 
     public JsonObject getMessages() throws MdtsdbException
     {
-        String r = delayedQuery("", MdtsdbClientImpl.MdtsdbScheme.EVENTS);
-        return new JsonParser().parse(r).getAsJsonObject();
+        return invoke(delayedQueryCall("", MdtsdbClientImpl.MdtsdbScheme.EVENTS), JSON_OBJECT);
     }
 
     ////////////
@@ -731,17 +1051,23 @@ public class MdtsdbClientImpl
 
     private JsonObject _newOrGetAppkey(String comment, Integer _dayLimit, Boolean noBufferring, Boolean noCleanOldData,
                                        String suggestName, Integer expireAfter, String apiMethod) throws MdtsdbException
+    {
+        return invoke(_newOrGetAppkeyCall(comment, _dayLimit, noBufferring, noCleanOldData, suggestName, expireAfter, apiMethod),
+                      JSON_OBJECT);
+    }
+
+    private CallFactory _newOrGetAppkeyCall(String comment, Integer _dayLimit, Boolean noBufferring, Boolean noCleanOldData,
+                                            String suggestName, Integer expireAfter, String apiMethod)
     {
         checkArgument(comment != null, "expect valid user details");
         checkArgument(expireAfter == null || expireAfter > 0, "expect a expire value");
         checkArgument(apiMethod.equals("newApiKey") ||
                       (apiMethod.equals("assureApiKey") && suggestName != null), "expect valid app key in 'suggest' field");
 
-        JsonObject result = null;
-
-        try {
+        CallFactory factory = () -> {
+            RouteTable routes = this.routes;
             JsonObject paramsData = new JsonObject();
-            paramsData.addProperty("adminkey", this.tsAdmKey);
+            paramsData.addProperty("adminkey", routes.admKey());
             paramsData.addProperty("user", comment);
 
             if(noBufferring != null || noCleanOldData != null || suggestName != null)
@@ -762,29 +1088,28 @@ public class MdtsdbClientImpl
             postData.addProperty("method", apiMethod);
             postData.add("params", paramsData);
 
-            CommunicationLayer comLayer = getCommunicationLayer(apiMethod);
-            result = request(comLayer, postData);
-        }
-        catch(Exception e)
-        {
-            throw new MdtsdbException(e);
-        }
-
-        return result;
+            return prepareJsonCall(routes.get(apiMethod, "events"), postData);
+        };
+        // a repeated newApiKey creates another key
+        return apiMethod.equals("newApiKey") ? notIdempotent(factory) : factory;
     }
 
     private JsonObject _newOrGetAppkey(String comment, JsonObject optsData, String apiMethod) throws MdtsdbException
+    {
+        return invoke(_newOrGetAppkeyCall(comment, optsData, apiMethod), JSON_OBJECT);
+    }
+
+    private CallFactory _newOrGetAppkeyCall(String comment, JsonObject optsData, String apiMethod)
     {
         checkArgument(comment != null, "expect valid user details");
         checkArgument(optsData != null, "expect valid swimlane options");
         checkArgument(apiMethod.equals("newApiKey") ||
                       (apiMethod.equals("assureApiKey") && optsData.has("suggest")), "expect valid app key in 'suggest' field");
 
-        JsonObject result = null;
-
-        try {
+        CallFactory factory = () -> {
+            RouteTable routes = this.routes;
             JsonObject paramsData = new JsonObject();
-            paramsData.addProperty("adminkey", this.tsAdmKey);
+            paramsData.addProperty("adminkey", routes.admKey());
             paramsData.addProperty("user", comment);
             paramsData.add("opts", optsData);
 
@@ -792,15 +1117,9 @@ public class MdtsdbClientImpl
             postData.addProperty("method", apiMethod);
             postData.add("params", paramsData);
 
-            CommunicationLayer comLayer = getCommunicationLayer(apiMethod);
-            result = request(comLayer, postData);
-        }
-        catch(Exception e)
-        {
-            throw new MdtsdbException(e);
-        }
-
-        return result;
+            return prepareJsonCall(routes.get(apiMethod, "events"), postData);
+        };
+        return apiMethod.equals("newApiKey") ? notIdempotent(factory) : factory;
     }
 
     /**
@@ -838,14 +1157,18 @@ public class MdtsdbClientImpl
 
     private JsonObject deleteAppkey0(String appKey, String apiMethod, Boolean keepData) throws MdtsdbException
     {
-        checkArgument(appKey != null && !appKey.isEmpty(), "expect valid application key");
+        return invoke(deleteAppkeyCall(appKey, apiMethod, keepData), JSON_OBJECT);
+    }
 
-        JsonObject result = null;
+    private CallFactory deleteAppkeyCall(String appKey, String apiMethod, Boolean keepData)
+    {
+        checkArgument(appKey != null && !appKey.isEmpty(), "expect valid application key");
 
-        try {
+        return notIdempotent(() -> {
+            RouteTable routes = this.routes;
             JsonObject paramsData = new JsonObject();
             paramsData.addProperty("key", appKey);
-            paramsData.addProperty("adminkey", this.tsAdmKey);
+            paramsData.addProperty("adminkey", routes.admKey());
             if(keepData != null)
                 paramsData.addProperty("keep_data", keepData);
 
@@ -853,15 +1176,8 @@ public class MdtsdbClientImpl
             postData.addProperty("method", apiMethod);
             postData.add("params", paramsData);
 
-            CommunicationLayer comLayer = getCommunicationLayer(apiMethod);
-            result = request(comLayer, postData);
-        }
-        catch(Exception e)
-        {
-            throw new MdtsdbException(e);
-        }
-
-        return result;
+            return prepareJsonCall(routes.get(apiMethod, "events"), postData);
+        });
     }
 
     /**
@@ -873,30 +1189,27 @@ public class MdtsdbClientImpl
 
     public JsonObject newAdminkey(String comment) throws MdtsdbException
     {
-        checkArgument(comment != null, "expect valid user details");
+        return invoke(newAdminkeyCall(comment), JSON_OBJECT);
+    }
 
-        JsonObject result = null;
+    private CallFactory newAdminkeyCall(String comment)
+    {
+        checkArgument(comment != null, "expect valid user details");
 
-        try {
+        return notIdempotent(() -> {
+            RouteTable routes = this.routes;
             String apiMethod = "newAdminKey";
 
             JsonObject paramsData = new JsonObject();
-            paramsData.addProperty("adminkey", this.tsAdmKey);
+            paramsData.addProperty("adminkey", routes.admKey());
             paramsData.addProperty("user", comment);
 
             JsonObject postData = new JsonObject();
             postData.addProperty("method", apiMethod);
             postData.add("params", paramsData);
 
-            CommunicationLayer comLayer = getCommunicationLayer(apiMethod);
-            result = request(comLayer, postData);
-        }
-        catch(Exception e)
-        {
-            throw new MdtsdbException(e);
-        }
-
-        return result;
+            return prepareJsonCall(routes.get(apiMethod, "events"), postData);
+        });
     }
 
     /**
@@ -912,17 +1225,21 @@ public class MdtsdbClientImpl
      */
 
     public JsonObject getOrCreateAdminkey(String admKey, String comment) throws MdtsdbException
+    {
+        return invoke(getOrCreateAdminkeyCall(admKey, comment), JSON_OBJECT);
+    }
+
+    private CallFactory getOrCreateAdminkeyCall(String admKey, String comment)
     {
         checkArgument(admKey != null, "expect valid admin key to get or create");
         checkArgument(comment != null, "expect valid user details");
 
-        JsonObject result = null;
-
-        try {
+        return () -> {
+            RouteTable routes = this.routes;
             String apiMethod = "assureAdminKey";
 
             JsonObject paramsData = new JsonObject();
-            paramsData.addProperty("adminkey", this.tsAdmKey);
+            paramsData.addProperty("adminkey", routes.admKey());
             paramsData.addProperty("suggest", admKey);
             paramsData.addProperty("user", comment);
 
@@ -930,15 +1247,8 @@ public class MdtsdbClientImpl
             postData.addProperty("method", apiMethod);
             postData.add("params", paramsData);
 
-            CommunicationLayer comLayer = getCommunicationLayer(apiMethod);
-            result = request(comLayer, postData);
-        }
-        catch(Exception e)
-        {
-            throw new MdtsdbException(e);
-        }
-
-        return result;
+            return prepareJsonCall(routes.get(apiMethod, "events"), postData);
+        };
     }
 
     /**
@@ -950,297 +1260,623 @@ public class MdtsdbClientImpl
 
     public JsonObject deleteAdminkey(String admKey) throws MdtsdbException
     {
-        checkArgument(admKey != null && !admKey.isEmpty(), "expect valid administrative key");
+        return invoke(deleteAdminkeyCall(admKey), JSON_OBJECT);
+    }
 
-        JsonObject result = null;
+    private CallFactory deleteAdminkeyCall(String admKey)
+    {
+        checkArgument(admKey != null && !admKey.isEmpty(), "expect valid administrative key");
 
-        try {
+        return notIdempotent(() -> {
+            RouteTable routes = this.routes;
             String apiMethod = "deleteAdminKey";
 
             JsonObject paramsData = new JsonObject();
             paramsData.addProperty("key", admKey);
-            paramsData.addProperty("adminkey", this.tsAdmKey);
+            paramsData.addProperty("adminkey", routes.admKey());
 
             JsonObject postData = new JsonObject();
             postData.addProperty("method", apiMethod);
             postData.add("params", paramsData);
 
-            CommunicationLayer comLayer = getCommunicationLayer(apiMethod);
-            result = request(comLayer, postData);
-        }
-        catch(Exception e)
-        {
-            throw new MdtsdbException(e);
-        }
-
-        return result;
+            return prepareJsonCall(routes.get(apiMethod, "events"), postData);
+        });
     }
 
-    ///////////////
-    // Ws API
+    ////////////
+    // Async API
 
     /**
-     * Build a target URL for websocket connection.
+     * Asynchronous version of sendEventsData().
+     *
+     * <p>
+     *   Like all *Async() methods it returns without waiting for the server. The returned future
+     *   completes on a transport thread with the server response, or exceptionally with
+     *   MdtsdbException. Authorization errors of keycloak clients are retried once with a
+     *   reloaded access token.
+     * </p>
      *
+     * @see #sendEventsData(JsonObject)
      */
-    public String wsTargetUrl() throws Exception
+
+    public CompletableFuture<JsonObject> sendEventsDataAsync(JsonObject sensorData)
     {
-        return wsTargetUrl(null, null);
+        return invokeAsync(sendDataCall(MdtsdbClientImpl.MdtsdbScheme.EVENTS, sensorData), JSON_OBJECT);
     }
 
     /**
-     * Build a target URL for websocket connection.
-     *
-     * @param async null if async mode is not predefined, true for async mode, false otherwise
-     * @param defAppKey set not null if the predefined application key must be set in administrative websocket connection
+     * @see #sendEventsData(JsonArray)
      */
-    public String wsTargetUrl(Boolean async, String defAppKey) throws Exception
+
+    public CompletableFuture<JsonObject> sendEventsDataAsync(JsonArray sensorData)
     {
-        return String.format("ws%s://%s:%d/%s", getUseSSL() ? "s" : "", tsEndpoint, tsPort, wsTargetPath(async, defAppKey));
+        return invokeAsync(sendDataCall(MdtsdbClientImpl.MdtsdbScheme.EVENTS, sensorData), JSON_OBJECT);
     }
 
     /**
-     * Build a string with target resource (i.e., path and query from the URL's "scheme:[//authority]path[?query]") for websocket connection.
-     *
-     * @param async null if async mode is not predefined, true for async mode, false otherwise
-     * @param defAppKey set not null if the predefined application key must be set in administrative websocket connection
+     * @see #insert(JsonArray)
      */
-    public String wsTargetPath(Boolean async, String defAppKey) throws Exception
+
+    public CompletableFuture<JsonObject> insertAsync(JsonArray sensorData)
     {
-        if(tsAppKey != null && !tsAppKey.isEmpty())
-        {
-            String asyncStr = async == null ? "" : (async ? "?async=true" : "?async=false");
-            return String.format("api/v1/ws/%s%s", tsAppKey, asyncStr);
-        }
-        else if(tsAdmKey != null && !tsAdmKey.isEmpty())
-        {
-            if(defAppKey == null)
-            {
-                String asyncStr = async == null ? "" : (async ? "?async=true" : "?async=false");
-                return String.format("api/v1/ws/%s%s", tsAdmKey, asyncStr);
-            }
-            else
-            {
-                String asyncStr = async == null ? "" : (async ? "&async=true" : "&async=false");
-                return String.format("api/v1/ws/%s?key=%s%s", tsAdmKey, defAppKey, asyncStr);
-            }
-        }
-        return null;
+        if(this.parallel.applies(sensorData) && !this.parallel.joinsBodies())
+            return sendLargeDataAsync(MdtsdbClientImpl.MdtsdbScheme.EVENTS, sensorData);
+        // large arrays are encoded on the parallel encoding pool, so that the caller is not blocked
+        return sendSizedAsync(MdtsdbClientImpl.MdtsdbScheme.EVENTS, sensorData,
+                              this.parallel.applies(sensorData) ? this.parallel.pool() : null);
     }
 
     /**
-     * Build the authorization header for websocket connection.
-     *
+     * @see #insert(PointBatch)
      */
 
-    public String wsAuthorizationHeader() throws Exception
+    public CompletableFuture<JsonObject> insertAsync(PointBatch points)
     {
-        return wsAuthorizationHeader(null, null);
+        return sendSizedAsync(MdtsdbClientImpl.MdtsdbScheme.EVENTS, sendBatchCall(MdtsdbClientImpl.MdtsdbScheme.EVENTS, points),
+                              points.size(), () -> batchTree(points).getAsJsonArray(), null);
     }
 
     /**
-     * Build the authorization header for websocket connection.
-     *
-     * @param async null if async mode is not predefined, true for async mode, false otherwise
-     * @param defAppKey set not null if the predefined application key must be set in administrative websocket connection
+     * @see #insertColumns(String, long[], double[])
      */
 
-    public String wsAuthorizationHeader(Boolean async, String defAppKey) throws Exception
+    public CompletableFuture<JsonObject> insertColumnsAsync(String sensorId, long[] timestamps, double[] values)
     {
-        if (this.tsAccessToken == null)
-        {
-            String auth = "", userKey = "", info = "s";
-            if(tsAppKey != null && !tsAppKey.isEmpty())
-            {
-                userKey = tsAppKey;
-            }
-            else if(tsAdmKey != null && !tsAdmKey.isEmpty())
-            {
-                userKey = tsAdmKey;
-                info = "a";
-            }
-            String path = wsTargetPath(async, defAppKey);
-            String signature = CommunicationLayer.makeMdtsdbAuthSignature(MdtsdbClientImpl.WS, userKey, tsSecretKey, path);
-            auth = String.format("%s%s %s %s,%s", CommunicationLayer.MDTSDB_AUTH2, userKey, signature, info, MdtsdbClientImpl.WS);
-            return auth;
-       }
-       else
-       {
-            String tokenType = this.tsAccessTokenType == null ? "Bearer" : this.tsAccessTokenType;
-            String auth = String.format("%s %s", tokenType, this.tsAccessToken);
-            return auth;
-       }
+        return insertAsync(columnBatch(timestamps.length).addColumn(sensorId, timestamps, values));
     }
 
     /**
-     * Build a query frame to send using websocket connection.
-     *
-     * @param query text of the query to execute
-     * @param async null if async mode is not predefined, set true for async mode, false otherwise
-     * @param streamBody set true for stream body mode, false otherwise
-     *
+     * @see #insertColumns(String, long[], long[])
      */
 
-    public String wsBuildQuery(String query, Boolean async, Boolean streamBody) throws Exception
+    public CompletableFuture<JsonObject> insertColumnsAsync(String sensorId, long[] timestamps, long[] values)
     {
-        return wsBuildQuery(MdtsdbClientImpl.MdtsdbScheme.EVENTS, query, async, streamBody);
+        return insertAsync(columnBatch(timestamps.length).addColumn(sensorId, timestamps, values));
     }
 
     /**
-     * Build a query frame to send using websocket connection.
-     *
-     * @param schemeId MdtsdbClientImpl.MdtsdbScheme.EVENTS
-     * @param query text of the query to execute
-     * @param async set true for async mode, false otherwise
-     * @param streamBody set true for stream body mode, false otherwise
-     *
+     * @see #insertColumns(String, long[], boolean[])
      */
 
-    public String wsBuildQuery(MdtsdbClientImpl.MdtsdbScheme schemeId, String query, Boolean async, Boolean streamBody) throws Exception
+    public CompletableFuture<JsonObject> insertColumnsAsync(String sensorId, long[] timestamps, boolean[] values)
     {
-        checkArgument(query != null, "expect valid query");
+        return insertAsync(columnBatch(timestamps.length).addColumn(sensorId, timestamps, values));
+    }
 
-        JsonObject paramsData = new JsonObject();
-        paramsData.addProperty("q", query);
-        paramsData.addProperty("v", "2");
-        paramsData.addProperty("stream", (streamBody ? 1 : 0));
+    /**
+     * @see #insertColumns(String, long[], String[], int[])
+     */
 
-        return _wsPostData(schemeId, "q", async, paramsData, null).toString();
+    public CompletableFuture<JsonObject> insertColumnsAsync(String sensorId, long[] timestamps, String[] dictionary, int[] codes)
+    {
+        return insertAsync(columnBatch(timestamps.length).addColumn(sensorId, timestamps, dictionary, codes));
     }
 
     /**
-     * Build a query frame to uploads data from sensors to server using websocket connection.
-     *
-     * @param sensorData json object or array, mapping a sensor identifier to the sensor value
-     *
+     * @see #insertColumns(String[], long[], double[][])
      */
 
-    public String wsBuildSendData(JsonElement sensorData, Boolean async) throws Exception
+    public CompletableFuture<JsonObject> insertColumnsAsync(String[] sensorIds, long[] timestamps, double[][] values)
     {
-        return wsBuildSendData(MdtsdbClientImpl.MdtsdbScheme.EVENTS, sensorData, async);
+        return insertAsync(columnBatch(timestamps.length * sensorIds.length).addColumns(sensorIds, timestamps, values));
     }
 
     /**
-     * Build a query frame to uploads data from sensors to server using websocket connection.
-     *
-     * @param schemeId MdtsdbClientImpl.MdtsdbScheme.EVENTS
-     * @param sensorData json object or array, mapping a sensor identifier to the sensor value
-     * @param async set true for async mode, false otherwise
-     *
+     * @see #sendEventsGeoData(String)
      */
 
-    public String wsBuildSendData(MdtsdbClientImpl.MdtsdbScheme schemeId, JsonElement sensorData, Boolean async) throws Exception
+    public CompletableFuture<JsonObject> sendEventsGeoDataAsync(String GeojsonOrKml)
     {
-        checkArgument(sensorData != null, "expect valid sensor data");
-
-        return _wsPostData(schemeId, "setData", async, sensorData, null).toString();
+        return invokeAsync(sendGeoDataCall(MdtsdbClientImpl.MdtsdbScheme.GEOEVENTS, GeojsonOrKml), JSON_OBJECT);
     }
 
     /**
-     * Build a query frame to uploads data to server in Keyhole Markup Language (KML/KMZ) format.
-     *
-     * <p>
-     *   Please see additional details in description of the uploadKml() method.
-     * </p>
-     *
-     * @param kmlContent sensor data in Keyhole Markup Language format
-     * @param defaultParams maps sensor properties to default values
-     * @param async set true for async mode, false otherwise
+     * @see #uploadKml(String, Properties)
      */
-    public String wsBuildUploadKml(String kmlContent, Properties defaultParams, Boolean async) throws Exception
+
+    public CompletableFuture<JsonObject> uploadKmlAsync(String kmlContent, Properties defaultParams)
     {
-        checkArgument(kmlContent != null, "expect valid KML data");
-        checkArgument(defaultParams != null, "expect KML upload properies");
+        return invokeAsync(uploadKmlCall(kmlContent, defaultParams), JSON_OBJECT);
+    }
 
-        JsonObject opts = new JsonObject();
+    /**
+     * The file is read on transport threads.
+     *
+     * @see #uploadKmlFile(String, Properties)
+     */
 
-        String v;
-        for(String name : Arrays.asList("id", "alias_tag", "ns", "val", "base64", "ms_attr", "ms_tag", "val_tag"))
-        {
-            v = defaultParams.getProperty(name);
-            if(v != null)
-                opts.addProperty(name, URLEncoder.encode(v, "UTF-8"));
-        }
+    public CompletableFuture<JsonObject> uploadKmlFileAsync(String filePath, Properties defaultParams)
+    {
+        return invokeAsync(uploadKmlFileCall(Paths.get(filePath), defaultParams), JSON_OBJECT);
+    }
 
-        JsonObject paramsData = new JsonObject();
-        paramsData.addProperty("q", URLEncoder.encode(kmlContent, "UTF-8"));
+    /**
+     * @see #ping(Integer)
+     */
 
-        return _wsPostData(MdtsdbClientImpl.MdtsdbScheme.EVENTS, "setData", async, paramsData, opts).toString();
+    public CompletableFuture<JsonObject> pingAsync(Integer timeout)
+    {
+        return invokeAsync(pingCall(MdtsdbClientImpl.MdtsdbScheme.EVENTS, pingParams(timeout)), JSON_OBJECT);
     }
 
     /**
-     * Build a query frame to ping the service for the application key.
-     *
-     * @param timeout either maximum number of milliseconds to wait, or null for infinity
-     * @param async set true for async mode, false otherwise
-     *
+     * @see #eventsQuery(String, Integer)
      */
 
-    public String wsBuildPing(Integer timeout, Boolean async) throws Exception
+    public CompletableFuture<JsonObject> eventsQueryAsync(String script, Integer version)
     {
-        return wsBuildPing(MdtsdbClientImpl.MdtsdbScheme.EVENTS, timeout, async);
+        return eventsQueryAsync(script, version, false);
     }
 
     /**
-     * Build a query frame to ping the service for the application key.
-     *
-     * @param schemeId MdtsdbClientImpl.MdtsdbScheme.EVENTS
-     * @param timeout either maximum number of milliseconds to wait, or null for infinity
-     * @param async set true for async mode, false otherwise
-     *
+     * @see #eventsQuery(String, Integer, Boolean)
      */
 
-    public String wsBuildPing(MdtsdbClientImpl.MdtsdbScheme schemeId, Integer timeout, Boolean async) throws Exception
+    public CompletableFuture<JsonObject> eventsQueryAsync(String script, Integer version, Boolean stream)
     {
-        JsonObject paramsData = new JsonObject();
-        if(timeout == null)
-            paramsData.addProperty("timeout", "infinity");
-        else
-            paramsData.addProperty("timeout", timeout);
+        checkArgument(script != null && !script.isEmpty(), "expect a query to execute");
 
-        return _wsPostData(schemeId, "ping", async, paramsData, null).toString();
+        return invokeAsync(execQueryCall(MdtsdbClientImpl.MdtsdbScheme.EVENTS, script, version, stream), JSON_OBJECT);
     }
 
     /**
-     *  Build a query frame to query data, which were stored after delayed execution of the query.
-     *
-     * @param uuid identifier of the stored data, as returned in details of
-     *             the response with notification about delayed execution
-     * @param async set true for async mode, false otherwise
-     *
+     * @see #query(String)
      */
 
-    public String wsBuildGetStored(String uuid, Boolean async) throws Exception
+    public CompletableFuture<JsonObject> queryAsync(String script)
     {
-        checkArgument(uuid != null && !uuid.isEmpty(), "expect uuid");
-
-        return wsBuildDelayedQuery(MdtsdbClientImpl.MdtsdbScheme.RESULTS, uuid, async);
+        return eventsQueryAsync(script, 2, false);
     }
 
     /**
-     * Build a query notification messages.
-     *
-     * @param async set true for async mode, false otherwise
-     *
+     * @see #query(String, Boolean)
      */
 
-    public String wsBuildGetMessages(Boolean async) throws Exception
+    public CompletableFuture<JsonObject> queryAsync(String script, Boolean stream)
     {
-        return wsBuildDelayedQuery(MdtsdbClientImpl.MdtsdbScheme.EVENTS, "", async);
+        return eventsQueryAsync(script, 2, stream);
     }
 
-    private String wsBuildDelayedQuery(MdtsdbClientImpl.MdtsdbScheme schemeId, String uuid, Boolean async) throws Exception
+    /**
+     * @see #asyncEventsQuery(String, Integer)
+     */
+
+    public CompletableFuture<JsonObject> asyncEventsQueryAsync(String script, Integer version)
     {
-        checkArgument(uuid != null, "expect valid uuid");
+        return asyncEventsQueryAsync(script, version, false);
+    }
 
-        JsonObject paramsData = new JsonObject();
-        paramsData.addProperty("uuid", uuid);
+    /**
+     * @see #asyncEventsQuery(String, Integer, Boolean)
+     */
 
-        return _wsPostData(schemeId, "getResults", async, paramsData, null).toString();
+    public CompletableFuture<JsonObject> asyncEventsQueryAsync(String script, Integer version, Boolean stream)
+    {
+        checkArgument(script != null && !script.isEmpty(), "expect a query to execute");
+
+        return invokeAsync(execQueryCall(MdtsdbClientImpl.MdtsdbScheme.ASYNC_EVENTS, script, version, stream), JSON_OBJECT);
     }
 
-    private JsonObject _wsPostData(MdtsdbClientImpl.MdtsdbScheme schemeId, String apiMethod, Boolean async,
-                                   JsonElement paramsData, JsonObject opts)
+    /**
+     * @see #asyncQuery(String)
+     */
+
+    public CompletableFuture<JsonObject> asyncQueryAsync(String script)
+    {
+        return asyncEventsQueryAsync(script, 2, false);
+    }
+
+    /**
+     * @see #asyncQuery(String, Boolean)
+     */
+
+    public CompletableFuture<JsonObject> asyncQueryAsync(String script, Boolean stream)
+    {
+        return asyncEventsQueryAsync(script, 2, stream);
+    }
+
+    /**
+     * @see #getStored(String)
+     */
+
+    public CompletableFuture<String> getStoredAsync(String uuid)
+    {
+        checkArgument(uuid != null && !uuid.isEmpty(), "expect uuid");
+
+        return invokeAsync(delayedQueryCall(uuid, MdtsdbClientImpl.MdtsdbScheme.RESULTS), RAW_STRING);
+    }
+
+    /**
+     * @see #getMessages()
+     */
+
+    public CompletableFuture<JsonObject> getMessagesAsync()
+    {
+        return invokeAsync(delayedQueryCall("", MdtsdbClientImpl.MdtsdbScheme.EVENTS), JSON_OBJECT);
+    }
+
+    /**
+     * @see #newAppkey(String, String)
+     */
+
+    public CompletableFuture<JsonObject> newAppkeyAsync(String comment, String suggestName)
+    {
+        return invokeAsync(_newOrGetAppkeyCall(comment, -1, null, null, suggestName, null, "newApiKey"), JSON_OBJECT);
+    }
+
+    /**
+     * @see #newAppkey(String)
+     */
+
+    public CompletableFuture<JsonObject> newAppkeyAsync(String comment)
+    {
+        return invokeAsync(_newOrGetAppkeyCall(comment, -1, null, null, null, null, "newApiKey"), JSON_OBJECT);
+    }
+
+    /**
+     * @see #newAppkey(String, JsonObject)
+     */
+
+    public CompletableFuture<JsonObject> newAppkeyAsync(String comment, JsonObject optsData)
+    {
+        return invokeAsync(_newOrGetAppkeyCall(comment, optsData, "newApiKey"), JSON_OBJECT);
+    }
+
+    /**
+     * @see #getOrCreateAppkey(String, String)
+     */
+
+    public CompletableFuture<JsonObject> getOrCreateAppkeyAsync(String comment, String suggestName)
+    {
+        return invokeAsync(_newOrGetAppkeyCall(comment, -1, null, null, suggestName, null, "assureApiKey"), JSON_OBJECT);
+    }
+
+    /**
+     * @see #getOrCreateAppkey(String, JsonObject)
+     */
+
+    public CompletableFuture<JsonObject> getOrCreateAppkeyAsync(String comment, JsonObject optsData)
+    {
+        return invokeAsync(_newOrGetAppkeyCall(comment, optsData, "assureApiKey"), JSON_OBJECT);
+    }
+
+    /**
+     * @see #deleteAppkey(String)
+     */
+
+    public CompletableFuture<JsonObject> deleteAppkeyAsync(String appKey)
+    {
+        return invokeAsync(deleteAppkeyCall(appKey, "deleteApiKey", null), JSON_OBJECT);
+    }
+
+    /**
+     * @see #deleteAppkey(String, Boolean)
+     */
+
+    public CompletableFuture<JsonObject> deleteAppkeyAsync(String appKey, Boolean keepData)
+    {
+        return invokeAsync(deleteAppkeyCall(appKey, "deleteApiKey", keepData), JSON_OBJECT);
+    }
+
+    /**
+     * @see #newAdminkey(String)
+     */
+
+    public CompletableFuture<JsonObject> newAdminkeyAsync(String comment)
+    {
+        return invokeAsync(newAdminkeyCall(comment), JSON_OBJECT);
+    }
+
+    /**
+     * @see #getOrCreateAdminkey(String, String)
+     */
+
+    public CompletableFuture<JsonObject> getOrCreateAdminkeyAsync(String admKey, String comment)
+    {
+        return invokeAsync(getOrCreateAdminkeyCall(admKey, comment), JSON_OBJECT);
+    }
+
+    /**
+     * @see #deleteAdminkey(String)
+     */
+
+    public CompletableFuture<JsonObject> deleteAdminkeyAsync(String admKey)
+    {
+        return invokeAsync(deleteAdminkeyCall(admKey), JSON_OBJECT);
+    }
+
+    ///////////////
+    // Ws API
+
+    /**
+     * Build a target URL for websocket connection.
+     *
+     */
+    public String wsTargetUrl() throws Exception
+    {
+        return wsTargetUrl(null, null);
+    }
+
+    /**
+     * Build a target URL for websocket connection.
+     *
+     * @param async null if async mode is not predefined, true for async mode, false otherwise
+     * @param defAppKey set not null if the predefined application key must be set in administrative websocket connection
+     */
+    public String wsTargetUrl(Boolean async, String defAppKey) throws Exception
+    {
+        return String.format("ws%s://%s:%d/%s", getUseSSL() ? "s" : "", tsEndpoint, tsPort, wsTargetPath(async, defAppKey));
+    }
+
+    /**
+     * Build a string with target resource (i.e., path and query from the URL's "scheme:[//authority]path[?query]") for websocket connection.
+     *
+     * @param async null if async mode is not predefined, true for async mode, false otherwise
+     * @param defAppKey set not null if the predefined application key must be set in administrative websocket connection
+     */
+    public String wsTargetPath(Boolean async, String defAppKey) throws Exception
+    {
+        return wsTargetPath(this.routes.admKey(), async, defAppKey);
+    }
+
+    private String wsTargetPath(String tsAdmKey, Boolean async, String defAppKey)
+    {
+        if(tsAppKey != null && !tsAppKey.isEmpty())
+        {
+            String asyncStr = async == null ? "" : (async ? "?async=true" : "?async=false");
+            return String.format("api/v1/ws/%s%s", tsAppKey, asyncStr);
+        }
+        else if(tsAdmKey != null && !tsAdmKey.isEmpty())
+        {
+            if(defAppKey == null)
+            {
+                String asyncStr = async == null ? "" : (async ? "?async=true" : "?async=false");
+                return String.format("api/v1/ws/%s%s", tsAdmKey, asyncStr);
+            }
+            else
+            {
+                String asyncStr = async == null ? "" : (async ? "&async=true" : "&async=false");
+                return String.format("api/v1/ws/%s?key=%s%s", tsAdmKey, defAppKey, asyncStr);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Build the authorization header for websocket connection.
+     *
+     */
+
+    public String wsAuthorizationHeader() throws Exception
+    {
+        return wsAuthorizationHeader(null, null);
+    }
+
+    /**
+     * Build the authorization header for websocket connection.
+     *
+     * @param async null if async mode is not predefined, true for async mode, false otherwise
+     * @param defAppKey set not null if the predefined application key must be set in administrative websocket connection
+     */
+
+    public String wsAuthorizationHeader(Boolean async, String defAppKey) throws Exception
+    {
+        RouteTable routes = this.routes;
+        String tsAdmKey = routes.admKey();
+        if (routes.accessToken() == null)
+        {
+            String auth = "", userKey = "", info = "s";
+            if(tsAppKey != null && !tsAppKey.isEmpty())
+            {
+                userKey = tsAppKey;
+            }
+            else if(tsAdmKey != null && !tsAdmKey.isEmpty())
+            {
+                userKey = tsAdmKey;
+                info = "a";
+            }
+            String path = wsTargetPath(tsAdmKey, async, defAppKey);
+            String signature = CommunicationLayer.makeMdtsdbAuthSignature(MdtsdbClientImpl.WS, userKey, routes.secretKey(), path);
+            auth = String.format("%s%s %s %s,%s", CommunicationLayer.MDTSDB_AUTH2, userKey, signature, info, MdtsdbClientImpl.WS);
+            return auth;
+       }
+       else
+       {
+            String tokenType = routes.accessTokenType() == null ? "Bearer" : routes.accessTokenType();
+            String auth = String.format("%s %s", tokenType, routes.accessToken());
+            return auth;
+       }
+    }
+
+    /**
+     * Build a query frame to send using websocket connection.
+     *
+     * @param query text of the query to execute
+     * @param async null if async mode is not predefined, set true for async mode, false otherwise
+     * @param streamBody set true for stream body mode, false otherwise
+     *
+     */
+
+    public String wsBuildQuery(String query, Boolean async, Boolean streamBody) throws Exception
+    {
+        return wsBuildQuery(MdtsdbClientImpl.MdtsdbScheme.EVENTS, query, async, streamBody);
+    }
+
+    /**
+     * Build a query frame to send using websocket connection.
+     *
+     * @param schemeId MdtsdbClientImpl.MdtsdbScheme.EVENTS
+     * @param query text of the query to execute
+     * @param async set true for async mode, false otherwise
+     * @param streamBody set true for stream body mode, false otherwise
+     *
+     */
+
+    public String wsBuildQuery(MdtsdbClientImpl.MdtsdbScheme schemeId, String query, Boolean async, Boolean streamBody) throws Exception
+    {
+        checkArgument(query != null, "expect valid query");
+
+        JsonObject paramsData = new JsonObject();
+        paramsData.addProperty("q", query);
+        paramsData.addProperty("v", "2");
+        paramsData.addProperty("stream", (streamBody ? 1 : 0));
+
+        return _wsPostData(schemeId, "q", async, paramsData, null).toString();
+    }
+
+    /**
+     * Build a query frame to uploads data from sensors to server using websocket connection.
+     *
+     * @param sensorData json object or array, mapping a sensor identifier to the sensor value
+     *
+     */
+
+    public String wsBuildSendData(JsonElement sensorData, Boolean async) throws Exception
+    {
+        return wsBuildSendData(MdtsdbClientImpl.MdtsdbScheme.EVENTS, sensorData, async);
+    }
+
+    /**
+     * Build a query frame to uploads data from sensors to server using websocket connection.
+     *
+     * @param schemeId MdtsdbClientImpl.MdtsdbScheme.EVENTS
+     * @param sensorData json object or array, mapping a sensor identifier to the sensor value
+     * @param async set true for async mode, false otherwise
+     *
+     */
+
+    public String wsBuildSendData(MdtsdbClientImpl.MdtsdbScheme schemeId, JsonElement sensorData, Boolean async) throws Exception
+    {
+        checkArgument(sensorData != null, "expect valid sensor data");
+
+        return _wsPostData(schemeId, "setData", async, sensorData, null).toString();
+    }
+
+    /**
+     * Build a query frame to uploads data to server in Keyhole Markup Language (KML/KMZ) format.
+     *
+     * <p>
+     *   Please see additional details in description of the uploadKml() method.
+     * </p>
+     *
+     * @param kmlContent sensor data in Keyhole Markup Language format
+     * @param defaultParams maps sensor properties to default values
+     * @param async set true for async mode, false otherwise
+     */
+    public String wsBuildUploadKml(String kmlContent, Properties defaultParams, Boolean async) throws Exception
+    {
+        checkArgument(kmlContent != null, "expect valid KML data");
+        checkArgument(defaultParams != null, "expect KML upload properies");
+
+        JsonObject opts = new JsonObject();
+
+        String v;
+        for(String name : Arrays.asList("id", "alias_tag", "ns", "val", "base64", "ms_attr", "ms_tag", "val_tag"))
+        {
+            v = defaultParams.getProperty(name);
+            if(v != null)
+                opts.addProperty(name, URLEncoder.encode(v, "UTF-8"));
+        }
+
+        JsonObject paramsData = new JsonObject();
+        paramsData.addProperty("q", URLEncoder.encode(kmlContent, "UTF-8"));
+
+        return _wsPostData(MdtsdbClientImpl.MdtsdbScheme.EVENTS, "setData", async, paramsData, opts).toString();
+    }
+
+    /**
+     * Build a query frame to ping the service for the application key.
+     *
+     * @param timeout either maximum number of milliseconds to wait, or null for infinity
+     * @param async set true for async mode, false otherwise
+     *
+     */
+
+    public String wsBuildPing(Integer timeout, Boolean async) throws Exception
+    {
+        return wsBuildPing(MdtsdbClientImpl.MdtsdbScheme.EVENTS, timeout, async);
+    }
+
+    /**
+     * Build a query frame to ping the service for the application key.
+     *
+     * @param schemeId MdtsdbClientImpl.MdtsdbScheme.EVENTS
+     * @param timeout either maximum number of milliseconds to wait, or null for infinity
+     * @param async set true for async mode, false otherwise
+     *
+     */
+
+    public String wsBuildPing(MdtsdbClientImpl.MdtsdbScheme schemeId, Integer timeout, Boolean async) throws Exception
+    {
+        JsonObject paramsData = new JsonObject();
+        if(timeout == null)
+            paramsData.addProperty("timeout", "infinity");
+        else
+            paramsData.addProperty("timeout", timeout);
+
+        return _wsPostData(schemeId, "ping", async, paramsData, null).toString();
+    }
+
+    /**
+     *  Build a query frame to query data, which were stored after delayed execution of the query.
+     *
+     * @param uuid identifier of the stored data, as returned in details of
+     *             the response with notification about delayed execution
+     * @param async set true for async mode, false otherwise
+     *
+     */
+
+    public String wsBuildGetStored(String uuid, Boolean async) throws Exception
+    {
+        checkArgument(uuid != null && !uuid.isEmpty(), "expect uuid");
+
+        return wsBuildDelayedQuery(MdtsdbClientImpl.MdtsdbScheme.RESULTS, uuid, async);
+    }
+
+    /**
+     * Build a query notification messages.
+     *
+     * @param async set true for async mode, false otherwise
+     *
+     */
+
+    public String wsBuildGetMessages(Boolean async) throws Exception
+    {
+        return wsBuildDelayedQuery(MdtsdbClientImpl.MdtsdbScheme.EVENTS, "", async);
+    }
+
+    private String wsBuildDelayedQuery(MdtsdbClientImpl.MdtsdbScheme schemeId, String uuid, Boolean async) throws Exception
+    {
+        checkArgument(uuid != null, "expect valid uuid");
+
+        JsonObject paramsData = new JsonObject();
+        paramsData.addProperty("uuid", uuid);
+
+        return _wsPostData(schemeId, "getResults", async, paramsData, null).toString();
+    }
+
+    private JsonObject _wsPostData(MdtsdbClientImpl.MdtsdbScheme schemeId, String apiMethod, Boolean async,
+                                   JsonElement paramsData, JsonObject opts)
     {
         JsonObject postData = new JsonObject();
 
@@ -1267,76 +1903,313 @@ public class MdtsdbClientImpl
     // Internal API
 
     public Map<String, String> _call_method_prepare_ep(boolean is_data_ep) {
-        Map<String, String> headers = new LinkedHashMap<String, String>();
-        if (is_data_ep) {
-            String compression = this.options.getProperty("compression", "false");
-            if (compression.equals("gzip")) {
-                headers.put("Content-Encoding", "gzip");
-            } else if (compression.equals("bson")) {
-                headers.put("Content-Encoding", "bson");
-                headers.put("Content-Type", "application/octet-stream");
-            } else if (compression.equals("gzip-bson")) {
-                headers.put("Content-Encoding", "gzip-bson");
-                headers.put("Content-Type", "application/octet-stream");
-            }
+        return _call_method_prepare_ep(is_data_ep, this.options.getProperty("compression", "false"));
+    }
+
+    private Map<String, String> _call_method_prepare_ep(boolean is_data_ep, String compression) {
+        if (!is_data_ep)
+            return Collections.emptyMap();
+        Map<String, String> headers = ENCODING_HEADERS.get(compression);
+        return headers == null ? Collections.<String, String>emptyMap() : headers;
+    }
+
+    // shared, immutable request headers of the data end-point per "compression" option
+    private static final Map<String, Map<String, String>> ENCODING_HEADERS = encodingHeaders();
+
+    private static Map<String, Map<String, String>> encodingHeaders() {
+        Map<String, Map<String, String>> headers = new HashMap<String, Map<String, String>>();
+        headers.put("gzip", Collections.singletonMap("Content-Encoding", "gzip"));
+        for (String encoding : Arrays.asList("bson", "gzip-bson", "etf")) {
+            Map<String, String> h = new LinkedHashMap<String, String>();
+            h.put("Content-Encoding", encoding);
+            h.put("Content-Type", "application/octet-stream");
+            headers.put(encoding, Collections.unmodifiableMap(h));
         }
-        return headers;
+        return Collections.unmodifiableMap(headers);
     }
 
     public byte[] _call_method_prepare_content(JsonElement content, boolean is_data_ep) throws IOException, IllegalArgumentException {
+        return _call_method_prepare_content(content, is_data_ep, this.options.getProperty("compression", "false"), null);
+    }
+
+    private byte[] _call_method_prepare_content(JsonElement content, boolean is_data_ep, String compression, byte[] json)
+        throws IOException, IllegalArgumentException {
         //
-        String compression = this.options.getProperty("compression", "false");
         int compression_level = Integer.parseInt(this.options.getProperty("compression_level", "6"));
         if (is_data_ep && compression.equals("gzip")) {
-            byte[] utf8 = content.toString().getBytes("UTF-8");
+            byte[] utf8 = json != null ? json : content.toString().getBytes("UTF-8");
             if (compression_level < 0) { return utf8; }
             if (compression_level > 9) { compression_level = 6; }
-            return ErlangTermToBinWrp.compress(utf8, compression_level).array();
+            return this.deflaters.deflate(utf8, 0, utf8.length, compression_level);
         } else if (is_data_ep && compression.equals("bson")) {
             return EBSON.json_to_bson(content);
         } else if (is_data_ep && compression.equals("gzip-bson")) {
             if (compression_level < 0 || compression_level > 9) { compression_level = 6; }
-            return ErlangTermToBinWrp.compress(EBSON.json_to_bson(content), compression_level).array();
+            byte[] bson = EBSON.json_to_bson(content);
+            return this.deflaters.deflate(bson, 0, bson.length, compression_level);
+        } else if (is_data_ep && compression.equals("etf")) {
+            return ErlangTermToBinWrp.term_to_binary(content, compression_level, this.deflaters);
         } else {
-            return content.toString().getBytes("UTF-8");
+            return json != null ? json : content.toString().getBytes("UTF-8");
+        }
+    }
+
+    private boolean _is_keycloak_auth_error(JsonObject result)
+    {
+        if (!this.tokens.hasCredentials()) return false;
+
+        if (result == null) return false;
+        JsonElement err = result.get("error");
+        if (err == null) return false;
+        JsonObject errObj = err.getAsJsonObject();
+        if (errObj == null) return false;
+
+        JsonElement code = errObj.get("code");
+        if (code == null) return false;
+        if (code.getAsInt() != 1001) return false;
+
+        JsonElement msg = errObj.get("message");
+        if (msg == null) return false;
+        if (!msg.getAsString().equalsIgnoreCase("authorization error")) return false;
+
+        return true;
+    }
+
+    /**
+     * @param token the access token the request was sent with, not reloaded again if it was replaced since
+     */
+    private boolean _check_keycloak_auth_error(JsonObject result, String token)
+    {
+        if (!_is_keycloak_auth_error(result)) return false;
+
+        try {
+            this.tokens.refreshNow(token);
+            return true;
+        } catch (MdtsdbException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A request that is ready to be sent.
+     */
+    private static final class PreparedCall
+    {
+        final CommunicationLayer comLayer;
+        final Map<String, String> headers;
+        final byte[] body;
+        final int length;
+        final CommunicationLayer.StreamedBody stream;
+        // hex encoded SHA-256 of the body if it was hashed while written, else null
+        final String digest;
+        private final BufferPool pool;
+        private final ByteSink buffer;
+
+        PreparedCall(CommunicationLayer comLayer, Map<String, String> headers, byte[] body)
+        {
+            this.comLayer = comLayer;
+            this.headers = headers;
+            this.body = body;
+            this.length = body.length;
+            this.stream = null;
+            this.digest = null;
+            this.pool = null;
+            this.buffer = null;
+        }
+
+        /**
+         * A call sending a body read from a stream, whose length is not known in advance.
+         */
+        PreparedCall(CommunicationLayer comLayer, Map<String, String> headers, CommunicationLayer.StreamedBody stream)
+        {
+            this.comLayer = comLayer;
+            this.headers = headers;
+            this.body = null;
+            this.length = -1;
+            this.stream = stream;
+            this.digest = null;
+            this.pool = null;
+            this.buffer = null;
+        }
+
+        /**
+         * A call sending the content of a pooled buffer, which is returned to the pool by release().
+         * The digest of a buffer that hashes its content is taken over.
+         */
+        PreparedCall(CommunicationLayer comLayer, Map<String, String> headers, BufferPool pool, ByteSink buffer)
+        {
+            this.comLayer = comLayer;
+            this.headers = headers;
+            this.body = buffer.array();
+            this.length = buffer.length();
+            this.stream = null;
+            this.digest = buffer.isDigesting() ? buffer.digestHex() : null;
+            this.pool = pool;
+            this.buffer = buffer;
+        }
+
+        void release()
+        {
+            if(buffer != null)
+                pool.release(buffer);
+        }
+    }
+
+    /**
+     * Prepares a request. Called once more for every retry and after the access token
+     * is reloaded, so that the repeated request carries the new credentials.
+     */
+    @FunctionalInterface
+    private interface CallFactory
+    {
+        PreparedCall prepare() throws Exception;
+
+        /**
+         * @return false if a request repeated after it reached the server may repeat its
+         *         effect, e.g. create a second key, see notIdempotent()
+         */
+        default boolean idempotent()
+        {
+            return true;
+        }
+    }
+
+    /**
+     * @return the factory, for requests that are retried only if they were never sent
+     */
+    private static CallFactory notIdempotent(CallFactory factory)
+    {
+        return new CallFactory()
+        {
+            @Override
+            public PreparedCall prepare() throws Exception
+            {
+                return factory.prepare();
+            }
+
+            @Override
+            public boolean idempotent()
+            {
+                return false;
+            }
+        };
+    }
+
+    private static final CommunicationLayer.BodyDecoder<JsonObject> JSON_OBJECT =
+        body -> CommunicationLayer.JSON_BODY.decode(body).getAsJsonObject();
+
+    private static final CommunicationLayer.BodyDecoder<String> RAW_STRING = CommunicationLayer.STRING_BODY;
+
+    private PreparedCall prepareJsonCall(CommunicationLayer comLayer, JsonObject content) throws Exception
+    {
+        boolean is_data_ep = comLayer.isDataEndpoint();
+        if (is_data_ep && this.adaptive != null)
+        {
+            // the size of the JSON text decides, and the text is reused by the JSON encodings
+            byte[] json = content.toString().getBytes(StandardCharsets.UTF_8);
+            AdaptiveEncoding.Encoding encoding = this.adaptive.choose(json.length, AdaptiveEncoding.ALL);
+            long start = System.nanoTime();
+            byte[] body = _call_method_prepare_content(content, true, encoding.option, json);
+            this.adaptive.record(encoding, json.length, body.length, System.nanoTime() - start);
+            return new PreparedCall(comLayer, _call_method_prepare_ep(true, encoding.option), body);
+        }
+        String compression = this.options.getProperty("compression", "false");
+        if (deflates(is_data_ep, compression))
+        {
+            // deflated into a pooled buffer, which is hashed as it is written
+            byte[] data = compression.equals("gzip") ? content.toString().getBytes(StandardCharsets.UTF_8) : EBSON.json_to_bson(content);
+            int compression_level = Integer.parseInt(this.options.getProperty("compression_level", "6"));
+            if (compression_level < 0 || compression_level > 9) { compression_level = 6; }
+            ByteSink body = this.buffers.acquire(data.length / 4 + 64);
+            body.startDigest();
+            try {
+                this.deflaters.deflate(data, 0, data.length, compression_level, body);
+            }
+            catch(Exception e)
+            {
+                this.buffers.release(body);
+                throw e;
+            }
+            return new PreparedCall(comLayer, _call_method_prepare_ep(true, compression), this.buffers, body);
+        }
+        return new PreparedCall(comLayer, _call_method_prepare_ep(is_data_ep), _call_method_prepare_content(content, is_data_ep));
+    }
+
+    private PreparedCall prepareRawCall(CommunicationLayer comLayer, byte[] content) throws Exception
+    {
+        boolean is_data_ep = comLayer.isDataEndpoint();
+        return new PreparedCall(comLayer, _call_method_prepare_ep(is_data_ep), content);
+    }
+
+    private static JsonObject responseStatus(Object result) throws MdtsdbException
+    {
+        if (result instanceof JsonObject)
+            return (JsonObject) result;
+        try {
+            return new JsonParser().parse((String) result).getAsJsonObject();
+        } catch(Exception e) {
+            throw new MdtsdbException(e);
+        }
+    }
+
+    private <T> T invoke(CallFactory factory, CommunicationLayer.BodyDecoder<T> decoder) throws MdtsdbException
+    {
+        String token = currentToken();
+        T result = invokeRetrying(factory, decoder);
+        if (_check_keycloak_auth_error(responseStatus(result), token)) {
+            result = invokeRetrying(factory, decoder);
+        }
+        return result;
+    }
+
+    private <T> T invokeRetrying(CallFactory factory, CommunicationLayer.BodyDecoder<T> decoder) throws MdtsdbException
+    {
+        for (int attempt = 1; ; ++attempt) {
+            T result;
+            try {
+                result = invoke_impl(factory, decoder);
+            } catch (MdtsdbException e) {
+                long delay = this.retries.afterFailure(attempt, e, factory.idempotent());
+                if (delay < 0)
+                    throw e;
+                RetryEngine.sleep(delay);
+                continue;
+            }
+            long delay = this.retries.afterResponse(attempt, result, factory.idempotent());
+            if (delay < 0)
+                return result;
+            RetryEngine.sleep(delay);
         }
     }
 
-    private boolean _check_keycloak_auth_error(JsonObject result)
+    // the access token requests are sent with, refreshed first if it expired before its background refresh
+    private String currentToken()
     {
-        if (this.tsAuthUrl == null) return false;
-        if (this.tsAuthClientId == null) return false;
-        if (this.tsAuthClientSecret == null) return false;
-
-        if (result == null) return false;
-        JsonElement err = result.get("error");
-        if (err == null) return false;
-        JsonObject errObj = err.getAsJsonObject();
-        if (errObj == null) return false;
-
-        JsonElement code = errObj.get("code");
-        if (code == null) return false;
-        if (code.getAsInt() != 1001) return false;
-
-        JsonElement msg = errObj.get("message");
-        if (msg == null) return false;
-        if (!msg.getAsString().equalsIgnoreCase("authorization error")) return false;
-
-        try {
-            reloadAccessToken();
-            return true;
-        } catch (MdtsdbException e) {
-            return false;
+        String token = this.routes.accessToken();
+        if (this.tokens.isExpired()) {
+            try {
+                this.tokens.refreshNow(token);
+            } catch (MdtsdbException e) {
+                // sent with the expired token, and refreshed once more if the server rejects it
+            }
+            token = this.routes.accessToken();
         }
+        return token;
     }
 
-    private JsonObject request(CommunicationLayer comLayer, JsonObject content) throws MdtsdbException
+    private <T> T invoke_impl(CallFactory factory, CommunicationLayer.BodyDecoder<T> decoder) throws MdtsdbException
     {
         try {
-            String url = getPath();
-            boolean is_data_ep = url.endsWith("ingest");
-            byte[] postData = _call_method_prepare_content(content, is_data_ep);
-            return request0(comLayer, postData);
+            PreparedCall call = factory.prepare();
+            try {
+                if(call.stream != null)
+                    return call.comLayer.callApiMethod(call.headers, call.stream, decoder);
+                return call.comLayer.callApiMethod(call.headers, call.body, call.length, call.digest, decoder);
+            }
+            finally
+            {
+                call.release();
+            }
         }
         catch(Exception e)
         {
@@ -1344,40 +2217,86 @@ public class MdtsdbClientImpl
         }
     }
 
-    private JsonObject request0(CommunicationLayer comLayer, byte[] postData) throws MdtsdbException
+    private <T> CompletableFuture<T> invokeAsync(CallFactory factory, CommunicationLayer.BodyDecoder<T> decoder)
     {
-        JsonObject result = request0_impl(comLayer, postData);
-        if (_check_keycloak_auth_error(result)) {
-            result = request0_impl(comLayer, postData);
+        String expired = this.routes.accessToken();
+        if (this.tokens.isExpired()) {
+            // sent once the expired token is refreshed, or with it if the refresh fails
+            return this.tokens.refresh(expired).handle((ignored, e) -> null)
+                .thenCompose(ignored -> invokeAsync(this.routes.accessToken(), factory, decoder));
         }
-        return result;
+        return invokeAsync(expired, factory, decoder);
     }
 
-    private JsonObject request0_impl(CommunicationLayer comLayer, byte[] postData) throws MdtsdbException
+    private <T> CompletableFuture<T> invokeAsync(String token, CallFactory factory, CommunicationLayer.BodyDecoder<T> decoder)
     {
-        JsonObject result = null;
+        return invokeRetryingAsync(factory, decoder, 1).thenCompose(result -> {
+            JsonObject status;
+            try {
+                status = responseStatus(result);
+            } catch(MdtsdbException e) {
+                throw new CompletionException(e);
+            }
+            if (!_is_keycloak_auth_error(status))
+                return CompletableFuture.completedFuture(result);
+
+            // joins the reload of the token that is running, if any
+            return this.tokens.refresh(token).handle((ignored, e) -> e == null)
+                .thenCompose(reloaded -> reloaded ? invokeRetryingAsync(factory, decoder, 1) : CompletableFuture.completedFuture(result));
+        });
+    }
+
+    // retries wait on the transport timer, not on a thread
+    private <T> CompletableFuture<T> invokeRetryingAsync(CallFactory factory, CommunicationLayer.BodyDecoder<T> decoder, int attempt)
+    {
+        return invokeAsync_impl(factory, decoder).handle((result, e) -> {
+            long delay = e == null ? this.retries.afterResponse(attempt, result, factory.idempotent())
+                                  : this.retries.afterFailure(attempt, e, factory.idempotent());
+            if (delay < 0) {
+                if (e == null)
+                    return CompletableFuture.completedFuture(result);
+                CompletableFuture<T> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+            return CompletableFuture.runAsync(() -> {}, this.retries.delayed(this.transport, delay))
+                .thenCompose(ignored -> invokeRetryingAsync(factory, decoder, attempt + 1));
+        }).thenCompose(next -> next);
+    }
 
+    private <T> CompletableFuture<T> invokeAsync_impl(CallFactory factory, CommunicationLayer.BodyDecoder<T> decoder)
+    {
+        CompletableFuture<T> future;
         try {
-            String url = getPath();
-            boolean is_data_ep = url.endsWith("ingest");
-            Map<String, String> headers = _call_method_prepare_ep(is_data_ep);
-
-            String data = comLayer.callApiMethod(headers, postData);
-            result = new JsonParser().parse(data).getAsJsonObject();
+            PreparedCall call = factory.prepare();
+            future = call.stream != null ? call.comLayer.callApiMethodAsync(call.headers, call.stream, decoder)
+                                         : call.comLayer.callApiMethodAsync(call.headers, call.body, call.length, call.digest, decoder);
+            future.whenComplete((result, e) -> call.release());
         }
         catch(Exception e)
         {
-            throw new MdtsdbException(e);
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
         }
-
-        return result;
+        return future.handle((result, e) -> {
+            if (e == null)
+                return result;
+            Throwable cause = (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e;
+            if (cause instanceof MdtsdbException)
+                throw new CompletionException(cause);
+            throw new CompletionException(new MdtsdbException(cause instanceof Exception ? (Exception) cause : new Exception(cause)));
+        });
     }
 
     private JsonObject sendData(MdtsdbScheme schemeId, JsonElement sensorData) throws MdtsdbException
     {
-        JsonObject result = null;
+        return invoke(sendDataCall(schemeId, sensorData), JSON_OBJECT);
+    }
 
-        try {
+    private CallFactory sendDataCall(MdtsdbScheme schemeId, JsonElement sensorData)
+    {
+        return () -> {
+            RouteTable routes = this.routes;
             String apiMethod = "setData";
 
             JsonObject postData = new JsonObject();
@@ -1388,129 +2307,542 @@ public class MdtsdbClientImpl
             postData.add("params", sensorData);
 
             if(this.tsAppKey == null || this.tsAppKey.isEmpty())
-                postData.addProperty("adminkey", this.tsAdmKey);
+                postData.addProperty("adminkey", routes.admKey());
+
+            return prepareJsonCall(routes.get(apiMethod, schemeIdString), postData);
+        };
+    }
+
+    private CallFactory sendBatchCall(MdtsdbScheme schemeId, PointBatch points)
+    {
+        return () -> {
+            RouteTable routes = this.routes;
+            String apiMethod = "setData";
+            String schemeIdString = schemeId.getSchemeId();
+            CommunicationLayer comLayer = routes.get(apiMethod, schemeIdString);
+            boolean is_data_ep = comLayer.isDataEndpoint();
+
+            String compression = this.options.getProperty("compression", "false");
+            AdaptiveEncoding.Encoding encoding = null;
+            if(is_data_ep && this.adaptive != null)
+            {
+                // the batch is sent in its own encoding, compressed or not
+                encoding = this.adaptive.choose(points.byteSize(), points.encoding() == PointBatch.Encoding.BSON
+                                                                       ? AdaptiveEncoding.BSON_BODIES : AdaptiveEncoding.JSON_BODIES);
+                compression = encoding.option;
+            }
+            boolean bson = is_data_ep && (compression.equals("bson") || compression.equals("gzip-bson"));
+            boolean etf = is_data_ep && compression.equals("etf");
+            if(etf || bson != (points.encoding() == PointBatch.Encoding.BSON))
+            {
+                // the batch is encoded for another body format
+                return sendDataCall(schemeId, batchTree(points)).prepare();
+            }
+
+            // the document sendDataCall builds, written directly into a pooled buffer
+            ByteSink postData = this.buffers.acquire(points.byteSize() + 256);
+            boolean digest = !deflates(is_data_ep, compression);
+            // BSON lengths are patched after their content, so a BSON body is hashed once it is complete
+            if(digest && !bson)
+                postData.startDigest();
+            try {
+                if(bson)
+                {
+                    writeBsonEnvelope(postData, apiMethod, schemeIdString, routes.admKey(), points::writeTo);
+                    if(digest)
+                        postData.startDigest(0);
+                }
+                else
+                {
+                    writeJsonEnvelope(postData, apiMethod, schemeIdString, routes.admKey(), points::writeTo);
+                }
+                return preparePooledCall(comLayer, postData, is_data_ep, compression, encoding, false);
+            }
+            catch(Exception e)
+            {
+                this.buffers.release(postData);
+                throw e;
+            }
+        };
+    }
 
-            CommunicationLayer comLayer = getCommunicationLayer(apiMethod, schemeIdString);
-            result = request(comLayer, postData);
+    private void writeJsonEnvelope(ByteSink out, String apiMethod, String schemeIdString, String admKey, ParamsWriter params)
+        throws IOException
+    {
+        out.writeAscii("{\"method\":");
+        out.writeString(apiMethod);
+        out.writeAscii(",\"context\":");
+        out.writeString(schemeIdString);
+        out.writeAscii(",\"key\":");
+        out.writeString(this.tsAppKey);
+        out.writeAscii(",\"params\":");
+        params.write(out);
+        if(this.tsAppKey == null || this.tsAppKey.isEmpty())
+        {
+            out.writeAscii(",\"adminkey\":");
+            out.writeString(admKey);
         }
-        catch(Exception e)
+        out.write('}');
+    }
+
+    private void writeBsonEnvelope(ByteSink out, String apiMethod, String schemeIdString, String admKey, ParamsWriter params)
+        throws IOException
+    {
+        int start = out.length();
+        out.writeInt32(0);
+        writeBsonString(out, "method", apiMethod);
+        writeBsonString(out, "context", schemeIdString);
+        writeBsonString(out, "key", this.tsAppKey);
+        out.write(0x04);
+        out.writeCString("params");
+        params.write(out);
+        if(this.tsAppKey == null || this.tsAppKey.isEmpty())
+            writeBsonString(out, "adminkey", admKey);
+        out.write(0);
+        out.putInt32(start, out.length() - start);
+    }
+
+    /**
+     * Writes the "params" value of a request body.
+     */
+    @FunctionalInterface
+    private interface ParamsWriter
+    {
+        void write(ByteSink out) throws IOException;
+    }
+
+    private static void writeBsonString(ByteSink out, String name, String value)
+    {
+        out.write(value == null ? 0x0a : 0x02);
+        out.writeCString(name);
+        if(value != null)
+            out.writeBsonString(value);
+    }
+
+    private JsonObject sendLargeData(MdtsdbScheme schemeId, JsonArray sensorData) throws MdtsdbException
+    {
+        try {
+            return sendLargeDataAsync(schemeId, sensorData).join();
+        }
+        catch(CompletionException e)
         {
+            if(e.getCause() instanceof MdtsdbException)
+                throw (MdtsdbException) e.getCause();
             throw new MdtsdbException(e);
         }
+    }
 
-        return result;
+    private CompletableFuture<JsonObject> sendLargeDataAsync(MdtsdbScheme schemeId, JsonArray sensorData)
+    {
+        List<CompletableFuture<JsonObject>> chunks = new ArrayList<>();
+        for(JsonArray chunk : this.parallel.split(sensorData))
+            chunks.add(sendSizedAsync(schemeId, chunk, this.parallel.pool()));
+        return CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[0]))
+            .thenApply(done -> ParallelEncoding.merge(chunks.stream().map(CompletableFuture::join).collect(Collectors.toList())));
     }
 
-    private JsonObject sendGeoData(MdtsdbScheme schemeId, String geoData) throws MdtsdbException
+    // the request of a whole array, joined from chunks encoded in parallel when the array is large
+    private CallFactory arrayDataCall(MdtsdbScheme schemeId, JsonArray sensorData)
+    {
+        if(this.parallel.applies(sensorData) && this.parallel.joinsBodies())
+            return sendJoinedDataCall(schemeId, sensorData);
+        return sendDataCall(schemeId, sensorData);
+    }
+
+    private JsonObject sendSized(MdtsdbScheme schemeId, JsonArray sensorData) throws MdtsdbException
     {
-        JsonObject result = null;
+        return sendSized(schemeId, arrayDataCall(schemeId, sensorData), RequestSizeLimit.units(sensorData), () -> sensorData);
+    }
 
+    /**
+     * Sends the points of a request, split into as many requests as the request size limit needs.
+     *
+     * @param units the number of points in the request
+     * @param points the points of the request as an array, built only when the request is split
+     */
+    private JsonObject sendSized(MdtsdbScheme schemeId, CallFactory factory, int units, Supplier<JsonArray> points)
+        throws MdtsdbException
+    {
+        // an expired token is refreshed before the call is prepared with it
+        String token = currentToken();
+        PreparedCall call;
         try {
-            CommunicationLayer comLayer = getCommunicationLayer("setData", schemeId.getSchemeId());
-            result = request0(comLayer, geoData.getBytes("UTF-8"));
+            call = factory.prepare();
         }
         catch(Exception e)
         {
             throw new MdtsdbException(e);
         }
+        int length = call.length;
+        int parts = this.requestSize.parts(length, units);
+        if(parts > 1)
+        {
+            call.release();
+            return sendPieces(schemeId, RequestSizeLimit.split(points.get(), parts));
+        }
 
-        return result;
+        JsonObject response = invoke(preparedFirst(call, token, factory), JSON_OBJECT);
+        if(!sizeRejected(response, length, units))
+            return response;
+        return sendPieces(schemeId, RequestSizeLimit.split(points.get(), 2));
     }
 
-    private JsonObject execQuery(MdtsdbScheme schemeId, String script, Integer version) throws MdtsdbException
+    private JsonObject sendPieces(MdtsdbScheme schemeId, List<JsonArray> pieces) throws MdtsdbException
     {
-        return execQuery(schemeId, script, version, false);
+        List<JsonObject> responses = new ArrayList<>(pieces.size());
+        for(JsonArray piece : pieces)
+            responses.add(sendSized(schemeId, piece));
+        return ParallelEncoding.merge(responses);
     }
 
-    private JsonObject execQuery(MdtsdbScheme schemeId, String script, Integer version, Boolean stream) throws MdtsdbException
+    private CompletableFuture<JsonObject> sendSizedAsync(MdtsdbScheme schemeId, JsonArray sensorData, Executor prepareOn)
     {
-        JsonObject result = execQuery_impl(schemeId, script, version, stream);
-        if (_check_keycloak_auth_error(result)) {
-            result = execQuery_impl(schemeId, script, version, stream);
+        return sendSizedAsync(schemeId, arrayDataCall(schemeId, sensorData), RequestSizeLimit.units(sensorData), () -> sensorData,
+                              prepareOn);
+    }
+
+    /**
+     * @param prepareOn the executor the request is prepared on, the calling thread if null
+     * @see #sendSized(MdtsdbScheme, CallFactory, int, Supplier)
+     */
+    private CompletableFuture<JsonObject> sendSizedAsync(MdtsdbScheme schemeId, CallFactory factory, int units,
+                                                         Supplier<JsonArray> points, Executor prepareOn)
+    {
+        // a token expired by the time the call is sent is refreshed by invokeAsync, and the call prepared again
+        String token = this.routes.accessToken();
+        Supplier<PreparedCall> prepare = () -> {
+            try {
+                return factory.prepare();
+            }
+            catch(Exception e)
+            {
+                throw new CompletionException(new MdtsdbException(e));
+            }
+        };
+        CompletableFuture<PreparedCall> prepared;
+        if(prepareOn != null)
+            prepared = CompletableFuture.supplyAsync(prepare, prepareOn);
+        else
+        {
+            try {
+                prepared = CompletableFuture.completedFuture(prepare.get());
+            }
+            catch(CompletionException e)
+            {
+                prepared = new CompletableFuture<>();
+                prepared.completeExceptionally(e.getCause());
+            }
         }
-        return result;
+
+        return prepared.thenCompose(call -> {
+            int length = call.length;
+            int parts = this.requestSize.parts(length, units);
+            if(parts > 1)
+            {
+                call.release();
+                return sendPiecesAsync(schemeId, RequestSizeLimit.split(points.get(), parts), prepareOn);
+            }
+
+            return invokeAsync(preparedFirst(call, token, factory), JSON_OBJECT).thenCompose(response -> {
+                if(!sizeRejected(response, length, units))
+                    return CompletableFuture.completedFuture(response);
+                return sendPiecesAsync(schemeId, RequestSizeLimit.split(points.get(), 2), prepareOn);
+            });
+        });
+    }
+
+    /**
+     * @return a factory whose first call is the one prepared already, unless the access
+     *         token it was prepared with has changed since
+     */
+    private CallFactory preparedFirst(PreparedCall call, String token, CallFactory factory)
+    {
+        AtomicBoolean first = new AtomicBoolean(true);
+        return () -> {
+            if(!first.getAndSet(false))
+                return factory.prepare();
+            if(Objects.equals(token, this.routes.accessToken()))
+                return call;
+            call.release();
+            return factory.prepare();
+        };
     }
 
-    private JsonObject execQuery_impl(MdtsdbScheme schemeId, String script, Integer version, Boolean stream) throws MdtsdbException
+    private CompletableFuture<JsonObject> sendPiecesAsync(MdtsdbScheme schemeId, List<JsonArray> pieces, Executor prepareOn)
     {
-        JsonObject result = null;
+        List<CompletableFuture<JsonObject>> sent = new ArrayList<>(pieces.size());
+        for(JsonArray piece : pieces)
+            sent.add(sendSizedAsync(schemeId, piece, prepareOn));
+        return CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[0]))
+            .thenApply(done -> ParallelEncoding.merge(sent.stream().map(CompletableFuture::join).collect(Collectors.toList())));
+    }
 
-        try {
-            String q = String.format("q=%s&key=%s&adm=%s&stream=%d",
-                URLEncoder.encode(script, "UTF-8"),
-                URLEncoder.encode(this.tsAppKey, "UTF-8"),
-                URLEncoder.encode(this.tsAdmKey, "UTF-8"),
-                (stream ? 1 : 0)
-            );
+    /**
+     * Learns the request size limit from the response to a request of the given body size.
+     *
+     * @return true if the request was rejected for its size and can be split
+     */
+    private boolean sizeRejected(JsonObject response, int length, int units)
+    {
+        if(!RequestSizeLimit.isRejected(response))
+        {
+            if(!response.has("error"))
+                this.requestSize.accepted(length);
+            return false;
+        }
+        this.requestSize.rejected(length);
+        return units > 1;
+    }
+
+    /**
+     * The request sendDataCall builds, with the points encoded and deflated in parallel chunks.
+     */
+    private CallFactory sendJoinedDataCall(MdtsdbScheme schemeId, JsonArray sensorData)
+    {
+        return () -> {
+            RouteTable routes = this.routes;
+            String apiMethod = "setData";
+            String schemeIdString = schemeId.getSchemeId();
+            CommunicationLayer comLayer = routes.get(apiMethod, schemeIdString);
+            boolean is_data_ep = comLayer.isDataEndpoint();
 
-            String pref;
-            if (schemeId == MdtsdbClientImpl.MdtsdbScheme.ASYNC_EVENTS)
+            String compression = this.options.getProperty("compression", "false");
+            boolean bson = is_data_ep && (compression.equals("bson") || compression.equals("gzip-bson"));
+            boolean json = !is_data_ep || compression.equals("false") || compression.equals("gzip");
+            if(!json && !(bson && ParallelEncoding.allObjects(sensorData)))
             {
-                schemeId = MdtsdbClientImpl.MdtsdbScheme.EVENTS;
-                q += "&async=1";
+                // ETF and adaptive bodies are encoded as a whole
+                return sendDataCall(schemeId, sensorData).prepare();
+            }
+
+            List<Callable<ByteSink>> tasks = new ArrayList<>();
+            int index = 0;
+            for(JsonArray chunk : this.parallel.split(sensorData))
+            {
+                int first = index;
+                tasks.add(bson ? () -> ParallelEncoding.bsonElements(chunk, first) : () -> ParallelEncoding.jsonElements(chunk));
+                index += chunk.size();
+            }
+            List<ByteSink> encoded = this.parallel.run(tasks);
+            int size = 0;
+            for(ByteSink elements : encoded)
+                size += elements.length() + 1;
+
+            ByteSink postData = this.buffers.acquire(size + 256);
+            boolean digest = !deflates(is_data_ep, compression);
+            // BSON lengths are patched after their content, so a BSON body is hashed once it is complete
+            if(digest && !bson)
+                postData.startDigest();
+            try {
+                if(bson)
+                {
+                    writeBsonEnvelope(postData, apiMethod, schemeIdString, routes.admKey(), out -> {
+                        int start = out.length();
+                        out.writeInt32(0);
+                        for(ByteSink elements : encoded)
+                            out.write(elements);
+                        out.write(0);
+                        out.putInt32(start, out.length() - start);
+                    });
+                    if(digest)
+                        postData.startDigest(0);
+                }
+                else
+                {
+                    writeJsonEnvelope(postData, apiMethod, schemeIdString, routes.admKey(), out -> {
+                        out.write('[');
+                        for(int i = 0; i < encoded.size(); ++i)
+                        {
+                            if(i > 0)
+                                out.write(',');
+                            out.write(encoded.get(i));
+                        }
+                        out.write(']');
+                    });
+                }
+                return preparePooledCall(comLayer, postData, is_data_ep, compression, null, true);
+            }
+            catch(Exception e)
+            {
+                this.buffers.release(postData);
+                throw e;
             }
+        };
+    }
+
+    private static JsonElement batchTree(PointBatch points)
+    {
+        byte[] data = points.toByteArray();
+        if(points.encoding() == PointBatch.Encoding.BSON)
+            return EBSON.bson_array_to_json(data);
+        return new JsonParser().parse(new String(data, StandardCharsets.UTF_8));
+    }
 
-            CommunicationLayer comLayer = getCommunicationLayer(
-                version == 1 ? MdtsdbClientImpl.QL : MdtsdbClientImpl.QL2, schemeId.getSchemeId());
-            String data = comLayer.callApiMethod(q.getBytes("UTF-8"));
-            result = new JsonParser().parse(data).getAsJsonObject();
+    private PreparedCall preparePooledCall(CommunicationLayer comLayer, ByteSink content, boolean is_data_ep, String compression,
+                                           AdaptiveEncoding.Encoding encoding, boolean parallelDeflate) throws Exception
+    {
+        Map<String, String> headers = _call_method_prepare_ep(is_data_ep, compression);
+        int compression_level = Integer.parseInt(this.options.getProperty("compression_level", "6"));
+        if (!deflates(is_data_ep, compression))
+        {
+            if (encoding != null)
+                this.adaptive.record(encoding, content.length(), content.length(), 0);
+            return new PreparedCall(comLayer, headers, this.buffers, content);
+        }
+
+        if (compression_level < 0 || compression_level > 9) { compression_level = 6; }
+        // deflated straight into a second pooled buffer, which becomes the request body and is hashed as it is written
+        ByteSink body = this.buffers.acquire(content.length() / 4 + 64);
+        body.startDigest();
+        try {
+            long start = System.nanoTime();
+            if (parallelDeflate)
+                this.parallel.deflate(this.deflaters, content.array(), 0, content.length(), compression_level, body);
+            else
+                this.deflaters.deflate(content.array(), 0, content.length(), compression_level, body);
+            if (encoding != null)
+                this.adaptive.record(encoding, content.length(), body.length(), System.nanoTime() - start);
         }
         catch(Exception e)
         {
-            throw new MdtsdbException(e);
+            this.buffers.release(body);
+            throw e;
         }
+        finally
+        {
+            this.buffers.release(content);
+        }
+        return new PreparedCall(comLayer, headers, this.buffers, body);
+    }
 
-        return result;
+    /**
+     * @return true if a body of the given compression is deflated
+     */
+    private boolean deflates(boolean is_data_ep, String compression)
+    {
+        int compression_level = Integer.parseInt(this.options.getProperty("compression_level", "6"));
+        return is_data_ep && ((compression.equals("gzip") && compression_level >= 0) || compression.equals("gzip-bson"));
     }
 
-    private String delayedQuery(String uuid, MdtsdbScheme schemeId) throws MdtsdbException
+    private JsonObject sendGeoData(MdtsdbScheme schemeId, String geoData) throws MdtsdbException
+    {
+        return invoke(sendGeoDataCall(schemeId, geoData), JSON_OBJECT);
+    }
+
+    private CallFactory sendGeoDataCall(MdtsdbScheme schemeId, String geoData)
+    {
+        return () -> prepareRawCall(this.routes.get("setData", schemeId.getSchemeId()), geoData.getBytes("UTF-8"));
+    }
+
+    private JsonObject execQuery(MdtsdbScheme schemeId, String script, Integer version) throws MdtsdbException
+    {
+        return execQuery(schemeId, script, version, false);
+    }
+
+    private JsonObject execQuery(MdtsdbScheme schemeId, String script, Integer version, Boolean stream) throws MdtsdbException
+    {
+        return invoke(execQueryCall(schemeId, script, version, stream), JSON_OBJECT);
+    }
+
+    private java.util.stream.Stream<JsonObject> execQueryStream(MdtsdbScheme schemeId, String script, Integer version) throws MdtsdbException
     {
-        String result = delayedQuery_impl(uuid, schemeId);
-        JsonObject resObj = null;
+        CallFactory factory = execQueryCall(schemeId, script, version, true);
+        String token = currentToken();
+        JsonRecordIterator records = openRecords(factory);
         try {
-            resObj = new JsonParser().parse(result).getAsJsonObject();
-        } catch(Exception e) {
+            // an authorization error is reported as the first (and only) record
+            JsonObject first = records.peek();
+            if (first != null && _check_keycloak_auth_error(first, token)) {
+                records.close();
+                records = openRecords(factory);
+                records.peek();
+            }
+        } catch(RuntimeException e) {
+            records.close();
             throw new MdtsdbException(e);
         }
-        if (_check_keycloak_auth_error(resObj)) {
-            result = delayedQuery_impl(uuid, schemeId);
-        }
-        return result;
+        return records.stream();
     }
 
-    private String delayedQuery_impl(String uuid, MdtsdbScheme schemeId) throws MdtsdbException
+    private JsonRecordIterator openRecords(CallFactory factory) throws MdtsdbException
     {
-        String result = null;
-        String key = (this.tsAppKey != null && !this.tsAppKey.isEmpty()) ? this.tsAppKey : this.tsAdmKey;
-
         try {
-            String q = String.format("uuid=%s&key=%s",
-                URLEncoder.encode(uuid, "UTF-8"),
-                URLEncoder.encode(key, "UTF-8"));
-
-            CommunicationLayer comLayer = getCommunicationLayer(MdtsdbClientImpl.RESULTS, schemeId.getSchemeId());
-            result = comLayer.callApiMethod(q.getBytes("UTF-8"));
+            PreparedCall call = factory.prepare();
+            return new JsonRecordIterator(call.comLayer.openApiMethod(call.headers, call.body));
         }
         catch(Exception e)
         {
             throw new MdtsdbException(e);
         }
+    }
 
-        return result;
+    private CallFactory execQueryCall(MdtsdbScheme schemeId, String script, Integer version, Boolean stream)
+    {
+        return () -> {
+            RouteTable routes = this.routes;
+            String q = String.format("q=%s&key=%s&adm=%s&stream=%d",
+                URLEncoder.encode(script, "UTF-8"),
+                URLEncoder.encode(this.tsAppKey, "UTF-8"),
+                URLEncoder.encode(routes.admKey(), "UTF-8"),
+                (stream ? 1 : 0)
+            );
+
+            MdtsdbScheme scheme = schemeId;
+            if (scheme == MdtsdbClientImpl.MdtsdbScheme.ASYNC_EVENTS)
+            {
+                scheme = MdtsdbClientImpl.MdtsdbScheme.EVENTS;
+                q += "&async=1";
+            }
+
+            CommunicationLayer comLayer = routes.get(
+                version == 1 ? MdtsdbClientImpl.QL : MdtsdbClientImpl.QL2, scheme.getSchemeId());
+            return new PreparedCall(comLayer, Collections.<String, String>emptyMap(), q.getBytes("UTF-8"));
+        };
+    }
+
+    private String delayedQuery(String uuid, MdtsdbScheme schemeId) throws MdtsdbException
+    {
+        return invoke(delayedQueryCall(uuid, schemeId), RAW_STRING);
+    }
+
+    private CallFactory delayedQueryCall(String uuid, MdtsdbScheme schemeId)
+    {
+        return () -> {
+            RouteTable routes = this.routes;
+            String key = (this.tsAppKey != null && !this.tsAppKey.isEmpty()) ? this.tsAppKey : routes.admKey();
+            String q = String.format("uuid=%s&key=%s",
+                URLEncoder.encode(uuid, "UTF-8"),
+                URLEncoder.encode(key, "UTF-8"));
+
+            CommunicationLayer comLayer = routes.get(MdtsdbClientImpl.RESULTS, schemeId.getSchemeId());
+            return new PreparedCall(comLayer, Collections.<String, String>emptyMap(), q.getBytes("UTF-8"));
+        };
     }
 
     private JsonObject ping(MdtsdbScheme schemeId, Integer timeout) throws MdtsdbException
     {
-        JsonObject paramsData = new JsonObject();
-        paramsData.addProperty("timeout", timeout);
-        return ping(schemeId, paramsData);
+        return invoke(pingCall(schemeId, pingParams(timeout)), JSON_OBJECT);
     }
 
     private JsonObject ping(MdtsdbScheme schemeId, JsonObject paramsData) throws MdtsdbException
     {
-        JsonObject result = null;
+        return invoke(pingCall(schemeId, paramsData), JSON_OBJECT);
+    }
 
-        try {
+    private static JsonObject pingParams(Integer timeout)
+    {
+        JsonObject paramsData = new JsonObject();
+        if(timeout == null)
+            paramsData.addProperty("timeout", "infinity");
+        else
+            paramsData.addProperty("timeout", timeout);
+        return paramsData;
+    }
+
+    private CallFactory pingCall(MdtsdbScheme schemeId, JsonObject paramsData)
+    {
+        return () -> {
+            RouteTable routes = this.routes;
             String apiMethod = "ping";
 
             JsonObject postData = new JsonObject();
@@ -1520,75 +2852,13 @@ public class MdtsdbClientImpl
             postData.addProperty("key", this.tsAppKey);
             postData.add("params", paramsData);
 
-            CommunicationLayer comLayer = getCommunicationLayer(apiMethod, schemeIdString);
-            result = request(comLayer, postData);
-        }
-        catch(Exception e)
-        {
-            throw new MdtsdbException(e);
-        }
-
-        return result;
-    }
-
-    private CommunicationLayer getCommunicationLayer(String apiMethod) throws Exception
-    {
-        return getCommunicationLayer(apiMethod, "events");
+            return prepareJsonCall(routes.get(apiMethod, schemeIdString), postData);
+        };
     }
 
-    private CommunicationLayer getCommunicationLayer(String apiMethod, String scheme) throws Exception
+    private RouteTable newRouteTable(String admKey, String secretKey)
     {
-        String contentType = "";
-        String path = "";
-        String signatureKey = "";
-        if (CommonDataMethods.contains(apiMethod))
-        {
-            if(scheme.equals("kml"))
-                path = "api/v1/ingest/kml";
-            else if(scheme.equals("geo_events"))
-                path = "api/v1/ingest/" + URLEncoder.encode(tsAppKey, "UTF-8");
-            else
-                path = "api/v1/ingest";
-            contentType = "application/json";
-            signatureKey = (tsAppKey != null && !tsAppKey.isEmpty()) ? tsAppKey : tsAdmKey;
-        }
-        else if (AdminMethods.contains(apiMethod))
-        {
-            path = "api/v1/admin";
-            contentType = "application/json";
-            signatureKey = tsAdmKey;
-        }
-        else if (apiMethod.equals(MdtsdbClientImpl.RESULTS))
-        {
-            path = "api/v1/result";
-            contentType = "application/x-www-form-urlencoded";
-            signatureKey = (tsAppKey != null && !tsAppKey.isEmpty()) ? tsAppKey : tsAdmKey;
-            apiMethod = MdtsdbClientImpl.QL;
-        }
-        else if (apiMethod.equals(MdtsdbClientImpl.QL2))
-        {
-            path = "api/v1/ql?v=2";
-            contentType = "application/x-www-form-urlencoded";
-            signatureKey = (tsAppKey != null && !tsAppKey.isEmpty()) ? tsAppKey : tsAdmKey;
-            apiMethod = MdtsdbClientImpl.QL;
-        }
-        else
-        {
-            path = "api/v1/ql";
-            contentType = "application/x-www-form-urlencoded";
-            signatureKey = (tsAppKey != null && !tsAppKey.isEmpty()) ? tsAppKey : tsAdmKey;
-        }
-        this.tsPath = path;
-        return new CommunicationLayer(tsEndpoint, tsPort, getUseSSL(), isDebug, CommunicationLayer.HttpMethod.POST,
-                                      contentType, path, tsSecretKey, signatureKey, apiMethod, scheme, this.tsAccessToken, this.tsAccessTokenType);
-    }
-
-    private String inputStreamGetData(InputStreamReader inputStreamReader) throws UnsupportedEncodingException, IOException {
-        String txt = CharStreams.toString(inputStreamReader);
-        if (txt.length() > 0 && txt.charAt(0) == '\u001e') {
-            byte[] cbuf = txt.getBytes("US-ASCII");
-            txt = new String(cbuf, 1, cbuf.length - 1);
-        }
-        return txt;
+        return new RouteTable(this.transport, tsEndpoint, tsPort, getUseSSL(), false, tsAppKey, admKey,
+                              secretKey, null, null);
     }
 }
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package com.qomplx.mdtsdb.client.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.Adler32;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Splits large inserts into chunks that are encoded and deflated in parallel.
+ *
+ * <p>
+ *   Arrays of at least "parallel_min_points" points are split into chunks of
+ *   "parallel_chunk_points". With "parallel_mode" "join" (the default) the chunks are
+ *   encoded in parallel and joined into the body of a single request, whose zlib stream
+ *   is deflated in parallel in blocks of "parallel_block_bytes". With "requests" each
+ *   chunk is prepared in parallel and sent as a request of its own. The work runs on a
+ *   ForkJoinPool of "parallel_threads" threads, or on the common pool when the option
+ *   is not set.
+ * </p>
+ */
+final class ParallelEncoding
+{
+    private final ForkJoinPool pool;
+    private final boolean ownPool;
+    private final int minPoints;
+    private final int chunkPoints;
+    private final int blockBytes;
+    private final boolean join;
+
+    ParallelEncoding(ForkJoinPool pool, boolean ownPool, int minPoints, int chunkPoints, int blockBytes, boolean join)
+    {
+        this.pool = pool;
+        this.ownPool = ownPool;
+        this.minPoints = minPoints;
+        this.chunkPoints = Math.max(chunkPoints, 1);
+        this.blockBytes = Math.max(blockBytes, 4096);
+        this.join = join;
+    }
+
+    static ParallelEncoding fromOptions(Properties options)
+    {
+        String threads = options.getProperty("parallel_threads");
+        String mode = options.getProperty("parallel_mode", "join");
+        if(!mode.equals("join") && !mode.equals("requests"))
+            throw new IllegalArgumentException("unknown parallel_mode: " + mode);
+        return new ParallelEncoding(threads == null ? ForkJoinPool.commonPool() : new ForkJoinPool(Integer.parseInt(threads)),
+                                    threads != null,
+                                    Integer.parseInt(options.getProperty("parallel_min_points", "100000")),
+                                    Integer.parseInt(options.getProperty("parallel_chunk_points", "25000")),
+                                    Integer.parseInt(options.getProperty("parallel_block_bytes", "131072")),
+                                    mode.equals("join"));
+    }
+
+    /**
+     * @return true if the points are sent in parallel chunks
+     */
+    boolean applies(JsonArray points)
+    {
+        return points.size() >= minPoints && points.size() > chunkPoints;
+    }
+
+    /**
+     * @return true if the chunks are joined into one request, false if sent as requests of their own
+     */
+    boolean joinsBodies()
+    {
+        return join;
+    }
+
+    ForkJoinPool pool()
+    {
+        return pool;
+    }
+
+    /**
+     * @return the points in chunks of "parallel_chunk_points", sharing the point objects
+     */
+    List<JsonArray> split(JsonArray points)
+    {
+        List<JsonArray> chunks = new ArrayList<>();
+        for(int start = 0; start < points.size(); start += chunkPoints)
+        {
+            JsonArray chunk = new JsonArray();
+            for(int i = start; i < Math.min(start + chunkPoints, points.size()); ++i)
+                chunk.add(points.get(i));
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    /**
+     * Runs the tasks on the pool.
+     *
+     * @return the results in the order of the tasks
+     */
+    <T> List<T> run(List<Callable<T>> tasks) throws Exception
+    {
+        List<ForkJoinTask<T>> running = new ArrayList<>(tasks.size());
+        for(Callable<T> task : tasks)
+            running.add(pool.submit(task));
+        List<T> results = new ArrayList<>(tasks.size());
+        Exception failure = null;
+        for(ForkJoinTask<T> task : running)
+        {
+            try {
+                results.add(task.get());
+            }
+            catch(java.util.concurrent.ExecutionException e)
+            {
+                if(failure == null)
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+        if(failure != null)
+            throw failure;
+        return results;
+    }
+
+    /**
+     * @return the elements of a chunk as JSON text, without the brackets of the array
+     */
+    static ByteSink jsonElements(JsonArray chunk)
+    {
+        ByteSink out = new ByteSink(chunk.size() * 64);
+        boolean first = true;
+        for(JsonElement point : chunk)
+        {
+            if(!first)
+                out.write(',');
+            first = false;
+            out.writeUtf8(point.toString());
+        }
+        return out;
+    }
+
+    /**
+     * @param index index of the first element of the chunk in the whole array
+     * @return the elements of a chunk of JSON objects as BSON array elements
+     */
+    static ByteSink bsonElements(JsonArray chunk, int index) throws Exception
+    {
+        ByteSink out = new ByteSink(chunk.size() * 64);
+        for(JsonElement point : chunk)
+        {
+            out.write(0x03);
+            out.writeLong(index++);
+            out.write(0);
+            byte[] doc = EBSON.json_to_bson(point.getAsJsonObject());
+            out.write(doc, 0, doc.length);
+        }
+        return out;
+    }
+
+    /**
+     * @return true if all points are JSON objects, which BSON chunks require
+     */
+    static boolean allObjects(JsonArray points)
+    {
+        for(JsonElement point : points)
+        {
+            if(!point.isJsonObject())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Appends the zlib stream of data[offset, offset + length) to out.
+     *
+     * <p>
+     *   The data is cut into blocks that are deflated in parallel as raw deflate streams,
+     *   each ending with a sync flush, as pigz does. The blocks are joined between a zlib
+     *   header and the Adler-32 of the whole data. A block does not see the data of the
+     *   block before it, which costs a little compression.
+     * </p>
+     */
+    void deflate(DeflaterPool deflaters, byte[] data, int offset, int length, int level, ByteSink out) throws Exception
+    {
+        if(length <= blockBytes)
+        {
+            deflaters.deflate(data, offset, length, level, out);
+            return;
+        }
+        List<Callable<ByteSink>> tasks = new ArrayList<>();
+        for(int start = 0; start < length; start += blockBytes)
+        {
+            int from = offset + start, len = Math.min(blockBytes, length - start);
+            boolean last = start + len == length;
+            tasks.add(() -> {
+                ByteSink block = new ByteSink(len / 2 + 64);
+                deflaters.deflateBlock(data, from, len, level, last, block);
+                return block;
+            });
+        }
+        List<ByteSink> blocks = run(tasks);
+
+        out.write(0x78);
+        out.write(level < 2 ? 0x01 : level < 6 ? 0x5e : level == 6 ? 0x9c : 0xda);
+        for(ByteSink block : blocks)
+            out.write(block);
+        Adler32 adler = new Adler32();
+        adler.update(data, offset, length);
+        long sum = adler.getValue();
+        out.write((int) (sum >>> 24));
+        out.write((int) (sum >>> 16));
+        out.write((int) (sum >>> 8));
+        out.write((int) sum);
+    }
+
+    /**
+     * Merges the responses to the chunks of an insert.
+     *
+     * @return the first response that is not a success, or else the first one, with all
+     *         responses in "chunks", merged responses being replaced by their chunks
+     */
+    static JsonObject merge(List<JsonObject> responses)
+    {
+        JsonObject merged = null;
+        JsonArray chunks = new JsonArray();
+        for(JsonObject response : responses)
+        {
+            JsonElement parts = response.get("chunks");
+            if(parts != null && parts.isJsonArray())
+                chunks.addAll(parts.getAsJsonArray());
+            else
+                chunks.add(response);
+            if(merged == null && !succeeded(response))
+                merged = response;
+        }
+        merged = copy(merged != null ? merged : responses.get(0));
+        merged.add("chunks", chunks);
+        return merged;
+    }
+
+    void close()
+    {
+        if(ownPool)
+            pool.shutdown();
+    }
+
+    private static boolean succeeded(JsonObject response)
+    {
+        if(response.has("error"))
+            return false;
+        JsonElement result = response.get("result");
+        if(result == null || !result.isJsonObject())
+            return true;
+        JsonElement status = result.getAsJsonObject().get("status");
+        return status == null || !status.isJsonPrimitive() || !status.getAsJsonPrimitive().isNumber() || status.getAsInt() == 1;
+    }
+
+    private static JsonObject copy(JsonObject response)
+    {
+        JsonObject copy = new JsonObject();
+        for(java.util.Map.Entry<String, JsonElement> entry : response.entrySet())
+            copy.add(entry.getKey(), entry.getValue());
+        return copy;
+    }
+}
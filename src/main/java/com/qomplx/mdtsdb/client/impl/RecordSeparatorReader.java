@@ -0,0 +1,45 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package com.qomplx.mdtsdb.client.impl;
+
+import java.io.*;
+
+/**
+ * Reader of JSON text sequences (RFC 7464) that turns record separators into whitespace.
+ *
+ * <p>
+ *   A JSON text never contains a raw RS character (control characters in strings are
+ *   escaped), so the replacement is safe anywhere in the stream and lets a lenient
+ *   JsonReader consume the records one after another without buffering the body.
+ * </p>
+ */
+class RecordSeparatorReader extends FilterReader
+{
+    static final char RS = '\u001e';
+
+    RecordSeparatorReader(Reader in)
+    {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        int c = super.read();
+        return c == RS ? ' ' : c;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException
+    {
+        int n = super.read(cbuf, off, len);
+        for(int i = off; i < off + n; ++i)
+        {
+            if(cbuf[i] == RS)
+                cbuf[i] = ' ';
+        }
+        return n;
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package com.qomplx.mdtsdb.client.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.concurrent.*;
+
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/**
+ * Computes MDTSDB-HMAC-SHA256 request signatures.
+ *
+ * <p>
+ *   The signing key is derived from the secret key, the coarse timestamp (which changes
+ *   every 1000 seconds) and the API method. A client keeps the derived keys of its secret
+ *   in a SigningKeys, per method, and re-derives them only when the timestamp rolls over,
+ *   so a request costs the digests of its payload and one HMAC. Mac and MessageDigest
+ *   instances are kept per thread.
+ * </p>
+ */
+public final class RequestSigner
+{
+    private static final String HMAC_SHA256 = "HmacSHA256";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<Mac> hmac = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance(HMAC_SHA256);
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private static final ThreadLocal<MessageDigest> sha256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private static final String EMPTY_PAYLOAD_HASH = sha256Hex(new byte[0]);
+
+    /**
+     * The payload hash a streaming request is signed with, its chunks being signed one by one.
+     */
+    public static final String STREAMING_PAYLOAD = "STREAMING-MDTSDB-HMAC-SHA256-PAYLOAD";
+
+    private RequestSigner()
+    {
+    }
+
+    /**
+     * Signs a request with an empty payload, as used by the websocket handshake.
+     */
+    public static String sign(String method, String signKey, String secretKey, String uri) throws InvalidKeyException
+    {
+        return sign(method, signKey, secretKey, uri, EMPTY_PAYLOAD_HASH, "");
+    }
+
+    /**
+     * Signs a request, deriving the signing key from the secret key.
+     *
+     * @see #sign(String, String, SigningKeys, String, String, String)
+     */
+    public static String sign(String method, String signKey, String secretKey,
+                              String uri, String payloadHash, String contentType) throws InvalidKeyException
+    {
+        return sign(method, signKey, new SigningKeys(secretKey), uri, payloadHash, contentType);
+    }
+
+    /**
+     * Signs a request.
+     *
+     * @param method API method
+     * @param signKey application or administrative key the request is signed with
+     * @param keys derived keys of the secret key
+     * @param uri request path, without the leading slash
+     * @param payloadHash hex encoded SHA-256 of the request body
+     * @param contentType content type of the request body
+     * @return hex encoded signature
+     */
+    public static String sign(String method, String signKey, SigningKeys keys,
+                              String uri, String payloadHash, String contentType) throws InvalidKeyException
+    {
+        long ts = System.currentTimeMillis() / 1000L / 1000L;
+        String tsString = String.valueOf(ts);
+        Mac mac = hmac.get();
+        mac.init(keys.derivedKey(method, ts, tsString));
+        return sign(mac, tsString, signKey, uri, payloadHash, contentType);
+    }
+
+    /**
+     * Starts signing a streaming request, whose body is sent in signed chunks.
+     *
+     * @see ChunkSigner
+     */
+    public static ChunkSigner chunkSigner(String method, String signKey, SigningKeys keys,
+                                          String uri, String contentType) throws InvalidKeyException
+    {
+        long ts = System.currentTimeMillis() / 1000L / 1000L;
+        String tsString = String.valueOf(ts);
+        // the signer owns its instances, since the chunks may be signed on any thread
+        Mac mac;
+        MessageDigest md;
+        try {
+            mac = Mac.getInstance(HMAC_SHA256);
+            md = MessageDigest.getInstance("SHA-256");
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        mac.init(keys.derivedKey(method, ts, tsString));
+        return new ChunkSigner(mac, md, tsString, sign(mac, tsString, signKey, uri, STREAMING_PAYLOAD, contentType));
+    }
+
+    private static String sign(Mac mac, String tsString, String signKey, String uri, String payloadHash, String contentType)
+    {
+        String canonical = new StringBuilder(uri.length() + contentType.length() + payloadHash.length() + 3)
+            .append('/').append(uri).append('\n').append(contentType).append('\n').append(payloadHash)
+            .toString();
+        String requestDigest = sha256Hex(canonical.getBytes(StandardCharsets.UTF_8));
+        String msg = new StringBuilder(tsString.length() + signKey.length() + requestDigest.length() + 2)
+            .append(tsString).append('\n').append(signKey).append('\n').append(requestDigest)
+            .toString();
+        return toHex(mac.doFinal(msg.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Signs the chunks of a streaming request.
+     *
+     * <p>
+     *   The request itself is signed as usual, with STREAMING_PAYLOAD in place of the hash
+     *   of its body, which gives the seed signature. The signature of every chunk is the
+     *   HMAC of "MDTSDB-HMAC-SHA256-PAYLOAD", the timestamp, the signature of the chunk
+     *   before it and the hash of the chunk, one per line, with the same derived key. The
+     *   last chunk is empty. Not safe for concurrent use.
+     * </p>
+     */
+    public static final class ChunkSigner
+    {
+        private final Mac mac;
+        private final MessageDigest md;
+        private final String tsString;
+        private final String seed;
+        private String previous;
+
+        private ChunkSigner(Mac mac, MessageDigest md, String tsString, String seed)
+        {
+            this.mac = mac;
+            this.md = md;
+            this.tsString = tsString;
+            this.seed = seed;
+            this.previous = seed;
+        }
+
+        /**
+         * @return the signature of the request headers
+         */
+        public String seedSignature()
+        {
+            return seed;
+        }
+
+        /**
+         * @return the signature of the next chunk
+         */
+        public String sign(byte[] data, int offset, int length)
+        {
+            md.reset();
+            md.update(data, offset, length);
+            String msg = "MDTSDB-HMAC-SHA256-PAYLOAD\n" + tsString + "\n" + previous + "\n" + toHex(md.digest());
+            previous = toHex(mac.doFinal(msg.getBytes(StandardCharsets.UTF_8)));
+            return previous;
+        }
+    }
+
+    /**
+     * @return hex encoded SHA-256 of the data
+     */
+    public static String sha256Hex(byte[] data)
+    {
+        return toHex(sha256.get().digest(data));
+    }
+
+    /**
+     * @return hex encoded SHA-256 of a part of the data
+     */
+    public static String sha256Hex(byte[] data, int offset, int length)
+    {
+        MessageDigest md = sha256.get();
+        md.update(data, offset, length);
+        return toHex(md.digest());
+    }
+
+    public static String toHex(byte[] bytes)
+    {
+        char[] out = new char[bytes.length * 2];
+        for(int i = 0, j = 0; i < bytes.length; ++i)
+        {
+            int b = bytes[i] & 0xff;
+            out[j++] = HEX[b >>> 4];
+            out[j++] = HEX[b & 0x0f];
+        }
+        return new String(out);
+    }
+
+    /**
+     * The derived keys of one secret key, per API method.
+     *
+     * <p>
+     *   Held by the client the secret key belongs to, so that the keys live and die with
+     *   it. A key is re-derived when the timestamp rolls over. Safe for concurrent use.
+     * </p>
+     */
+    public static final class SigningKeys
+    {
+        private final String secretKey;
+        private final ConcurrentHashMap<String, DerivedKey> keys = new ConcurrentHashMap<>();
+
+        public SigningKeys(String secretKey)
+        {
+            this.secretKey = secretKey;
+        }
+
+        private SecretKeySpec derivedKey(String method, long ts, String tsString) throws InvalidKeyException
+        {
+            DerivedKey cached = keys.get(method);
+            if(cached != null && cached.ts == ts)
+                return cached.key;
+
+            Mac mac = hmac.get();
+            mac.init(new SecretKeySpec(secretKey.getBytes(StandardCharsets.UTF_8), HMAC_SHA256));
+            byte[] secret2 = mac.doFinal(tsString.getBytes(StandardCharsets.UTF_8));
+            mac.init(new SecretKeySpec(secret2, HMAC_SHA256));
+            byte[] secret3 = mac.doFinal(method.getBytes(StandardCharsets.UTF_8));
+
+            SecretKeySpec key = new SecretKeySpec(secret3, HMAC_SHA256);
+            keys.put(method, new DerivedKey(ts, key));
+            return key;
+        }
+    }
+
+    private static final class DerivedKey
+    {
+        final long ts;
+        final SecretKeySpec key;
+
+        DerivedKey(long ts, SecretKeySpec key)
+        {
+            this.ts = ts;
+            this.key = key;
+        }
+    }
+}
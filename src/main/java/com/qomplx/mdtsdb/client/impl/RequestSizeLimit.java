@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package com.qomplx.mdtsdb.client.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.qomplx.mdtsdb.client.api.MdtsdbServerException;
+
+/**
+ * The largest request body, after compression, the server accepts from a client.
+ *
+ * <p>
+ *   Starts at "max_request_bytes", or unknown when the option is not set, and is lowered
+ *   below the size of every request the server rejects with ERR_CODE_REQ_SIZE, but never
+ *   below the size of a request it accepted. Inserts whose body exceeds it are split into
+ *   pieces that fit. Safe for concurrent use.
+ * </p>
+ */
+final class RequestSizeLimit
+{
+    // pieces aim below the limit, since the compressed size of a piece is not proportional
+    private static final double FILL = 0.9;
+
+    private int limit;
+    private int largestAccepted = 0;
+
+    RequestSizeLimit(int limit)
+    {
+        this.limit = limit;
+    }
+
+    static RequestSizeLimit fromOptions(Properties options)
+    {
+        return new RequestSizeLimit(Integer.parseInt(options.getProperty("max_request_bytes", "0")));
+    }
+
+    /**
+     * @return the largest request body in bytes, or 0 if it is not known
+     */
+    synchronized int get()
+    {
+        return limit;
+    }
+
+    /**
+     * @param length size of a request body
+     * @param units points the request holds
+     * @return the number of pieces to split the request into, 1 if it fits
+     */
+    synchronized int parts(int length, int units)
+    {
+        if(limit <= 0 || length <= limit || units < 2)
+            return 1;
+        return (int) Math.min(units, (long) Math.ceil(length / (limit * FILL)));
+    }
+
+    synchronized void accepted(int length)
+    {
+        largestAccepted = Math.max(largestAccepted, length);
+    }
+
+    synchronized void rejected(int length)
+    {
+        // a rejection of a size accepted before is not due to the size limit alone
+        if(length > largestAccepted && (limit <= 0 || length <= limit))
+            limit = Math.max(length - 1, largestAccepted);
+    }
+
+    /**
+     * @return true if the server rejected a request for its size
+     */
+    static boolean isRejected(JsonObject response)
+    {
+        JsonElement error = response.get("error");
+        if(error == null || !error.isJsonObject())
+            return false;
+        JsonElement code = error.getAsJsonObject().get("code");
+        return code != null && code.isJsonPrimitive() && code.getAsJsonPrimitive().isNumber()
+            && code.getAsInt() == MdtsdbServerException.ERR_CODE_REQ_SIZE;
+    }
+
+    /**
+     * @return the number of points of an insert, for a multi-send array the points of all swimlanes
+     */
+    static int units(JsonArray data)
+    {
+        if(!isMultiSend(data))
+            return data.size();
+        int units = 0;
+        for(JsonElement lane : data)
+            units += lane.getAsJsonObject().getAsJsonArray("data").size();
+        return units;
+    }
+
+    /**
+     * Splits the points of an insert into consecutive pieces of about equal counts. A
+     * multi-send array is split into multi-send arrays, cutting swimlanes where needed.
+     */
+    static List<JsonArray> split(JsonArray data, int parts)
+    {
+        boolean multi = isMultiSend(data);
+        int units = units(data);
+        parts = Math.max(1, Math.min(parts, units));
+
+        List<JsonArray> pieces = new ArrayList<>(parts);
+        for(int p = 0; p < parts; ++p)
+            pieces.add(new JsonArray());
+
+        int unit = 0;
+        for(JsonElement elem : data)
+        {
+            if(!multi)
+            {
+                pieces.get(piece(unit++, units, parts)).add(elem);
+                continue;
+            }
+            JsonObject lane = elem.getAsJsonObject();
+            JsonArray points = lane.getAsJsonArray("data");
+            JsonArray part = null;
+            int current = -1;
+            for(JsonElement point : points)
+            {
+                int p = piece(unit++, units, parts);
+                if(p != current)
+                {
+                    JsonObject one = new JsonObject();
+                    one.add("key", lane.get("key"));
+                    part = new JsonArray();
+                    one.add("data", part);
+                    pieces.get(p).add(one);
+                    current = p;
+                }
+                part.add(point);
+            }
+        }
+        return pieces;
+    }
+
+    // the piece of unit i, so that piece p holds units [units * p / parts, units * (p + 1) / parts)
+    private static int piece(int i, int units, int parts)
+    {
+        return (int) (((long) (i + 1) * parts - 1) / units);
+    }
+
+    // the format of multi-send inserts, [{"key": appKey, "data": [...]}, ...]
+    private static boolean isMultiSend(JsonArray data)
+    {
+        if(data.size() == 0)
+            return false;
+        for(JsonElement elem : data)
+        {
+            if(!elem.isJsonObject())
+                return false;
+            JsonObject lane = elem.getAsJsonObject();
+            JsonElement key = lane.get("key"), points = lane.get("data");
+            if(key == null || points == null || !points.isJsonArray() || lane.entrySet().size() != 2)
+                return false;
+        }
+        return true;
+    }
+}
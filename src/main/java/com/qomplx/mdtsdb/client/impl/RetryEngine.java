@@ -0,0 +1,194 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package com.qomplx.mdtsdb.client.impl;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.http.HttpConnectTimeoutException;
+import java.nio.file.FileSystemException;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.MalformedJsonException;
+import com.qomplx.mdtsdb.client.api.BackoffRetryPolicy;
+import com.qomplx.mdtsdb.client.api.MdtsdbException;
+import com.qomplx.mdtsdb.client.api.RetryPolicy;
+
+/**
+ * Decides on the retries of the requests of a client.
+ *
+ * <p>
+ *   A failure is classified by its HTTP status, by the server error code of the
+ *   response, or as an I/O error, and passed to the RetryPolicy of the client. The
+ *   retries the policy asks for are drawn from a budget shared by all requests of the
+ *   client: it holds "retry_budget_tokens" (10) tokens, a retry takes one, and every
+ *   request that succeeds returns "retry_budget_ratio" (0.1) of one. While the budget
+ *   is at half or below, requests are not retried, so a server that keeps failing sees
+ *   about one retry in ten requests instead of a retry storm.
+ * </p>
+ *
+ * <p>
+ *   Requests that are not idempotent, such as newApiKey, are retried only if they failed
+ *   to connect, since a request that reached the server may have been carried out.
+ * </p>
+ */
+final class RetryEngine
+{
+    private volatile RetryPolicy policy;
+    private final double maxTokens;
+    private final double tokenRatio;
+    private double tokens;
+
+    RetryEngine(RetryPolicy policy, double maxTokens, double tokenRatio)
+    {
+        if(maxTokens <= 0 || tokenRatio < 0)
+            throw new IllegalArgumentException("invalid retry budget");
+        this.policy = policy;
+        this.maxTokens = maxTokens;
+        this.tokenRatio = tokenRatio;
+        this.tokens = maxTokens;
+    }
+
+    static RetryEngine fromOptions(Properties options)
+    {
+        return new RetryEngine(new BackoffRetryPolicy(options),
+                               Double.parseDouble(options.getProperty("retry_budget_tokens", "10")),
+                               Double.parseDouble(options.getProperty("retry_budget_ratio", "0.1")));
+    }
+
+    RetryPolicy getPolicy()
+    {
+        return policy;
+    }
+
+    void setPolicy(RetryPolicy policy)
+    {
+        this.policy = policy == null ? RetryPolicy.NEVER : policy;
+    }
+
+    /**
+     * @param attempt the number of the attempt that returned the result, 1 for the first one
+     * @param result the decoded response, a JsonObject or its text
+     * @param idempotent false if the request may have an effect once more when it is repeated
+     * @return milliseconds to wait before the request is sent again, or -1 to return the result
+     */
+    long afterResponse(int attempt, Object result, boolean idempotent)
+    {
+        int errorCode = errorCode(result);
+        if(errorCode == 0)
+        {
+            succeeded();
+            return -1;
+        }
+        if(!idempotent)
+            return -1;
+        return retryDelay(attempt, 200, errorCode, -1);
+    }
+
+    /**
+     * @param attempt the number of the attempt that failed, 1 for the first one
+     * @param idempotent false if the request may have an effect once more when it is repeated
+     * @return milliseconds to wait before the request is sent again, or -1 to fail it
+     */
+    long afterFailure(int attempt, Throwable failure, boolean idempotent)
+    {
+        for(Throwable cause = failure; cause != null; cause = cause.getCause())
+        {
+            // a request that failed to connect was never sent
+            if(!idempotent && (cause instanceof CommunicationLayer.HttpStatusException || cause instanceof IOException)
+               && !(cause instanceof ConnectException || cause instanceof HttpConnectTimeoutException))
+                return -1;
+            if(cause instanceof CommunicationLayer.HttpStatusException)
+            {
+                CommunicationLayer.HttpStatusException status = (CommunicationLayer.HttpStatusException) cause;
+                return retryDelay(attempt, status.getStatusCode(), 0, status.getRetryAfterMs());
+            }
+            // a malformed response or a missing file is not going to change, and an open
+            // circuit breaker is there to fail requests fast
+            if(cause instanceof CircuitBreaker.OpenException || cause instanceof MalformedJsonException
+               || cause instanceof FileNotFoundException || cause instanceof FileSystemException)
+                return -1;
+            if(cause instanceof IOException)
+                return retryDelay(attempt, 0, 0, -1);
+        }
+        return -1;
+    }
+
+    /**
+     * @return an executor that runs a task after the delay on a transport thread
+     */
+    Executor delayed(HttpTransport transport, long delayMs)
+    {
+        return CompletableFuture.delayedExecutor(delayMs, TimeUnit.MILLISECONDS, transport.getExecutor());
+    }
+
+    static void sleep(long delayMs) throws MdtsdbException
+    {
+        try {
+            Thread.sleep(delayMs);
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new MdtsdbException(e);
+        }
+    }
+
+    private long retryDelay(int attempt, int httpStatus, int errorCode, long retryAfterMs)
+    {
+        long delay = policy.retryDelayMs(attempt, httpStatus, errorCode, retryAfterMs);
+        if(delay < 0)
+            return -1;
+        synchronized(this)
+        {
+            if(tokens <= maxTokens / 2)
+                return -1;
+            tokens -= 1;
+        }
+        return delay;
+    }
+
+    private synchronized void succeeded()
+    {
+        tokens = Math.min(maxTokens, tokens + tokenRatio);
+    }
+
+    // the "code" of {"error":{"code":N,...}}, 0 if the response is not an error
+    static int errorCode(Object result)
+    {
+        JsonObject response = null;
+        if(result instanceof JsonObject)
+        {
+            response = (JsonObject) result;
+        }
+        else if(result instanceof String && ((String) result).contains("\"error\""))
+        {
+            try {
+                JsonElement el = new JsonParser().parse((String) result);
+                if(el.isJsonObject())
+                    response = el.getAsJsonObject();
+            }
+            catch(RuntimeException e)
+            {
+                return 0;
+            }
+        }
+        if(response == null)
+            return 0;
+        JsonElement error = response.get("error");
+        if(error == null || !error.isJsonObject())
+            return 0;
+        JsonElement code = error.getAsJsonObject().get("code");
+        if(code == null || !code.isJsonPrimitive() || !code.getAsJsonPrimitive().isNumber())
+            return 0;
+        return code.getAsInt();
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package com.qomplx.mdtsdb.client.impl;
+
+import java.net.URLEncoder;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Communication layers of a client per (API method, scheme).
+ *
+ * <p>
+ *   A table is bound to one snapshot of the client's keys and credentials, so its
+ *   routes never change; the client replaces the whole table when the credentials
+ *   change. Requests read the keys they put into the payload from the same table
+ *   they are routed with, so they never mix old and new credentials. A route is
+ *   built on first use and afterwards dispatching a request is a lookup. Tables are
+ *   safe for concurrent use.
+ * </p>
+ */
+final class RouteTable
+{
+    private final HttpTransport transport;
+    private final String endpoint;
+    private final int port;
+    private final boolean useSSL;
+    private final boolean isDebug;
+    private final String appKey;
+    private final String admKey;
+    private final String secretKey;
+    private final String accessToken;
+    private final String accessTokenType;
+    // derived keys of the secret key, for the routes of all methods
+    private final RequestSigner.SigningKeys signingKeys;
+
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, CommunicationLayer>> routes = new ConcurrentHashMap<>();
+
+    RouteTable(HttpTransport transport, String endpoint, int port, boolean useSSL, boolean isDebug,
+               String appKey, String admKey, String secretKey, String accessToken, String accessTokenType)
+    {
+        this.transport = transport;
+        this.endpoint = endpoint;
+        this.port = port;
+        this.useSSL = useSSL;
+        this.isDebug = isDebug;
+        this.appKey = appKey;
+        this.admKey = admKey;
+        this.secretKey = secretKey;
+        this.accessToken = accessToken;
+        this.accessTokenType = accessTokenType;
+        this.signingKeys = new RequestSigner.SigningKeys(secretKey);
+    }
+
+    /**
+     * @return a table for the same end-point and keys, which prints requests and responses
+     */
+    RouteTable withDebugOutput()
+    {
+        return new RouteTable(transport, endpoint, port, useSSL, true, appKey, admKey, secretKey,
+                              accessToken, accessTokenType);
+    }
+
+    /**
+     * @return a table for the same end-point, which authorizes requests with the access token
+     */
+    RouteTable withAccessToken(String admKey, String accessToken, String accessTokenType)
+    {
+        return new RouteTable(transport, endpoint, port, useSSL, isDebug, appKey, admKey, "",
+                              accessToken, accessTokenType);
+    }
+
+    String appKey()
+    {
+        return appKey;
+    }
+
+    String admKey()
+    {
+        return admKey;
+    }
+
+    String secretKey()
+    {
+        return secretKey;
+    }
+
+    String accessToken()
+    {
+        return accessToken;
+    }
+
+    String accessTokenType()
+    {
+        return accessTokenType;
+    }
+
+    /**
+     * @return the communication layer that sends requests of the API method in the scheme
+     */
+    CommunicationLayer get(String apiMethod, String scheme) throws Exception
+    {
+        ConcurrentHashMap<String, CommunicationLayer> byScheme = routes.get(apiMethod);
+        if(byScheme == null)
+            byScheme = routes.computeIfAbsent(apiMethod, m -> new ConcurrentHashMap<>());
+
+        CommunicationLayer route = byScheme.get(scheme);
+        if(route == null)
+        {
+            // a concurrently built duplicate is equivalent, the first one stored wins
+            CommunicationLayer built = build(apiMethod, scheme);
+            route = byScheme.putIfAbsent(scheme, built);
+            if(route == null)
+                route = built;
+        }
+        return route;
+    }
+
+    private CommunicationLayer build(String apiMethod, String scheme) throws Exception
+    {
+        String contentType = "";
+        String path = "";
+        String signatureKey = "";
+        String userKey = (appKey != null && !appKey.isEmpty()) ? appKey : admKey;
+        if (MdtsdbClientImpl.CommonDataMethods.contains(apiMethod))
+        {
+            if(scheme.equals("kml"))
+                path = "api/v1/ingest/kml";
+            else if(scheme.equals("geo_events"))
+                path = "api/v1/ingest/" + URLEncoder.encode(appKey, "UTF-8");
+            else
+                path = "api/v1/ingest";
+            contentType = "application/json";
+            signatureKey = userKey;
+        }
+        else if (MdtsdbClientImpl.AdminMethods.contains(apiMethod))
+        {
+            path = "api/v1/admin";
+            contentType = "application/json";
+            signatureKey = admKey;
+        }
+        else if (apiMethod.equals(MdtsdbClientImpl.RESULTS))
+        {
+            path = "api/v1/result";
+            contentType = "application/x-www-form-urlencoded";
+            signatureKey = userKey;
+            apiMethod = MdtsdbClientImpl.QL;
+        }
+        else if (apiMethod.equals(MdtsdbClientImpl.QL2))
+        {
+            path = "api/v1/ql?v=2";
+            contentType = "application/x-www-form-urlencoded";
+            signatureKey = userKey;
+            apiMethod = MdtsdbClientImpl.QL;
+        }
+        else
+        {
+            path = "api/v1/ql";
+            contentType = "application/x-www-form-urlencoded";
+            signatureKey = userKey;
+        }
+        return new CommunicationLayer(transport, endpoint, port, useSSL, isDebug, CommunicationLayer.HttpMethod.POST,
+                                      contentType, path, secretKey, signingKeys, signatureKey, apiMethod, scheme,
+                                      accessToken, accessTokenType, false);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package com.qomplx.mdtsdb.client.impl;
+
+import java.io.*;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.qomplx.mdtsdb.client.api.InsertStream;
+import com.qomplx.mdtsdb.client.api.MdtsdbException;
+import com.qomplx.mdtsdb.client.api.PointBatch;
+
+/**
+ * The InsertStream of MdtsdbClientImpl.openInsertStream().
+ *
+ * <p>
+ *   Points are encoded as JSON, deflated with compression "gzip", and sent in signed
+ *   chunks, so any number of points is sent with bounded memory. The deflater is taken
+ *   from the deflater pool of the client and given back when the stream is closed.
+ * </p>
+ */
+final class StreamingInsert implements InsertStream
+{
+    private final ChunkedUpload<JsonObject> upload;
+    private final OutputStream out;
+    private final DeflaterPool deflaters;
+    private final int level;
+    private final Deflater deflater;
+    private final byte[] tail;
+    private final ByteSink point = new ByteSink(256);
+    private boolean first = true;
+    private boolean finished = false;
+    private boolean closed = false;
+
+    /**
+     * @param head the request body up to the first point
+     * @param tail the request body after the last point
+     * @param deflaters pool the deflater is from
+     * @param level compression level of the deflater
+     * @param deflater deflates the body, or null to send it as it is
+     */
+    StreamingInsert(ChunkedUpload<JsonObject> upload, byte[] head, byte[] tail,
+                    DeflaterPool deflaters, int level, Deflater deflater) throws IOException
+    {
+        this.upload = upload;
+        this.deflaters = deflaters;
+        this.level = level;
+        this.deflater = deflater;
+        this.out = deflater != null ? new DeflaterOutputStream(upload, deflater, 65536) : upload;
+        this.tail = tail;
+        this.out.write(head);
+    }
+
+    @Override
+    public InsertStream add(JsonObject point) throws MdtsdbException
+    {
+        return addElement(point);
+    }
+
+    @Override
+    public InsertStream add(JsonArray points) throws MdtsdbException
+    {
+        for(JsonElement point : points)
+            addElement(point);
+        return this;
+    }
+
+    @Override
+    public InsertStream add(PointBatch points) throws MdtsdbException
+    {
+        if(points.size() == 0)
+            return this;
+        if(points.encoding() != PointBatch.Encoding.JSON)
+            return add(EBSON.bson_array_to_json(points.toByteArray()));
+        // the elements of the JSON array, without its brackets
+        byte[] array = points.toByteArray();
+        try {
+            separate();
+            this.out.write(array, 1, array.length - 2);
+        }
+        catch(IOException e)
+        {
+            throw new MdtsdbException(e);
+        }
+        return this;
+    }
+
+    @Override
+    public JsonObject finish() throws MdtsdbException
+    {
+        try {
+            this.out.write(this.tail);
+            if(this.deflater != null)
+                ((DeflaterOutputStream) this.out).finish();
+            this.finished = true;
+            return this.upload.finish();
+        }
+        catch(Exception e)
+        {
+            throw new MdtsdbException(e);
+        }
+        finally
+        {
+            close();
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        if(this.closed)
+            return;
+        this.closed = true;
+        if(!this.finished)
+            this.upload.close();
+        this.finished = true;
+        if(this.deflater != null)
+            this.deflaters.release(this.level, this.deflater);
+    }
+
+    private InsertStream addElement(JsonElement element) throws MdtsdbException
+    {
+        try {
+            separate();
+            this.point.reset();
+            this.point.writeUtf8(element.toString());
+            this.out.write(this.point.array(), 0, this.point.length());
+        }
+        catch(IOException e)
+        {
+            throw new MdtsdbException(e);
+        }
+        return this;
+    }
+
+    private void separate() throws IOException
+    {
+        if(!this.first)
+            this.out.write(',');
+        this.first = false;
+    }
+}
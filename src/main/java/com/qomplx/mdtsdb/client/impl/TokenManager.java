@@ -0,0 +1,252 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package com.qomplx.mdtsdb.client.impl;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.qomplx.mdtsdb.client.api.MdtsdbException;
+
+/**
+ * Keeps the Keycloak access token of a client fresh.
+ *
+ * <p>
+ *   A token is refreshed in the background "token_refresh_margin_ms" (30 s by default)
+ *   before the "exp" of the token, or half way through the life of a shorter lived token,
+ *   so requests do not fail when the token rolls over. Refreshes are single-flight: a
+ *   refresh asked for while one is running shares its result, and a request that failed
+ *   with a token replaced since then is repeated without one. The token is requested
+ *   through the HTTP transport of the client. A failed background refresh is retried
+ *   every "token_retry_ms" (5 s by default) until it succeeds or the token is replaced.
+ * </p>
+ */
+final class TokenManager
+{
+    /**
+     * Receives a new token.
+     */
+    @FunctionalInterface
+    interface TokenListener
+    {
+        void accept(String accessToken, String accessTokenType) throws MdtsdbException;
+    }
+
+    private final HttpTransport transport;
+    private final TokenListener listener;
+    private final long marginMs;
+    private final long retryMs;
+
+    private String url;
+    private String clientId;
+    private String clientSecret;
+
+    private String token = null;
+    private long expiresAt = 0;
+    private CompletableFuture<Void> refreshing = null;
+    // bumped when the token or credentials change, or on close, to drop scheduled refreshes
+    private long generation = 0;
+    private boolean closed = false;
+
+    TokenManager(HttpTransport transport, TokenListener listener, long marginMs, long retryMs)
+    {
+        this.transport = transport;
+        this.listener = listener;
+        this.marginMs = marginMs;
+        this.retryMs = Math.max(retryMs, 1);
+    }
+
+    static TokenManager fromOptions(HttpTransport transport, TokenListener listener, Properties options)
+    {
+        return new TokenManager(transport, listener,
+                                Long.parseLong(options.getProperty("token_refresh_margin_ms", "30000")),
+                                Long.parseLong(options.getProperty("token_retry_ms", "5000")));
+    }
+
+    synchronized void setCredentials(String url, String clientId, String clientSecret)
+    {
+        this.url = url;
+        this.clientId = clientId;
+        this.clientSecret = clientSecret;
+        ++this.generation;
+    }
+
+    /**
+     * @return true if tokens are requested from a Keycloak server
+     */
+    synchronized boolean hasCredentials()
+    {
+        return url != null && clientId != null && clientSecret != null;
+    }
+
+    /**
+     * @return true if the current token is past its "exp"
+     */
+    synchronized boolean isExpired()
+    {
+        return token != null && expiresAt > 0 && System.currentTimeMillis() >= expiresAt;
+    }
+
+    /**
+     * Takes note of a new token and schedules its refresh.
+     *
+     * @param expiresAt "exp" of the token in milliseconds, 0 if it has none
+     * @param issuedAt "iat" of the token in milliseconds, 0 if it has none
+     */
+    synchronized void tokenChanged(String token, long expiresAt, long issuedAt)
+    {
+        this.token = token;
+        this.expiresAt = expiresAt;
+        long gen = ++this.generation;
+        if(expiresAt <= 0 || !hasCredentials() || closed)
+            return;
+
+        long now = System.currentTimeMillis();
+        long lifetime = expiresAt - (issuedAt > 0 ? issuedAt : now);
+        schedule(gen, Math.max(0, expiresAt - Math.min(marginMs, lifetime / 2) - now));
+    }
+
+    /**
+     * Refreshes the token, or joins the refresh that is running.
+     *
+     * @param staleToken the token a request failed with, or null to refresh in any case
+     * @return completes when the token is refreshed, or at once if staleToken was replaced already
+     */
+    synchronized CompletableFuture<Void> refresh(String staleToken)
+    {
+        if(staleToken != null && !staleToken.equals(token))
+            return CompletableFuture.completedFuture(null);
+        if(refreshing != null)
+            return refreshing;
+        if(closed)
+            return failed(new IllegalStateException("client is closed"));
+
+        CompletableFuture<Void> refresh;
+        try {
+            refresh = fetch();
+        }
+        catch(Exception e)
+        {
+            return failed(e);
+        }
+        refreshing = refresh;
+        refresh.whenComplete((ignored, e) -> {
+            synchronized(this)
+            {
+                if(refreshing == refresh)
+                    refreshing = null;
+            }
+        });
+        return refresh;
+    }
+
+    /**
+     * Refreshes the token, or waits for the refresh that is running.
+     */
+    void refreshNow(String staleToken) throws MdtsdbException
+    {
+        try {
+            refresh(staleToken).join();
+        }
+        catch(CompletionException e)
+        {
+            Throwable cause = e.getCause();
+            if(cause instanceof MdtsdbException)
+                throw (MdtsdbException) cause;
+            throw new MdtsdbException(cause instanceof Exception ? (Exception) cause : e);
+        }
+    }
+
+    synchronized void close()
+    {
+        closed = true;
+        ++generation;
+    }
+
+    private CompletableFuture<Void> fetch() throws Exception
+    {
+        if(url == null)
+            throw new IllegalArgumentException("invalid auth url.");
+        if(clientId == null)
+            throw new IllegalArgumentException("invalid client id.");
+        if(clientSecret == null)
+            throw new IllegalArgumentException("invalid client secret.");
+
+        String postData = "client_id=" + URLEncoder.encode(clientId, "UTF-8")
+            + "&client_secret=" + URLEncoder.encode(clientSecret, "UTF-8")
+            + "&grant_type=client_credentials";
+        HttpRequest request = HttpRequest.newBuilder()
+            .uri(new URI(url))
+            .headers("Content-Type", "application/x-www-form-urlencoded")
+            .headers("Cache-Control", "no-cache, no-store, must-revalidate")
+            .headers("Pragma", "no-cache")
+            .headers("Expires", "0")
+            .POST(HttpRequest.BodyPublishers.ofString(postData))
+            .build();
+
+        return transport.sendAsync(request).thenAccept(response -> {
+            String responseData = new String(response.body(), StandardCharsets.UTF_8);
+            if(response.statusCode() != 200)
+                throw new CompletionException(new MdtsdbException(
+                    new IllegalArgumentException("invalid auth server response: " + response.statusCode())));
+            try {
+                JsonElement el = new JsonParser().parse(responseData);
+                if(el == null || !el.isJsonObject())
+                    throw new IllegalArgumentException("invalid auth server response: " + responseData);
+                JsonObject obj = el.getAsJsonObject();
+                JsonElement accessToken = obj.get("access_token");
+                JsonElement tokenType = obj.get("token_type");
+                if(accessToken == null)
+                    throw new IllegalArgumentException("undefined access token");
+                listener.accept(accessToken.getAsString(), tokenType == null ? "Bearer" : tokenType.getAsString());
+            }
+            catch(MdtsdbException e)
+            {
+                throw new CompletionException(e);
+            }
+            catch(RuntimeException e)
+            {
+                throw new CompletionException(new MdtsdbException(e));
+            }
+        });
+    }
+
+    private void schedule(long gen, long delayMs)
+    {
+        CompletableFuture.delayedExecutor(delayMs, TimeUnit.MILLISECONDS, transport.getExecutor()).execute(() -> {
+            String stale;
+            synchronized(this)
+            {
+                if(gen != generation)
+                    return;
+                stale = token;
+            }
+            refresh(stale).whenComplete((ignored, e) -> {
+                if(e == null)
+                    return;
+                synchronized(this)
+                {
+                    if(gen == generation && !closed)
+                        schedule(gen, retryMs);
+                }
+            });
+        });
+    }
+
+    private static CompletableFuture<Void> failed(Exception e)
+    {
+        CompletableFuture<Void> failed = new CompletableFuture<>();
+        failed.completeExceptionally(e instanceof MdtsdbException ? e : new MdtsdbException(e));
+        return failed;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package examples.com.qomplx.mdtsdb.client;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import com.qomplx.mdtsdb.client.api.MdtsdbClient;
+import com.qomplx.mdtsdb.client.api.PointBatch;
+
+/**
+ * Sends compressed inserts to a local stand-in server for a long time and samples the
+ * resident set size of the process, to check that compression does not leak native memory.
+ *
+ * <p>
+ *   Prints a sample per interval and, at the end, the RSS growth since the second sample,
+ *   the first interval being the warm-up. Linux only, the RSS is read from /proc/self/status.
+ * </p>
+ *
+ * <p>
+ *   Usage: CompressionSoak [seconds [callers [gzip|gzip-bson [interval_seconds]]]]
+ * </p>
+ */
+public class CompressionSoak
+{
+    public static void main(String[] args) throws Exception
+    {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3600;
+        int callers = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        String compression = args.length > 2 ? args[2] : "gzip";
+        int interval = args.length > 3 ? Integer.parseInt(args[3]) : 60;
+
+        Properties options = new Properties();
+        options.setProperty("useSSL", "false");
+        options.setProperty("compression", compression);
+        options.setProperty("pool_size", String.valueOf(callers));
+
+        try(LocalServer server = new LocalServer(callers, 0);
+            MdtsdbClient client = new MdtsdbClient("127.0.0.1", server.getPort(), "soak", "", "secret", options))
+        {
+            AtomicBoolean running = new AtomicBoolean(true);
+            AtomicLong failures = new AtomicLong();
+            ExecutorService pool = Executors.newFixedThreadPool(callers);
+            for(int c = 0; c < callers; ++c)
+            {
+                int caller = c;
+                pool.execute(() -> {
+                    Random random = new Random(caller);
+                    long t = 1600000000L;
+                    while(running.get())
+                    {
+                        PointBatch batch = client.newPointBatch();
+                        for(int i = 0; i < 500; ++i)
+                        {
+                            batch.point().time(++t)
+                                 .sensor(0).value(random.nextGaussian())
+                                 .sensor(1).value(random.nextInt(1000)).tag("host", "node-" + caller)
+                                 .add();
+                        }
+                        try {
+                            client.insert(batch);
+                        }
+                        catch(Exception e)
+                        {
+                            failures.incrementAndGet();
+                        }
+                    }
+                });
+            }
+
+            long start = System.nanoTime();
+            long baseline = -1;
+            long rss = 0;
+            for(int elapsed = interval; elapsed <= seconds; elapsed += interval)
+            {
+                Thread.sleep(Math.max(0, start + TimeUnit.SECONDS.toNanos(elapsed) - System.nanoTime()) / 1000000);
+                rss = residentKb();
+                Runtime rt = Runtime.getRuntime();
+                System.out.printf("%6d s: requests %d, failures %d, rss %d kB, heap %d kB\n", elapsed,
+                                  server.getRequests(), failures.get(), rss, (rt.totalMemory() - rt.freeMemory()) / 1024);
+                if(baseline < 0 && elapsed > interval)
+                    baseline = rss;
+            }
+            System.out.printf("rss growth after warm-up: %d kB\n", rss - baseline);
+
+            running.set(false);
+            pool.shutdown();
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static long residentKb() throws IOException
+    {
+        for(String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.UTF_8))
+        {
+            if(line.startsWith("VmRSS:"))
+                return Long.parseLong(line.replaceAll("[^0-9]", ""));
+        }
+        return -1;
+    }
+}
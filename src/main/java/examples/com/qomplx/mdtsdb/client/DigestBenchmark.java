@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package examples.com.qomplx.mdtsdb.client;
+
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import com.qomplx.mdtsdb.client.impl.ByteSink;
+import com.qomplx.mdtsdb.client.impl.RequestSigner;
+
+/**
+ * Measures the cost of the payload digest of a request body, hashed in a second pass
+ * after the body is encoded, against hashed by the ByteSink while it is written.
+ *
+ * <p>
+ *   The body is a JSON array of points, sent as it is or deflated, or a BSON document
+ *   whose length is patched after its content, which the client hashes once it is
+ *   complete. Both ways must give the same digest, which is checked first.
+ * </p>
+ *
+ * <p>
+ *   Usage: DigestBenchmark [payloadBytes [rounds [level]]]
+ * </p>
+ */
+public class DigestBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int payloadBytes = args.length > 0 ? Integer.parseInt(args[0]) : 10 * 1024 * 1024;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int level = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+
+        byte[] points = points(payloadBytes);
+        ByteSink sink = new ByteSink(payloadBytes + 1024);
+        Deflater deflater = new Deflater(level);
+
+        for(String body : new String[] {"json", "deflated", "bson"})
+        {
+            if(!encode(sink, points, deflater, body, false).equals(encode(sink, points, deflater, body, true)))
+                throw new IllegalStateException("digests differ");
+
+            for(int round = 0; round < 3; ++round)
+            {
+                long length = 0;
+                long t0 = System.nanoTime();
+                for(int i = 0; i < rounds; ++i)
+                    length += encode(sink, points, deflater, body, false).length();
+                long t1 = System.nanoTime();
+                for(int i = 0; i < rounds; ++i)
+                    length += encode(sink, points, deflater, body, true).length();
+                long t2 = System.nanoTime();
+
+                System.out.printf("%s %d bytes, round %d: second pass %.2f ms/op, on write %.2f ms/op (%d)\n",
+                                  body, payloadBytes, round,
+                                  (t1 - t0) / 1e6 / rounds, (t2 - t1) / 1e6 / rounds, length);
+            }
+        }
+        deflater.end();
+    }
+
+    // encodes the body into the sink as a request does, and returns its digest
+    private static String encode(ByteSink sink, byte[] points, Deflater deflater, String body, boolean onWrite)
+    {
+        sink.reset();
+        if(onWrite && !body.equals("bson"))
+            sink.startDigest();
+        if(body.equals("deflated"))
+        {
+            deflater.reset();
+            deflater.setInput(points);
+            deflater.finish();
+            sink.writeDeflated(deflater);
+        }
+        else if(body.equals("bson"))
+        {
+            // the points stand in for the elements of the document
+            sink.writeInt32(0);
+            for(int off = 0; off < points.length; off += 64)
+                sink.write(points, off, Math.min(64, points.length - off));
+            sink.write(0);
+            sink.putInt32(0, sink.length());
+            if(onWrite)
+                sink.startDigest(0);
+        }
+        else
+        {
+            // written in point sized pieces, as the encoders write
+            for(int off = 0; off < points.length; off += 64)
+                sink.write(points, off, Math.min(64, points.length - off));
+        }
+        return onWrite ? sink.digestHex() : RequestSigner.sha256Hex(sink.array(), 0, sink.length());
+    }
+
+    private static byte[] points(int size)
+    {
+        ByteSink out = new ByteSink(size + 256);
+        Random random = new Random(1);
+        out.write('[');
+        for(long i = 0; out.length() < size - 128; ++i)
+        {
+            if(i > 0)
+                out.write(',');
+            out.writeAscii("{\"0\":");
+            out.writeDouble(random.nextGaussian());
+            out.writeAscii(",\"ns\":");
+            out.writeLong(1600000000L + i);
+            out.write('}');
+        }
+        out.write(']');
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package examples.com.qomplx.mdtsdb.client;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Minimal stand-in for a TimeEngine node, used by the benchmarks.
+ *
+ * <p>
+ *   Accepts any request, consumes its body, optionally sleeps to emulate server-side
+ *   work and answers with a successful status. The JDK server speaks HTTP/1.1 only.
+ * </p>
+ */
+public class LocalServer implements Closeable
+{
+    private static final byte[] OK = "{\"result\":{\"status\":1}}".getBytes(StandardCharsets.UTF_8);
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long latencyMs;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final ConcurrentHashMap<InetSocketAddress, Boolean> connections = new ConcurrentHashMap<>();
+
+    public LocalServer(int threads, long latencyMs) throws IOException
+    {
+        this.latencyMs = latencyMs;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/", this::handle);
+        this.server.start();
+    }
+
+    public int getPort()
+    {
+        return server.getAddress().getPort();
+    }
+
+    public long getRequests()
+    {
+        return requests.get();
+    }
+
+    public long getBytesIn()
+    {
+        return bytesIn.get();
+    }
+
+    public int getConnections()
+    {
+        return connections.size();
+    }
+
+    protected byte[] respond(HttpExchange exchange, byte[] body) throws IOException
+    {
+        return OK;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException
+    {
+        try {
+            connections.put(exchange.getRemoteAddress(), Boolean.TRUE);
+            byte[] body = exchange.getRequestBody().readAllBytes();
+            requests.incrementAndGet();
+            bytesIn.addAndGet(body.length);
+            if(latencyMs > 0)
+                Thread.sleep(latencyMs);
+            byte[] out = respond(exchange, body);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, out.length);
+            exchange.getResponseBody().write(out);
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package examples.com.qomplx.mdtsdb.client;
+
+import java.util.*;
+
+import com.qomplx.mdtsdb.client.api.MdtsdbClient;
+import com.qomplx.mdtsdb.client.api.Measurement;
+
+import com.google.gson.JsonArray;
+
+/**
+ * Measures insert(JsonArray) throughput of large batches against a local stand-in server,
+ * encoded serially or in parallel chunks, per batch size and number of encoding threads.
+ *
+ * <p>
+ *   A thread count of 0 is the serial encoding. The speedup is bounded by the cores of the
+ *   machine, which are printed first.
+ * </p>
+ *
+ * <p>
+ *   Usage: ParallelEncodingBenchmark [points,... [threads,... [compression [join|requests [rounds]]]]]
+ * </p>
+ */
+public class ParallelEncodingBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        String[] sizes = (args.length > 0 ? args[0] : "100000,1000000").split(",");
+        String[] threads = (args.length > 1 ? args[1] : "0,1,2,4").split(",");
+        String compression = args.length > 2 ? args[2] : "gzip";
+        String mode = args.length > 3 ? args[3] : "join";
+        int rounds = args.length > 4 ? Integer.parseInt(args[4]) : 3;
+
+        System.out.printf("cores %d, compression %s, mode %s\n", Runtime.getRuntime().availableProcessors(), compression, mode);
+        try(LocalServer server = new LocalServer(4, 0))
+        {
+            for(String size : sizes)
+            {
+                JsonArray points = points(Integer.parseInt(size));
+                for(String t : threads)
+                {
+                    Properties options = new Properties();
+                    options.setProperty("useSSL", "false");
+                    options.setProperty("compression", compression);
+                    options.setProperty("parallel_mode", mode);
+                    if(t.equals("0"))
+                        options.setProperty("parallel_min_points", String.valueOf(Integer.MAX_VALUE));
+                    else
+                        options.setProperty("parallel_threads", t);
+
+                    try(MdtsdbClient client = new MdtsdbClient("127.0.0.1", server.getPort(), "benchmark", "", "secret", options))
+                    {
+                        client.insert(points); // warm up
+                        long start = System.nanoTime();
+                        for(int round = 0; round < rounds; ++round)
+                            client.insert(points);
+                        double seconds = (System.nanoTime() - start) / 1e9;
+                        System.out.printf("%8s points, %-9s: %.0f ms/insert, %.0f points/s\n", size,
+                                          t.equals("0") ? "serial" : t + " threads", seconds * 1000 / rounds, points.size() * rounds / seconds);
+                    }
+                }
+            }
+        }
+    }
+
+    private static JsonArray points(int n)
+    {
+        JsonArray points = new JsonArray();
+        Random random = new Random(1);
+        for(int i = 0; i < n; ++i)
+        {
+            points.add(new Measurement()
+                       .time(1600000000L + i)
+                       .sensor(0).value(random.nextGaussian())
+                       .sensor(1).value(random.nextInt(1000)).tag("host", "node-" + i % 16)
+                       .build());
+        }
+        return points;
+    }
+}
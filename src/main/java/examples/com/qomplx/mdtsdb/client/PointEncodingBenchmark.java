@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package examples.com.qomplx.mdtsdb.client;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.qomplx.mdtsdb.client.api.Measurement;
+import com.qomplx.mdtsdb.client.api.PointBatch;
+import com.qomplx.mdtsdb.client.impl.EBSON;
+
+/**
+ * Measures encoding a batch of points to UTF-8 JSON or to BSON with Measurement trees, as
+ * insert(JsonArray) does, against writing them directly with PointBatch.
+ *
+ * <p>
+ *   Reports time and bytes allocated per point on the benchmark thread. Both encodings
+ *   are checked to produce the same bytes before measuring.
+ * </p>
+ *
+ * <p>
+ *   Usage: PointEncodingBenchmark [points [rounds [json|bson]]]
+ * </p>
+ */
+public class PointEncodingBenchmark
+{
+    private static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception
+    {
+        int points = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        boolean bson = args.length > 2 && args[2].equals("bson");
+
+        PointBatch batch = new PointBatch(bson ? PointBatch.Encoding.BSON : PointBatch.Encoding.JSON);
+        if(!Arrays.equals(encodeTree(points, bson), encodeBatch(batch, points)))
+            throw new IllegalStateException("encodings differ");
+
+        for(int round = 0; round < rounds; ++round)
+        {
+            long sink = 0;
+            long a0 = allocated(), t0 = System.nanoTime();
+            sink += encodeTree(points, bson).length;
+            long a1 = allocated(), t1 = System.nanoTime();
+            sink += encodeBatch(batch, points).length;
+            long a2 = allocated(), t2 = System.nanoTime();
+
+            System.out.printf("round %d: tree %.0f ns/point %d B/point, direct %.0f ns/point %d B/point (%d)\n", round,
+                              (double) (t1 - t0) / points, (a1 - a0) / points,
+                              (double) (t2 - t1) / points, (a2 - a1) / points, sink);
+        }
+    }
+
+    private static byte[] encodeTree(int points, boolean bson) throws Exception
+    {
+        JsonArray data = new JsonArray();
+        for(int i = 0; i < points; ++i)
+        {
+            data.add(new Measurement()
+                     .time(1600000000L + i)
+                     .sensor(0).value(i * 0.25)
+                     .sensor(1).value(i).tag("host", "node-1").tag("rack", 7)
+                     .sensor(2).field("state", "ok").field("load", 0.5)
+                     .build());
+        }
+        if(!bson)
+            return data.toString().getBytes("UTF-8");
+
+        // a document holding the array, since only documents are BSON top-level values
+        JsonObject params = new JsonObject();
+        params.add("params", data);
+        byte[] doc = EBSON.json_to_bson(params);
+        return Arrays.copyOfRange(doc, 4 + 1 + "params".length() + 1, doc.length - 1);
+    }
+
+    private static byte[] encodeBatch(PointBatch batch, int points)
+    {
+        batch.clear();
+        for(int i = 0; i < points; ++i)
+        {
+            batch.point()
+                 .time(1600000000L + i)
+                 .sensor(0).value(i * 0.25)
+                 .sensor(1).value(i).tag("host", "node-1").tag("rack", 7)
+                 .sensor(2).field("state", "ok").field("load", 0.5)
+                 .add();
+        }
+        // the copy a request body takes
+        return batch.toByteArray();
+    }
+
+    private static long allocated()
+    {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package examples.com.qomplx.mdtsdb.client;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.qomplx.mdtsdb.client.impl.RequestSigner;
+
+/**
+ * Measures the cost of signing a request with RequestSigner against the previous
+ * implementation, which derived the signing key and created Mac/MessageDigest
+ * instances on every request.
+ *
+ * <p>
+ *   Usage: SignerBenchmark [iterations [payloadBytes]]
+ * </p>
+ */
+public class SignerBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int payloadBytes = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+
+        byte[] payload = new byte[payloadBytes];
+        for(int i = 0; i < payload.length; ++i)
+            payload[i] = (byte) ('a' + i % 26);
+
+        String secret = "4d1f3c0e7a9b2c5d8e6f0a1b3c4d5e6f", signKey = "appkey-0123456789", uri = "api/v1/ingest";
+        String contentType = "application/json";
+        RequestSigner.SigningKeys keys = new RequestSigner.SigningKeys(secret);
+
+        String expected = legacySign("setData", signKey, secret, uri, legacyHex(MessageDigest.getInstance("SHA-256").digest(payload)), contentType);
+        String actual = RequestSigner.sign("setData", signKey, secret, uri, RequestSigner.sha256Hex(payload), contentType);
+        if(!expected.equals(actual))
+            throw new IllegalStateException("signatures differ: " + expected + " vs " + actual);
+
+        for(int round = 0; round < 3; ++round)
+        {
+            long sink = 0;
+            long t0 = System.nanoTime();
+            for(int i = 0; i < iterations; ++i)
+            {
+                String hash = legacyHex(MessageDigest.getInstance("SHA-256").digest(payload));
+                sink += legacySign("setData", signKey, secret, uri, hash, contentType).length();
+            }
+            long t1 = System.nanoTime();
+            for(int i = 0; i < iterations; ++i)
+            {
+                String hash = RequestSigner.sha256Hex(payload);
+                sink += RequestSigner.sign("setData", signKey, keys, uri, hash, contentType).length();
+            }
+            long t2 = System.nanoTime();
+
+            System.out.printf("round %d: legacy %.0f ns/op, cached %.0f ns/op (%d)\n", round,
+                              (double) (t1 - t0) / iterations, (double) (t2 - t1) / iterations, sink);
+        }
+    }
+
+    private static String legacySign(String method, String signKey, String secretKey,
+                                     String uri, String payloadHash, String tsContentType) throws Exception
+    {
+        String ts = String.valueOf(System.currentTimeMillis() / 1000L / 1000L);
+
+        Mac hmac = Mac.getInstance("HmacSHA256");
+        hmac.init(new SecretKeySpec(secretKey.getBytes("UTF-8"), "HmacSHA256"));
+        byte[] secret2 = hmac.doFinal(ts.getBytes("UTF-8"));
+        hmac.reset();
+        hmac.init(new SecretKeySpec(secret2, "HmacSHA256"));
+        byte[] secret3 = hmac.doFinal(method.getBytes("UTF-8"));
+
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        String payloadDigest = legacyHex(md.digest(String.format("/%s\n%s\n%s", uri, tsContentType, payloadHash).getBytes("UTF-8")));
+        String msg = String.format("%s\n%s\n%s", ts, signKey, payloadDigest);
+
+        hmac.reset();
+        hmac.init(new SecretKeySpec(secret3, "HmacSHA256"));
+        return legacyHex(hmac.doFinal(msg.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String legacyHex(byte[] bytes)
+    {
+        StringBuffer result = new StringBuffer();
+        for(byte b : bytes)
+        {
+            String hex = Integer.toHexString(b & 0xff);
+            if(hex.length() == 1)
+                result.append('0');
+            result.append(hex);
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+package examples.com.qomplx.mdtsdb.client;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import com.qomplx.mdtsdb.client.api.MdtsdbClient;
+import com.qomplx.mdtsdb.client.api.Measurement;
+
+import com.google.gson.JsonArray;
+
+/**
+ * Compares insert throughput of the HTTP/1.1 and HTTP/2 transport modes.
+ *
+ * <p>
+ *   Usage: TransportBenchmark [callers [seconds [host port [useSSL]]]]
+ * </p>
+ *
+ * <p>
+ *   Without host/port a local stand-in server is started. It only speaks HTTP/1.1,
+ *   so there the HTTP_2 run shows the fallback path; point the benchmark to an
+ *   h2-capable endpoint to measure multiplexing.
+ * </p>
+ */
+public class TransportBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int callers = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        LocalServer server = null;
+        String host;
+        int port;
+        String useSSL = "false";
+        if(args.length > 3)
+        {
+            host = args[2];
+            port = Integer.parseInt(args[3]);
+            if(args.length > 4)
+                useSSL = args[4];
+        }
+        else
+        {
+            server = new LocalServer(callers, 2);
+            host = "127.0.0.1";
+            port = server.getPort();
+        }
+
+        try {
+            for(String version : Arrays.asList("HTTP_1_1", "HTTP_2"))
+            {
+                Properties options = new Properties();
+                options.setProperty("useSSL", useSSL);
+                options.setProperty("http_version", version);
+                options.setProperty("pool_size", String.valueOf(callers));
+
+                MdtsdbClient client = new MdtsdbClient(host, port, "benchmark", "", "secret", options);
+                try {
+                    run(client, callers, 2); // warm up
+                    long n = run(client, callers, seconds);
+                    System.out.printf("%-8s callers %d: %.1f req/s%s\n", version, callers, (double)n / seconds,
+                        server == null ? "" : String.format(" (server connections so far: %d)", server.getConnections()));
+                }
+                finally
+                {
+                    client.close();
+                }
+            }
+        }
+        finally
+        {
+            if(server != null)
+                server.close();
+        }
+    }
+
+    private static long run(MdtsdbClient client, int callers, int seconds) throws Exception
+    {
+        JsonArray points = new JsonArray();
+        for(long i = 0; i < 10; ++i)
+            points.add(new Measurement().time(i).sensor(0).value(i).sensor(1).value(i * 0.5).build());
+
+        AtomicLong count = new AtomicLong();
+        AtomicBoolean stop = new AtomicBoolean(false);
+        ExecutorService pool = Executors.newFixedThreadPool(callers);
+        for(int i = 0; i < callers; ++i)
+        {
+            pool.submit(() -> {
+                while(!stop.get())
+                {
+                    client.insert(points);
+                    count.incrementAndGet();
+                }
+                return null;
+            });
+        }
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+        return count.get();
+    }
+}
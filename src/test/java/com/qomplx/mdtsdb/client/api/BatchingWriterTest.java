@@ -0,0 +1,238 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+
+package com.qomplx.mdtsdb.client.api;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.qomplx.mdtsdb.client.impl.LocalServer;
+import com.sun.net.httpserver.HttpExchange;
+
+import static org.junit.Assert.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Writes points through a BatchingWriter or a SwimlaneRouter to a local stand-in
+ * server, which records the batches it receives.
+ */
+public class BatchingWriterTest
+{
+    private final Set<Long> received = ConcurrentHashMap.newKeySet();
+    private final Map<String, Set<Long>> receivedPerLane = new ConcurrentHashMap<>();
+    private final Queue<Integer> batchSizes = new ConcurrentLinkedQueue<>();
+    private final Queue<Integer> requestBytes = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger concurrent = new AtomicInteger(), maxConcurrent = new AtomicInteger();
+    private final AtomicInteger answered = new AtomicInteger();
+    // how long the server takes to answer a request
+    private volatile long delayMs = 5;
+
+    @Rule
+    public final LocalServer server = new LocalServer(this::handle).executor(Executors.newFixedThreadPool(8)).backlog(64);
+
+    @Test
+    public void batchesPointsFromManyThreads() throws Exception
+    {
+        Properties options = options();
+        options.setProperty("batch_max_points", "50");
+        options.setProperty("batch_max_in_flight", "2");
+        options.setProperty("batch_linger_ms", "20");
+
+        int threads = 8, points = 500;
+        List<CompletableFuture<JsonObject>> futures = Collections.synchronizedList(new ArrayList<>());
+        try(MdtsdbClient client = client(options);
+            BatchingWriter writer = new BatchingWriter(client, options))
+        {
+            ExecutorService writers = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<?>> results = new ArrayList<>();
+                for(int t = 0; t < threads; ++t)
+                {
+                    final long base = t * 1000000L;
+                    results.add(writers.submit(() -> {
+                        for(int i = 0; i < points; ++i)
+                            futures.add(writer.write(new Measurement().time(base + i).sensor(0).value(i).build()));
+                        return null;
+                    }));
+                }
+                for(Future<?> result : results)
+                    result.get(1, TimeUnit.MINUTES);
+            }
+            finally
+            {
+                writers.shutdownNow();
+            }
+            writer.flush();
+
+            assertEquals(threads * points, received.size());
+            for(CompletableFuture<JsonObject> future : futures)
+                assertEquals(1, future.getNow(null).getAsJsonObject("result").get("status").getAsInt());
+        }
+
+        for(int size : batchSizes)
+            assertTrue("batch of " + size, size <= 50);
+        assertTrue("in flight " + maxConcurrent.get(), maxConcurrent.get() <= 2);
+    }
+
+    @Test
+    public void lingerSendsPartialBatch() throws Exception
+    {
+        Properties options = options();
+        options.setProperty("batch_linger_ms", "50");
+
+        try(MdtsdbClient client = client(options))
+        {
+            BatchingWriter writer = new BatchingWriter(client, options);
+            CompletableFuture<JsonObject> future = writer.write(new Measurement().time(7).sensor(0).value(1).build());
+            future.get(10, TimeUnit.SECONDS);
+            assertEquals(Collections.singleton(7L), received);
+
+            writer.close();
+            try {
+                writer.write(new Measurement().time(8).sensor(0).value(1).build());
+                fail("write after close");
+            }
+            catch(IllegalStateException expected)
+            {
+            }
+        }
+    }
+
+    @Test
+    public void closeWaitsForBatchesOfConcurrentWrites() throws Exception
+    {
+        Properties options = options();
+        options.setProperty("batch_max_in_flight", "1");
+        options.setProperty("batch_max_bytes", "100");
+        options.setProperty("batch_linger_ms", "0");
+        delayMs = 300;
+
+        char[] text = new char[120];
+        Arrays.fill(text, 'x');
+        JsonObject big = new Measurement().time(1).sensor(0).field("p", new String(text)).build();
+        try(MdtsdbClient client = client(options))
+        {
+            BatchingWriter writer = new BatchingWriter(client, options);
+            // fills a batch on its own, which takes the only permit
+            writer.write(big);
+
+            Thread other = new Thread(() -> {
+                try {
+                    // the big point sends the small one and then itself, both waiting for the permit
+                    writer.write(new Measurement().time(2).sensor(0).value(1).build());
+                    writer.write(big);
+                }
+                catch(InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            other.start();
+            Thread.sleep(100);
+
+            writer.close();
+            assertEquals(3, answered.get());
+            other.join(10000);
+        }
+    }
+
+    @Test
+    public void routesSwimlanesIntoSharedRequests() throws Exception
+    {
+        Properties options = options();
+        options.setProperty("batch_max_bytes", "4096");
+        options.setProperty("batch_linger_ms", "20");
+
+        int lanes = 200, points = 10;
+        try(MdtsdbClient client = client(options);
+            SwimlaneRouter router = new SwimlaneRouter(client, options))
+        {
+            for(int i = 0; i < points; ++i)
+            {
+                for(int lane = 0; lane < lanes; ++lane)
+                    router.route("lane-" + lane, new Measurement().time(i).sensor(0).value(lane).build());
+            }
+            router.flush();
+        }
+
+        assertEquals(lanes, receivedPerLane.size());
+        for(Set<Long> times : receivedPerLane.values())
+            assertEquals(points, times.size());
+        // many swimlanes share a request, and no request is much larger than the budget
+        assertTrue("requests " + batchSizes.size(), batchSizes.size() < lanes * points / 20);
+        for(int size : requestBytes)
+            assertTrue("request of " + size + " bytes", size <= 4096 + 256);
+    }
+
+    private MdtsdbClient client(Properties options)
+    {
+        return new MdtsdbClient("127.0.0.1", server.port(), "app", "adm", "secret", options);
+    }
+
+    private static Properties options()
+    {
+        Properties options = new Properties();
+        options.setProperty("useSSL", "false");
+        options.setProperty("compression", "false");
+        return options;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException
+    {
+        int now = concurrent.incrementAndGet();
+        maxConcurrent.accumulateAndGet(now, Math::max);
+        try {
+            String body = readAll(exchange.getRequestBody());
+            requestBytes.add(body.length());
+            JsonArray params = new JsonParser().parse(body).getAsJsonObject().getAsJsonArray("params");
+            batchSizes.add(params.size());
+            for(int i = 0; i < params.size(); ++i)
+            {
+                JsonObject item = params.get(i).getAsJsonObject();
+                if(item.has("key"))
+                {
+                    // multi-send entry of one swimlane
+                    Set<Long> lane = receivedPerLane.computeIfAbsent(item.get("key").getAsString(), k -> ConcurrentHashMap.newKeySet());
+                    for(int j = 0; j < item.getAsJsonArray("data").size(); ++j)
+                        lane.add(item.getAsJsonArray("data").get(j).getAsJsonObject().get("ns").getAsLong());
+                }
+                else
+                    received.add(item.get("ns").getAsLong());
+            }
+            // keep the request in flight long enough for others to overlap it
+            Thread.sleep(delayMs);
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            concurrent.decrementAndGet();
+        }
+
+        answered.incrementAndGet();
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        LocalServer.respond(exchange, 200, LocalServer.OK);
+    }
+
+    private static String readAll(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while((n = in.read(buf)) > 0)
+            out.write(buf, 0, n);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+
+package com.qomplx.mdtsdb.client.api;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import com.google.gson.JsonArray;
+import com.qomplx.mdtsdb.client.impl.LocalServer;
+import com.sun.net.httpserver.HttpExchange;
+
+import static org.junit.Assert.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Checks that PointBatch encodes points exactly as the JSON of the same Measurement points.
+ */
+public class PointBatchTest
+{
+    private static final String TEXT = "quote \" slash \\ tab \t nl \n ctl \u0001 sep \u2028 \u00e9\u4e2d \ud83d\ude00";
+
+    // request bodies received by the server
+    private final List<byte[]> bodies = Collections.synchronizedList(new ArrayList<>());
+
+    @Rule
+    public final LocalServer server = new LocalServer(this::record);
+
+    @Test
+    public void encodesAsMeasurement() throws Exception
+    {
+        JsonArray expected = new JsonArray();
+        PointBatch batch = new PointBatch(16);
+
+        expected.add(new Measurement().time(1).sensor(10).value(42).build());
+        batch.point().time(1).sensor(10).value(42).add();
+
+        expected.add(new Measurement().sensor(10).field("p1", "v1").field("p2", 3.5).field("p3", -7).field("p4", true)
+                         .sensor(20).value("sensor_value").tag("p1", "v1").tag("p2", 2).tag("p3", 0.25).tag("p4", false)
+                         .time(1234567890L).build());
+        batch.point().sensor(10).field("p1", "v1").field("p2", 3.5).field("p3", -7).field("p4", true)
+                     .sensor(20).value("sensor_value").tag("p1", "v1").tag("p2", 2).tag("p3", 0.25).tag("p4", false)
+                     .time(1234567890L).add();
+
+        expected.add(new Measurement().time(5).sensor("s" + TEXT).value(TEXT).pos(1.23, -50.1)
+                         .sensor(2).value(new Object[] {1, 2.5, "x", true, null, Long.MAX_VALUE, 1e300})
+                         .sensor(3).tag(TEXT, TEXT).pos(-1, 2).value(Double.MAX_VALUE)
+                         .sensor(4).pos(3, 4).field(TEXT, new String[] {TEXT, null})
+                         .sensor(5).pos(5, 6).tag("t", "v")
+                         .sensor(6)
+                         .build());
+        batch.point().time(5).sensor("s" + TEXT).value(TEXT).pos(1.23, -50.1)
+                     .sensor(2).value(new Object[] {1, 2.5, "x", true, null, Long.MAX_VALUE, 1e300})
+                     .sensor(3).tag(TEXT, TEXT).pos(-1, 2).value(Double.MAX_VALUE)
+                     .sensor(4).pos(3, 4).field(TEXT, new String[] {TEXT, null})
+                     .sensor(5).pos(5, 6).tag("t", "v")
+                     .sensor(6)
+                     .add();
+
+        // a point that is started but not added is dropped
+        batch.point().time(9).sensor(1).value(Long.MIN_VALUE);
+        assertEquals(expected.toString(), batch.toString());
+
+        expected.add(new Measurement().sensor(0).value(Long.MIN_VALUE).build());
+        batch.point().sensor(0).value(Long.MIN_VALUE).add();
+
+        assertArrayEquals(expected.toString().getBytes(StandardCharsets.UTF_8), batch.toByteArray());
+        assertEquals(4, batch.size());
+        assertEquals(batch.toByteArray().length, batch.byteSize());
+
+        batch.clear();
+        assertEquals("[]", batch.toString());
+    }
+
+    @Test
+    public void encodesColumnsAsPoints() throws Exception
+    {
+        long[] ts = {0, 1, 1600000000L, 1L << 40};
+        double[] doubles = {0.5, -3, 1e300, Double.MAX_VALUE};
+        long[] longs = {0, -1, Long.MAX_VALUE, Long.MIN_VALUE};
+        boolean[] bools = {true, false, false, true};
+        String[] dictionary = {TEXT, "b", "unused"};
+        int[] codes = {1, 0, 0, 1};
+        double[][] matrix = {doubles, {1, 2, 3, 4}};
+
+        for(PointBatch.Encoding encoding : PointBatch.Encoding.values())
+        {
+            PointBatch expected = new PointBatch(encoding);
+            for(int i = 0; i < ts.length; ++i)
+                expected.point().time(ts[i]).sensor("d").value(doubles[i]).add();
+            for(int i = 0; i < ts.length; ++i)
+                expected.point().time(ts[i]).sensor("l").value(longs[i]).add();
+            for(int i = 0; i < ts.length; ++i)
+                expected.point().time(ts[i]).sensor("b").value(bools[i]).add();
+            for(int i = 0; i < ts.length; ++i)
+                expected.point().time(ts[i]).sensor(TEXT).value(dictionary[codes[i]]).add();
+            for(int i = 0; i < ts.length; ++i)
+                expected.point().time(ts[i]).sensor(0).value(matrix[0][i]).sensor(1).value(matrix[1][i]).add();
+
+            PointBatch batch = new PointBatch(encoding, 16);
+            batch.addColumn("d", ts, doubles)
+                 .addColumn("l", ts, longs)
+                 .addColumn("b", ts, bools)
+                 .addColumn(TEXT, ts, dictionary, codes)
+                 .addColumns(new String[] {"0", "1"}, ts, matrix);
+            assertArrayEquals(encoding.name(), expected.toByteArray(), batch.toByteArray());
+            assertEquals(5 * ts.length, batch.size());
+
+            // a column with an invalid value is not added at all
+            try {
+                batch.addColumn("d", ts, new double[] {1, 2, Double.NaN, 4});
+                fail("expect NaN to be rejected");
+            }
+            catch(IllegalArgumentException e)
+            {
+                // expected
+            }
+            assertArrayEquals(encoding.name(), expected.toByteArray(), batch.toByteArray());
+            assertEquals(5 * ts.length, batch.size());
+        }
+    }
+
+    @Test
+    public void sendsSameBodyAsInsert() throws Exception
+    {
+        for(String compression : new String[] {"false", "gzip", "bson", "gzip-bson"})
+        {
+            Properties options = new Properties();
+            options.setProperty("useSSL", "false");
+            options.setProperty("compression", compression);
+            try(MdtsdbClient client = new MdtsdbClient("127.0.0.1", server.port(), "", "adm", "secret", options))
+            {
+                JsonArray points = new JsonArray();
+                PointBatch batch = client.newPointBatch();
+                for(int i = 0; i < 100; ++i)
+                {
+                    points.add(new Measurement().time(i).sensor(0).value(i * 0.5).sensor(1).field("p", TEXT + "\ud800")
+                                   .field("big", 1L << 40).sensor(2).value(i - 50L).tag("t", i * 1.5).pos(i, -0.5)
+                                   .sensor(3).value(new Object[] {i, i * 0.5, 1e20, "s", false, null}).build());
+                    batch.point().time(i).sensor(0).value(i * 0.5).sensor(1).field("p", TEXT + "\ud800")
+                                 .field("big", 1L << 40).sensor(2).value(i - 50L).tag("t", i * 1.5).pos(i, -0.5)
+                                 .sensor(3).value(new Object[] {i, i * 0.5, 1e20, "s", false, null}).add();
+                }
+                bodies.clear();
+                client.insert(points);
+                client.insert(batch);
+                assertEquals(compression, 2, bodies.size());
+                assertArrayEquals(compression, bodies.get(0), bodies.get(1));
+                assertEquals(compression.contains("bson") ? PointBatch.Encoding.BSON : PointBatch.Encoding.JSON, batch.encoding());
+            }
+        }
+
+        // a batch in the other encoding is converted by the client
+        Properties options = new Properties();
+        options.setProperty("useSSL", "false");
+        options.setProperty("compression", "bson");
+        try(MdtsdbClient client = new MdtsdbClient("127.0.0.1", server.port(), "", "adm", "secret", options))
+        {
+            JsonArray points = new JsonArray();
+            PointBatch batch = new PointBatch(PointBatch.Encoding.JSON);
+            for(int i = 0; i < 10; ++i)
+            {
+                points.add(new Measurement().time(i).sensor(0).value(i * 0.5).tag("t", TEXT).build());
+                batch.point().time(i).sensor(0).value(i * 0.5).tag("t", TEXT).add();
+            }
+            bodies.clear();
+            client.insert(points);
+            client.insert(batch);
+            assertArrayEquals(bodies.get(0), bodies.get(1));
+        }
+    }
+
+    private void record(HttpExchange exchange) throws IOException
+    {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while((n = exchange.getRequestBody().read(buf)) > 0)
+            body.write(buf, 0, n);
+        bodies.add(body.toByteArray());
+        LocalServer.respond(exchange, 200, LocalServer.OK);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+
+package com.qomplx.mdtsdb.client.impl;
+
+import java.util.*;
+
+import com.google.gson.JsonObject;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.qomplx.mdtsdb.client.impl.AdaptiveEncoding.Encoding;
+
+/**
+ * Feeds the adaptive encoding selection with synthetic costs and checks the mix it picks.
+ */
+public class AdaptiveEncodingTest
+{
+    // ratio and ns per byte of each encoding
+    private static final Map<Encoding, double[]> COSTS = new EnumMap<>(Encoding.class);
+    static {
+        COSTS.put(Encoding.IDENTITY, new double[] {1.0, 0.5});
+        COSTS.put(Encoding.GZIP, new double[] {0.1, 20});
+        COSTS.put(Encoding.BSON, new double[] {1.1, 10});
+        COSTS.put(Encoding.GZIP_BSON, new double[] {0.12, 30});
+    }
+
+    @Test
+    public void picksCheapestEncodingForTheLink() throws Exception
+    {
+        // at 1 MB/s a sent byte costs 1000 ns, compressing pays off
+        Map<Encoding, Integer> slow = run(new AdaptiveEncoding(1024, 1e6, 32), 3200);
+        assertTrue(slow.toString(), slow.get(Encoding.GZIP) > 2900);
+
+        // at 10 GB/s a sent byte costs 0.1 ns, compressing does not
+        Map<Encoding, Integer> fast = run(new AdaptiveEncoding(1024, 1e10, 32), 3200);
+        assertTrue(fast.toString(), fast.get(Encoding.IDENTITY) > 2900);
+
+        // every encoding keeps being sampled
+        for(Encoding encoding : Encoding.values())
+            assertTrue(fast.toString(), fast.get(encoding) >= 3);
+    }
+
+    @Test
+    public void sendsSmallPayloadsAsTheyAre() throws Exception
+    {
+        AdaptiveEncoding adaptive = new AdaptiveEncoding(1024, 1e6, 32);
+        for(int i = 0; i < 10; ++i)
+        {
+            assertEquals(Encoding.IDENTITY, adaptive.choose(100, AdaptiveEncoding.ALL));
+            assertEquals(Encoding.BSON, adaptive.choose(100, AdaptiveEncoding.BSON_BODIES));
+            adaptive.record(Encoding.IDENTITY, 100, 100, 0);
+        }
+        assertTrue(AdaptiveEncoding.BSON_BODIES.contains(adaptive.choose(5000, AdaptiveEncoding.BSON_BODIES)));
+
+        JsonObject stats = adaptive.stats().getAsJsonObject("false");
+        assertEquals(10, stats.get("requests").getAsInt());
+        assertEquals(1000, stats.get("bytes_out").getAsInt());
+        // small payloads do not move the estimates
+        assertEquals(0, stats.get("samples").getAsInt());
+    }
+
+    private static Map<Encoding, Integer> run(AdaptiveEncoding adaptive, int requests)
+    {
+        Map<Encoding, Integer> picked = new EnumMap<>(Encoding.class);
+        for(Encoding encoding : Encoding.values())
+            picked.put(encoding, 0);
+
+        int size = 100000;
+        for(int i = 0; i < requests; ++i)
+        {
+            Encoding encoding = adaptive.choose(size, AdaptiveEncoding.ALL);
+            picked.put(encoding, picked.get(encoding) + 1);
+            double[] cost = COSTS.get(encoding);
+            adaptive.record(encoding, size, (int) (size * cost[0]), (long) (size * cost[1]));
+        }
+        assertEquals(requests, adaptive.stats().getAsJsonObject("gzip").get("requests").getAsInt()
+                               + adaptive.stats().getAsJsonObject("false").get("requests").getAsInt()
+                               + adaptive.stats().getAsJsonObject("bson").get("requests").getAsInt()
+                               + adaptive.stats().getAsJsonObject("gzip-bson").get("requests").getAsInt());
+        return picked;
+    }
+}
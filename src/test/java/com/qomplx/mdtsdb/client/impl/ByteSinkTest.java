@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+
+package com.qomplx.mdtsdb.client.impl;
+
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Checks that the digest a sink computes while it is written is the SHA-256 of its content.
+ */
+public class ByteSinkTest
+{
+    @Test
+    public void digestsWhileWriting() throws Exception
+    {
+        byte[] data = new byte[300000];
+        Random random = new Random(7);
+        for(int i = 0; i < data.length; ++i)
+            data[i] = (byte) (random.nextInt(16) + 'a');
+
+        ByteSink sink = new ByteSink(64);
+        sink.writeAscii("not hashed");
+        sink.startDigest();
+        int start = sink.length();
+        for(int i = 0; i < 1000; ++i)
+        {
+            sink.writeString("point-" + i);
+            sink.writeLong(i);
+        }
+        sink.write(data, 0, data.length);
+        assertDigest(sink, start);
+
+        // a document length written after its content was hashed
+        sink.reset();
+        sink.startDigest();
+        sink.writeInt32(0);
+        sink.write(data, 0, data.length);
+        sink.putInt32(0, sink.length());
+        assertDigest(sink, 0);
+
+        // a BSON document hashed once its length is patched
+        sink.reset();
+        sink.writeInt32(0);
+        sink.write(data, 0, data.length);
+        sink.write(0);
+        sink.putInt32(0, sink.length());
+        sink.startDigest(0);
+        assertDigest(sink, 0);
+
+        // truncated and rewritten
+        sink.reset();
+        sink.startDigest();
+        sink.write(data, 0, data.length);
+        sink.truncate(100);
+        sink.writeAscii("tail");
+        assertDigest(sink, 0);
+
+        // deflated output
+        Deflater deflater = new Deflater(1);
+        deflater.setInput(data);
+        deflater.finish();
+        sink.reset();
+        sink.startDigest();
+        sink.writeDeflated(deflater);
+        deflater.end();
+        assertDigest(sink, 0);
+        assertFalse(sink.isDigesting());
+    }
+
+    private static void assertDigest(ByteSink sink, int start)
+    {
+        String expected = RequestSigner.sha256Hex(sink.array(), start, sink.length() - start);
+        assertEquals(expected, sink.digestHex());
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+
+package com.qomplx.mdtsdb.client.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import com.qomplx.mdtsdb.client.api.CircuitState;
+import com.qomplx.mdtsdb.client.api.MdtsdbException;
+
+import static org.junit.Assert.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Checks that the breaker of an unhealthy end-point fails requests fast, and that it
+ * closes again after a ping probe succeeds.
+ */
+public class CircuitBreakerTest
+{
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger pings = new AtomicInteger();
+    private volatile boolean healthy = false;
+
+    @Rule
+    public final LocalServer server = new LocalServer(exchange -> {
+        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        requests.incrementAndGet();
+        if(body.contains("\"method\":\"ping\""))
+            pings.incrementAndGet();
+        if(healthy)
+            LocalServer.respond(exchange, 200, LocalServer.OK);
+        else
+            LocalServer.respond(exchange, 503, null);
+    });
+
+    @Test
+    public void failsFastWhileOpen() throws Exception
+    {
+        try(MdtsdbClientImpl client = client())
+        {
+            for(int i = 0; i < 4; ++i)
+                assertFalse(inserted(client));
+            assertEquals(CircuitState.OPEN, client.getCircuitState());
+            assertEquals(1.0, client.getCircuitBreaker().getFailureRate(), 0.0);
+
+            // rejected without a request
+            int sent = requests.get();
+            for(int i = 0; i < 100; ++i)
+                assertFalse(inserted(client));
+            try {
+                client.insertAsync(LocalServer.points(1)).get(10, TimeUnit.SECONDS);
+                fail("expected a failure");
+            }
+            catch(java.util.concurrent.ExecutionException e)
+            {
+                assertTrue(isOpen(e));
+            }
+            assertEquals(sent, requests.get());
+
+            // the probe fails while the end-point is down, and succeeds once it is up
+            long deadline = System.currentTimeMillis() + 5000;
+            while(pings.get() < 1 && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertEquals(1, pings.get());
+            healthy = true;
+            while(client.getCircuitState() != CircuitState.CLOSED && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertEquals(CircuitState.CLOSED, client.getCircuitState());
+            assertTrue(pings.get() >= 2);
+            assertTrue(inserted(client));
+        }
+    }
+
+    @Test
+    public void opensOnSlowCalls() throws Exception
+    {
+        CircuitBreaker breaker = new CircuitBreaker("http://127.0.0.1:1", Runnable::run, 4, 4, 0.5, 10, 0.5, 60000);
+        for(int i = 0; i < 3; ++i)
+        {
+            assertFalse(breaker.acquire());
+            breaker.record(false, false, TimeUnit.MILLISECONDS.toNanos(i == 0 ? 50 : 1));
+        }
+        assertEquals(CircuitState.CLOSED, breaker.getState());
+        breaker.acquire();
+        breaker.record(false, false, TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(CircuitState.OPEN, breaker.getState());
+        assertEquals(0.5, breaker.getSlowCallRate(), 0.0);
+    }
+
+    @Test
+    public void probesWithAnyClient() throws Exception
+    {
+        CircuitBreaker breaker = new CircuitBreaker("http://127.0.0.1:1", Runnable::run, 4, 4, 0.5, 10000, 0.5, 50);
+        AtomicInteger first = new AtomicInteger(), second = new AtomicInteger();
+        Supplier<CompletableFuture<?>> a = () -> CompletableFuture.completedFuture(first.incrementAndGet());
+        Supplier<CompletableFuture<?>> b = () -> CompletableFuture.completedFuture(second.incrementAndGet());
+        breaker.addProbe(a);
+        breaker.addProbe(b);
+
+        // the client of the second probe is closed, the first one still probes
+        breaker.removeProbe(b);
+        breaker.trip();
+        long deadline = System.currentTimeMillis() + 5000;
+        while(first.get() < 1 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(1, first.get());
+        assertEquals(0, second.get());
+        assertEquals(CircuitState.HALF_OPEN, breaker.getState());
+    }
+
+    private static boolean inserted(MdtsdbClientImpl client)
+    {
+        try {
+            return client.insert(LocalServer.points(1)).has("result");
+        }
+        catch(MdtsdbException e)
+        {
+            return false;
+        }
+    }
+
+    private static boolean isOpen(Throwable e)
+    {
+        for(Throwable cause = e; cause != null; cause = cause.getCause())
+        {
+            if(cause instanceof CircuitBreaker.OpenException)
+                return true;
+        }
+        return false;
+    }
+
+    private MdtsdbClientImpl client()
+    {
+        Properties options = new Properties();
+        options.setProperty("retry_max_attempts", "1");
+        options.setProperty("breaker_window", "4");
+        options.setProperty("breaker_min_calls", "4");
+        options.setProperty("breaker_open_ms", "300");
+        return server.client(options);
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+
+package com.qomplx.mdtsdb.client.impl;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.qomplx.mdtsdb.client.api.Measurement;
+import com.sun.net.httpserver.HttpExchange;
+import org.bson.RawBsonDocument;
+
+import static org.junit.Assert.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Hammers shared clients from many threads against a local stand-in server, which
+ * checks that every request is signed, routed and encoded as its client is configured.
+ */
+public class ConcurrentClientTest
+{
+    private static final int THREADS = 32;
+    private static final int CALLS_PER_THREAD = 30;
+
+    private static final Map<String, String> SECRETS = new HashMap<>();
+    static {
+        SECRETS.put("app-bson", "secret-1");
+        SECRETS.put("adm-1", "secret-1");
+        SECRETS.put("app-json", "secret-2");
+        SECRETS.put("adm-2", "secret-2");
+    }
+
+    private static final String TOKEN_A = token("adm-token-a"), TOKEN_B = token("adm-token-b");
+
+    static {
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final Queue<String> failures = new ConcurrentLinkedQueue<>();
+
+    @Rule
+    public final LocalServer server = new LocalServer(this::handle).executor(Executors.newFixedThreadPool(8)).backlog(256);
+
+    @Test
+    public void mixedCallsFromManyThreads() throws Exception
+    {
+        Properties bsonOptions = options("bson");
+        Properties jsonOptions = options("false");
+        int port = server.port();
+
+        try(MdtsdbClientImpl bsonClient = new MdtsdbClientImpl("127.0.0.1", port, "app-bson", "adm-1", "secret-1", bsonOptions);
+            MdtsdbClientImpl jsonClient = new MdtsdbClientImpl("127.0.0.1", port, "app-json", "adm-2", "secret-2", jsonOptions);
+            MdtsdbClientImpl tokenClient = new MdtsdbClientImpl("127.0.0.1", port, "", "", "", jsonOptions))
+        {
+            tokenClient.setAccessToken(TOKEN_A);
+            List<MdtsdbClientImpl> clients = Arrays.asList(bsonClient, jsonClient, tokenClient);
+
+            ExecutorService callers = Executors.newFixedThreadPool(THREADS + 1);
+            try {
+                List<Future<?>> results = new ArrayList<>();
+                for(int t = 0; t < THREADS; ++t)
+                {
+                    final int thread = t;
+                    results.add(callers.submit(() -> {
+                        for(int i = 0; i < CALLS_PER_THREAD; ++i)
+                        {
+                            long id = thread * 1000000L + i;
+                            MdtsdbClientImpl client = clients.get((thread + i) % clients.size());
+                            JsonObject response;
+                            switch(i % 3)
+                            {
+                            case 0:
+                                JsonArray points = new JsonArray();
+                                points.add(new Measurement().time(id).sensor(0).value(id).build());
+                                response = client.insert(points);
+                                break;
+                            case 1:
+                                response = client.query("select " + id);
+                                break;
+                            default:
+                                response = client.newAppkey("user " + id);
+                                break;
+                            }
+                            assertEquals(String.valueOf(id), response.get("echo").getAsString());
+                        }
+                        return null;
+                    }));
+                }
+                // swap the credentials of one client while it is in use
+                results.add(callers.submit(() -> {
+                    for(int i = 0; i < 200; ++i)
+                    {
+                        tokenClient.setAccessToken(i % 2 == 0 ? TOKEN_B : TOKEN_A);
+                        Thread.sleep(1);
+                    }
+                    return null;
+                }));
+                for(Future<?> result : results)
+                    result.get(2, TimeUnit.MINUTES);
+            }
+            finally
+            {
+                callers.shutdownNow();
+            }
+        }
+
+        assertTrue(failures.toString(), failures.isEmpty());
+    }
+
+    private static Properties options(String compression)
+    {
+        Properties options = new Properties();
+        options.setProperty("useSSL", "false");
+        options.setProperty("compression", compression);
+        options.setProperty("pool_size", "8");
+        return options;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException
+    {
+        String echo = "";
+        try {
+            byte[] body = readAll(exchange.getRequestBody());
+            echo = check(exchange, body);
+        }
+        catch(Exception e)
+        {
+            failures.add(e.toString());
+        }
+
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        LocalServer.respond(exchange, 200, String.format("{\"result\":{\"status\":1},\"echo\":\"%s\"}", echo));
+    }
+
+    /**
+     * @return the identifier the request carries, or a failure description
+     */
+    private String check(HttpExchange exchange, byte[] body) throws Exception
+    {
+        String path = exchange.getRequestURI().toString().substring(1);
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        String[] auth = exchange.getRequestHeaders().getFirst("Authorization").split(" ");
+
+        // signed requests name the key they are signed with, token requests carry the admin key in the token
+        String signKey;
+        if(auth[0].equals("Bearer"))
+        {
+            if(!auth[1].equals(TOKEN_A) && !auth[1].equals(TOKEN_B))
+                return fail("unknown token " + auth[1]);
+            signKey = auth[1].equals(TOKEN_A) ? "adm-token-a" : "adm-token-b";
+        }
+        else
+        {
+            signKey = auth[1];
+            String method = auth[3].substring(auth[3].indexOf(',') + 1);
+            String expected = sign(method, signKey, SECRETS.get(signKey), path, sha256Hex(body), contentType);
+            if(!expected.equals(auth[2]))
+                return fail("bad signature of " + path);
+        }
+
+        if(path.equals("api/v1/ingest"))
+        {
+            boolean bson = signKey.equals("app-bson");
+            if(bson != "bson".equals(encoding))
+                return fail("encoding " + encoding + " for " + signKey);
+            JsonObject data = new JsonParser().parse(bson ? new RawBsonDocument(body).toJson() : utf8(body)).getAsJsonObject();
+            if(!data.get("method").getAsString().equals("setData"))
+                return fail("method of " + path);
+            JsonObject point = data.getAsJsonArray("params").get(0).getAsJsonObject();
+            return point.get("ns").getAsJsonPrimitive().getAsBigDecimal().toBigInteger().toString();
+        }
+        if(encoding != null)
+            return fail("encoding " + encoding + " for " + path);
+
+        if(path.equals("api/v1/admin"))
+        {
+            JsonObject data = new JsonParser().parse(utf8(body)).getAsJsonObject();
+            String admKey = data.getAsJsonObject("params").get("adminkey").getAsString();
+            if(!admKey.equals(signKey))
+                return fail("admin key " + admKey + " with credentials of " + signKey);
+            return data.getAsJsonObject("params").get("user").getAsString().substring("user ".length());
+        }
+        if(path.equals("api/v1/ql?v=2"))
+        {
+            String q = null;
+            for(String param : utf8(body).split("&"))
+            {
+                if(param.startsWith("q="))
+                    q = URLDecoder.decode(param.substring(2), "UTF-8");
+            }
+            return q.substring("select ".length());
+        }
+        return fail("unexpected path " + path);
+    }
+
+    private String fail(String reason)
+    {
+        failures.add(reason);
+        return reason;
+    }
+
+    private static String token(String clientId)
+    {
+        Base64.Encoder base64 = Base64.getEncoder();
+        return base64.encodeToString("{\"alg\":\"none\"}".getBytes(StandardCharsets.UTF_8)) + "." +
+               base64.encodeToString(("{\"clientId\":\"" + clientId + "\"}").getBytes(StandardCharsets.UTF_8)) + ".sig";
+    }
+
+    // independent implementation of the MDTSDB-HMAC-SHA256 scheme
+    private static String sign(String method, String signKey, String secretKey, String uri,
+                               String payloadHash, String contentType) throws Exception
+    {
+        String ts = String.valueOf(System.currentTimeMillis() / 1000L / 1000L);
+        byte[] key = hmac(secretKey.getBytes(StandardCharsets.UTF_8), ts);
+        key = hmac(key, method);
+        String requestDigest = sha256Hex(("/" + uri + "\n" + contentType + "\n" + payloadHash).getBytes(StandardCharsets.UTF_8));
+        return hex(hmac(key, ts + "\n" + signKey + "\n" + requestDigest));
+    }
+
+    private static byte[] hmac(byte[] key, String data) throws Exception
+    {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String sha256Hex(byte[] data) throws Exception
+    {
+        return hex(MessageDigest.getInstance("SHA-256").digest(data));
+    }
+
+    private static String hex(byte[] bytes)
+    {
+        StringBuilder sb = new StringBuilder();
+        for(byte b : bytes)
+            sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+
+    private static String utf8(byte[] bytes)
+    {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while((n = in.read(buf)) > 0)
+            out.write(buf, 0, n);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+
+package com.qomplx.mdtsdb.client.impl;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.zip.InflaterInputStream;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Checks the External Term Format encoding against the bytes erlang:term_to_binary/1 produces.
+ */
+public class ErlangTermToBinWrpTest
+{
+    @Test
+    public void encodesAsErlang() throws Exception
+    {
+        assertTerm(new int[] {131, 97, 1}, new JsonPrimitive(1));
+        assertTerm(new int[] {131, 97, 255}, new JsonPrimitive(255.0));
+        assertTerm(new int[] {131, 98, 0, 0, 1, 44}, new JsonPrimitive(300));
+        assertTerm(new int[] {131, 98, 255, 255, 255, 255}, new JsonPrimitive(-1));
+        // 1 bsl 40, -(1 bsl 63) and 1 bsl 64
+        assertTerm(new int[] {131, 110, 6, 0, 0, 0, 0, 0, 0, 1}, new JsonPrimitive(1L << 40));
+        assertTerm(new int[] {131, 110, 8, 1, 0, 0, 0, 0, 0, 0, 0, 128}, new JsonPrimitive(Long.MIN_VALUE));
+        assertTerm(new int[] {131, 110, 9, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1}, new JsonPrimitive(BigInteger.ONE.shiftLeft(64)));
+        assertTerm(new int[] {131, 110, 9, 1, 0, 0, 0, 0, 0, 0, 0, 0, 1}, new JsonParser().parse("-18446744073709551616"));
+        assertTerm(new int[] {131, 70, 63, 248, 0, 0, 0, 0, 0, 0}, new JsonPrimitive(1.5));
+        assertTerm(new int[] {131, 70, 63, 248, 0, 0, 0, 0, 0, 0}, new JsonParser().parse("1.5"));
+        assertTerm(new int[] {131, 109, 0, 0, 0, 4, 'a', 0xc3, 0xa9, 'b'}, new JsonPrimitive("a\u00e9b"));
+        assertTerm(new int[] {131, 100, 0, 4, 't', 'r', 'u', 'e'}, new JsonPrimitive(true));
+        assertTerm(new int[] {131, 106}, new JsonArray());
+        assertTerm(new int[] {131, 106}, new JsonObject());
+        assertTerm(new int[] {131, 108, 0, 0, 0, 2, 97, 1, 97, 2, 106}, new JsonParser().parse("[1,2]"));
+
+        JsonObject obj = new JsonObject();
+        obj.add("k", JsonNull.INSTANCE);
+        assertTerm(new int[] {131, 108, 0, 0, 0, 1, 104, 2, 109, 0, 0, 0, 1, 'k', 100, 0, 4, 'n', 'o', 'n', 'e', 106}, obj);
+
+        try {
+            ErlangTermToBinWrp.term_to_binary(new JsonPrimitive(Double.NaN), -1);
+            fail("expect NaN to be rejected");
+        }
+        catch(IllegalArgumentException e)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void compressesLargeTerms() throws Exception
+    {
+        JsonArray points = new JsonArray();
+        for(int i = 0; i < 200000; ++i)
+        {
+            JsonObject point = new JsonObject();
+            point.addProperty("0", i * 0.5);
+            point.addProperty("ns", 1600000000L + i);
+            points.add(point);
+        }
+        byte[] plain = ErlangTermToBinWrp.term_to_binary(points, -1).array();
+        byte[] compressed = ErlangTermToBinWrp.term_to_binary(points, 6).array();
+        assertTrue(compressed.length < plain.length);
+
+        // 131, 80, the uncompressed size and the zlib stream of the term after the version
+        assertEquals(131, compressed[0] & 0xff);
+        assertEquals(80, compressed[1]);
+        assertEquals(plain.length - 1, ((compressed[2] & 0xff) << 24) | ((compressed[3] & 0xff) << 16)
+                                       | ((compressed[4] & 0xff) << 8) | (compressed[5] & 0xff));
+        byte[] inflated = new InflaterInputStream(new ByteArrayInputStream(compressed, 6, compressed.length - 6)).readAllBytes();
+        assertArrayEquals(Arrays.copyOfRange(plain, 1, plain.length), inflated);
+
+        // terms that do not get smaller are not compressed
+        assertArrayEquals(new byte[] {(byte) 131, 97, 7}, ErlangTermToBinWrp.term_to_binary(new JsonPrimitive(7), 9).array());
+    }
+
+    private static void assertTerm(int[] expected, com.google.gson.JsonElement value) throws Exception
+    {
+        byte[] bytes = new byte[expected.length];
+        for(int i = 0; i < expected.length; ++i)
+            bytes[i] = (byte) expected[i];
+        assertArrayEquals(value.toString(), bytes, ErlangTermToBinWrp.term_to_binary(value, -1).array());
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+
+package com.qomplx.mdtsdb.client.impl;
+
+import java.net.http.HttpClient;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Checks that a transport asking for HTTP/2 falls back to HTTP/1.1 for good once a
+ * server that only speaks HTTP/1.1 has answered.
+ */
+public class HttpVersionTest
+{
+    // the Upgrade headers of the requests, "" for none
+    private final List<String> upgrades = new CopyOnWriteArrayList<>();
+
+    @Rule
+    public final LocalServer server = new LocalServer(exchange -> {
+        exchange.getRequestBody().readAllBytes();
+        String upgrade = exchange.getRequestHeaders().getFirst("Upgrade");
+        upgrades.add(upgrade == null ? "" : upgrade);
+        LocalServer.respond(exchange, 200, LocalServer.OK);
+    });
+
+    @Test
+    public void parsesVersion()
+    {
+        assertEquals(HttpClient.Version.HTTP_2, HttpTransport.parseVersion("HTTP_2"));
+        assertEquals(HttpClient.Version.HTTP_2, HttpTransport.parseVersion(" http/2 "));
+        assertEquals(HttpClient.Version.HTTP_2, HttpTransport.parseVersion("2"));
+        assertEquals(HttpClient.Version.HTTP_1_1, HttpTransport.parseVersion("HTTP/1.1"));
+        assertEquals(HttpClient.Version.HTTP_1_1, HttpTransport.parseVersion("1.1"));
+        try {
+            HttpTransport.parseVersion("HTTP/3");
+            fail("expect an unsupported version to be rejected");
+        }
+        catch(IllegalArgumentException expected)
+        {
+        }
+    }
+
+    @Test
+    public void pinsHttp11AfterFirstResponse() throws Exception
+    {
+        Properties options = new Properties();
+        options.setProperty("useSSL", "false");
+        options.setProperty("http_version", "HTTP_2");
+        HttpTransport transport = HttpTransport.fromOptions(options);
+        assertEquals(HttpClient.Version.HTTP_2, transport.getVersion());
+        assertNull(transport.getNegotiatedVersion());
+        assertEquals(HttpClient.Version.HTTP_2, transport.getRequestVersion());
+
+        try(MdtsdbClientImpl client = new MdtsdbClientImpl("127.0.0.1", server.port(), "app", "", "secret", options, transport))
+        {
+            client.insert(LocalServer.points(1));
+            assertEquals(HttpClient.Version.HTTP_1_1, transport.getNegotiatedVersion());
+            assertEquals(HttpClient.Version.HTTP_1_1, transport.getRequestVersion());
+
+            client.insertAsync(LocalServer.points(1)).get(10, TimeUnit.SECONDS);
+            client.insert(LocalServer.points(1));
+            assertEquals(HttpClient.Version.HTTP_1_1, transport.getRequestVersion());
+        }
+
+        // only the first request offers the upgrade to HTTP/2
+        assertEquals(Arrays.asList("h2c", "", ""), upgrades);
+    }
+}
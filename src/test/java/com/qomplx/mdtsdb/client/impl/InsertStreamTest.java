@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+
+package com.qomplx.mdtsdb.client.impl;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.InflaterInputStream;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.qomplx.mdtsdb.client.api.InsertStream;
+import com.qomplx.mdtsdb.client.api.Measurement;
+
+import static org.junit.Assert.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Checks that a streamed insert arrives as signed chunks that chain to the request signature
+ * and carry the same document a buffered insert sends.
+ */
+public class InsertStreamTest
+{
+    private static final String SECRET = "secret";
+
+    private final List<String> authorizations = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> transferEncodings = Collections.synchronizedList(new ArrayList<>());
+    private final List<byte[]> bodies = Collections.synchronizedList(new ArrayList<>());
+
+    @Rule
+    public final LocalServer server = new LocalServer(exchange -> {
+        authorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+        transferEncodings.add(exchange.getRequestHeaders().getFirst("Transfer-Encoding"));
+        bodies.add(exchange.getRequestBody().readAllBytes());
+        LocalServer.respond(exchange, 200, LocalServer.OK);
+    });
+
+    @Test
+    public void streamsSignedChunks() throws Exception
+    {
+        JsonArray points = new JsonArray();
+        for(int i = 0; i < 20000; ++i)
+            points.add(new Measurement().time(1600000000L + i).sensor(0).value(i * 0.25).tag("host", "node-" + i % 5).build());
+
+        JsonObject response;
+        try(MdtsdbClientImpl client = client();
+            InsertStream stream = client.openInsertStream())
+        {
+            for(int i = 0; i < points.size(); i += 2)
+                stream.add(points.get(i).getAsJsonObject());
+            JsonArray odd = new JsonArray();
+            for(int i = 1; i < points.size(); i += 2)
+                odd.add(points.get(i));
+            stream.add(odd);
+            response = stream.finish();
+        }
+        assertEquals(1, response.getAsJsonObject("result").get("status").getAsInt());
+        assertEquals("chunked", transferEncodings.get(0));
+
+        // "MDTSDB-STREAMING-HMAC-SHA256 signKey seed s,method"
+        String[] auth = authorizations.get(0).split(" ");
+        assertEquals(CommunicationLayer.MDTSDB_AUTH2_STREAMING.trim(), auth[0]);
+        String method = auth[3].substring(2);
+        long ts = System.currentTimeMillis() / 1000L / 1000L;
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(SECRET.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        byte[] key = mac.doFinal(String.valueOf(ts).getBytes(StandardCharsets.UTF_8));
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        key = mac.doFinal(method.getBytes(StandardCharsets.UTF_8));
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+
+        // unframe and check the chain of chunk signatures
+        byte[] body = bodies.get(0);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        String previous = auth[2];
+        int chunks = 0, pos = 0;
+        while(true)
+        {
+            int eol = pos;
+            while(body[eol] != '\r')
+                ++eol;
+            String[] head = new String(body, pos, eol - pos, StandardCharsets.US_ASCII).split(";chunk-signature=");
+            int size = Integer.parseInt(head[0], 16);
+            String hash = RequestSigner.sha256Hex(body, eol + 2, size);
+            String expected = RequestSigner.toHex(mac.doFinal(("MDTSDB-HMAC-SHA256-PAYLOAD\n" + ts + "\n" + previous + "\n" + hash)
+                                                                 .getBytes(StandardCharsets.UTF_8)));
+            assertEquals(expected, head[1]);
+            previous = expected;
+            payload.write(body, eol + 2, size);
+            pos = eol + 2 + size + 2;
+            ++chunks;
+            if(size == 0)
+                break;
+        }
+        assertEquals(body.length, pos);
+        assertTrue(chunks > 2);
+
+        byte[] json = new InflaterInputStream(new ByteArrayInputStream(payload.toByteArray())).readAllBytes();
+        JsonObject request = new JsonParser().parse(new String(json, StandardCharsets.UTF_8)).getAsJsonObject();
+        assertEquals("setData", request.get("method").getAsString());
+        JsonArray params = request.getAsJsonArray("params");
+        assertEquals(points.size(), params.size());
+        Set<Long> received = new HashSet<>();
+        for(int i = 0; i < params.size(); ++i)
+            received.add(params.get(i).getAsJsonObject().get("ns").getAsLong());
+        assertEquals(points.size(), received.size());
+    }
+
+    private MdtsdbClientImpl client()
+    {
+        Properties options = new Properties();
+        options.setProperty("compression", "gzip");
+        options.setProperty("compression_level", "1");
+        options.setProperty("streaming_chunk_bytes", "4096");
+        return server.client("app", SECRET, options);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+
+package com.qomplx.mdtsdb.client.impl;
+
+import java.io.*;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Checks that KML files are streamed as the same form the in-memory upload sends.
+ */
+public class KmlUploadTest
+{
+    private final List<String> bodies = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> lengths = Collections.synchronizedList(new ArrayList<>());
+    private Path dir;
+
+    @Rule
+    public final LocalServer server = new LocalServer(exchange -> {
+        byte[] body = exchange.getRequestBody().readAllBytes();
+        bodies.add(new String(body, StandardCharsets.US_ASCII));
+        lengths.add(exchange.getRequestHeaders().getFirst("Content-Length"));
+        LocalServer.respond(exchange, 200, LocalServer.OK);
+    });
+
+    @Before
+    public void createDir() throws Exception
+    {
+        dir = Files.createTempDirectory("kml");
+    }
+
+    @After
+    public void deleteDir() throws Exception
+    {
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(dir))
+        {
+            for(Path file : files)
+                Files.delete(file);
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    public void streamsKmlAndKmzFiles() throws Exception
+    {
+        StringBuilder doc = new StringBuilder("<?xml version=\"1.0\"?>\n<kml><Document>");
+        for(int i = 0; i < 20000; ++i)
+            doc.append("<Placemark><name>p ").append(i).append(" \u00e9&amp;*~</name></Placemark>\n");
+        String kml = doc.append("</Document></kml>").toString();
+
+        Path kmlFile = dir.resolve("doc.kml");
+        Files.write(kmlFile, kml.getBytes(StandardCharsets.UTF_8));
+        Path kmzFile = dir.resolve("doc.kmz");
+        try(ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(kmzFile)))
+        {
+            zip.putNextEntry(new ZipEntry("images/"));
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("doc.kml"));
+            zip.write(kml.getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+        }
+
+        Properties defaults = new Properties();
+        defaults.setProperty("id", "sensor 1");
+        String expected = "id=sensor+1&q=" + URLEncoder.encode(kml, "UTF-8") + "&key=" + URLEncoder.encode("app key", "UTF-8");
+
+        try(MdtsdbClientImpl client = client())
+        {
+            client.uploadKml(kml, defaults);
+            client.uploadKmlFile(kmlFile.toString(), defaults);
+            client.uploadKmlFileAsync(kmzFile.toString(), defaults).get();
+        }
+        assertEquals(3, bodies.size());
+        for(int i = 0; i < 3; ++i)
+        {
+            assertEquals(expected, bodies.get(i));
+            assertEquals(String.valueOf(expected.length()), lengths.get(i));
+        }
+    }
+
+    private MdtsdbClientImpl client()
+    {
+        return server.client("app key", "secret", new Properties());
+    }
+}
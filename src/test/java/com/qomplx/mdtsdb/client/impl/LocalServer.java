@@ -0,0 +1,157 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+
+package com.qomplx.mdtsdb.client.impl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+
+import com.google.gson.JsonArray;
+import com.qomplx.mdtsdb.client.api.Measurement;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.rules.ExternalResource;
+
+/**
+ * An HTTP server on a free local port that answers the requests of the clients of a test,
+ * started before and stopped after each test.
+ *
+ * <pre>
+ *   &#64;Rule
+ *   public final LocalServer server = new LocalServer(exchange -> LocalServer.respond(exchange, 200, LocalServer.OK));
+ * </pre>
+ */
+public class LocalServer extends ExternalResource
+{
+    public static final String OK = "{\"result\":{\"status\":1}}";
+
+    private final Map<String, HttpHandler> contexts = new LinkedHashMap<>();
+    private ExecutorService executor = null;
+    private int backlog = 0;
+    private HttpServer server;
+    private int port;
+
+    /**
+     * @param handler answers the requests to all paths without a handler of their own
+     */
+    public LocalServer(HttpHandler handler)
+    {
+        contexts.put("/", handler);
+    }
+
+    /**
+     * Answers the requests to a path with a handler of its own, e.g. an auth server.
+     */
+    public LocalServer context(String path, HttpHandler handler)
+    {
+        contexts.put(path, handler);
+        return this;
+    }
+
+    /**
+     * Answers the requests on the given executor, instead of one at a time. The executor
+     * is shut down with the server.
+     */
+    public LocalServer executor(ExecutorService executor)
+    {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Queues up to the given number of incoming connections, for tests with many clients.
+     */
+    public LocalServer backlog(int backlog)
+    {
+        this.backlog = backlog;
+        return this;
+    }
+
+    @Override
+    protected void before() throws Throwable
+    {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), backlog);
+        server.setExecutor(executor);
+        for(Map.Entry<String, HttpHandler> context : contexts.entrySet())
+            server.createContext(context.getKey(), context.getValue());
+        server.start();
+        port = server.getAddress().getPort();
+    }
+
+    @Override
+    protected void after()
+    {
+        stop();
+    }
+
+    /**
+     * Stops the server, so that requests to its port fail to connect.
+     */
+    public void stop()
+    {
+        server.stop(0);
+        if(executor != null)
+            executor.shutdownNow();
+    }
+
+    public int port()
+    {
+        return port;
+    }
+
+    /**
+     * @return a client of the server, sending plain HTTP
+     */
+    public MdtsdbClientImpl client(String appKey, String secretKey, Properties options)
+    {
+        options.setProperty("useSSL", "false");
+        return new MdtsdbClientImpl("127.0.0.1", port(), appKey, "", secretKey, options);
+    }
+
+    /**
+     * @return a client of the server for the app key "app" with the secret key "secret"
+     */
+    public MdtsdbClientImpl client(Properties options)
+    {
+        return client("app", "secret", options);
+    }
+
+    /**
+     * Sends the response and closes the exchange.
+     *
+     * @param body the response body, or null for none
+     */
+    public static void respond(HttpExchange exchange, int status, String body) throws IOException
+    {
+        if(body == null)
+        {
+            exchange.sendResponseHeaders(status, -1);
+        }
+        else
+        {
+            byte[] out = body.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, out.length);
+            exchange.getResponseBody().write(out);
+        }
+        exchange.close();
+    }
+
+    /**
+     * @return n points of sensor 0, a second apart, with random values
+     */
+    public static JsonArray points(int n)
+    {
+        JsonArray points = new JsonArray();
+        Random random = new Random(n);
+        for(int i = 0; i < n; ++i)
+            points.add(new Measurement().time(1600000000L + i).sensor(0).value(random.nextGaussian()).build());
+        return points;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+
+package com.qomplx.mdtsdb.client.impl;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.InflaterInputStream;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.qomplx.mdtsdb.client.api.Measurement;
+import org.bson.RawBsonDocument;
+
+import static org.junit.Assert.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Checks that large inserts encoded in parallel chunks carry exactly the points of a
+ * serially encoded request.
+ */
+public class ParallelEncodingTest
+{
+    private final List<byte[]> bodies = Collections.synchronizedList(new ArrayList<>());
+
+    @Rule
+    public final LocalServer server = new LocalServer(exchange -> {
+        byte[] body = exchange.getRequestBody().readAllBytes();
+        String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        if(encoding != null && encoding.startsWith("gzip"))
+            body = new InflaterInputStream(new ByteArrayInputStream(body)).readAllBytes();
+        bodies.add(body);
+        LocalServer.respond(exchange, 200, LocalServer.OK);
+    });
+
+    @Test
+    public void joinsChunksIntoSameBody() throws Exception
+    {
+        JsonArray points = points(2500);
+        for(String compression : new String[] {"false", "gzip", "bson", "gzip-bson"})
+        {
+            bodies.clear();
+            try(MdtsdbClientImpl serial = client(compression, "join", 1000000);
+                MdtsdbClientImpl parallel = client(compression, "join", 1000))
+            {
+                serial.insert(points);
+                parallel.insert(points);
+                parallel.insertAsync(points).get();
+            }
+            assertEquals(compression, 3, bodies.size());
+            assertArrayEquals(compression, bodies.get(0), bodies.get(1));
+            assertArrayEquals(compression, bodies.get(0), bodies.get(2));
+        }
+    }
+
+    @Test
+    public void sendsChunksAsRequests() throws Exception
+    {
+        JsonArray points = points(2500);
+        for(String compression : new String[] {"gzip", "bson"})
+        {
+            bodies.clear();
+            JsonObject response;
+            try(MdtsdbClientImpl client = client(compression, "requests", 1000))
+            {
+                response = client.insert(points);
+            }
+            assertEquals(1, response.getAsJsonObject("result").get("status").getAsInt());
+            assertEquals(9, response.getAsJsonArray("chunks").size());
+
+            Set<Long> received = new TreeSet<>();
+            for(byte[] body : bodies)
+            {
+                JsonObject request = compression.equals("bson")
+                    ? new JsonParser().parse(new RawBsonDocument(body).toJson()).getAsJsonObject()
+                    : new JsonParser().parse(new String(body, StandardCharsets.UTF_8)).getAsJsonObject();
+                JsonArray params = request.getAsJsonArray("params");
+                assertTrue(params.size() <= 300);
+                for(int i = 0; i < params.size(); ++i)
+                    received.add(params.get(i).getAsJsonObject().get("ns").getAsLong());
+            }
+            assertEquals(9, bodies.size());
+            assertEquals(2500, received.size());
+        }
+    }
+
+    private MdtsdbClientImpl client(String compression, String mode, int minPoints)
+    {
+        Properties options = new Properties();
+        options.setProperty("compression", compression);
+        options.setProperty("parallel_mode", mode);
+        options.setProperty("parallel_min_points", String.valueOf(minPoints));
+        options.setProperty("parallel_chunk_points", "300");
+        options.setProperty("parallel_block_bytes", "4096");
+        options.setProperty("parallel_threads", "3");
+        return server.client(options);
+    }
+
+    private static JsonArray points(int n)
+    {
+        JsonArray points = new JsonArray();
+        for(int i = 0; i < n; ++i)
+        {
+            points.add(new Measurement().time(1600000000L + i).sensor(0).value(i * 0.5).sensor(1).value("s" + i % 7)
+                                        .tag("host", "node-" + i % 3).build());
+        }
+        return points;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+
+package com.qomplx.mdtsdb.client.impl;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+
+import static org.junit.Assert.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Streams the records of a query from a local stand-in server, which sends them as a
+ * JSON text sequence, a record separator before each record.
+ */
+public class QueryStreamTest
+{
+    private static final char RS = '\u001e';
+
+    // the records of the responses to the queries, one list per query, the last one is repeated
+    private volatile List<List<String>> responses;
+    // records after which the server waits for the test to read a record
+    private volatile int sentBeforeWait = Integer.MAX_VALUE;
+    private final CountDownLatch recordRead = new CountDownLatch(1);
+    private volatile boolean waitedOut = false;
+    private final AtomicInteger queries = new AtomicInteger();
+    private final AtomicInteger issued = new AtomicInteger();
+    // the Authorization headers of the queries
+    private final List<String> authorizations = new CopyOnWriteArrayList<>();
+
+    @Rule
+    public final LocalServer server = new LocalServer(this::handle).context("/token", exchange -> {
+        exchange.getRequestBody().readAllBytes();
+        String jwt = jwt(issued.incrementAndGet());
+        LocalServer.respond(exchange, 200, "{\"access_token\":\"" + jwt + "\",\"token_type\":\"Bearer\"}");
+    }).executor(Executors.newCachedThreadPool());
+
+    @Test
+    public void decodesRecordsAsTheyArrive() throws Exception
+    {
+        responses = Arrays.asList(Arrays.asList("{\"n\":1}", "{\"n\":2}", "{\"n\":3}"));
+        sentBeforeWait = 1;
+        try(MdtsdbClientImpl client = server.client(new Properties());
+            Stream<JsonObject> records = client.queryStream("select"))
+        {
+            Iterator<JsonObject> it = records.iterator();
+            // the server sends the rest only once the first record is read
+            assertEquals(1, it.next().get("n").getAsInt());
+            recordRead.countDown();
+            assertEquals(2, it.next().get("n").getAsInt());
+            assertEquals(3, it.next().get("n").getAsInt());
+            assertFalse(it.hasNext());
+        }
+        assertFalse(waitedOut);
+
+        // every record is a JSON text of its own, whatever its whitespace
+        responses = Arrays.asList(Arrays.asList("{\"n\":\n4}", " {\"s\":\"a b\"}\n", "[{\"n\":5}]"));
+        sentBeforeWait = Integer.MAX_VALUE;
+        try(MdtsdbClientImpl client = server.client(new Properties());
+            Stream<JsonObject> records = client.eventsQueryStream("select", 1))
+        {
+            Iterator<JsonObject> it = records.iterator();
+            assertEquals(4, it.next().get("n").getAsInt());
+            assertEquals("a b", it.next().get("s").getAsString());
+            try {
+                it.next();
+                fail("expect a record that is not an object to fail");
+            }
+            catch(IllegalStateException expected)
+            {
+            }
+        }
+    }
+
+    @Test
+    public void closeReturnsThePermit() throws Exception
+    {
+        List<String> many = new ArrayList<>();
+        for(int i = 0; i < 1000; ++i)
+            many.add("{\"n\":" + i + "}");
+        responses = Arrays.asList(many);
+        sentBeforeWait = 10;
+
+        Properties options = new Properties();
+        options.setProperty("pool_size", "1");
+        try(MdtsdbClientImpl client = server.client(options))
+        {
+            try(Stream<JsonObject> records = client.queryStream("select"))
+            {
+                assertEquals(Arrays.asList(0, 1, 2), records.limit(3).map(r -> r.get("n").getAsInt()).collect(Collectors.toList()));
+            }
+            // the only permit is free again, although the rest of the response was never read
+            JsonObject result = client.insertAsync(LocalServer.points(1)).get(10, TimeUnit.SECONDS);
+            assertEquals(1, result.getAsJsonObject("result").get("status").getAsInt());
+        }
+        finally
+        {
+            recordRead.countDown();
+        }
+    }
+
+    @Test
+    public void retriesAuthorizationErrorOfFirstRecord() throws Exception
+    {
+        responses = Arrays.asList(Arrays.asList("{\"error\":{\"code\":1001,\"message\":\"authorization error\"}}"),
+                                  Arrays.asList("{\"n\":1}", "{\"n\":2}"));
+        try(MdtsdbClientImpl client = server.client(new Properties()))
+        {
+            client.setAccessCredentials("http://127.0.0.1:" + server.port() + "/token", "client", "secret");
+            try(Stream<JsonObject> records = client.queryStream("select"))
+            {
+                assertEquals(Arrays.asList(1, 2), records.map(r -> r.get("n").getAsInt()).collect(Collectors.toList()));
+            }
+            assertEquals(2, queries.get());
+            assertEquals(2, issued.get());
+            assertEquals(Arrays.asList("Bearer " + jwt(1), "Bearer " + jwt(2)), authorizations);
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException
+    {
+        exchange.getRequestBody().readAllBytes();
+        if(!exchange.getRequestURI().getPath().endsWith("/ql"))
+        {
+            LocalServer.respond(exchange, 200, LocalServer.OK);
+            return;
+        }
+
+        authorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+        List<String> records = responses.get(Math.min(queries.getAndIncrement(), responses.size() - 1));
+        exchange.getResponseHeaders().add("Content-Type", "application/json-seq");
+        exchange.sendResponseHeaders(200, 0);
+        try(OutputStream out = exchange.getResponseBody())
+        {
+            for(int i = 0; i < records.size(); ++i)
+            {
+                if(i == sentBeforeWait)
+                {
+                    out.flush();
+                    if(!recordRead.await(10, TimeUnit.SECONDS))
+                        waitedOut = true;
+                }
+                out.write((RS + records.get(i) + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        catch(IOException e)
+        {
+            // the client closed the stream early
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        exchange.close();
+    }
+
+    // a token that does not expire while the test runs
+    private static String jwt(int n)
+    {
+        String claims = "{\"clientId\":\"adm\",\"n\":" + n + ",\"iat\":1600000000,\"exp\":4000000000}";
+        return "e30." + Base64.getUrlEncoder().withoutPadding().encodeToString(claims.getBytes(StandardCharsets.UTF_8)) + ".sig";
+    }
+}
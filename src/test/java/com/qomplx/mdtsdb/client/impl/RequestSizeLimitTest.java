@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+
+package com.qomplx.mdtsdb.client.impl;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.InflaterInputStream;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import static org.junit.Assert.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Checks that inserts larger than the server accepts are split into requests that fit,
+ * each point being stored once.
+ */
+public class RequestSizeLimitTest
+{
+    private static final int SERVER_LIMIT = 16384;
+
+    private final AtomicInteger rejected = new AtomicInteger();
+    private final List<String> stored = Collections.synchronizedList(new ArrayList<>());
+
+    @Rule
+    public final LocalServer server = new LocalServer(exchange -> {
+        byte[] body = exchange.getRequestBody().readAllBytes();
+        if(body.length > SERVER_LIMIT)
+        {
+            rejected.incrementAndGet();
+            LocalServer.respond(exchange, 200, "{\"error\":{\"code\":5000,\"message\":\"request is too large\"}}");
+            return;
+        }
+        String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        if(encoding != null && encoding.startsWith("gzip"))
+            body = new InflaterInputStream(new ByteArrayInputStream(body)).readAllBytes();
+        JsonObject request = new JsonParser().parse(new String(body, StandardCharsets.UTF_8)).getAsJsonObject();
+        for(JsonElement elem : request.getAsJsonArray("params"))
+        {
+            JsonObject obj = elem.getAsJsonObject();
+            if(obj.has("key"))
+            {
+                for(JsonElement point : obj.getAsJsonArray("data"))
+                    stored.add(obj.get("key").getAsString() + "/" + point.getAsJsonObject().get("ns").getAsLong());
+            }
+            else
+                stored.add(String.valueOf(obj.get("ns").getAsLong()));
+        }
+        LocalServer.respond(exchange, 200, LocalServer.OK);
+    });
+
+    @Test
+    public void bisectsRejectedRequestsAndLearnsLimit() throws Exception
+    {
+        JsonArray points = LocalServer.points(6000);
+        try(MdtsdbClientImpl client = client("gzip", null))
+        {
+            assertEquals(0, client.getMaxRequestBytes());
+            JsonObject response = client.insert(points);
+            assertEquals(1, response.getAsJsonObject("result").get("status").getAsInt());
+            assertTrue(response.getAsJsonArray("chunks").size() > 1);
+            assertStoredOnce(6000);
+            int limit = client.getMaxRequestBytes();
+            assertTrue(limit > 0);
+
+            // the learned limit splits the next insert before it is sent
+            int before = rejected.getAndSet(0);
+            stored.clear();
+            client.insertAsync(points).get();
+            assertStoredOnce(6000);
+            assertTrue(rejected.get() < before);
+
+            stored.clear();
+            long[] timestamps = new long[points.size()];
+            double[] values = new double[points.size()];
+            for(int i = 0; i < points.size(); ++i)
+            {
+                timestamps[i] = points.get(i).getAsJsonObject().get("ns").getAsLong();
+                values[i] = points.get(i).getAsJsonObject().get("0").getAsDouble();
+            }
+            client.insertAsync(client.newPointBatch().addColumn("0", timestamps, values)).get();
+            assertStoredOnce(6000);
+            assertTrue(client.getMaxRequestBytes() <= limit);
+        }
+    }
+
+    @Test
+    public void splitsMultiSendByConfiguredLimit() throws Exception
+    {
+        Map<String, JsonArray> lanes = new LinkedHashMap<>();
+        lanes.put("a", LocalServer.points(1500));
+        lanes.put("b", LocalServer.points(10));
+        lanes.put("c", LocalServer.points(1500));
+        JsonArray data = com.qomplx.mdtsdb.client.api.SwimlaneRouter.multiSendData(lanes);
+
+        JsonObject response;
+        try(MdtsdbClientImpl client = client("false", "12000"))
+        {
+            response = client.insert(data);
+        }
+        assertEquals(0, rejected.get());
+        assertEquals(1, response.getAsJsonObject("result").get("status").getAsInt());
+        assertEquals(3010, stored.size());
+        assertEquals(3010, new HashSet<>(stored).size());
+        for(String key : lanes.keySet())
+        {
+            for(JsonElement point : lanes.get(key))
+                assertTrue(stored.contains(key + "/" + point.getAsJsonObject().get("ns").getAsLong()));
+        }
+    }
+
+    private void assertStoredOnce(int n)
+    {
+        assertEquals(n, stored.size());
+        Set<String> unique = new HashSet<>(stored);
+        for(int i = 0; i < n; ++i)
+            assertTrue(unique.contains(String.valueOf(1600000000L + i)));
+    }
+
+    private MdtsdbClientImpl client(String compression, String maxRequestBytes)
+    {
+        Properties options = new Properties();
+        options.setProperty("compression", compression);
+        if(maxRequestBytes != null)
+            options.setProperty("max_request_bytes", maxRequestBytes);
+        return server.client(options);
+    }
+}
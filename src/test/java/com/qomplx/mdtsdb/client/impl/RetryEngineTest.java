@@ -0,0 +1,200 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+
+package com.qomplx.mdtsdb.client.impl;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.gson.JsonObject;
+import com.qomplx.mdtsdb.client.api.BackoffRetryPolicy;
+import com.qomplx.mdtsdb.client.api.MdtsdbException;
+import com.qomplx.mdtsdb.client.api.MdtsdbServerException;
+
+import static org.junit.Assert.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Checks that transient failures are retried, fatal ones are not, and that the retry
+ * budget stops retries of a server that keeps failing.
+ */
+public class RetryEngineTest
+{
+    private static final String OK = LocalServer.OK;
+
+    private final AtomicInteger requests = new AtomicInteger();
+    // the responses to send, "503" for the HTTP status, the last one is repeated
+    private volatile List<String> responses;
+    // the Retry-After header of a 503, in seconds
+    private volatile String retryAfter = "0";
+
+    @Rule
+    public final LocalServer server = new LocalServer(exchange -> {
+        exchange.getRequestBody().readAllBytes();
+        int n = requests.getAndIncrement();
+        String response = responses.get(Math.min(n, responses.size() - 1));
+        if(response.equals("503"))
+        {
+            exchange.getResponseHeaders().add("Retry-After", retryAfter);
+            LocalServer.respond(exchange, 503, null);
+        }
+        else
+        {
+            LocalServer.respond(exchange, 200, response);
+        }
+    });
+
+    @Test
+    public void retriesTransientFailures() throws Exception
+    {
+        responses = Arrays.asList("503", error(MdtsdbServerException.ERR_CODE_AUTH_OVERLOAD), OK);
+        try(MdtsdbClientImpl client = client("10"))
+        {
+            assertEquals(1, client.insert(LocalServer.points(10)).getAsJsonObject("result").get("status").getAsInt());
+            assertEquals(3, requests.get());
+
+            requests.set(0);
+            responses = Arrays.asList(error(MdtsdbServerException.ERR_CODE_DB_DISCON), "503", OK);
+            JsonObject result = client.insertAsync(LocalServer.points(10)).get(10, TimeUnit.SECONDS);
+            assertEquals(1, result.getAsJsonObject("result").get("status").getAsInt());
+            assertEquals(3, requests.get());
+
+            // fatal, returned as it is
+            requests.set(0);
+            responses = Arrays.asList(error(MdtsdbServerException.ERR_CODE_QL_SYNTAX), OK);
+            result = client.insert(LocalServer.points(10));
+            assertEquals(MdtsdbServerException.ERR_CODE_QL_SYNTAX, result.getAsJsonObject("error").get("code").getAsInt());
+            assertEquals(1, requests.get());
+        }
+    }
+
+    @Test
+    public void budgetLimitsRetries() throws Exception
+    {
+        responses = Arrays.asList("503");
+        try(MdtsdbClientImpl client = client("4"))
+        {
+            // the budget of 4 allows 2 retries before it is at half
+            for(int i = 0; i < 2; ++i)
+            {
+                try {
+                    client.insert(LocalServer.points(10));
+                    fail("expected a failure");
+                }
+                catch(MdtsdbException e)
+                {
+                    assertTrue(hasStatus(e, 503));
+                }
+            }
+            assertEquals(2 + 1 + 1, requests.get());
+
+            requests.set(0);
+            try {
+                client.insertAsync(LocalServer.points(10)).get(10, TimeUnit.SECONDS);
+                fail("expected a failure");
+            }
+            catch(ExecutionException e)
+            {
+                assertTrue(hasStatus(e, 503));
+            }
+            assertEquals(1, requests.get());
+        }
+    }
+
+    @Test
+    public void honoursRetryAfter() throws Exception
+    {
+        // a Retry-After longer than "retry_max_delay_ms" fails at once
+        responses = Arrays.asList("503", OK);
+        retryAfter = "1";
+        try(MdtsdbClientImpl client = client("10"))
+        {
+            try {
+                client.insert(LocalServer.points(10));
+                fail("expected a failure");
+            }
+            catch(MdtsdbException e)
+            {
+                assertTrue(hasStatus(e, 503));
+            }
+            assertEquals(1, requests.get());
+        }
+
+        // a shorter one is waited for in full
+        BackoffRetryPolicy policy = new BackoffRetryPolicy(3, 1, 5000);
+        assertEquals(2000, policy.retryDelayMs(1, 503, 0, 2000));
+        assertEquals(-1, policy.retryDelayMs(1, 503, 0, 6000));
+    }
+
+    @Test
+    public void sendsKeyCreationOnce() throws Exception
+    {
+        responses = Arrays.asList("503", OK);
+        try(MdtsdbClientImpl client = client("10"))
+        {
+            try {
+                client.newAppkey("user");
+                fail("expected a failure");
+            }
+            catch(MdtsdbException e)
+            {
+                assertTrue(hasStatus(e, 503));
+            }
+            assertEquals(1, requests.get());
+
+            requests.set(0);
+            responses = Arrays.asList(error(MdtsdbServerException.ERR_CODE_AUTH_OVERLOAD), OK);
+            JsonObject result = client.newAdminkeyAsync("user").get(10, TimeUnit.SECONDS);
+            assertEquals(MdtsdbServerException.ERR_CODE_AUTH_OVERLOAD, result.getAsJsonObject("error").get("code").getAsInt());
+            assertEquals(1, requests.get());
+        }
+
+        // a request that failed to connect was never sent, and is retried
+        server.stop();
+        try(MdtsdbClientImpl client = client("10"))
+        {
+            client.newAppkey("user");
+            fail("expected a failure");
+        }
+        catch(MdtsdbException e)
+        {
+            assertTrue(RetryEngine.fromOptions(options("10")).afterFailure(1, e, false) >= 0);
+        }
+    }
+
+    private static boolean hasStatus(Throwable e, int status)
+    {
+        for(Throwable cause = e; cause != null; cause = cause.getCause())
+        {
+            if(cause instanceof CommunicationLayer.HttpStatusException)
+                return ((CommunicationLayer.HttpStatusException) cause).getStatusCode() == status;
+        }
+        return false;
+    }
+
+    private static String error(int code)
+    {
+        return "{\"error\":{\"code\":" + code + ",\"message\":\"failed\"}}";
+    }
+
+    private MdtsdbClientImpl client(String budget)
+    {
+        return server.client(options(budget));
+    }
+
+    private static Properties options(String budget)
+    {
+        Properties options = new Properties();
+        options.setProperty("retry_max_attempts", "3");
+        options.setProperty("retry_base_delay_ms", "1");
+        options.setProperty("retry_max_delay_ms", "10");
+        options.setProperty("retry_budget_tokens", budget);
+        return options;
+    }
+}
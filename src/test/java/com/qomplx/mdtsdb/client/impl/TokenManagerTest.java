@@ -0,0 +1,142 @@
+/*
+ * Copyright 2015-2021 -- QOMPLX, Inc. -- All Rights Reserved.  No License Granted.
+ *
+ */
+
+package com.qomplx.mdtsdb.client.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+import static org.junit.Assert.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Checks that access tokens are refreshed before they expire, and that concurrent
+ * refreshes of the same token are served by one request to the auth server.
+ */
+public class TokenManagerTest
+{
+    private final AtomicInteger issued = new AtomicInteger();
+    private volatile long lifetimeSec = 3600;
+    // the Authorization headers of the requests to the data end-point
+    private final List<String> authorizations = new CopyOnWriteArrayList<>();
+
+    @Rule
+    public final LocalServer server = new LocalServer(exchange -> {
+        exchange.getRequestBody().readAllBytes();
+        authorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+        LocalServer.respond(exchange, 200, LocalServer.OK);
+    }).context("/token", exchange -> {
+        exchange.getRequestBody().readAllBytes();
+        int n = issued.incrementAndGet();
+        try {
+            Thread.sleep(200);
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        long now = System.currentTimeMillis() / 1000;
+        String jwt = jwt(n, now, now + lifetimeSec);
+        LocalServer.respond(exchange, 200, "{\"access_token\":\"" + jwt + "\",\"token_type\":\"Bearer\"}");
+    }).executor(Executors.newCachedThreadPool());
+
+    @Test
+    public void refreshesBeforeExpiry() throws Exception
+    {
+        lifetimeSec = 2;
+        try(MdtsdbClientImpl client = client())
+        {
+            client.setAccessCredentials(authUrl(), "client", "secret");
+            String first = client.getAccessToken();
+            assertEquals(1, issued.get());
+
+            // refreshed half way through the life of the token
+            long deadline = System.currentTimeMillis() + 1900;
+            while(issued.get() < 2 && System.currentTimeMillis() < deadline)
+                Thread.sleep(20);
+            assertTrue(issued.get() >= 2);
+            Thread.sleep(300);
+            assertNotEquals(first, client.getAccessToken());
+        }
+    }
+
+    @Test
+    public void collapsesConcurrentRefreshes() throws Exception
+    {
+        HttpTransport transport = new HttpTransport(4, 5000);
+        List<String> tokens = new CopyOnWriteArrayList<>();
+        TokenManager[] managers = new TokenManager[1];
+        TokenManager manager = new TokenManager(transport, (token, type) -> {
+            tokens.add(token);
+            managers[0].tokenChanged(token, 0, 0);
+        }, 30000, 5000);
+        managers[0] = manager;
+        manager.setCredentials(authUrl(), "client", "secret");
+        manager.tokenChanged("stale", 0, 0);
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> refreshes = new ArrayList<>();
+            for(int i = 0; i < 8; ++i)
+                refreshes.add(pool.submit(() -> {
+                    manager.refreshNow("stale");
+                    return null;
+                }));
+            for(Future<?> refresh : refreshes)
+                refresh.get(10, TimeUnit.SECONDS);
+        }
+        finally
+        {
+            pool.shutdown();
+            manager.close();
+            transport.close();
+        }
+        assertEquals(1, issued.get());
+        assertEquals(1, tokens.size());
+    }
+
+    @Test
+    public void sendsWithRefreshedToken() throws Exception
+    {
+        try(MdtsdbClientImpl client = client())
+        {
+            client.setAccessCredentials(authUrl(), "client", "secret");
+            long now = System.currentTimeMillis() / 1000;
+            String expired = jwt(0, now - 20, now - 10);
+
+            client.setAccessToken(expired);
+            client.insert(LocalServer.points(1));
+            assertNotEquals(expired, client.getAccessToken());
+            assertEquals(Arrays.asList("Bearer " + client.getAccessToken()), authorizations);
+
+            authorizations.clear();
+            client.setAccessToken(expired);
+            client.insertAsync(LocalServer.points(1)).get(10, TimeUnit.SECONDS);
+            assertNotEquals(expired, client.getAccessToken());
+            assertEquals(Arrays.asList("Bearer " + client.getAccessToken()), authorizations);
+        }
+    }
+
+    private static String jwt(int n, long iat, long exp)
+    {
+        String claims = "{\"clientId\":\"adm\",\"n\":" + n + ",\"iat\":" + iat + ",\"exp\":" + exp + "}";
+        return "e30." + Base64.getUrlEncoder().withoutPadding().encodeToString(claims.getBytes(StandardCharsets.UTF_8)) + ".sig";
+    }
+
+    private String authUrl()
+    {
+        return "http://127.0.0.1:" + server.port() + "/token";
+    }
+
+    private MdtsdbClientImpl client()
+    {
+        return server.client(new Properties());
+    }
+}